@@ -0,0 +1,177 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplication;
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.state.InMemoryTripSnapshotStore;
+import org.apache.pulsar.client.api.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.PulsarContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs two instances with a Key_Shared subscription and checks that trip state is handed over when the second
+ * instance joins and Pulsar moves some of the trips to it.
+ */
+public class ITKeySharedSubscription {
+    private static final Logger logger = LoggerFactory.getLogger(ITKeySharedSubscription.class);
+
+    @ClassRule
+    public static PulsarContainer pulsar = new PulsarContainer(DockerImageName.parse("apachepulsar/pulsar:2.10.3"));
+
+    private static final String SOURCE_TOPIC = "hsl/transitdata/tu-key-shared-source";
+    private static final String SINK_TOPIC = "hsl/transitdata/tu-key-shared-sink";
+
+    private static final int TRIPS = 50;
+    private static final long FIRST_DVJ_ID = 1234567000L;
+    private static final String ROUTE = "7575";
+    private static final LocalDateTime DATE_TIME = LocalDateTime.parse("2020-12-24T18:00:00");
+
+    private final InMemoryTripSnapshotStore snapshotStore = new InMemoryTripSnapshotStore();
+    private final List<PulsarApplication> apps = new ArrayList<>();
+
+    private PulsarClient client;
+    private Producer<byte[]> source;
+    private Consumer<byte[]> sink;
+
+    @Before
+    public void setUp() throws Exception {
+        client = PulsarClient.builder().serviceUrl(pulsar.getPulsarBrokerUrl()).build();
+        source = client.newProducer().topic(SOURCE_TOPIC).create();
+        sink = client.newConsumer().topic(SINK_TOPIC).subscriptionName("tu-key-shared-sink-subscription").subscribe();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PulsarApplication app : apps) {
+            app.close();
+        }
+        sink.close();
+        source.close();
+        client.close();
+    }
+
+    private void launchInstance(String name) throws Exception {
+        final Map<String, Object> overrides = new HashMap<>();
+        overrides.put("pulsar.host", pulsar.getHost());
+        overrides.put("pulsar.port", pulsar.getMappedPort(PulsarContainer.BROKER_PORT));
+        overrides.put("pulsar.consumer.topic", SOURCE_TOPIC);
+        overrides.put("pulsar.consumer.subscription", "tu-key-shared-subscription");
+        overrides.put("pulsar.consumer.subscriptionType", "Key_Shared");
+        overrides.put("pulsar.producer.topic", SINK_TOPIC);
+        overrides.put("state.snapshot.enabled", true);
+        overrides.put("state.snapshot.flushInterval", "100 milliseconds");
+
+        final Config config = ConfigFactory.parseMap(overrides)
+                .withFallback(ConfigFactory.parseResources("integration-test.conf"))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+
+        final PulsarApplication app = PulsarApplication.newInstance(config);
+        apps.add(app);
+
+        final MessageRouter router = new MessageRouter(app.getContext(), snapshotStore);
+        final Thread thread = new Thread(() -> {
+            try {
+                app.launchWithHandler(router);
+            } catch (Exception e) {
+                logger.error("Instance {} stopped", name, e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void sendCancellations(long deviationCaseId, InternalMessages.TripCancellation.Status status) throws Exception {
+        for (int i = 0; i < TRIPS; i++) {
+            final long dvjId = FIRST_DVJ_ID + i;
+            final InternalMessages.TripCancellation cancellation = MockDataUtils.mockTripCancellation(dvjId, ROUTE,
+                    PubtransFactory.JORE_DIRECTION_ID_INBOUND, DATE_TIME, status)
+                    .toBuilder()
+                    .setDeviationCaseId(deviationCaseId)
+                    .build();
+
+            source.newMessage()
+                    .key(Long.toString(dvjId))
+                    .eventTime(System.currentTimeMillis())
+                    .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation.toString())
+                    .property(TransitdataProperties.KEY_SCHEMA_VERSION, Integer.toString(cancellation.getSchemaVersion()))
+                    .value(cancellation.toByteArray())
+                    .send();
+        }
+    }
+
+    /**
+     * @return Schedule relationship of the latest trip update of each trip
+     */
+    private Map<String, GtfsRealtime.TripDescriptor.ScheduleRelationship> readTripUpdates() throws Exception {
+        final Map<String, GtfsRealtime.TripDescriptor.ScheduleRelationship> scheduleRelationships = new HashMap<>();
+        final Map<String, Long> timestamps = new HashMap<>();
+
+        for (int i = 0; i < TRIPS; i++) {
+            final Message<byte[]> received = sink.receive(10, TimeUnit.SECONDS);
+            assertNotNull("Expected " + TRIPS + " trip updates, got " + i, received);
+            sink.acknowledge(received);
+
+            final GtfsRealtime.TripUpdate tripUpdate = GtfsRealtime.FeedMessage.parseFrom(received.getData()).getEntity(0).getTripUpdate();
+
+            //Trip updates of each trip must be published in order
+            final Long previousTimestamp = timestamps.put(received.getKey(), tripUpdate.getTimestamp());
+            assertTrue(previousTimestamp == null || previousTimestamp <= tripUpdate.getTimestamp());
+
+            scheduleRelationships.put(received.getKey(), tripUpdate.getTrip().getScheduleRelationship());
+        }
+        assertEquals(TRIPS, scheduleRelationships.size());
+        return scheduleRelationships;
+    }
+
+    private void waitForSnapshots() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (snapshotStore.size() < TRIPS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(TRIPS, snapshotStore.size());
+    }
+
+    @Test
+    public void testTripStateIsHandedOverWhenConsumerJoins() throws Exception {
+        launchInstance("instance-1");
+        Thread.sleep(2000);
+
+        sendCancellations(1, InternalMessages.TripCancellation.Status.CANCELED);
+        readTripUpdates().values().forEach(status -> assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, status));
+        waitForSnapshots();
+
+        //Pulsar moves part of the key range to the second instance
+        launchInstance("instance-2");
+        Thread.sleep(2000);
+
+        //Deviation case 1 is still active, so all trips must stay cancelled also on the instance that did not see it
+        sendCancellations(2, InternalMessages.TripCancellation.Status.RUNNING);
+        readTripUpdates().values().forEach(status -> assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, status));
+
+        assertTrue("Some of the trips should have been moved to the second instance", snapshotStore.getRestoredSnapshots() > 0);
+        assertTrue(snapshotStore.getRestoredSnapshots() < TRIPS);
+
+        sendCancellations(1, InternalMessages.TripCancellation.Status.RUNNING);
+        readTripUpdates().values().forEach(status -> assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, status));
+
+        assertNull("There should not be extra trip updates", sink.receive(2, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,172 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.pulsar.PulsarApplication;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.utils.Histogram;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.apache.pulsar.client.api.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testcontainers.containers.PulsarContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the service against a synthetic workload for hours of simulated time and checks that heap usage and latency
+ * stay within limits. Workload is sped up compared to real time, so the default settings finish in a few minutes.
+ *
+ * Settings can be changed with system properties, e.g. -Dsoak.hours=24 -Dsoak.speed=10
+ */
+public class ITSoakTest {
+    private static final Logger logger = LoggerFactory.getLogger(ITSoakTest.class);
+
+    @ClassRule
+    public static PulsarContainer pulsar = new PulsarContainer(DockerImageName.parse("apachepulsar/pulsar:2.10.3"));
+
+    private static final String SOURCE_TOPIC = "hsl/transitdata/tu-soak-source";
+    private static final String SINK_TOPIC = "hsl/transitdata/tu-soak-sink";
+
+    private static final double HOURS = Double.parseDouble(System.getProperty("soak.hours", "1"));
+    private static final double SPEED = Double.parseDouble(System.getProperty("soak.speed", "10"));
+    private static final int TRIPS_PER_DAY = Integer.parseInt(System.getProperty("soak.trips", "5000"));
+    private static final long MAX_HEAP_MB = Long.parseLong(System.getProperty("soak.maxHeapMb", "1024"));
+    private static final long MAX_P99_LATENCY_MS = Long.parseLong(System.getProperty("soak.maxLatencyMs", "5000"));
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final Histogram latency = new Histogram("ms", 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000);
+    private final AtomicLong tripUpdates = new AtomicLong();
+    private final AtomicLong maxHeapUsed = new AtomicLong();
+
+    private PulsarApplication app;
+    private PulsarClient client;
+    private Producer<byte[]> source;
+    private Consumer<byte[]> sink;
+    private ScheduledExecutorService sampler;
+
+    @Before
+    public void setUp() throws Exception {
+        client = PulsarClient.builder().serviceUrl(pulsar.getPulsarBrokerUrl()).build();
+        source = client.newProducer()
+                .topic(SOURCE_TOPIC)
+                .blockIfQueueFull(true)
+                .create();
+        sink = client.newConsumer()
+                .topic(SINK_TOPIC)
+                .subscriptionName("tu-soak-sink-subscription")
+                .messageListener((consumer, message) -> {
+                    //Event time of a trip update is the event time of the latest message that changed it
+                    synchronized (latency) {
+                        latency.record(System.currentTimeMillis() - message.getEventTime());
+                    }
+                    tripUpdates.incrementAndGet();
+                    consumer.acknowledgeAsync(message);
+                })
+                .subscribe();
+
+        final Map<String, Object> overrides = new HashMap<>();
+        overrides.put("pulsar.host", pulsar.getHost());
+        overrides.put("pulsar.port", pulsar.getMappedPort(PulsarContainer.BROKER_PORT));
+        overrides.put("pulsar.consumer.topic", SOURCE_TOPIC);
+        overrides.put("pulsar.consumer.subscription", "tu-soak-subscription");
+        overrides.put("pulsar.producer.topic", SINK_TOPIC);
+        final Config config = ConfigFactory.parseMap(overrides)
+                .withFallback(ConfigFactory.parseResources("integration-test.conf"))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+
+        app = PulsarApplication.newInstance(config);
+        final MessageRouter router = new MessageRouter(app.getContext());
+        final Thread thread = new Thread(() -> {
+            try {
+                app.launchWithHandler(router);
+            } catch (Exception e) {
+                logger.error("Service stopped", e);
+            }
+        }, "soak-test-service");
+        thread.setDaemon(true);
+        thread.start();
+
+        sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(this::sample, 10, 10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sampler.shutdownNow();
+        app.close();
+        sink.close();
+        source.close();
+        client.close();
+    }
+
+    private void sample() {
+        final long heapUsedMb = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        maxHeapUsed.accumulateAndGet(heapUsedMb, Math::max);
+        synchronized (latency) {
+            logger.info("Heap used {} MB, trip updates {}, latency {}", heapUsedMb, tripUpdates.get(), latency);
+        }
+    }
+
+    @Test
+    public void heapAndLatencyStayWithinLimits() throws Exception {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips((int) (TRIPS_PER_DAY * HOURS / 24))
+                .duration(Duration.ofMillis((long) (HOURS * 3600000))), 1);
+
+        logger.info("Running soak test for {} simulated hours at {}x real time", HOURS, SPEED);
+
+        final long startNanos = System.nanoTime();
+        long firstEventTimeMs = -1;
+        RecordedMessage message;
+        while ((message = generator.read()) != null) {
+            if (firstEventTimeMs < 0) {
+                firstEventTimeMs = message.getEventTimeMs();
+            }
+            final long targetNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(message.getEventTimeMs() - firstEventTimeMs) / SPEED);
+            final long waitNanos = targetNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+
+            final TypedMessageBuilder<byte[]> builder = source.newMessage()
+                    .key(message.getKey())
+                    .eventTime(System.currentTimeMillis())
+                    .value(message.getPayload());
+            message.getProperties().forEach(builder::property);
+            builder.sendAsync();
+        }
+        source.flush();
+        logger.info("Sent {} messages", generator.getGeneratedMessages());
+
+        //Wait for debounced trip updates
+        Thread.sleep(10000);
+
+        System.gc();
+        final long heapAfterGcMb = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+        synchronized (latency) {
+            logger.info("Soak test finished: trip updates {}, max heap used {} MB, heap after GC {} MB, latency {}",
+                    tripUpdates.get(), maxHeapUsed.get(), heapAfterGcMb, latency);
+
+            assertTrue(tripUpdates.get() > 0);
+            assertTrue("Heap after GC " + heapAfterGcMb + " MB", heapAfterGcMb <= MAX_HEAP_MB);
+            assertTrue("p99 latency " + latency.getPercentile(99) + " ms", latency.getPercentile(99) <= MAX_P99_LATENCY_MS);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.validators.ITripUpdateValidator;
+import fi.hsl.transitdata.tripupdate.validators.MissingEstimatesValidator;
+import fi.hsl.transitdata.tripupdate.validators.PrematureDeparturesValidator;
+import fi.hsl.transitdata.tripupdate.validators.TripUpdateMaxAgeValidator;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures latency of flushing a batch of dirty trips, like after a burst of stop estimates from Pubtrans, with
+ * different amounts of flush threads. Trip updates are serialized to feed messages like {@link PulsarTripUpdateSink} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirtyTripFlushBenchmark {
+    private static final int MAX_MESSAGES = 200000;
+
+    @Param({ "1", "2", "4", "8" })
+    public int flushThreads;
+
+    @Param({ "1000" })
+    public int batchSize;
+
+    private TripUpdateProcessor processor;
+    private DirtyTripFlusher flusher;
+
+    //Latest stop estimate of each trip in the batch
+    private final List<InternalMessages.StopEstimate> estimates = new ArrayList<>();
+    private final List<DirtyTripFlusher.DirtyTrip> batch = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        processor = new TripUpdateProcessor(null);
+
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips(batchSize * 2)
+                .duration(Duration.ofHours(1)), 42);
+        final Map<String, InternalMessages.StopEstimate> latestEstimates = new LinkedHashMap<>();
+        RecordedMessage message;
+        int count = 0;
+        while (count++ < MAX_MESSAGES && (message = generator.read()) != null) {
+            if (TransitdataProperties.ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA)) == TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate) {
+                final InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+                processor.markStopEstimate(estimate).ifPresent(tripId -> latestEstimates.put(tripId, estimate));
+            }
+        }
+        for (InternalMessages.StopEstimate estimate : latestEstimates.values()) {
+            if (estimates.size() == batchSize) {
+                break;
+            }
+            estimates.add(estimate);
+        }
+
+        final List<ITripUpdateValidator> validators = List.of(new TripUpdateMaxAgeValidator(Duration.ofHours(1).getSeconds()),
+                new PrematureDeparturesValidator(Duration.ofMinutes(5).getSeconds(), "Europe/Helsinki"),
+                new MissingEstimatesValidator(20));
+        final TripUpdateSink sink = new TripUpdateSink() {
+            @Override
+            public CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+                return send(prepare(tripId, tripUpdate, eventTimeMs));
+            }
+
+            @Override
+            public PreparedTripUpdate prepare(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+                final byte[] payload = FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp()).toByteArray();
+                return new PreparedTripUpdate(tripId, tripUpdate, eventTimeMs, payload);
+            }
+
+            @Override
+            public CompletableFuture<?> send(PreparedTripUpdate tripUpdate) {
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        flusher = new DirtyTripFlusher(processor, pair -> validators.stream().allMatch(validator -> validator.validate(pair.getTripUpdate())),
+                sink, sink::send, flushThreads);
+    }
+
+    @Setup(Level.Invocation)
+    public void markTrips() {
+        batch.clear();
+        for (InternalMessages.StopEstimate estimate : estimates) {
+            processor.markStopEstimate(estimate).ifPresent(tripId -> batch.add(new DirtyTripFlusher.DirtyTrip(tripId, estimate.getLastModifiedUtcMs())));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        flusher.shutdown();
+    }
+
+    @Benchmark
+    public int flush() {
+        return flusher.flush(batch);
+    }
+}
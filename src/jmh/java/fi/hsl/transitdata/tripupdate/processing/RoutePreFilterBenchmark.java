@@ -0,0 +1,98 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares throughput of decoding stop estimates with and without the route pre-filter. Accepted messages are parsed
+ * once more after validation, like StopEstimateProcessor does.
+ * Trains are roughly a fifth of all stop estimates in HSL area, which is used as the default train share.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutePreFilterBenchmark {
+    private static final String[] TRAIN_ROUTES = { "3001K", "3001Z", "3002U", "3002A", "3001T" };
+    private static final String[] OTHER_ROUTES = { "1014", "2550", "4250D", "1006T", "31M1", "6173K", "9785AK" };
+
+    @Param({ "0.2" })
+    public double trainShare;
+
+    private byte[][] payloads;
+    private int index = 0;
+
+    private StopEstimateProcessor processor;
+    private RoutePreFilter preFilter;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+
+        payloads = new byte[10000][];
+        for (int i = 0; i < payloads.length; i++) {
+            final boolean train = random.nextDouble() < trainShare;
+            final String routeId = train ? TRAIN_ROUTES[random.nextInt(TRAIN_ROUTES.length)] : OTHER_ROUTES[random.nextInt(OTHER_ROUTES.length)];
+            payloads[i] = mockStopEstimate(Integer.toString(i), routeId, random).toByteArray();
+        }
+
+        processor = new StopEstimateProcessor(null, true);
+        preFilter = new RoutePreFilter(true);
+    }
+
+    private static InternalMessages.StopEstimate mockStopEstimate(String tripId, String routeId, Random random) {
+        final InternalMessages.TripInfo tripInfo = InternalMessages.TripInfo.newBuilder()
+                .setTripId(tripId)
+                .setOperatingDay("20240315")
+                .setRouteId(routeId)
+                .setDirectionId(PubtransFactory.JORE_DIRECTION_ID_OUTBOUND)
+                .setStartTime("13:43:00")
+                .build();
+
+        final long scheduledTime = 1710503000000L + random.nextInt(3600) * 1000L;
+        return InternalMessages.StopEstimate.newBuilder()
+                .setSchemaVersion(1)
+                .setTripInfo(tripInfo)
+                .setStopId(Integer.toString(1000000 + random.nextInt(10000)))
+                .setStopSequence(1 + random.nextInt(40))
+                .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                .setType(InternalMessages.StopEstimate.Type.ARRIVAL)
+                .setScheduledTimeUtcMs(scheduledTime)
+                .setEstimatedTimeUtcMs(scheduledTime + random.nextInt(120000))
+                .setLastModifiedUtcMs(scheduledTime)
+                .build();
+    }
+
+    private byte[] nextPayload() {
+        final byte[] payload = payloads[index];
+        index = (index + 1) % payloads.length;
+        return payload;
+    }
+
+    private void decode(byte[] payload, Blackhole blackhole) throws Exception {
+        if (processor.validateMessage(payload)) {
+            blackhole.consume(InternalMessages.StopEstimate.parseFrom(payload));
+        }
+    }
+
+    @Benchmark
+    public void decodeWithoutPreFilter(Blackhole blackhole) throws Exception {
+        decode(nextPayload(), blackhole);
+    }
+
+    @Benchmark
+    public void decodeWithPreFilter(Blackhole blackhole) throws Exception {
+        final byte[] payload = nextPayload();
+        if (!preFilter.check(ProtobufSchema.InternalMessagesStopEstimate, payload).isPresent()) {
+            decode(payload, blackhole);
+        }
+    }
+}
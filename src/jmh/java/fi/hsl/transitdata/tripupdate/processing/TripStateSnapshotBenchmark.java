@@ -0,0 +1,99 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding and decoding of trip state with the compact snapshot format to plain protobuf serialization of
+ * the cached trip updates. Trip state is created by processing a synthetic workload. Encoded sizes per trip are printed
+ * in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripStateSnapshotBenchmark {
+    private TripStateSnapshot[] snapshots;
+    private byte[][] compact;
+    private byte[][] protobuf;
+    private int index = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips(500)
+                .duration(Duration.ofHours(1)), 42);
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final Set<String> tripIds = new LinkedHashSet<>();
+
+        RecordedMessage message;
+        while ((message = generator.read()) != null) {
+            if (ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA)) == ProtobufSchema.InternalMessagesStopEstimate) {
+                final InternalMessages.StopEstimate stopEstimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+                processor.processStopEstimate(stopEstimate);
+                tripIds.add(stopEstimate.getTripInfo().getTripId());
+            }
+        }
+
+        final List<TripStateSnapshot> snapshotList = new ArrayList<>();
+        for (String tripId : tripIds) {
+            snapshotList.add(processor.createSnapshot(tripId));
+        }
+        snapshots = snapshotList.toArray(new TripStateSnapshot[0]);
+        compact = new byte[snapshots.length][];
+        protobuf = new byte[snapshots.length][];
+
+        long compactBytes = 0;
+        long protobufBytes = 0;
+        for (int i = 0; i < snapshots.length; i++) {
+            compact[i] = snapshots[i].encode();
+            protobuf[i] = snapshots[i].tripUpdate.toByteArray();
+            compactBytes += compact[i].length;
+            protobufBytes += protobuf[i].length;
+        }
+        System.out.printf("%n%d trips, compact snapshot %d bytes/trip, protobuf trip update %d bytes/trip%n",
+                snapshots.length, compactBytes / snapshots.length, protobufBytes / snapshots.length);
+    }
+
+    private int next() {
+        final int current = index;
+        index = (index + 1) % snapshots.length;
+        return current;
+    }
+
+    @Benchmark
+    public byte[] encodeCompact() throws IOException {
+        return snapshots[next()].encode();
+    }
+
+    @Benchmark
+    public TripStateSnapshot decodeCompact() throws IOException {
+        return TripStateSnapshot.decode(compact[next()]);
+    }
+
+    @Benchmark
+    public byte[] encodeProtobuf() {
+        return snapshots[next()].tripUpdate.toByteArray();
+    }
+
+    @Benchmark
+    public void decodeProtobuf(Blackhole blackhole) throws IOException {
+        blackhole.consume(GtfsRealtime.TripUpdate.parseFrom(protobuf[next()]));
+    }
+}
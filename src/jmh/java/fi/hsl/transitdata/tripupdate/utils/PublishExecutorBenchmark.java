@@ -0,0 +1,97 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures latency of publishing a burst of debounced trip updates with platform and virtual threads.
+ * Every 20th send blocks for a millisecond to simulate a full producer queue.
+ *
+ * Virtual threads are used only when running on Java 21, otherwise tasks are run on the calling thread like the scheduler thread of Debouncer does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishExecutorBenchmark {
+    private static final int BURST_SIZE = 200;
+
+    @Param({ PublishExecutors.TYPE_PLATFORM, PublishExecutors.TYPE_VIRTUAL })
+    public String executorType;
+
+    private ExecutorService executorService;
+    private BoundedExecutor executor;
+
+    private GtfsRealtime.TripUpdate[] tripUpdates;
+
+    @Setup
+    public void setup() {
+        executorService = PublishExecutors.create(executorType);
+        if (executorService != null) {
+            executor = new BoundedExecutor(executorService, 64);
+        }
+
+        tripUpdates = new GtfsRealtime.TripUpdate[BURST_SIZE];
+        for (int i = 0; i < BURST_SIZE; i++) {
+            final GtfsRealtime.TripUpdate.Builder builder = GtfsRealtime.TripUpdate.newBuilder()
+                    .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                            .setRouteId("1014")
+                            .setDirectionId(0)
+                            .setStartDate("20240315")
+                            .setStartTime("13:43:00"))
+                    .setTimestamp(1710503000L);
+            for (int stop = 0; stop < 30; stop++) {
+                final GtfsRealtime.TripUpdate.StopTimeEvent event = GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder()
+                        .setTime(1710503000L + stop * 60)
+                        .build();
+                builder.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                        .setStopId(Integer.toString(1000000 + stop))
+                        .setArrival(event)
+                        .setDeparture(event));
+            }
+            tripUpdates[i] = builder.build();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static void publish(int index, GtfsRealtime.TripUpdate tripUpdate, Blackhole blackhole) {
+        final String tripId = Integer.toString(index);
+        blackhole.consume(FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp()).toByteArray());
+        if (index % 20 == 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @Benchmark
+    public void publishBurst(Blackhole blackhole) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BURST_SIZE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            final int index = i;
+            final Runnable task = () -> {
+                publish(index, tripUpdates[index], blackhole);
+                done.countDown();
+            };
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                task.run();
+            }
+        }
+        done.await();
+    }
+}
@@ -0,0 +1,87 @@
+package fi.hsl.transitdata.tripupdate.workload;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of the whole processing chain with a synthetic workload. Trip updates are published directly
+ * without debouncing, so that every message is processed completely within the benchmark method.
+ *
+ * Run with {@code -prof gc} to check that allocation per message ({@code gc.alloc.rate.norm}) stays within the
+ * budget documented in README. {@code stateStore} parameter compares the trip state store backends, GC pauses can be
+ * seen by adding {@code -jvmArgsAppend -Xlog:gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WorkloadBenchmark {
+    private static final int MAX_MESSAGES = 500000;
+
+    @Param({ "2000" })
+    public int tripsPerHour;
+
+    @Param({ "heap", "offHeap", "persistent" })
+    public String stateStore;
+
+    private ProtobufSchema[] schemas;
+    private RecordedMessage[] messages;
+    private int index = 0;
+
+    private MessageRouter router;
+    private Path stateFile;
+
+    @Setup
+    public void setup() throws IOException {
+        stateFile = Files.createTempFile("trip-state", ".bin");
+
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips(tripsPerHour)
+                .duration(Duration.ofHours(1)), 42);
+
+        messages = new RecordedMessage[MAX_MESSAGES];
+        schemas = new ProtobufSchema[MAX_MESSAGES];
+        int count = 0;
+        RecordedMessage message;
+        while (count < MAX_MESSAGES && (message = generator.read()) != null) {
+            messages[count] = message;
+            schemas[count] = ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+            count++;
+        }
+
+        final Config config = ConfigFactory.parseMap(Map.of("publisher.debounceDelay", "0 ms", "publisher.executor", "platform",
+                        "publisher.sink.type", "memory", "state.store.backend", stateStore, "state.store.file", stateFile.toString()))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+        router = new MessageRouter(config, null, MessageRouter.createSink(config, null), null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(stateFile);
+    }
+
+    @Benchmark
+    public void process() {
+        final RecordedMessage message = messages[index];
+        router.process(schemas[index], message.getKey(), message.getEventTimeMs(), message.getPayload());
+        index++;
+        if (index == messages.length || messages[index] == null) {
+            index = 0;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends full trip updates to one sink and only the stops that have changed since the previous trip update of the trip
+ * to another sink, for consumers that are interested only in changed predictions.
+ *
+ * Delta is a trip update that contains the stop time updates that are new or different from the previously published
+ * trip update, matched by stop ID. Stops that are not included in the trip update anymore are sent with schedule
+ * relationship NO_DATA.
+ * The first trip update of a trip and trip updates whose trip descriptor has changed (e.g. cancellations) are sent
+ * in full. Trip updates where no stop has changed are not sent to the delta sink.
+ *
+ * Only the stop keys and the serialized stop time updates of the previous trip update are kept for each trip, which
+ * is a fraction of the size of the trip update objects.
+ */
+public class DeltaTripUpdateSink implements TripUpdateSink {
+    private final TripUpdateSink fullSink;
+    private final TripUpdateSink deltaSink;
+
+    //Stops of the latest published trip update of each trip
+    private final Cache<String, PublishedStops> published = Caffeine.newBuilder()
+            .expireAfterAccess(TripUpdateProcessor.CACHE_DURATION)
+            .build();
+
+    private final AtomicLong tripUpdates = new AtomicLong();
+    private final AtomicLong deltas = new AtomicLong();
+    private final AtomicLong fullBytes = new AtomicLong();
+    private final AtomicLong deltaBytes = new AtomicLong();
+
+    /**
+     * What is needed for computing the delta to the next trip update of the trip
+     */
+    static final class PublishedStops {
+        final GtfsRealtime.TripDescriptor trip;
+        //See stopKeys
+        final List<String> keys;
+        final byte[][] stops;
+
+        private PublishedStops(GtfsRealtime.TripDescriptor trip, List<String> keys, byte[][] stops) {
+            this.trip = trip;
+            this.keys = keys;
+            this.stops = stops;
+        }
+
+        static PublishedStops of(GtfsRealtime.TripUpdate tripUpdate) {
+            final byte[][] stops = new byte[tripUpdate.getStopTimeUpdateCount()][];
+            for (int i = 0; i < stops.length; i++) {
+                stops[i] = tripUpdate.getStopTimeUpdate(i).toByteArray();
+            }
+            return new PublishedStops(tripUpdate.getTrip(), stopKeys(tripUpdate.getStopTimeUpdateList()), stops);
+        }
+    }
+
+    public DeltaTripUpdateSink(TripUpdateSink fullSink, TripUpdateSink deltaSink) {
+        this.fullSink = fullSink;
+        this.deltaSink = deltaSink;
+    }
+
+    @Override
+    public CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        final CompletableFuture<?> future = fullSink.send(tripId, tripUpdate, eventTimeMs);
+        sendDelta(tripId, tripUpdate, eventTimeMs, future);
+        return future;
+    }
+
+    @Override
+    public PreparedTripUpdate prepare(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        return fullSink.prepare(tripId, tripUpdate, eventTimeMs);
+    }
+
+    @Override
+    public CompletableFuture<?> send(PreparedTripUpdate tripUpdate) {
+        final CompletableFuture<?> future = fullSink.send(tripUpdate);
+        sendDelta(tripUpdate.getTripId(), tripUpdate.getTripUpdate(), tripUpdate.getEventTimeMs(), future);
+        return future;
+    }
+
+    /**
+     * @param fullSent Completion of sending the full trip update
+     */
+    private void sendDelta(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs, CompletableFuture<?> fullSent) {
+        final PublishedStops current = PublishedStops.of(tripUpdate);
+        final GtfsRealtime.TripUpdate[] delta = new GtfsRealtime.TripUpdate[1];
+        //Delta is computed while holding the entry of the trip, so that concurrent trip updates of the same trip are
+        //diffed against each other. It is sent after releasing the entry, because sending can block
+        published.asMap().compute(tripId, (id, previous) -> {
+            delta[0] = createDelta(previous, tripUpdate, current);
+            return current;
+        });
+        //If the full trip update was not published, next trip update of the trip is sent in full
+        fullSent.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                published.asMap().remove(tripId, current);
+            }
+        });
+
+        tripUpdates.incrementAndGet();
+        fullBytes.addAndGet(tripUpdate.getSerializedSize());
+        if (delta[0] != null) {
+            deltas.incrementAndGet();
+            deltaBytes.addAndGet(delta[0].getSerializedSize());
+            deltaSink.send(tripId, delta[0], eventTimeMs);
+        }
+    }
+
+    /**
+     * @param previous Previously published trip update of the trip, or null if there is none
+     * @return Trip update containing the stops that have changed, or null if no stop has changed
+     */
+    static GtfsRealtime.TripUpdate createDelta(GtfsRealtime.TripUpdate previous, GtfsRealtime.TripUpdate current) {
+        return createDelta(previous != null ? PublishedStops.of(previous) : null, current, PublishedStops.of(current));
+    }
+
+    /**
+     * Stops are matched by stop ID, because stop sequences are removed from the published trip updates. If the trip
+     * visits the same stop more than once, the visits are matched in order.
+     *
+     * @param previous Stops of the previously published trip update of the trip, or null if there is none
+     * @param currentStops Stops of the current trip update
+     * @return Trip update containing the stops that have changed, or null if no stop has changed
+     */
+    private static GtfsRealtime.TripUpdate createDelta(PublishedStops previous, GtfsRealtime.TripUpdate current, PublishedStops currentStops) {
+        if (previous == null || !previous.trip.equals(current.getTrip())) {
+            return current;
+        }
+
+        final List<String> previousKeys = previous.keys;
+        final Map<String, Integer> previousIndexes = new HashMap<>();
+        for (int i = 0; i < previousKeys.size(); i++) {
+            previousIndexes.put(previousKeys.get(i), i);
+        }
+        final List<String> currentKeys = currentStops.keys;
+        final Set<String> currentKeySet = new HashSet<>(currentKeys);
+
+        final GtfsRealtime.TripUpdate.Builder delta = current.toBuilder().clearStopTimeUpdate();
+        //Removed stops are added in the position they had in the previous trip update
+        int previousIndex = 0;
+        for (int i = 0; i < currentKeys.size(); i++) {
+            final Integer matchIndex = previousIndexes.get(currentKeys.get(i));
+            if (matchIndex == null) {
+                delta.addStopTimeUpdate(current.getStopTimeUpdate(i));
+                continue;
+            }
+            for (; previousIndex < matchIndex; previousIndex++) {
+                if (!currentKeySet.contains(previousKeys.get(previousIndex))) {
+                    delta.addStopTimeUpdate(removed(previous.stops[previousIndex]));
+                }
+            }
+            previousIndex = Math.max(previousIndex, matchIndex + 1);
+            if (!Arrays.equals(previous.stops[matchIndex], currentStops.stops[i])) {
+                delta.addStopTimeUpdate(current.getStopTimeUpdate(i));
+            }
+        }
+        for (; previousIndex < previousKeys.size(); previousIndex++) {
+            if (!currentKeySet.contains(previousKeys.get(previousIndex))) {
+                delta.addStopTimeUpdate(removed(previous.stops[previousIndex]));
+            }
+        }
+
+        return delta.getStopTimeUpdateCount() > 0 ? delta.build() : null;
+    }
+
+    /**
+     * @return Stop ID and the number of earlier visits to the same stop for each stop, or stop sequence if the stop
+     * has no stop ID
+     */
+    private static List<String> stopKeys(List<GtfsRealtime.TripUpdate.StopTimeUpdate> stops) {
+        final List<String> keys = new ArrayList<>(stops.size());
+        final Map<String, Integer> visits = new HashMap<>();
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stop : stops) {
+            final String stopKey = stop.hasStopId() ? stop.getStopId() : "#" + stop.getStopSequence();
+            final int visit = visits.merge(stopKey, 1, Integer::sum);
+            keys.add(stopKey + "/" + visit);
+        }
+        return keys;
+    }
+
+    private static GtfsRealtime.TripUpdate.StopTimeUpdate removed(byte[] serializedStop) {
+        final GtfsRealtime.TripUpdate.StopTimeUpdate stop;
+        try {
+            stop = GtfsRealtime.TripUpdate.StopTimeUpdate.parseFrom(serializedStop);
+        } catch (InvalidProtocolBufferException e) {
+            //Serialized by this class
+            throw new IllegalStateException(e);
+        }
+        final GtfsRealtime.TripUpdate.StopTimeUpdate.Builder builder = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setScheduleRelationship(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA);
+        if (stop.hasStopId()) {
+            builder.setStopId(stop.getStopId());
+        }
+        if (stop.hasStopSequence()) {
+            builder.setStopSequence(stop.getStopSequence());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void logAndReset(Logger logger) {
+        final long tripUpdateCount = tripUpdates.getAndSet(0);
+        final long deltaCount = deltas.getAndSet(0);
+        final long fullByteCount = fullBytes.getAndSet(0);
+        final long deltaByteCount = deltaBytes.getAndSet(0);
+        fullSink.logAndReset(logger);
+        logger.info("Delta output: {} deltas for {} trip updates, {} bytes per delta, {} bytes per full trip update, {}% of full output",
+                deltaCount, tripUpdateCount,
+                deltaCount > 0 ? deltaByteCount / deltaCount : 0,
+                tripUpdateCount > 0 ? fullByteCount / tripUpdateCount : 0,
+                fullByteCount > 0 ? 100 * deltaByteCount / fullByteCount : 0);
+    }
+}
@@ -0,0 +1,150 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.utils.Histogram;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Builds, validates and prepares trip updates of dirty trips whose debounce delay has passed, see
+ * {@link TripUpdateProcessor#markStopEstimate(fi.hsl.common.transitdata.proto.InternalMessages.StopEstimate)}.
+ *
+ * If there are multiple threads, a batch of trips is split between threads of a work-stealing pool. Trip updates are
+ * sent in the order of the batch after all of them have been prepared.
+ */
+public class DirtyTripFlusher {
+    //Batches are split to tasks of at most this many trips
+    static final int TRIPS_PER_TASK = 16;
+
+    public static final class DirtyTrip {
+        final String tripId;
+        //Event time of the latest message of the trip
+        final long eventTimeMs;
+
+        public DirtyTrip(String tripId, long eventTimeMs) {
+            this.tripId = tripId;
+            this.eventTimeMs = eventTimeMs;
+        }
+    }
+
+    private final TripUpdateProcessor processor;
+    private final Predicate<AbstractMessageProcessor.TripUpdateWithId> validator;
+    private final TripUpdateSink sink;
+    private final Consumer<PreparedTripUpdate> sender;
+    //Null if trip updates are prepared on the calling thread
+    private final ForkJoinPool pool;
+    private final int threads;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong tripUpdates = new AtomicLong();
+    private final Histogram batchLatency = new Histogram("ms", 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000);
+
+    /**
+     * @param validator Returns true if the trip update should be published
+     * @param sink Sink used for preparing the trip updates
+     * @param sender Sends prepared trip updates, called on the thread that calls {@link #flush(List)}
+     * @param threads Amount of threads used for preparing trip updates
+     */
+    public DirtyTripFlusher(TripUpdateProcessor processor, Predicate<AbstractMessageProcessor.TripUpdateWithId> validator,
+                            TripUpdateSink sink, Consumer<PreparedTripUpdate> sender, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Amount of flush threads must be positive, was " + threads);
+        }
+        this.processor = processor;
+        this.validator = validator;
+        this.sink = sink;
+        this.sender = sender;
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Builds trip updates of the trips and sends the valid ones in the order of the list
+     *
+     * @return Amount of trip updates that were sent
+     */
+    public int flush(final List<DirtyTrip> trips) {
+        final long startNanos = System.nanoTime();
+
+        final PreparedTripUpdate[] prepared = new PreparedTripUpdate[trips.size()];
+        if (pool == null || trips.size() <= TRIPS_PER_TASK) {
+            prepare(trips, prepared, 0, trips.size());
+        } else {
+            pool.invoke(new PrepareTask(trips, prepared, 0, trips.size()));
+        }
+
+        int sent = 0;
+        for (PreparedTripUpdate tripUpdate : prepared) {
+            if (tripUpdate != null) {
+                sender.accept(tripUpdate);
+                sent++;
+            }
+        }
+
+        batches.incrementAndGet();
+        tripUpdates.addAndGet(sent);
+        batchLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return sent;
+    }
+
+    private void prepare(final List<DirtyTrip> trips, final PreparedTripUpdate[] prepared, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            final DirtyTrip dirtyTrip = trips.get(i);
+            final Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = processor.buildDirtyTrip(dirtyTrip.tripId);
+            if (!maybeTripUpdate.isPresent()) {
+                //Trip is cancelled or its trip update was already built when a cancellation was received
+                continue;
+            }
+            final AbstractMessageProcessor.TripUpdateWithId pair = AbstractMessageProcessor.TripUpdateWithId.newInstance(dirtyTrip.tripId, maybeTripUpdate.get()).get();
+            if (validator.test(pair)) {
+                prepared[i] = sink.prepare(dirtyTrip.tripId, pair.getTripUpdate(), dirtyTrip.eventTimeMs);
+            }
+        }
+    }
+
+    private class PrepareTask extends RecursiveAction {
+        private final List<DirtyTrip> trips;
+        private final PreparedTripUpdate[] prepared;
+        private final int from;
+        private final int to;
+
+        PrepareTask(List<DirtyTrip> trips, PreparedTripUpdate[] prepared, int from, int to) {
+            this.trips = trips;
+            this.prepared = prepared;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TRIPS_PER_TASK) {
+                prepare(trips, prepared, from, to);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new PrepareTask(trips, prepared, from, middle), new PrepareTask(trips, prepared, middle, to));
+        }
+    }
+
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    public void logAndReset(Logger logger) {
+        logger.info("Flushed {} trip updates in {} batches with {} threads, batch latency {}", tripUpdates.getAndSet(0),
+                batches.getAndSet(0), threads, batchLatency);
+        batchLatency.reset();
+    }
+}
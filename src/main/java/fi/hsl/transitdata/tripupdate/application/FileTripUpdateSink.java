@@ -0,0 +1,216 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes trip updates as differential GTFS-RT feed messages to rolling files on local disk. Each file contains feed
+ * messages prefixed with their length as a varint, like {@link com.google.protobuf.MessageLite#writeDelimitedTo}, so they
+ * can be read with {@link GtfsRealtime.FeedMessage#parseDelimitedFrom} or {@link #read(Path)}.
+ *
+ * Trip updates are buffered in memory and written when the buffer is full, when the file is rolled and when the sink is closed.
+ */
+public class FileTripUpdateSink implements TripUpdateSink, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FileTripUpdateSink.class);
+
+    static final String FILE_PREFIX = "trip-updates-";
+    static final String FILE_SUFFIX = ".pb";
+    private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    //Completed files, oldest first
+    private final Deque<Path> files = new ArrayDeque<>();
+    private FileChannel channel;
+    private Path path;
+    private long fileBytes;
+    private int fileSequence = 0;
+
+    private long tripUpdates = 0;
+    private long bytes = 0;
+
+    /**
+     * @param maxFileBytes File is rolled when its size would exceed this
+     * @param maxFiles Maximum amount of completed files to keep, oldest are deleted. 0 to keep all
+     */
+    public FileTripUpdateSink(Path directory, long maxFileBytes, int maxFiles) throws IOException {
+        this.directory = directory;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+
+        Files.createDirectories(directory);
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        path = directory.resolve(FILE_PREFIX + LocalDateTime.now().format(FILE_NAME_FORMAT) + "-" + String.format("%06d", fileSequence++) + FILE_SUFFIX);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        fileBytes = 0;
+    }
+
+    private void rollFile() throws IOException {
+        flushBuffer();
+        channel.close();
+        files.addLast(path);
+        log.debug("Wrote {} bytes of trip updates to {}", fileBytes, path);
+
+        while (maxFiles > 0 && files.size() > maxFiles) {
+            Files.deleteIfExists(files.removeFirst());
+        }
+        openFile();
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        return send(prepare(tripId, tripUpdate, eventTimeMs));
+    }
+
+    @Override
+    public PreparedTripUpdate prepare(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        final GtfsRealtime.FeedMessage feedMessage = FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp());
+        return new PreparedTripUpdate(tripId, tripUpdate, eventTimeMs, feedMessage.toByteArray());
+    }
+
+    @Override
+    public synchronized CompletableFuture<?> send(PreparedTripUpdate tripUpdate) {
+        final byte[] payload = tripUpdate.getPayload() != null ? tripUpdate.getPayload()
+                : prepare(tripUpdate.getTripId(), tripUpdate.getTripUpdate(), tripUpdate.getEventTimeMs()).getPayload();
+        try {
+            write(payload);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            log.error("Failed to write trip update to {}", path, e);
+            final CompletableFuture<?> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private void write(byte[] payload) throws IOException {
+        final int recordBytes = varintSize(payload.length) + payload.length;
+        if (fileBytes > 0 && fileBytes + recordBytes > maxFileBytes) {
+            rollFile();
+        }
+
+        if (buffer.remaining() < recordBytes) {
+            flushBuffer();
+        }
+        int length = payload.length;
+        while ((length & ~0x7F) != 0) {
+            buffer.put((byte) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        buffer.put((byte) length);
+        if (buffer.remaining() < payload.length) {
+            //Payload that does not fit into the buffer is written directly
+            flushBuffer();
+            final ByteBuffer source = ByteBuffer.wrap(payload);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } else {
+            buffer.put(payload);
+        }
+
+        fileBytes += recordBytes;
+        tripUpdates++;
+        bytes += recordBytes;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes buffered trip updates to the current file
+     */
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flushBuffer();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to close " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void logAndReset(Logger logger) {
+        logger.info("Wrote {} trip updates ({} bytes) to {}", tripUpdates, bytes, path);
+        tripUpdates = 0;
+        bytes = 0;
+    }
+
+    /**
+     * @return Files of the directory in the order they were written
+     */
+    public static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(file -> file.getFileName().toString().startsWith(FILE_PREFIX) && file.getFileName().toString().endsWith(FILE_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return Feed messages of a file written by the sink
+     */
+    public static List<GtfsRealtime.FeedMessage> read(Path file) throws IOException {
+        final List<GtfsRealtime.FeedMessage> feedMessages = new ArrayList<>();
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+            GtfsRealtime.FeedMessage feedMessage;
+            while ((feedMessage = GtfsRealtime.FeedMessage.parseDelimitedFrom(input)) != null) {
+                feedMessages.add(feedMessage);
+            }
+        }
+        return feedMessages;
+    }
+}
@@ -0,0 +1,73 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps published trip updates in memory, for measuring throughput of processing without broker I/O and for tests.
+ * With capacity 0 trip updates are only counted.
+ */
+public class InMemoryTripUpdateSink implements TripUpdateSink {
+    private final int capacity;
+    //Latest trip updates, oldest first
+    private final Deque<PreparedTripUpdate> tripUpdates;
+
+    private long sent = 0;
+    private long sentSinceLog = 0;
+
+    /**
+     * @param capacity Maximum amount of latest trip updates to keep, older ones are discarded
+     */
+    public InMemoryTripUpdateSink(int capacity) {
+        this.capacity = capacity;
+        this.tripUpdates = new ArrayDeque<>(Math.min(capacity, 1024));
+    }
+
+    @Override
+    public CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        return send(prepare(tripId, tripUpdate, eventTimeMs));
+    }
+
+    @Override
+    public synchronized CompletableFuture<?> send(PreparedTripUpdate tripUpdate) {
+        sent++;
+        sentSinceLog++;
+        if (capacity > 0) {
+            if (tripUpdates.size() == capacity) {
+                tripUpdates.removeFirst();
+            }
+            tripUpdates.addLast(tripUpdate);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return Amount of trip updates sent to the sink
+     */
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return Latest trip updates in the order they were sent
+     */
+    public synchronized List<PreparedTripUpdate> getTripUpdates() {
+        return new ArrayList<>(tripUpdates);
+    }
+
+    public synchronized void clear() {
+        tripUpdates.clear();
+    }
+
+    @Override
+    public synchronized void logAndReset(Logger logger) {
+        logger.info("Sent {} trip updates to memory", sentSinceLog);
+        sentSinceLog = 0;
+    }
+}
@@ -2,62 +2,382 @@ package fi.hsl.transitdata.tripupdate.application;
 
 import com.google.transit.realtime.GtfsRealtime;
 import com.typesafe.config.Config;
-import fi.hsl.common.gtfsrt.FeedMessageFactory;
 import fi.hsl.common.pulsar.IMessageHandler;
 import fi.hsl.common.pulsar.PulsarApplicationContext;
 import fi.hsl.common.transitdata.TransitdataProperties;
 import fi.hsl.common.transitdata.TransitdataProperties.*;
-import fi.hsl.common.transitdata.TransitdataSchema;
 import fi.hsl.transitdata.tripupdate.processing.AbstractMessageProcessor;
+import fi.hsl.transitdata.tripupdate.processing.RoutePreFilter;
 import fi.hsl.transitdata.tripupdate.processing.StopEstimateProcessor;
+import fi.hsl.transitdata.tripupdate.utils.AdaptiveDebounceDelay;
+import fi.hsl.transitdata.tripupdate.utils.BatchingQueue;
+import fi.hsl.transitdata.tripupdate.utils.BoundedExecutor;
+import fi.hsl.transitdata.tripupdate.utils.DebounceDelay;
 import fi.hsl.transitdata.tripupdate.utils.Debouncer;
+import fi.hsl.transitdata.tripupdate.utils.PrioritizedPublisher;
+import fi.hsl.transitdata.tripupdate.utils.PrioritizedPublisher.Priority;
+import fi.hsl.transitdata.tripupdate.utils.PublishExecutors;
+import fi.hsl.transitdata.tripupdate.utils.ReorderBuffer;
 import fi.hsl.transitdata.tripupdate.validators.ITripUpdateValidator;
 import fi.hsl.transitdata.tripupdate.validators.MissingEstimatesValidator;
 import fi.hsl.transitdata.tripupdate.validators.PrematureDeparturesValidator;
 import fi.hsl.transitdata.tripupdate.validators.TripUpdateMaxAgeValidator;
 import fi.hsl.transitdata.tripupdate.processing.TripCancellationProcessor;
 import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.profiling.ContinuousRecording;
+import fi.hsl.transitdata.tripupdate.profiling.HandleMessageEvent;
+import fi.hsl.transitdata.tripupdate.profiling.MessageProcessedEvent;
+import fi.hsl.transitdata.tripupdate.profiling.ProfilingServer;
+import fi.hsl.transitdata.tripupdate.profiling.PublishAckEvent;
+import fi.hsl.transitdata.tripupdate.profiling.RecordedEvents;
+import fi.hsl.transitdata.tripupdate.profiling.SendTripUpdateEvent;
+import fi.hsl.transitdata.tripupdate.profiling.StageEvents;
+import fi.hsl.transitdata.tripupdate.profiling.ValidateTripUpdateEvent;
+import fi.hsl.transitdata.tripupdate.profiling.ValidatorRejectedEvent;
+import fi.hsl.transitdata.tripupdate.recording.MessageCapture;
+import fi.hsl.transitdata.tripupdate.recording.PulsarMessageSource;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.OffHeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.RedisTripSnapshotStore;
+import fi.hsl.transitdata.tripupdate.state.SnapshotWriter;
+import fi.hsl.transitdata.tripupdate.state.TripSnapshotStore;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MessageRouter implements IMessageHandler {
     private static final Logger log = LoggerFactory.getLogger(MessageRouter.class);
 
     private Map<ProtobufSchema, AbstractMessageProcessor> processors = new HashMap<>();
     private List<ITripUpdateValidator> tripUpdateValidators;
+    private RoutePreFilter routePreFilter;
 
     private Consumer<byte[]> consumer;
-    private Producer<byte[]> producer;
+    private TripUpdateSink sink;
     private Config config;
 
     private MessageStats messageStats = new MessageStats();
 
     private Debouncer debouncer;
+    //Trip updates are published without delay if debounce delay is zero
+    private boolean debounceEnabled;
+
+    //Null if publish priorities are not enabled
+    private PrioritizedPublisher prioritizedPublisher;
+    private PublishPriorityClassifier publishPriorityClassifier;
+    private long farFutureDebounceDelayMs;
+    //Order of the trip updates that are published with priorities
+    private final AtomicLong publishSequence = new AtomicLong();
+
+    //Null if lazy evaluation is not enabled. Contains trips whose debounce delay has passed and whose trip update should be built
+    private BatchingQueue<DirtyTripFlusher.DirtyTrip> dirtyTrips;
+    private DirtyTripFlusher dirtyTripFlusher;
+
+    //Null if reorder buffer is not enabled. Contains stop estimates waiting for estimates that were modified before them
+    private ReorderBuffer<BufferedStopEstimate> reorderBuffer;
+
+    private TripUpdateProcessor tripUpdateProcessor;
+    private StopEstimateProcessor stopEstimateProcessor;
+    //Null if trip state snapshots are not enabled
+    private SnapshotWriter snapshotWriter;
+    //Null if capture is not enabled
+    private MessageCapture capture;
+    //Null if profiling is not enabled
+    private ContinuousRecording recording;
 
     public MessageRouter(PulsarApplicationContext context) {
-        consumer = context.getConsumer();
-        producer = context.getProducer();
-        this.config = context.getConfig();
+        this(context, null);
+    }
+
+    /**
+     * @param snapshotStore Store for trip state snapshots, if null a Redis store is created when snapshots are enabled
+     */
+    public MessageRouter(PulsarApplicationContext context, TripSnapshotStore snapshotStore) {
+        this(context.getConfig(), context.getConsumer(), createSink(context.getConfig(), context),
+                snapshotStore == null && context.getConfig().getBoolean("state.snapshot.enabled") ? createSnapshotStore(context) : snapshotStore);
+    }
+
+    /**
+     * @param consumer Consumer used for acknowledging messages, can be null if messages are passed to {@link #process(ProtobufSchema, String, long, byte[])} directly
+     * @param sink Sink for trip updates
+     * @param snapshotStore Store for trip state snapshots, can be null if snapshots are not enabled
+     */
+    public MessageRouter(Config config, Consumer<byte[]> consumer, TripUpdateSink sink, TripSnapshotStore snapshotStore) {
+        this.consumer = consumer;
+        this.sink = sink;
+        this.config = config;
+
+        debouncer = createDebouncer();
 
-        debouncer = new Debouncer(config.getDuration("publisher.debounceDelay"));
+        if (config.getBoolean("publisher.priority.enabled")) {
+            prioritizedPublisher = new PrioritizedPublisher(config.getInt("publisher.priority.maxPendingSends"));
+            publishPriorityClassifier = new PublishPriorityClassifier(config.getDuration("publisher.priority.imminentHorizon"),
+                    config.getDuration("publisher.priority.farFutureHorizon"));
+            farFutureDebounceDelayMs = config.getDuration("publisher.priority.farFutureDebounceDelay", TimeUnit.MILLISECONDS);
+        }
 
         tripUpdateValidators = registerTripUpdateValidators();
-        registerHandlers(context);
+        registerHandlers();
+
+        if (config.getBoolean("publisher.lazyEvaluation")) {
+            if (!debounceEnabled || prioritizedPublisher != null) {
+                log.warn("Lazy evaluation of trip updates requires debouncing without publish priorities, trip updates are built for each stop estimate");
+            } else {
+                dirtyTripFlusher = new DirtyTripFlusher(tripUpdateProcessor, this::validateTripUpdate, sink, this::send,
+                        config.getInt("publisher.flushThreads"));
+                dirtyTrips = new BatchingQueue<>("dirty-trip-flush", trips -> messageStats.incrementMessagesSent(dirtyTripFlusher.flush(trips)));
+                log.info("Trip updates are built lazily when their debounce delay has passed, using {} threads", config.getInt("publisher.flushThreads"));
+            }
+        }
+
+        if (config.getBoolean("publisher.skipUnchangedEstimates")) {
+            tripUpdateProcessor.enableUnchangedEstimateSkipping();
+            log.info("Stop estimates that do not change their stop time are not published");
+        }
+        if (config.getBoolean("ordering.dropStaleEstimates")) {
+            tripUpdateProcessor.enableStaleEstimateDropping();
+            log.info("Stop estimates older than the latest processed estimate of their stop are dropped");
+        }
+        if (config.getBoolean("ordering.reorderBuffer.enabled")) {
+            //Buffered estimates are acknowledged before they have been processed, so their state would not be in the
+            //snapshot of the trip when it is handed over to another instance
+            if (config.getBoolean("state.snapshot.enabled")) {
+                log.warn("Reorder buffer cannot be used with trip state snapshots, stop estimates are processed in the order they arrive");
+            } else {
+                reorderBuffer = createReorderBuffer();
+            }
+        }
+
+        if (config.getBytes("state.memory.budget") > 0) {
+            tripUpdateProcessor.enableMemoryBudget(config.getBytes("state.memory.budget"),
+                    config.getDouble("state.memory.sheddingThreshold"),
+                    config.getDuration("state.memory.sheddingHorizon"));
+            log.info("Trip state memory budget is {} MB", config.getBytes("state.memory.budget") / (1024 * 1024));
+        }
+
+        if (config.getBoolean("state.snapshot.enabled")) {
+            tripUpdateProcessor.enableSnapshots(snapshotStore, config.getDuration("state.snapshot.revisionCheckIdleTime"));
+            snapshotWriter = new SnapshotWriter(snapshotStore, config.getDuration("state.snapshot.flushInterval"));
+            log.info("Trip state snapshots enabled");
+        }
+
+        if (config.getBoolean("capture.enabled")) {
+            capture = createCapture();
+        }
+
+        if (config.getBoolean("profiling.enabled")) {
+            recording = startProfiling();
+        }
+        if (config.getBoolean("profiling.stageEvents")) {
+            StageEvents.setEnabled(true);
+            log.info("JFR events for pipeline stages enabled");
+        }
+    }
+
+    private ReorderBuffer<BufferedStopEstimate> createReorderBuffer() {
+        final long windowMs = config.getDuration("ordering.reorderBuffer.window").toMillis();
+        final ReorderBuffer<BufferedStopEstimate> buffer = new ReorderBuffer<>(windowMs, config.getInt("ordering.reorderBuffer.maxEstimates"),
+                estimate -> processNow(ProtobufSchema.InternalMessagesStopEstimate, estimate.key, estimate.eventTimeMs, estimate.payload));
+
+        //Estimates are released also when no new estimates arrive
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "reorder-buffer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long intervalMs = Math.max(10, windowMs / 4);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                buffer.releaseExpired();
+            } catch (Exception e) {
+                log.error("Exception while releasing stop estimates from reorder buffer", e);
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        log.info("Stop estimates are reordered by their modification time within {} ms", windowMs);
+        return buffer;
     }
 
-    private void registerHandlers(PulsarApplicationContext context) {
+    private static class BufferedStopEstimate {
+        final String key;
+        final long eventTimeMs;
+        final byte[] payload;
+
+        BufferedStopEstimate(String key, long eventTimeMs, byte[] payload) {
+            this.key = key;
+            this.eventTimeMs = eventTimeMs;
+            this.payload = payload;
+        }
+    }
+
+    private ContinuousRecording startProfiling() {
+        final Path directory = Paths.get(config.getString("profiling.directory"));
+        try {
+            final ContinuousRecording recording = new ContinuousRecording(config.getDuration("profiling.maxAge"),
+                    config.getBytes("profiling.maxSize"), directory, config.getInt("profiling.maxDumps"));
+            recording.start();
+
+            if (config.getInt("profiling.httpPort") > 0) {
+                final ProfilingServer server = new ProfilingServer(config.getString("profiling.httpHost"),
+                        config.getInt("profiling.httpPort"), recording,
+                        config.getDuration("profiling.defaultDumpPeriod"));
+                server.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(recording::close));
+            return recording;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to start profiling", e);
+        }
+    }
+
+    private MessageCapture createCapture() {
+        final Path directory = Paths.get(config.getString("capture.directory"));
+        try {
+            final MessageCapture capture = new MessageCapture(directory,
+                    config.getInt("capture.queueSize"),
+                    config.getBytes("capture.segmentSize"),
+                    config.getDuration("capture.segmentDuration"),
+                    config.getInt("capture.maxSegments"));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    capture.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            log.info("Capturing received messages to {}", directory.toAbsolutePath());
+            return capture;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create capture directory " + directory, e);
+        }
+    }
+
+    /**
+     * Creates the sink selected with {@code publisher.sink.type}
+     *
+     * @param context Context for Pulsar producers, can be null if the sink does not publish to Pulsar
+     */
+    public static TripUpdateSink createSink(Config config, PulsarApplicationContext context) {
+        final String type = config.getString("publisher.sink.type");
+        switch (type) {
+            case "pulsar":
+                final TripUpdateSink sink = new PulsarTripUpdateSink(context.getProducer());
+                return config.getBoolean("publisher.delta.enabled") ? createDeltaSink(config, context, sink) : sink;
+            case "file":
+                final Path directory = Paths.get(config.getString("publisher.sink.file.directory"));
+                try {
+                    final FileTripUpdateSink fileSink = new FileTripUpdateSink(directory, config.getBytes("publisher.sink.file.fileSize"),
+                            config.getInt("publisher.sink.file.maxFiles"));
+                    Runtime.getRuntime().addShutdownHook(new Thread(fileSink::close));
+                    log.info("Writing trip updates to files in {}", directory.toAbsolutePath());
+                    return fileSink;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to create trip update file in " + directory, e);
+                }
+            case "memory":
+                log.info("Keeping trip updates in memory, they are not published");
+                return new InMemoryTripUpdateSink(config.getInt("publisher.sink.memory.capacity"));
+            default:
+                throw new IllegalArgumentException("Unknown trip update sink type " + type + ", expected pulsar, file or memory");
+        }
+    }
+
+    private static TripUpdateSink createDeltaSink(Config config, PulsarApplicationContext context, TripUpdateSink sink) {
+        final String topic = config.getString("publisher.delta.topic");
+        try {
+            final Producer<byte[]> deltaProducer = context.getClient().newProducer().topic(topic).create();
+            Runtime.getRuntime().addShutdownHook(new Thread(deltaProducer::closeAsync));
+            log.info("Publishing changed stops of trip updates to {}", topic);
+            return new DeltaTripUpdateSink(sink, new PulsarTripUpdateSink(deltaProducer));
+        } catch (PulsarClientException e) {
+            throw new IllegalStateException("Failed to create producer for topic " + topic, e);
+        }
+    }
+
+    private static TripSnapshotStore createSnapshotStore(PulsarApplicationContext context) {
+        if (context.getJedis() == null) {
+            throw new IllegalStateException("Trip state snapshots require Redis, set REDIS_ENABLED=true");
+        }
+        //Snapshots are loaded with a connection of their own, so that loading does not wait for saving
+        final Jedis readJedis = new Jedis(context.getJedis().getClient().getHost(), context.getJedis().getClient().getPort());
+        return new RedisTripSnapshotStore(context.getJedis(), readJedis, context.getConfig().getString("state.snapshot.keyPrefix"),
+                context.getConfig().getDuration("state.snapshot.ttl"));
+    }
+
+    private TripStateStore createStateStore() {
+        final String backend = config.getString("state.store.backend");
+        final long size = config.getBytes("state.store.size");
+        switch (backend) {
+            case "heap":
+                return new HeapTripStateStore(TripUpdateProcessor.CACHE_DURATION);
+            case "offHeap":
+                log.info("Keeping trip state off-heap in {} MB", size / (1024 * 1024));
+                return new OffHeapTripStateStore(size, TripUpdateProcessor.CACHE_DURATION);
+            case "persistent":
+                final String file = config.getString("state.store.file");
+                try {
+                    final OffHeapTripStateStore stateStore = OffHeapTripStateStore.open(Paths.get(file), size, TripUpdateProcessor.CACHE_DURATION);
+                    //Changes are written to the file by the OS, but make sure that they are written before exiting
+                    Runtime.getRuntime().addShutdownHook(new Thread(stateStore::close));
+                    log.info("Keeping trip state in {} MB memory-mapped file {}", size / (1024 * 1024), file);
+                    return stateStore;
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to open trip state file " + file, e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown trip state store backend " + backend + ", expected heap, offHeap or persistent");
+        }
+    }
+
+    private Debouncer createDebouncer() {
+        final DebounceDelay debounceDelay;
+        if (config.getBoolean("publisher.adaptiveDebounce.enabled")) {
+            debounceDelay = new AdaptiveDebounceDelay(config.getDuration("publisher.adaptiveDebounce.minDelay"),
+                    config.getDuration("publisher.adaptiveDebounce.maxDelay"));
+        } else {
+            debounceDelay = DebounceDelay.fixed(config.getDuration("publisher.debounceDelay").toMillis());
+        }
+        debounceEnabled = config.getBoolean("publisher.adaptiveDebounce.enabled") || config.getDuration("publisher.debounceDelay").toMillis() > 0;
+        return new Debouncer(debounceDelay, config.getDuration("publisher.debounceMaxLatency"), config.getInt("publisher.debounceMaxPending"), createPublishExecutor());
+    }
+
+    private Executor createPublishExecutor() {
+        final ExecutorService executorService = PublishExecutors.create(config.getString("publisher.executor"));
+        if (executorService == null) {
+            return null;
+        }
+        log.info("Publishing trip updates with {} executor", config.getString("publisher.executor"));
+        return new BoundedExecutor(executorService, config.getInt("publisher.maxConcurrentPublishes"));
+    }
+
+    private void registerHandlers() {
         //Let's use the same instance of TripUpdateProcessor.
-        TripUpdateProcessor tripUpdateProcessor = new TripUpdateProcessor(context.getProducer());
+        tripUpdateProcessor = new TripUpdateProcessor(null, createStateStore());
 
         final boolean filterTrainData = config.getBoolean("validator.filterTrainData");
+        routePreFilter = new RoutePreFilter(filterTrainData);
 
-        processors.put(ProtobufSchema.InternalMessagesStopEstimate, new StopEstimateProcessor(tripUpdateProcessor, filterTrainData));
+        stopEstimateProcessor = new StopEstimateProcessor(tripUpdateProcessor, filterTrainData);
+        processors.put(ProtobufSchema.InternalMessagesStopEstimate, stopEstimateProcessor);
         processors.put(ProtobufSchema.InternalMessagesTripCancellation, new TripCancellationProcessor(tripUpdateProcessor, filterTrainData));
     }
 
@@ -75,80 +395,330 @@ public class MessageRouter implements IMessageHandler {
     }
 
     public void handleMessage(Message received) {
-        messageStats.incrementMessagesReceived();
+        handleMessage(PulsarMessageSource.toRecordedMessage(received), () -> acknowledge(received));
+    }
+
+    /**
+     * Handles a message from any source the same way as a message received from Pulsar
+     *
+     * @param acknowledge Invoked when the message can be acknowledged, can be null
+     */
+    public void handleMessage(RecordedMessage received, Runnable acknowledge) {
+        final HandleMessageEvent event = StageEvents.isEnabled() ? new HandleMessageEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
 
         try {
-            Optional<TransitdataSchema> maybeSchema = TransitdataSchema.parseFromPulsarMessage(received);
-            maybeSchema.ifPresent(schema -> {
-                AbstractMessageProcessor processor = processors.get(schema.schema);
-                if (processor != null) {
-                    if (processor.validateMessage(received.getData())) {
-
-                        Optional<AbstractMessageProcessor.TripUpdateWithId> maybeTripUpdate = processor.processMessage(received);
-                        if (maybeTripUpdate.isPresent()) {
-                            final AbstractMessageProcessor.TripUpdateWithId pair = maybeTripUpdate.get();
-                            final GtfsRealtime.TripUpdate tripUpdate = pair.getTripUpdate();
-
-                            final boolean tripUpdateIsValid = tripUpdateValidators.stream().allMatch(validator -> {
-                                final boolean isValid = validator.validate(tripUpdate);
-                                if (!isValid) {
-                                    final GtfsRealtime.TripDescriptor trip = tripUpdate.getTrip();
-                                    log.debug("Trip update for {} / {} / {} / {} failed validation when validating with {}", trip.getRouteId(), trip.getDirectionId(), trip.getStartDate(), trip.getStartTime(), validator.getClass().getName());
-
-                                    messageStats.incrementInvalidTripUpdates("validator-" + validator.getClass().getSimpleName());
-                                }
-                                return isValid;
-                            });
-
-                            if (tripUpdateIsValid) {
-                                long eventTimeMs = received.getEventTime();
-                                sendTripUpdate(pair, eventTimeMs);
-                            }
-                        } else {
-                            log.warn("Failed to process TripUpdate from source schema {}", schema.schema.toString());
-                            messageStats.incrementInvalidTripUpdates("processing_failed-" + schema.schema);
-                        }
-                    } else {
-                        log.debug("Message didn't pass validation, ignoring.");
-                        messageStats.incrementInvalidTripUpdates("message_validator");
-                    }
-                } else {
-                    log.warn("Received message with unknown schema, ignoring: " + schema);
-                    messageStats.incrementInvalidTripUpdates("unknown_schema-" + schema);
-                }
-            });
+            if (capture != null) {
+                capture.record(received);
+            }
+
+            final ProtobufSchema schema = received.getSchema();
+            if (schema != null) {
+                process(schema, received.getKey(), received.getEventTimeMs(), received.getPayload());
+            } else {
+                messageStats.incrementMessagesReceived();
+            }
 
-            consumer.acknowledgeAsync(received)
-                    .exceptionally(throwable -> {
-                        log.error("Failed to ack Pulsar message", throwable);
-                        return null;
-                    })
-                    .thenRun(() -> {});
+            final Runnable ack = acknowledge != null ? acknowledge : () -> {};
+            if (snapshotWriter != null) {
+                //Acknowledge only after state of the trip has been saved so that it can be restored by another consumer
+                snapshotWriter.add(tripUpdateProcessor.drainSnapshots(), ack);
+            } else {
+                ack.run();
+            }
         } catch (Exception e) {
             log.error("Exception while handling message", e);
         }
 
+        if (event != null) {
+            event.schema = received.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA);
+            event.end(received.getKey(), null, 0);
+        }
+
         if (messageStats.getDurationSecs() >= 60) {
-            messageStats.logAndReset(log);
+            tripUpdateProcessor.expireTrips();
+            logStats();
+        }
+    }
+
+    /**
+     * Processes a single message and publishes trip update to the sink if the message produced a valid trip update
+     *
+     * @param schema Schema of the payload
+     * @param key Key of the message
+     * @param eventTimeMs Event time of the message
+     * @param payload Payload of the message
+     */
+    public void process(final ProtobufSchema schema, final String key, final long eventTimeMs, final byte[] payload) {
+        if (reorderBuffer != null && schema == ProtobufSchema.InternalMessagesStopEstimate) {
+            final long lastModifiedUtcMs = StopEstimateProcessor.peekLastModifiedUtcMs(payload);
+            if (lastModifiedUtcMs >= 0) {
+                reorderBuffer.add(new BufferedStopEstimate(key, eventTimeMs, payload), lastModifiedUtcMs);
+                return;
+            }
+        }
+        processNow(schema, key, eventTimeMs, payload);
+    }
+
+    private void processNow(final ProtobufSchema schema, final String key, final long eventTimeMs, final byte[] payload) {
+        if (!RecordedEvents.isMessageProcessedRecorded()) {
+            processMessage(schema, key, eventTimeMs, payload);
+            return;
+        }
+        final MessageProcessedEvent event = new MessageProcessedEvent();
+        event.begin();
+        final String outcome = processMessage(schema, key, eventTimeMs, payload);
+        if (event.shouldCommit()) {
+            event.schema = schema.toString();
+            event.key = key;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return Outcome of the processing for profiling
+     */
+    private String processMessage(final ProtobufSchema schema, final String key, final long eventTimeMs, final byte[] payload) {
+        messageStats.incrementMessagesReceived();
+
+        AbstractMessageProcessor processor = processors.get(schema);
+        if (processor != null) {
+            //Check route before decoding the payload so that e.g. train data can be discarded cheaply
+            final Optional<String> rejectReason = routePreFilter.check(schema, payload);
+            if (rejectReason.isPresent()) {
+                log.debug("Message was rejected by route pre-filter ({}), ignoring.", rejectReason.get());
+                messageStats.incrementInvalidTripUpdates("prefilter-" + rejectReason.get());
+                return "prefilter";
+            } else if (processor.validateMessage(payload)) {
+                if (schema == ProtobufSchema.InternalMessagesStopEstimate && stopEstimateProcessor.shedMessage(payload)) {
+                    log.debug("Trip state is close to its memory budget, discarding far-future estimate");
+                    messageStats.incrementShedStopEstimates();
+                    return "shed";
+                }
+                if (dirtyTrips != null && schema == ProtobufSchema.InternalMessagesStopEstimate) {
+                    return markDirty(eventTimeMs, payload);
+                }
+
+                Optional<AbstractMessageProcessor.TripUpdateWithId> maybeTripUpdate = processor.processMessage(key, eventTimeMs, payload);
+                if (maybeTripUpdate.isPresent()) {
+                    final AbstractMessageProcessor.TripUpdateWithId pair = maybeTripUpdate.get();
+                    if (pair.isUnchanged()) {
+                        //Previous trip update of the trip is still current, no need to validate or publish it again
+                        return "unchanged";
+                    }
+                    if (validateTripUpdate(pair)) {
+                        sendTripUpdate(pair, eventTimeMs, schema == ProtobufSchema.InternalMessagesTripCancellation);
+                        return "trip_update";
+                    }
+                    return "validator";
+                } else {
+                    log.warn("Failed to process TripUpdate from source schema {}", schema.toString());
+                    messageStats.incrementInvalidTripUpdates("processing_failed-" + schema);
+                    return "processing_failed";
+                }
+            } else {
+                log.debug("Message didn't pass validation, ignoring.");
+                messageStats.incrementInvalidTripUpdates("message_validator");
+                return "message_validator";
+            }
+        } else {
+            log.warn("Received message with unknown schema, ignoring: " + schema);
+            messageStats.incrementInvalidTripUpdates("unknown_schema-" + schema);
+            return "unknown_schema";
+        }
+    }
+
+    /**
+     * @return true if the trip update passed all validators
+     */
+    private boolean validateTripUpdate(final AbstractMessageProcessor.TripUpdateWithId pair) {
+        for (ITripUpdateValidator validator : tripUpdateValidators) {
+            if (!validate(validator, pair)) {
+                final GtfsRealtime.TripDescriptor trip = pair.getTripUpdate().getTrip();
+                log.debug("Trip update for {} / {} / {} / {} failed validation when validating with {}", trip.getRouteId(), trip.getDirectionId(), trip.getStartDate(), trip.getStartTime(), validator.getClass().getName());
+
+                messageStats.incrementInvalidTripUpdates("validator-" + validator.getClass().getSimpleName());
+
+                final ValidatorRejectedEvent event = new ValidatorRejectedEvent();
+                if (event.shouldCommit()) {
+                    event.validator = validator.getClass().getSimpleName();
+                    event.tripId = pair.getTripId();
+                    event.routeId = trip.getRouteId();
+                    event.commit();
+                }
+                //Trip update was not published, so next estimate of the trip must rebuild it
+                tripUpdateProcessor.invalidateTripUpdate(pair.getTripId());
+                return false;
+            }
         }
+        return true;
     }
 
-    private void sendTripUpdate(final AbstractMessageProcessor.TripUpdateWithId tuIdPair, final long pulsarEventTimestamp) {
+    /**
+     * Updates the stop estimate to trip state and builds the trip update only after the debounce delay of the trip has
+     * passed, so that cleaning and validation are done once for all stop estimates received during the delay
+     */
+    private String markDirty(final long eventTimeMs, final byte[] payload) {
+        final Optional<AbstractMessageProcessor.TripUpdateWithId> maybeTrip = stopEstimateProcessor.markMessage(payload);
+        if (!maybeTrip.isPresent()) {
+            messageStats.incrementInvalidTripUpdates("processing_failed-" + ProtobufSchema.InternalMessagesStopEstimate);
+            return "processing_failed";
+        }
+        if (maybeTrip.get().isUnchanged()) {
+            return "unchanged";
+        }
+        final String tripId = maybeTrip.get().getTripId();
+        debouncer.debounce(tripId, () -> dirtyTrips.add(new DirtyTripFlusher.DirtyTrip(tripId, eventTimeMs)));
+        return "dirty";
+    }
+
+    private static boolean validate(final ITripUpdateValidator validator, final AbstractMessageProcessor.TripUpdateWithId tuIdPair) {
+        final GtfsRealtime.TripUpdate tripUpdate = tuIdPair.getTripUpdate();
+        if (!StageEvents.isEnabled()) {
+            return validator.validate(tripUpdate);
+        }
+        final ValidateTripUpdateEvent event = new ValidateTripUpdateEvent();
+        event.begin();
+        final boolean valid = validator.validate(tripUpdate);
+        event.validator = validator.getClass().getSimpleName();
+        event.valid = valid;
+        event.end(tuIdPair.getTripId(), tripUpdate.getTrip().getRouteId(), tripUpdate.getStopTimeUpdateCount());
+        return valid;
+    }
+
+    /**
+     * @return Amount of trip updates that are waiting to be published
+     */
+    public int getPendingTripUpdates() {
+        return debouncer.getPendingCount() + (reorderBuffer != null ? reorderBuffer.size() : 0) + (dirtyTrips != null ? (int) dirtyTrips.getPendingCount() : 0) + (prioritizedPublisher != null ? prioritizedPublisher.getPendingSends() : 0);
+    }
+
+    public void logStats() {
+        messageStats.logAndReset(log);
+        debouncer.getStats().logAndReset(log);
+        tripUpdateProcessor.logStopEstimateStats(log);
+        if (reorderBuffer != null) {
+            reorderBuffer.logAndReset(log);
+        }
+        if (dirtyTrips != null) {
+            dirtyTrips.logAndReset(log);
+            dirtyTripFlusher.logAndReset(log);
+        }
+        tripUpdateProcessor.logMemoryStats(log);
+        sink.logAndReset(log);
+        if (prioritizedPublisher != null) {
+            prioritizedPublisher.getStats().logAndReset(log);
+        }
+        if (snapshotWriter != null) {
+            snapshotWriter.logAndReset(log);
+        }
+        if (capture != null) {
+            capture.logAndReset(log);
+        }
+    }
+
+    private void acknowledge(Message received) {
+        consumer.acknowledgeAsync(received)
+                .exceptionally(throwable -> {
+                    log.error("Failed to ack Pulsar message", throwable);
+                    return null;
+                })
+                .thenRun(() -> {});
+    }
+
+    private void sendTripUpdate(final AbstractMessageProcessor.TripUpdateWithId tuIdPair, final long pulsarEventTimestamp, final boolean isCancellation) {
+        if (!StageEvents.isEnabled()) {
+            sendTripUpdate(tuIdPair, pulsarEventTimestamp, isCancellation, null);
+            return;
+        }
+        final SendTripUpdateEvent event = new SendTripUpdateEvent();
+        event.begin();
+        sendTripUpdate(tuIdPair, pulsarEventTimestamp, isCancellation, event);
+        final GtfsRealtime.TripUpdate tripUpdate = tuIdPair.getTripUpdate();
+        event.end(tuIdPair.getTripId(), tripUpdate.getTrip().getRouteId(), tripUpdate.getStopTimeUpdateCount());
+    }
+
+    /**
+     * @param event Event where to record whether the trip update was debounced, null if stage events are not enabled
+     */
+    private void sendTripUpdate(final AbstractMessageProcessor.TripUpdateWithId tuIdPair, final long pulsarEventTimestamp, final boolean isCancellation, final SendTripUpdateEvent event) {
         messageStats.incrementMessagesSent();
 
         final String tripId = tuIdPair.getTripId();
         final GtfsRealtime.TripUpdate tripUpdate = tuIdPair.getTripUpdate();
 
-        debouncer.debounce(tripId, () -> {
-            GtfsRealtime.FeedMessage feedMessage = FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp());
-            producer.newMessage()
-                    .key(tripId)
-                    .eventTime(pulsarEventTimestamp)
-                    .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_TripUpdate.toString())
-                    .value(feedMessage.toByteArray())
-                    .sendAsync()
-                    .thenRun(() -> log.debug("Sending TripUpdate for tripId {} with {} StopTimeUpdates and status {}",
-                            tripId, tripUpdate.getStopTimeUpdateCount(), tripUpdate.getTrip().getScheduleRelationship()));
-        });
+        if (prioritizedPublisher == null) {
+            if (debounceEnabled) {
+                debouncer.debounce(tripId, () -> send(tripId, tripUpdate, pulsarEventTimestamp));
+                if (event != null) {
+                    event.debounced = true;
+                }
+            } else {
+                send(tripId, tripUpdate, pulsarEventTimestamp);
+            }
+            return;
+        }
+
+        final Priority priority = publishPriorityClassifier.classify(tripUpdate, isCancellation, System.currentTimeMillis() / 1000);
+        //High priority trip updates bypass debouncing, so a debounced trip update that was already being flushed
+        //could be published after them. Sequence makes the publisher drop such trip update
+        final long sequence = publishSequence.incrementAndGet();
+        final Runnable publish = () -> prioritizedPublisher.publish(tripId, sequence, priority, () -> send(tripId, tripUpdate, pulsarEventTimestamp));
+        switch (priority) {
+            case HIGH:
+                //Publish immediately and make sure that an older pending trip update is not published after this
+                debouncer.cancel(tripId);
+                publish.run();
+                break;
+            case LOW:
+                debouncer.debounce(tripId, publish, farFutureDebounceDelayMs);
+                if (event != null) {
+                    event.debounced = true;
+                }
+                break;
+            default:
+                if (debounceEnabled) {
+                    debouncer.debounce(tripId, publish);
+                    if (event != null) {
+                        event.debounced = true;
+                    }
+                } else {
+                    publish.run();
+                }
+        }
+    }
+
+    private CompletableFuture<?> send(final String tripId, final GtfsRealtime.TripUpdate tripUpdate, final long pulsarEventTimestamp) {
+        if (!RecordedEvents.isPublishAckRecorded()) {
+            return sink.send(tripId, tripUpdate, pulsarEventTimestamp);
+        }
+        final PublishAckEvent event = new PublishAckEvent();
+        event.begin();
+        final CompletableFuture<?> future = sink.send(tripId, tripUpdate, pulsarEventTimestamp);
+        recordAck(event, tripId, future);
+        return future;
+    }
+
+    private void send(final PreparedTripUpdate tripUpdate) {
+        if (!RecordedEvents.isPublishAckRecorded()) {
+            sink.send(tripUpdate);
+            return;
+        }
+        final PublishAckEvent event = new PublishAckEvent();
+        event.begin();
+        recordAck(event, tripUpdate.getTripId(), sink.send(tripUpdate));
+    }
+
+    private static void recordAck(final PublishAckEvent event, final String tripId, final CompletableFuture<?> future) {
+        if (event.isEnabled()) {
+            future.whenComplete((result, throwable) -> {
+                event.tripId = tripId;
+                event.success = throwable == null;
+                event.commit();
+            });
+        }
     }
 }
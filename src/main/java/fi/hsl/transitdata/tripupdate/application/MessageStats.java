@@ -8,36 +8,45 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
+/**
+ * Counters of processed messages. Thread-safe, because trip updates that are built lazily are counted on the thread that builds them
+ */
 public class MessageStats {
     private long startTime = System.nanoTime();
 
     private int messagesReceived = 0;
     private int messagesSent = 0;
     private int invalidTripUpdates = 0;
+    //Stop estimates that were dropped because trip state was close to its memory budget
+    private int shedStopEstimates = 0;
 
     private final Map<String, Integer> invalidTripUpdateReasons = new HashMap<>();
 
-    public int getMessagesReceived() {
+    public synchronized int getMessagesReceived() {
         return messagesReceived;
     }
 
-    public void incrementMessagesReceived() {
+    public synchronized void incrementMessagesReceived() {
         messagesReceived++;
     }
 
-    public int getMessagesSent() {
+    public synchronized int getMessagesSent() {
         return messagesSent;
     }
 
-    public void incrementMessagesSent() {
+    public synchronized void incrementMessagesSent() {
         messagesSent++;
     }
 
-    public int getInvalidTripUpdates() {
+    public synchronized void incrementMessagesSent(int count) {
+        messagesSent += count;
+    }
+
+    public synchronized int getInvalidTripUpdates() {
         return invalidTripUpdates;
     }
 
-    public void incrementInvalidTripUpdates(final String validator) {
+    public synchronized void incrementInvalidTripUpdates(final String validator) {
 
         invalidTripUpdates++;
 
@@ -46,6 +55,14 @@ public class MessageStats {
         }
     }
 
+    public synchronized int getShedStopEstimates() {
+        return shedStopEstimates;
+    }
+
+    public synchronized void incrementShedStopEstimates() {
+        shedStopEstimates++;
+    }
+
     public long getStartTime() {
         return startTime;
     }
@@ -54,29 +71,31 @@ public class MessageStats {
         return (System.nanoTime() - startTime) / 1_000_000_000;
     }
 
-    public void reset() {
+    public synchronized void reset() {
         startTime = System.nanoTime();
 
         messagesReceived = 0;
         messagesSent = 0;
         invalidTripUpdates = 0;
+        shedStopEstimates = 0;
 
         invalidTripUpdateReasons.clear();
     }
 
-    public void logAndReset(Logger logger) {
+    public synchronized void logAndReset(Logger logger) {
         logger.info(toString());
         reset();
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         final String reasonsText = invalidTripUpdateReasons.entrySet().stream().map(entry -> entry.getKey() + ": " + entry.getValue()).collect(Collectors.joining(", "));
 
         return "Message stats:\n"+
                 "\tStart time: " + getDurationSecs() + " seconds ago\n" +
                 "\tMessages received: " + messagesReceived + "\n" +
                 "\tMessages sent: " + messagesSent + "\n" +
-                "\tInvalid trip updates: " + invalidTripUpdates + "(" + reasonsText + ")";
+                "\tInvalid trip updates: " + invalidTripUpdates + "(" + reasonsText + ")\n" +
+                "\tShed stop estimates: " + shedStopEstimates;
     }
 }
@@ -0,0 +1,42 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+/**
+ * Trip update that has been prepared for sending with {@link TripUpdateSink#prepare(String, GtfsRealtime.TripUpdate, long)}
+ */
+public final class PreparedTripUpdate {
+    private final String tripId;
+    private final GtfsRealtime.TripUpdate tripUpdate;
+    private final long eventTimeMs;
+    private final byte[] payload;
+
+    /**
+     * @param payload Serialized message for the trip update, or null if the sink does not serialize trip updates in advance
+     */
+    public PreparedTripUpdate(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs, byte[] payload) {
+        this.tripId = tripId;
+        this.tripUpdate = tripUpdate;
+        this.eventTimeMs = eventTimeMs;
+        this.payload = payload;
+    }
+
+    public String getTripId() {
+        return tripId;
+    }
+
+    public GtfsRealtime.TripUpdate getTripUpdate() {
+        return tripUpdate;
+    }
+
+    public long getEventTimeMs() {
+        return eventTimeMs;
+    }
+
+    /**
+     * @return Serialized message or null if the trip update has not been serialized
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,57 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.utils.PrioritizedPublisher.Priority;
+
+import java.time.Duration;
+
+/**
+ * Decides publish priority of trip updates. Cancellations and trips departing soon from their next stop are
+ * published first, while trips whose next stop is far in the future can wait.
+ */
+public class PublishPriorityClassifier {
+    private final long imminentHorizonSecs;
+    private final long farFutureHorizonSecs;
+
+    public PublishPriorityClassifier(Duration imminentHorizon, Duration farFutureHorizon) {
+        this.imminentHorizonSecs = imminentHorizon.getSeconds();
+        this.farFutureHorizonSecs = farFutureHorizon.getSeconds();
+    }
+
+    /**
+     * @param isCancellation Whether the trip update was created from a cancellation message
+     * @param nowSecs Current time in POSIX seconds
+     */
+    public Priority classify(GtfsRealtime.TripUpdate tripUpdate, boolean isCancellation, long nowSecs) {
+        if (isCancellation || tripUpdate.getTrip().getScheduleRelationship() == GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED) {
+            return Priority.HIGH;
+        }
+
+        final long nextStopTime = getNextStopTime(tripUpdate, nowSecs);
+        if (nextStopTime < 0) {
+            return Priority.NORMAL;
+        }
+        if (nextStopTime - nowSecs <= imminentHorizonSecs) {
+            return Priority.HIGH;
+        }
+        if (nextStopTime - nowSecs > farFutureHorizonSecs) {
+            return Priority.LOW;
+        }
+        return Priority.NORMAL;
+    }
+
+    /**
+     * @return Time of the first arrival or departure that is not in the past, or -1 if not found
+     */
+    static long getNextStopTime(GtfsRealtime.TripUpdate tripUpdate, long nowSecs) {
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.hasArrival() && stopTimeUpdate.getArrival().getTime() >= nowSecs) {
+                return stopTimeUpdate.getArrival().getTime();
+            }
+            if (stopTimeUpdate.hasDeparture() && stopTimeUpdate.getDeparture().getTime() >= nowSecs) {
+                return stopTimeUpdate.getDeparture().getTime();
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.gtfsrt.FeedMessageFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.apache.pulsar.client.api.Producer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Publishes trip updates as differential GTFS-RT feed messages to Pulsar
+ */
+public class PulsarTripUpdateSink implements TripUpdateSink {
+    private static final Logger log = LoggerFactory.getLogger(PulsarTripUpdateSink.class);
+
+    private final Producer<byte[]> producer;
+
+    public PulsarTripUpdateSink(Producer<byte[]> producer) {
+        this.producer = producer;
+    }
+
+    @Override
+    public CompletableFuture<?> send(final String tripId, final GtfsRealtime.TripUpdate tripUpdate, final long eventTimeMs) {
+        return send(prepare(tripId, tripUpdate, eventTimeMs));
+    }
+
+    @Override
+    public PreparedTripUpdate prepare(final String tripId, final GtfsRealtime.TripUpdate tripUpdate, final long eventTimeMs) {
+        GtfsRealtime.FeedMessage feedMessage = FeedMessageFactory.createDifferentialFeedMessage(tripId, tripUpdate, tripUpdate.getTimestamp());
+        return new PreparedTripUpdate(tripId, tripUpdate, eventTimeMs, feedMessage.toByteArray());
+    }
+
+    @Override
+    public CompletableFuture<?> send(final PreparedTripUpdate prepared) {
+        final String tripId = prepared.getTripId();
+        final GtfsRealtime.TripUpdate tripUpdate = prepared.getTripUpdate();
+        final byte[] payload = prepared.getPayload() != null ? prepared.getPayload() : prepare(tripId, tripUpdate, prepared.getEventTimeMs()).getPayload();
+        return producer.newMessage()
+                .key(tripId)
+                .eventTime(prepared.getEventTimeMs())
+                .property(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.GTFS_TripUpdate.toString())
+                .value(payload)
+                .sendAsync()
+                .thenRun(() -> log.debug("Sending TripUpdate for tripId {} with {} StopTimeUpdates and status {}",
+                        tripId, tripUpdate.getStopTimeUpdateCount(), tripUpdate.getTrip().getScheduleRelationship()));
+    }
+}
@@ -0,0 +1,117 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.config.ConfigParser;
+import fi.hsl.transitdata.tripupdate.recording.InMemoryMessageSource;
+import fi.hsl.transitdata.tripupdate.recording.MessageSource;
+import fi.hsl.transitdata.tripupdate.recording.SegmentReader;
+import fi.hsl.transitdata.tripupdate.recording.SegmentSequence;
+import fi.hsl.transitdata.tripupdate.replay.ReplaySink;
+import fi.hsl.transitdata.tripupdate.replay.Replayer;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays recorded messages from segment files or a synthetic workload through the processing chain without Pulsar.
+ *
+ * Usage: ReplayMain [--speed &lt;multiple of real time, 0 for max speed&gt;] [--output &lt;file&gt;] [--preload &lt;messages&gt;] &lt;segment file or directory&gt;...
+ * or: ReplayMain [--speed &lt;multiple of real time&gt;] [--output &lt;file&gt;] [--preload &lt;messages&gt;] --synthetic &lt;trips&gt; [--hours &lt;simulated hours&gt;] [--seed &lt;seed&gt;]
+ */
+public class ReplayMain {
+    private static final Logger log = LoggerFactory.getLogger(ReplayMain.class);
+
+    private static final String USAGE = "Usage: ReplayMain [--speed <multiple of real time, 0 for max speed>] [--output <file>] [--preload <messages>] <segment file or directory>...\n" +
+            "   or: ReplayMain [--speed <multiple of real time, 0 for max speed>] [--output <file>] [--preload <messages>] --synthetic <trips> [--hours <simulated hours>] [--seed <seed>]";
+
+    public static void main(String[] args) throws Exception {
+        double speed = 0;
+        Path outputPath = null;
+        final List<Path> segments = new ArrayList<>();
+        int syntheticTrips = 0;
+        double syntheticHours = 24;
+        long seed = 1;
+        int preload = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--speed".equals(args[i]) && i + 1 < args.length) {
+                speed = Double.parseDouble(args[++i]);
+            } else if ("--output".equals(args[i]) && i + 1 < args.length) {
+                outputPath = Paths.get(args[++i]);
+            } else if ("--synthetic".equals(args[i]) && i + 1 < args.length) {
+                syntheticTrips = Integer.parseInt(args[++i]);
+            } else if ("--hours".equals(args[i]) && i + 1 < args.length) {
+                syntheticHours = Double.parseDouble(args[++i]);
+            } else if ("--seed".equals(args[i]) && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if ("--preload".equals(args[i]) && i + 1 < args.length) {
+                preload = Integer.parseInt(args[++i]);
+            } else {
+                segments.addAll(SegmentReader.listSegments(Paths.get(args[i])));
+            }
+        }
+
+        if (segments.isEmpty() == (syntheticTrips <= 0)) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        final Config config = createConfig(ConfigParser.createConfig(), speed);
+
+        try (Writer output = outputPath != null ? new BufferedWriter(Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8)) : null) {
+            final ReplaySink sink = new ReplaySink(output);
+            final MessageRouter router = new MessageRouter(config, null, sink, null);
+            final Replayer replayer = new Replayer(router, sink, speed);
+
+            try (MessageSource source = syntheticTrips > 0 ? new WorkloadGenerator(new WorkloadGenerator.Settings()
+                    .trips(syntheticTrips)
+                    .duration(Duration.ofMillis((long) (syntheticHours * 3600000))), seed) : new SegmentSequence(segments)) {
+                if (syntheticTrips > 0) {
+                    log.info("Replaying synthetic workload of {} trips during {} hours at {}", syntheticTrips, syntheticHours, speed > 0 ? speed + "x real time" : "max speed");
+                } else {
+                    log.info("Replaying {} segments at {}", segments.size(), speed > 0 ? speed + "x real time" : "max speed");
+                }
+                if (preload > 0) {
+                    //Read messages to memory first so that only processing is measured
+                    final InMemoryMessageSource messages = InMemoryMessageSource.load(source, preload, false);
+                    log.info("Preloaded {} messages", messages.size());
+                    replayer.replay(messages);
+                } else {
+                    replayer.replay(source);
+                }
+            }
+
+            router.logStats();
+            log.info(replayer.getReport());
+        }
+        System.exit(0);
+    }
+
+    static Config createConfig(Config config, double speed) {
+        final Map<String, Object> overrides = new HashMap<>();
+        //Snapshots would require Redis and are not useful when replaying
+        overrides.put("state.snapshot.enabled", false);
+        if (speed <= 0) {
+            //Debouncing depends on wall clock time, so publish every trip update to make output deterministic
+            overrides.put("publisher.debounceDelay", "0 ms");
+            overrides.put("publisher.executor", "platform");
+            overrides.put("publisher.debounceMaxLatency", "0 ms");
+            overrides.put("publisher.adaptiveDebounce.enabled", false);
+            overrides.put("publisher.priority.enabled", false);
+        }
+        return ConfigFactory.parseMap(overrides).withFallback(config);
+    }
+}
@@ -0,0 +1,42 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination for trip updates published by {@link MessageRouter}
+ */
+public interface TripUpdateSink {
+    /**
+     * @param tripId Trip ID
+     * @param tripUpdate Trip update
+     * @param eventTimeMs Event time of the message that produced the trip update
+     * @return Future that is completed when the trip update has been sent
+     */
+    CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs);
+
+    /**
+     * Prepares the trip update for {@link #send(PreparedTripUpdate)}, e.g. by serializing it. Can be called from
+     * multiple threads concurrently, so that trip updates can be prepared in parallel and sent in order.
+     */
+    default PreparedTripUpdate prepare(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        return new PreparedTripUpdate(tripId, tripUpdate, eventTimeMs, null);
+    }
+
+    /**
+     * @param tripUpdate Trip update prepared with {@link #prepare(String, GtfsRealtime.TripUpdate, long)}
+     * @return Future that is completed when the trip update has been sent
+     */
+    default CompletableFuture<?> send(PreparedTripUpdate tripUpdate) {
+        return send(tripUpdate.getTripId(), tripUpdate.getTripUpdate(), tripUpdate.getEventTimeMs());
+    }
+
+    /**
+     * Logs statistics of the sink since the previous call
+     */
+    default void logAndReset(Logger logger) {
+    }
+}
@@ -21,13 +21,14 @@ public class GtfsRtFactory {
             final InternalMessages.StopEstimate stopEstimate,
             GtfsRealtime.TripUpdate.StopTimeUpdate previousUpdate) {
 
-        GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stopTimeUpdateBuilder = null;
+        final ScratchBuilders scratch = ScratchBuilders.get();
+        GtfsRealtime.TripUpdate.StopTimeUpdate.Builder stopTimeUpdateBuilder = scratch.stopTimeUpdate();
         if (previousUpdate != null) {
-            stopTimeUpdateBuilder = previousUpdate.toBuilder();
+            stopTimeUpdateBuilder.mergeFrom(previousUpdate);
         } else {
             String stopId = stopEstimate.getStopId();
             int stopSequence = stopEstimate.getStopSequence();
-            stopTimeUpdateBuilder = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+            stopTimeUpdateBuilder
                     .setStopId(stopId)
                     .setStopSequence(stopSequence);
         }
@@ -54,7 +55,7 @@ public class GtfsRtFactory {
             // GTFS-RT treats times in seconds
             long stopEventTimeInSeconds = stopEstimate.getEstimatedTimeUtcMs() / 1000;
 
-            GtfsRealtime.TripUpdate.StopTimeEvent.Builder stopTimeEvent = GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder()
+            GtfsRealtime.TripUpdate.StopTimeEvent.Builder stopTimeEvent = scratch.stopTimeEvent()
                     .setTime(stopEventTimeInSeconds);
 
             //Whether the event was observed in real world (i.e. not an estimate)
@@ -65,10 +66,10 @@ public class GtfsRtFactory {
 
             switch (stopEstimate.getType()) {
                 case ARRIVAL:
-                    stopTimeUpdateBuilder.setArrival(stopTimeEvent);
+                    stopTimeUpdateBuilder.setArrival(stopTimeEvent.build());
                     break;
                 case DEPARTURE:
-                    stopTimeUpdateBuilder.setDeparture(stopTimeEvent);
+                    stopTimeUpdateBuilder.setDeparture(stopTimeEvent.build());
                     break;
             }
         }
@@ -1,5 +1,6 @@
 package fi.hsl.transitdata.tripupdate.gtfsrt;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
@@ -10,12 +11,77 @@ import static com.google.transit.realtime.GtfsRealtime.TripUpdate.*;
 public class GtfsRtValidator {
     private GtfsRtValidator() {}
 
+    /**
+     * Cleans stop time updates by applying {@link #validateArrivalsAndDepartures(List, StopTimeUpdate)},
+     * {@link #removeStopSequences(List)}, {@link #fillMissingArrivalsAndDepartures(List)} and
+     * {@link #removeEstimatesFromNoDataUpdates(List)} in that order.
+     *
+     * This is run for every stop estimate, so all steps are done in a single pass that builds each stop time update
+     * only once with a reused builder.
+     */
     public static List<StopTimeUpdate> cleanStopTimeUpdates(List<StopTimeUpdate> rawEstimates, StopTimeUpdate latest) {
-        List<StopTimeUpdate> fixedTimestamps = validateArrivalsAndDepartures(rawEstimates, latest);
-        List<StopTimeUpdate> removedStops = removeStopSequences(fixedTimestamps);
-        List<StopTimeUpdate> filledEvents = fillMissingArrivalsAndDepartures(removedStops);
-        List<StopTimeUpdate> removedEstimatesFromNoData = removeEstimatesFromNoDataUpdates(filledEvents);
-        return removedEstimatesFromNoData;
+        final ScratchBuilders scratch = ScratchBuilders.get();
+        final List<StopTimeUpdate> cleaned = new ArrayList<>(rawEstimates.size());
+
+        boolean hasPreviousTime = false;
+        long previousTime = 0;
+        for (StopTimeUpdate raw : rawEstimates) {
+            StopTimeEvent arrival = raw.hasArrival() ? raw.getArrival() : null;
+            StopTimeEvent departure = raw.hasDeparture() ? raw.getDeparture() : null;
+
+            //Same rules as in validateTimestamps
+            if (hasPreviousTime) {
+                arrival = withMinTime(arrival, previousTime, scratch);
+                departure = withMinTime(departure, previousTime, scratch);
+            }
+            if (latest != null && raw == latest && latest.hasArrival()) {
+                if (arrival != null) {
+                    departure = withMinTime(departure, arrival.getTime(), scratch);
+                }
+            } else if (departure != null) {
+                arrival = withMaxTime(arrival, departure.getTime(), scratch);
+            }
+
+            hasPreviousTime = departure != null || arrival != null;
+            previousTime = departure != null ? departure.getTime() : arrival != null ? arrival.getTime() : 0;
+
+            if (raw.getScheduleRelationship() == StopTimeUpdate.ScheduleRelationship.NO_DATA) {
+                arrival = null;
+                departure = null;
+            } else if (arrival != null && departure == null) {
+                departure = scratch.stopTimeEvent().setTime(arrival.getTime()).build();
+            } else if (departure != null && arrival == null) {
+                arrival = scratch.stopTimeEvent().setTime(departure.getTime()).build();
+            }
+
+            final StopTimeUpdate.Builder builder = scratch.stopTimeUpdate().mergeFrom(raw).clearStopSequence();
+            if (arrival != null) {
+                builder.setArrival(arrival);
+            } else {
+                builder.clearArrival();
+            }
+            if (departure != null) {
+                builder.setDeparture(departure);
+            } else {
+                builder.clearDeparture();
+            }
+            cleaned.add(builder.build());
+        }
+        return cleaned;
+    }
+
+    private static StopTimeEvent withMinTime(StopTimeEvent event, long minTime, ScratchBuilders scratch) {
+        if (event == null || event.getTime() >= minTime) {
+            return event;
+        }
+        return scratch.stopTimeEvent().mergeFrom(event).setTime(minTime).build();
+    }
+
+    private static StopTimeEvent withMaxTime(StopTimeEvent event, long maxTime, ScratchBuilders scratch) {
+        if (event == null || event.getTime() <= maxTime) {
+            return event;
+        }
+        return scratch.stopTimeEvent().mergeFrom(event).setTime(maxTime).build();
     }
 
     /**
@@ -0,0 +1,29 @@
+package fi.hsl.transitdata.tripupdate.gtfsrt;
+
+import static com.google.transit.realtime.GtfsRealtime.TripUpdate.*;
+
+/**
+ * Per-thread builders that are reused on the hot path instead of allocating a new builder for every stop time update.
+ * Builders are cleared when they are taken into use, so the caller must build the message before taking the same
+ * builder again.
+ */
+final class ScratchBuilders {
+    private static final ThreadLocal<ScratchBuilders> SCRATCH = ThreadLocal.withInitial(ScratchBuilders::new);
+
+    private final StopTimeUpdate.Builder stopTimeUpdate = StopTimeUpdate.newBuilder();
+    private final StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+
+    private ScratchBuilders() {}
+
+    static ScratchBuilders get() {
+        return SCRATCH.get();
+    }
+
+    StopTimeUpdate.Builder stopTimeUpdate() {
+        return stopTimeUpdate.clear();
+    }
+
+    StopTimeEvent.Builder stopTimeEvent() {
+        return stopTimeEvent.clear();
+    }
+}
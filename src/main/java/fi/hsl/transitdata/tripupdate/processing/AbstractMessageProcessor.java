@@ -3,7 +3,6 @@ package fi.hsl.transitdata.tripupdate.processing;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.PubtransFactory;
 import fi.hsl.common.transitdata.RouteIdUtils;
-import org.apache.pulsar.client.api.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +14,7 @@ public abstract class AbstractMessageProcessor {
     public static class TripUpdateWithId {
         String tripId;
         GtfsRealtime.TripUpdate tripUpdate;
+        boolean unchanged;
 
         public static Optional<TripUpdateWithId> newInstance(String id, GtfsRealtime.TripUpdate tu) {
             TripUpdateWithId pair = new TripUpdateWithId();
@@ -23,6 +23,16 @@ public abstract class AbstractMessageProcessor {
             return Optional.of(pair);
         }
 
+        /**
+         * @return Pair without a trip update for a message that did not change the trip, so there is nothing to publish
+         */
+        public static Optional<TripUpdateWithId> unchanged(String id) {
+            TripUpdateWithId pair = new TripUpdateWithId();
+            pair.tripId = id;
+            pair.unchanged = true;
+            return Optional.of(pair);
+        }
+
         public String getTripId() {
             return tripId;
         }
@@ -30,6 +40,10 @@ public abstract class AbstractMessageProcessor {
         public GtfsRealtime.TripUpdate getTripUpdate() {
             return tripUpdate;
         }
+
+        public boolean isUnchanged() {
+            return unchanged;
+        }
     }
 
     private final boolean filterTrainData;
@@ -48,9 +62,11 @@ public abstract class AbstractMessageProcessor {
 
     /**
      * Invoked if message goes through the validation
-     * @param msg
+     * @param key Key of the message
+     * @param eventTimeMs Event time of the message
+     * @param payload Payload of the message
      */
-    public abstract Optional<TripUpdateWithId> processMessage(Message msg);
+    public abstract Optional<TripUpdateWithId> processMessage(String key, long eventTimeMs, byte[] payload);
 
 
     protected boolean validateTripData(String routeName, int direction) {
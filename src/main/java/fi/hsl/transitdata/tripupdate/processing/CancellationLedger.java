@@ -0,0 +1,102 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps track of cancellation statuses of a single trip. There can be multiple deviation cases for each trip and each
+ * of them can have been both cancelled and restored. A deviation case cancels the trip only if it has been cancelled
+ * but never restored.
+ *
+ * Statuses are stored as a bitset per deviation case and the amount of active cancellations is kept up to date on
+ * every update, so finding out whether the trip is cancelled does not require going through all deviation cases.
+ */
+class CancellationLedger {
+    private static final int CANCELED_MASK = mask(InternalMessages.TripCancellation.Status.CANCELED);
+
+    //Usually there is only one deviation case for a trip
+    private long[] deviationCaseIds = new long[1];
+    private int[] statuses = new int[1];
+    private int size = 0;
+
+    private int activeCancellations = 0;
+
+    private static int mask(InternalMessages.TripCancellation.Status status) {
+        return 1 << status.getNumber();
+    }
+
+    private static boolean isActive(int statusMask) {
+        return statusMask == CANCELED_MASK;
+    }
+
+    /**
+     * Adds status for a deviation case
+     */
+    void add(long deviationCaseId, InternalMessages.TripCancellation.Status status) {
+        int index = indexOf(deviationCaseId);
+        if (index < 0) {
+            if (size == deviationCaseIds.length) {
+                deviationCaseIds = Arrays.copyOf(deviationCaseIds, size * 2);
+                statuses = Arrays.copyOf(statuses, size * 2);
+            }
+            index = size++;
+            deviationCaseIds[index] = deviationCaseId;
+        }
+
+        final int previous = statuses[index];
+        final int updated = previous | mask(status);
+        statuses[index] = updated;
+
+        if (isActive(previous) != isActive(updated)) {
+            activeCancellations += isActive(updated) ? 1 : -1;
+        }
+    }
+
+    private int indexOf(long deviationCaseId) {
+        for (int i = 0; i < size; i++) {
+            if (deviationCaseIds[i] == deviationCaseId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if any deviation case has been cancelled without being restored
+     */
+    boolean hasActiveCancellations() {
+        return activeCancellations > 0;
+    }
+
+    int getActiveCancellations() {
+        return activeCancellations;
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            output.writeLong(deviationCaseIds[i]);
+            output.writeInt(statuses[i]);
+        }
+    }
+
+    static CancellationLedger readFrom(DataInput input) throws IOException {
+        final CancellationLedger ledger = new CancellationLedger();
+        final int size = input.readInt();
+        ledger.deviationCaseIds = new long[Math.max(1, size)];
+        ledger.statuses = new int[Math.max(1, size)];
+        for (int i = 0; i < size; i++) {
+            ledger.deviationCaseIds[i] = input.readLong();
+            ledger.statuses[i] = input.readInt();
+            if (isActive(ledger.statuses[i])) {
+                ledger.activeCancellations++;
+            }
+        }
+        ledger.size = size;
+        return ledger;
+    }
+}
@@ -0,0 +1,560 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of {@link TripStateSnapshot}s. Compared to protobuf serialization of the same messages:
+ * <ul>
+ *     <li>Stop times are written as varint deltas to the previous stop time, which are usually small and positive</li>
+ *     <li>Stop ids are written once per snapshot and referred to with their index in a dictionary after that. Trip
+ *     update and the raw stop time updates contain the same stops</li>
+ *     <li>Schedule relationship and presence of fields of a stop time update are packed to a single varint</li>
+ *     <li>Stop watermarks are written as varint deltas to the previous watermark</li>
+ *     <li>Encoded snapshot is compressed with Deflate if it becomes smaller</li>
+ * </ul>
+ *
+ * Fields of the messages that are not known by this format are written as protobuf, so encoding is always lossless.
+ */
+class CompactTripStateFormat {
+    //Snapshots smaller than this are not worth compressing
+    static final int COMPRESSION_THRESHOLD_BYTES = 128;
+
+    private static final int FLAG_COMPRESSED = 1;
+
+    //Stop time update header: bits 0-1 are schedule relationship
+    private static final int STU_HAS_SCHEDULE_RELATIONSHIP = 1 << 2;
+    private static final int STU_HAS_STOP_SEQUENCE = 1 << 3;
+    private static final int STU_HAS_STOP_ID = 1 << 4;
+    private static final int STU_HAS_ARRIVAL = 1 << 5;
+    private static final int STU_HAS_DEPARTURE = 1 << 6;
+    private static final int STU_HAS_REMAINDER = 1 << 7;
+
+    private static final int EVENT_HAS_TIME = 1;
+    private static final int EVENT_HAS_UNCERTAINTY = 1 << 1;
+    private static final int EVENT_HAS_REMAINDER = 1 << 2;
+
+    //Creating a deflater or an inflater is expensive compared to compressing a single snapshot, so they are reused
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private CompactTripStateFormat() {}
+
+    static byte[] encode(TripStateSnapshot snapshot, boolean compress) throws IOException {
+        final Writer writer = new Writer();
+        writer.writeSnapshot(snapshot);
+        final byte[] body = writer.buffer;
+        final int bodyLength = writer.position;
+
+        if (compress && bodyLength >= COMPRESSION_THRESHOLD_BYTES) {
+            final byte[] compressed = deflate(body, bodyLength);
+            if (compressed.length < bodyLength) {
+                final Writer result = new Writer();
+                result.writeByte(FLAG_COMPRESSED);
+                result.writeVarint(bodyLength);
+                result.writeRaw(compressed, compressed.length);
+                return result.toByteArray();
+            }
+        }
+
+        final byte[] result = new byte[bodyLength + 1];
+        System.arraycopy(body, 0, result, 1, bodyLength);
+        return result;
+    }
+
+    /**
+     * @param revision Revision of the snapshot, which is stored in its header
+     */
+    static TripStateSnapshot decode(byte[] data, int offset, long revision) throws IOException {
+        if (offset >= data.length) {
+            throw new EOFException("Trip state snapshot is truncated");
+        }
+        final int flags = data[offset];
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            final Reader header = new Reader(data, offset + 1);
+            final int length = (int) header.readVarint();
+            final byte[] body = inflate(data, header.position, data.length - header.position, length);
+            return new Reader(body, 0).readSnapshot(revision);
+        }
+        return new Reader(data, offset + 1).readSnapshot(revision);
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        final Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(length / 2);
+            final byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int offset, int inputLength, int length) throws IOException {
+        final Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(data, offset, inputLength);
+            final byte[] result = new byte[length];
+            int read = 0;
+            while (read < length) {
+                final int n = inflater.inflate(result, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed trip state snapshot is truncated");
+                }
+                read += n;
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed trip state snapshot", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static class Writer {
+        byte[] buffer = new byte[1024];
+        int position = 0;
+
+        final Map<String, Integer> stopIds = new HashMap<>();
+        long previousTime;
+
+        void ensureCapacity(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBoolean(boolean value) {
+            writeByte(value ? 1 : 0);
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeSignedVarint(long value) {
+            //ZigZag encoding, so that small negative values are small too
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeRaw(byte[] bytes, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, 0, buffer, position, length);
+            position += length;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            writeRaw(bytes, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        void writeSnapshot(TripStateSnapshot snapshot) throws IOException {
+            final GtfsRealtime.TripUpdate tripUpdate = snapshot.tripUpdate;
+            writeBoolean(tripUpdate != null);
+            //Stop times are written as deltas to the timestamp of the trip update, which is close to them
+            final long baseTime = tripUpdate != null ? tripUpdate.getTimestamp() : 0;
+            if (tripUpdate != null) {
+                writeTripUpdate(tripUpdate);
+            }
+
+            final Map<Integer, StopTimeUpdate> stopTimeUpdates = snapshot.stopTimeUpdates;
+            writeVarint(stopTimeUpdates != null ? stopTimeUpdates.size() : 0);
+            if (stopTimeUpdates != null) {
+                previousTime = baseTime;
+                int previousStopSequence = 0;
+                for (Map.Entry<Integer, StopTimeUpdate> entry : stopTimeUpdates.entrySet()) {
+                    writeSignedVarint(entry.getKey() - previousStopSequence);
+                    previousStopSequence = entry.getKey();
+                    writeStopTimeUpdate(entry.getValue(), entry.getKey());
+                }
+            }
+
+            //Schedule relationship is -1 if not present
+            writeSignedVarint(snapshot.scheduleRelationship != null ? snapshot.scheduleRelationship.getNumber() : -1);
+
+            final StopWatermarks watermarks = snapshot.watermarks;
+            writeBoolean(watermarks != null);
+            if (watermarks != null) {
+                writeVarint(watermarks.size());
+                int previousKey = 0;
+                //Watermarks are milliseconds, close to the timestamp of the trip update
+                long previousLastModified = baseTime * 1000;
+                for (int i = 0; i < watermarks.size(); i++) {
+                    writeSignedVarint(watermarks.keyAt(i) - previousKey);
+                    previousKey = watermarks.keyAt(i);
+                    writeSignedVarint(watermarks.lastModifiedAt(i) - previousLastModified);
+                    previousLastModified = watermarks.lastModifiedAt(i);
+                }
+            }
+
+            writeBoolean(snapshot.cancellations != null);
+            if (snapshot.cancellations != null) {
+                //Cancellations are last, so that they can be read with a DataInput
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                snapshot.cancellations.writeTo(new DataOutputStream(bytes));
+                writeRaw(bytes.toByteArray(), bytes.size());
+            }
+        }
+
+        void writeTripUpdate(GtfsRealtime.TripUpdate tripUpdate) throws IOException {
+            writeBytes(tripUpdate.getTrip().toByteArray());
+
+            writeBoolean(tripUpdate.hasTimestamp());
+            writeVarint(tripUpdate.getTimestamp());
+
+            writeVarint(tripUpdate.getStopTimeUpdateCount());
+            previousTime = tripUpdate.getTimestamp();
+            int previousStopSequence = 0;
+            for (StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+                writeStopTimeUpdate(stopTimeUpdate, previousStopSequence);
+                if (stopTimeUpdate.hasStopSequence()) {
+                    previousStopSequence = stopTimeUpdate.getStopSequence();
+                }
+            }
+
+            //Trip updates created by this service do not contain other fields, but write them if they exist
+            final GtfsRealtime.TripUpdate remainder = tripUpdate.toBuilder()
+                    .clearTrip()
+                    .clearTimestamp()
+                    .clearStopTimeUpdate()
+                    //Trip is a required field
+                    .buildPartial();
+            writeBytes(remainder.getSerializedSize() > 0 ? remainder.toByteArray() : new byte[0]);
+        }
+
+        /**
+         * @param referenceStopSequence Stop sequence is written as a delta to this
+         */
+        void writeStopTimeUpdate(StopTimeUpdate stopTimeUpdate, int referenceStopSequence) throws IOException {
+            int header = stopTimeUpdate.getScheduleRelationship().getNumber() & 0b11;
+            if (stopTimeUpdate.hasScheduleRelationship()) {
+                header |= STU_HAS_SCHEDULE_RELATIONSHIP;
+            }
+            if (stopTimeUpdate.hasStopSequence()) {
+                header |= STU_HAS_STOP_SEQUENCE;
+            }
+            if (stopTimeUpdate.hasStopId()) {
+                header |= STU_HAS_STOP_ID;
+            }
+            if (stopTimeUpdate.hasArrival()) {
+                header |= STU_HAS_ARRIVAL;
+            }
+            if (stopTimeUpdate.hasDeparture()) {
+                header |= STU_HAS_DEPARTURE;
+            }
+            final boolean hasRemainder = stopTimeUpdate.getSerializedSize() != knownSize(stopTimeUpdate)
+                    || stopTimeUpdate.getScheduleRelationship().getNumber() > 0b11;
+            if (hasRemainder) {
+                header |= STU_HAS_REMAINDER;
+            }
+            writeVarint(header);
+
+            if (stopTimeUpdate.hasStopSequence()) {
+                writeSignedVarint(stopTimeUpdate.getStopSequence() - referenceStopSequence);
+            }
+            if (stopTimeUpdate.hasStopId()) {
+                writeStopId(stopTimeUpdate.getStopId());
+            }
+            if (stopTimeUpdate.hasArrival()) {
+                writeEvent(stopTimeUpdate.getArrival());
+            }
+            if (stopTimeUpdate.hasDeparture()) {
+                writeEvent(stopTimeUpdate.getDeparture());
+            }
+            if (hasRemainder) {
+                writeBytes(stopTimeUpdate.toBuilder()
+                        .clearStopSequence()
+                        .clearStopId()
+                        .clearArrival()
+                        .clearDeparture()
+                        .build()
+                        .toByteArray());
+            }
+        }
+
+        void writeStopId(String stopId) throws IOException {
+            final Integer index = stopIds.get(stopId);
+            if (index != null) {
+                writeVarint(index);
+            } else {
+                //Index that is not yet in the dictionary means a new entry
+                writeVarint(stopIds.size());
+                stopIds.put(stopId, stopIds.size());
+                writeBytes(stopId.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        void writeEvent(StopTimeEvent event) throws IOException {
+            int header = 0;
+            if (event.hasTime()) {
+                header |= EVENT_HAS_TIME;
+            }
+            if (event.hasUncertainty()) {
+                header |= EVENT_HAS_UNCERTAINTY;
+            }
+            final boolean hasRemainder = event.getSerializedSize() != knownSize(event);
+            if (hasRemainder) {
+                header |= EVENT_HAS_REMAINDER;
+            }
+            writeVarint(header);
+
+            if (event.hasTime()) {
+                writeSignedVarint(event.getTime() - previousTime);
+                previousTime = event.getTime();
+            }
+            if (event.hasUncertainty()) {
+                writeSignedVarint(event.getUncertainty());
+            }
+            if (hasRemainder) {
+                writeBytes(event.toBuilder().clearTime().clearUncertainty().build().toByteArray());
+            }
+        }
+
+    }
+
+    private static int knownSize(StopTimeUpdate stopTimeUpdate) {
+        int size = 0;
+        if (stopTimeUpdate.hasStopSequence()) {
+            size += CodedOutputStream.computeUInt32Size(StopTimeUpdate.STOP_SEQUENCE_FIELD_NUMBER, stopTimeUpdate.getStopSequence());
+        }
+        if (stopTimeUpdate.hasStopId()) {
+            size += CodedOutputStream.computeStringSize(StopTimeUpdate.STOP_ID_FIELD_NUMBER, stopTimeUpdate.getStopId());
+        }
+        if (stopTimeUpdate.hasArrival()) {
+            size += CodedOutputStream.computeMessageSize(StopTimeUpdate.ARRIVAL_FIELD_NUMBER, stopTimeUpdate.getArrival());
+        }
+        if (stopTimeUpdate.hasDeparture()) {
+            size += CodedOutputStream.computeMessageSize(StopTimeUpdate.DEPARTURE_FIELD_NUMBER, stopTimeUpdate.getDeparture());
+        }
+        if (stopTimeUpdate.hasScheduleRelationship()) {
+            size += CodedOutputStream.computeEnumSize(StopTimeUpdate.SCHEDULE_RELATIONSHIP_FIELD_NUMBER, stopTimeUpdate.getScheduleRelationship().getNumber());
+        }
+        return size;
+    }
+
+    private static int knownSize(StopTimeEvent event) {
+        int size = 0;
+        if (event.hasTime()) {
+            size += CodedOutputStream.computeInt64Size(StopTimeEvent.TIME_FIELD_NUMBER, event.getTime());
+        }
+        if (event.hasUncertainty()) {
+            size += CodedOutputStream.computeInt32Size(StopTimeEvent.UNCERTAINTY_FIELD_NUMBER, event.getUncertainty());
+        }
+        return size;
+    }
+
+    private static class Reader {
+        final byte[] data;
+        int position;
+
+        final List<String> stopIds = new ArrayList<>();
+        long previousTime;
+
+        Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int readByte() throws EOFException {
+            if (position >= data.length) {
+                throw new EOFException("Trip state snapshot is truncated");
+            }
+            return data[position++];
+        }
+
+        boolean readBoolean() throws EOFException {
+            return readByte() != 0;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid varint in trip state snapshot");
+        }
+
+        TripStateSnapshot readSnapshot(long revision) throws IOException {
+            final GtfsRealtime.TripUpdate tripUpdate = readBoolean() ? readTripUpdate() : null;
+            final long baseTime = tripUpdate != null ? tripUpdate.getTimestamp() : 0;
+
+            final int stopTimeUpdateCount = (int) readVarint();
+            final Map<Integer, StopTimeUpdate> stopTimeUpdates = new TreeMap<>();
+            previousTime = baseTime;
+            int previousStopSequence = 0;
+            for (int i = 0; i < stopTimeUpdateCount; i++) {
+                final int stopSequence = previousStopSequence + (int) readSignedVarint();
+                previousStopSequence = stopSequence;
+                stopTimeUpdates.put(stopSequence, readStopTimeUpdate(stopSequence));
+            }
+
+            final int scheduleRelationshipNumber = (int) readSignedVarint();
+            final GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship = scheduleRelationshipNumber >= 0 ?
+                    GtfsRealtime.TripDescriptor.ScheduleRelationship.forNumber(scheduleRelationshipNumber) : null;
+
+            StopWatermarks watermarks = null;
+            if (readBoolean()) {
+                watermarks = new StopWatermarks();
+                final int watermarkCount = (int) readVarint();
+                int previousKey = 0;
+                long previousLastModified = baseTime * 1000;
+                for (int i = 0; i < watermarkCount; i++) {
+                    previousKey += (int) readSignedVarint();
+                    previousLastModified += readSignedVarint();
+                    watermarks.advance(previousKey, previousLastModified);
+                }
+            }
+
+            final CancellationLedger cancellations = readBoolean() ?
+                    CancellationLedger.readFrom(new DataInputStream(new ByteArrayInputStream(data, position, data.length - position))) : null;
+
+            return new TripStateSnapshot(tripUpdate, stopTimeUpdates, scheduleRelationship, cancellations, watermarks, revision);
+        }
+
+        GtfsRealtime.TripUpdate readTripUpdate() throws IOException {
+            final GtfsRealtime.TripUpdate.Builder builder = GtfsRealtime.TripUpdate.newBuilder()
+                    .setTrip(GtfsRealtime.TripDescriptor.parseFrom(readBytes()));
+
+            final boolean hasTimestamp = readBoolean();
+            final long timestamp = readVarint();
+            if (hasTimestamp) {
+                builder.setTimestamp(timestamp);
+            }
+
+            final int stopTimeUpdateCount = (int) readVarint();
+            previousTime = timestamp;
+            int previousStopSequence = 0;
+            for (int i = 0; i < stopTimeUpdateCount; i++) {
+                final StopTimeUpdate stopTimeUpdate = readStopTimeUpdate(previousStopSequence);
+                if (stopTimeUpdate.hasStopSequence()) {
+                    previousStopSequence = stopTimeUpdate.getStopSequence();
+                }
+                builder.addStopTimeUpdate(stopTimeUpdate);
+            }
+
+            final byte[] remainder = readBytes();
+            if (remainder.length > 0) {
+                builder.mergeFrom(remainder);
+            }
+            return builder.build();
+        }
+
+        StopTimeUpdate readStopTimeUpdate(int referenceStopSequence) throws IOException {
+            final int header = (int) readVarint();
+            final StopTimeUpdate.Builder builder = StopTimeUpdate.newBuilder();
+
+            if ((header & STU_HAS_STOP_SEQUENCE) != 0) {
+                builder.setStopSequence(referenceStopSequence + (int) readSignedVarint());
+            }
+            if ((header & STU_HAS_STOP_ID) != 0) {
+                builder.setStopId(readStopId());
+            }
+            if ((header & STU_HAS_ARRIVAL) != 0) {
+                builder.setArrival(readEvent());
+            }
+            if ((header & STU_HAS_DEPARTURE) != 0) {
+                builder.setDeparture(readEvent());
+            }
+            if ((header & STU_HAS_REMAINDER) != 0) {
+                //Remainder contains the schedule relationship if it does not fit to the header
+                builder.mergeFrom(readBytes());
+            } else if ((header & STU_HAS_SCHEDULE_RELATIONSHIP) != 0) {
+                builder.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.forNumber(header & 0b11));
+            }
+            return builder.build();
+        }
+
+        String readStopId() throws IOException {
+            final int index = (int) readVarint();
+            if (index < stopIds.size()) {
+                return stopIds.get(index);
+            }
+            if (index != stopIds.size()) {
+                throw new IOException("Invalid stop id index " + index);
+            }
+            final int length = readLength();
+            final String stopId = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            stopIds.add(stopId);
+            return stopId;
+        }
+
+        StopTimeEvent readEvent() throws IOException {
+            final int header = (int) readVarint();
+            final StopTimeEvent.Builder builder = StopTimeEvent.newBuilder();
+            if ((header & EVENT_HAS_TIME) != 0) {
+                previousTime += readSignedVarint();
+                builder.setTime(previousTime);
+            }
+            if ((header & EVENT_HAS_UNCERTAINTY) != 0) {
+                builder.setUncertainty((int) readSignedVarint());
+            }
+            if ((header & EVENT_HAS_REMAINDER) != 0) {
+                builder.mergeFrom(readBytes());
+            }
+            return builder.build();
+        }
+
+        long readSignedVarint() throws IOException {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readLength() throws IOException {
+            final long length = readVarint();
+            if (length < 0 || length > data.length - position) {
+                throw new EOFException("Trip state snapshot is truncated");
+            }
+            return (int) length;
+        }
+
+        byte[] readBytes() throws IOException {
+            final int length = readLength();
+            final byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return bytes;
+        }
+    }
+}
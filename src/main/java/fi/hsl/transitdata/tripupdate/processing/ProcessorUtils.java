@@ -32,4 +32,17 @@ public class ProcessorUtils {
         Matcher matcher = METRO_ROUTE_PATTERN.matcher(routeName);
         return matcher.find();
     }
+
+    /**
+     * Classifies the route. Route name is expected to be normalized with RouteIdUtils.normalizeRouteId
+     */
+    public static RouteClass getRouteClass(String routeName) {
+        if (isMetroRoute(routeName)) {
+            return RouteClass.METRO;
+        }
+        if (!validateRouteName(routeName)) {
+            return RouteClass.INVALID;
+        }
+        return isTrainRoute(routeName) ? RouteClass.TRAIN : RouteClass.OTHER;
+    }
 }
@@ -0,0 +1,11 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+/**
+ * Coarse classification of routes, used for deciding how messages of the route are handled
+ */
+public enum RouteClass {
+    TRAIN,
+    METRO,
+    OTHER,
+    INVALID
+}
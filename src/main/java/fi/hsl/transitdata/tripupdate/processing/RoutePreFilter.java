@@ -0,0 +1,120 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import fi.hsl.common.transitdata.RouteIdUtils;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rejects messages by their route before the payload is decoded. Route ID is read directly from the protobuf wire format
+ * without parsing the whole message, and route class is looked up from a small table of already seen routes.
+ *
+ * Only messages that would be discarded by {@link AbstractMessageProcessor#validateTripData(String, int)} are rejected,
+ * everything else is passed through to the normal validation.
+ */
+public class RoutePreFilter {
+    private static final Logger log = LoggerFactory.getLogger(RoutePreFilter.class);
+
+    public static final String REASON_TRAIN_ROUTE = "train_route";
+    public static final String REASON_INVALID_ROUTE = "invalid_route";
+
+    //Number of distinct route IDs is small (less than a thousand), but let's not grow without bounds in case of garbage data
+    private static final int MAX_CACHED_ROUTES = 4096;
+
+    private final boolean filterTrainData;
+    //Messages can be checked concurrently when they are released from the reorder buffer
+    private final Map<String, RouteClass> routeClasses = new ConcurrentHashMap<>();
+
+    public RoutePreFilter(boolean filterTrainData) {
+        this.filterTrainData = filterTrainData;
+    }
+
+    /**
+     * @return Reason for rejecting the message or empty if the message needs to be processed
+     */
+    public Optional<String> check(ProtobufSchema schema, byte[] payload) {
+        final String routeId;
+        try {
+            routeId = peekRouteId(schema, payload);
+        } catch (IOException e) {
+            //Let the actual processor handle invalid payloads
+            log.debug("Failed to peek route ID from payload", e);
+            return Optional.empty();
+        }
+        if (routeId == null) {
+            return Optional.empty();
+        }
+
+        switch (getRouteClass(routeId)) {
+            case TRAIN:
+                return filterTrainData ? Optional.of(REASON_TRAIN_ROUTE) : Optional.empty();
+            case INVALID:
+                return Optional.of(REASON_INVALID_ROUTE);
+            default:
+                return Optional.empty();
+        }
+    }
+
+    RouteClass getRouteClass(String routeId) {
+        RouteClass routeClass = routeClasses.get(routeId);
+        if (routeClass == null) {
+            routeClass = ProcessorUtils.getRouteClass(RouteIdUtils.normalizeRouteId(routeId));
+            if (routeClasses.size() < MAX_CACHED_ROUTES) {
+                routeClasses.put(routeId, routeClass);
+            }
+        }
+        return routeClass;
+    }
+
+    /**
+     * @return Route ID of the message or null if the schema is not supported or the payload does not contain route ID
+     */
+    static String peekRouteId(ProtobufSchema schema, byte[] payload) throws IOException {
+        if (schema == ProtobufSchema.InternalMessagesStopEstimate) {
+            return peekStopEstimateRouteId(CodedInputStream.newInstance(payload));
+        } else if (schema == ProtobufSchema.InternalMessagesTripCancellation) {
+            return peekStringField(CodedInputStream.newInstance(payload), InternalMessages.TripCancellation.ROUTE_ID_FIELD_NUMBER);
+        }
+        return null;
+    }
+
+    private static String peekStopEstimateRouteId(CodedInputStream input) throws IOException {
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            if (WireFormat.getTagFieldNumber(tag) == InternalMessages.StopEstimate.TRIP_INFO_FIELD_NUMBER
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                final int length = input.readRawVarint32();
+                final int oldLimit = input.pushLimit(length);
+                final String routeId = peekStringField(input, InternalMessages.TripInfo.ROUTE_ID_FIELD_NUMBER);
+                input.popLimit(oldLimit);
+                return routeId;
+            }
+            input.skipField(tag);
+        }
+    }
+
+    private static String peekStringField(CodedInputStream input, int fieldNumber) throws IOException {
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            if (WireFormat.getTagFieldNumber(tag) == fieldNumber
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                return input.readString();
+            }
+            input.skipField(tag);
+        }
+    }
+}
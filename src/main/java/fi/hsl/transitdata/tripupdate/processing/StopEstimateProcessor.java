@@ -1,12 +1,13 @@
 package fi.hsl.transitdata.tripupdate.processing;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
-import com.google.transit.realtime.GtfsRealtime;
+import com.google.protobuf.WireFormat;
 import fi.hsl.common.transitdata.proto.InternalMessages;
-import org.apache.pulsar.client.api.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Optional;
 
 public class StopEstimateProcessor extends AbstractMessageProcessor {
@@ -20,15 +21,28 @@ public class StopEstimateProcessor extends AbstractMessageProcessor {
     }
 
     @Override
-    public Optional<TripUpdateWithId> processMessage(Message msg) {
+    public Optional<TripUpdateWithId> processMessage(String key, long eventTimeMs, byte[] payload) {
         try {
-            InternalMessages.StopEstimate data = InternalMessages.StopEstimate.parseFrom(msg.getData());
-            final String tripId = data.getTripInfo().getTripId();
+            InternalMessages.StopEstimate data = InternalMessages.StopEstimate.parseFrom(payload);
+            //Stop estimates that did not change the trip are returned as unchanged, so that they are not published
+            return tripProcessor.processStopEstimateWithId(data);
+        }
+        catch (Exception e) {
+            log.error("Failed to parse message payload", e);
+            return Optional.empty();
+        }
+    }
 
-            Optional<GtfsRealtime.TripUpdate> maybeTripUpdate = tripProcessor.processStopEstimate(data);
-            return maybeTripUpdate.flatMap(tripUpdate ->
-                    TripUpdateWithId.newInstance(tripId, tripUpdate)
-            );
+    /**
+     * Updates the stop estimate to trip state without building a trip update, see {@link TripUpdateProcessor#markStopEstimate(InternalMessages.StopEstimate)}
+     *
+     * @return Trip that was marked dirty, without a trip update because it is built later, unchanged pair if the
+     * estimate did not change the trip or empty if the message could not be processed
+     */
+    public Optional<TripUpdateWithId> markMessage(byte[] payload) {
+        try {
+            InternalMessages.StopEstimate data = InternalMessages.StopEstimate.parseFrom(payload);
+            return tripProcessor.markStopEstimateWithId(data);
         }
         catch (Exception e) {
             log.error("Failed to parse message payload", e);
@@ -36,6 +50,50 @@ public class StopEstimateProcessor extends AbstractMessageProcessor {
         }
     }
 
+    /**
+     * Checks whether the stop estimate should be dropped without processing because trip state is close to its memory
+     * budget, see {@link TripUpdateProcessor#shedStopEstimate(InternalMessages.StopEstimate)}. Payload is parsed only
+     * when the budget is under pressure.
+     *
+     * @return true if the stop estimate should be shed
+     */
+    public boolean shedMessage(byte[] payload) {
+        if (!tripProcessor.isUnderMemoryPressure()) {
+            return false;
+        }
+        try {
+            return tripProcessor.shedStopEstimate(InternalMessages.StopEstimate.parseFrom(payload));
+        } catch (InvalidProtocolBufferException e) {
+            log.error("Failed to parse StopEstimate from message payload", e);
+            return false;
+        }
+    }
+
+    /**
+     * Reads lastModifiedUtcMs of a stop estimate directly from the protobuf wire format without parsing the whole message
+     *
+     * @return lastModifiedUtcMs or -1 if the payload does not contain it
+     */
+    public static long peekLastModifiedUtcMs(byte[] payload) {
+        try {
+            final CodedInputStream input = CodedInputStream.newInstance(payload);
+            while (true) {
+                final int tag = input.readTag();
+                if (tag == 0) {
+                    return -1;
+                }
+                if (WireFormat.getTagFieldNumber(tag) == InternalMessages.StopEstimate.LAST_MODIFIED_UTC_MS_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                    return input.readInt64();
+                }
+                input.skipField(tag);
+            }
+        } catch (IOException e) {
+            //Let the processor handle invalid payloads
+            return -1;
+        }
+    }
+
     @Override
     public boolean validateMessage(byte[] payload) {
         try {
@@ -0,0 +1,103 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of the latest {@code lastModifiedUtcMs} of processed stop estimates of a single trip, separately for
+ * arrivals and departures of each stop. Estimates that are older than the watermark of their stop are stale, e.g.
+ * because they were delayed on another topic, and applying them would replace a newer estimate with an older one.
+ *
+ * Watermarks are kept in arrays sorted by stop sequence and type, which is a lot smaller than a map of boxed values.
+ */
+class StopWatermarks {
+    //Key is stop sequence * 2 + 1 for departures
+    private int[] keys = new int[0];
+    private long[] lastModified = new long[0];
+    private int size = 0;
+    //Latest lastModifiedUtcMs of any stop
+    private long max = Long.MIN_VALUE;
+
+    static int key(int stopSequence, InternalMessages.StopEstimate.Type type) {
+        return stopSequence * 2 + (type == InternalMessages.StopEstimate.Type.DEPARTURE ? 1 : 0);
+    }
+
+    static int key(InternalMessages.StopEstimate stopEstimate) {
+        return key(stopEstimate.getStopSequence(), stopEstimate.getType());
+    }
+
+    /**
+     * @return true if an estimate with a later lastModifiedUtcMs has already been processed for the same stop and type
+     */
+    boolean isStale(int key, long lastModifiedUtcMs) {
+        final int index = Arrays.binarySearch(keys, 0, size, key);
+        return index >= 0 && lastModified[index] > lastModifiedUtcMs;
+    }
+
+    /**
+     * @return true if an estimate with a later lastModifiedUtcMs has already been processed for any stop of the trip
+     */
+    boolean isOutOfOrder(long lastModifiedUtcMs) {
+        return max > lastModifiedUtcMs;
+    }
+
+    /**
+     * Raises the watermark of the stop if the estimate is later than the previous one
+     */
+    void advance(int key, long lastModifiedUtcMs) {
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == keys.length) {
+                final int capacity = Math.max(8, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                lastModified = Arrays.copyOf(lastModified, capacity);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(lastModified, index, lastModified, index + 1, size - index);
+            keys[index] = key;
+            lastModified[index] = lastModifiedUtcMs;
+            size++;
+        } else if (lastModified[index] < lastModifiedUtcMs) {
+            lastModified[index] = lastModifiedUtcMs;
+        }
+        max = Math.max(max, lastModifiedUtcMs);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int keyAt(int index) {
+        return keys[index];
+    }
+
+    long lastModifiedAt(int index) {
+        return lastModified[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StopWatermarks)) {
+            return false;
+        }
+        final StopWatermarks other = (StopWatermarks) o;
+        return size == other.size
+                && Arrays.equals(keys, 0, size, other.keys, 0, size)
+                && Arrays.equals(lastModified, 0, size, other.lastModified, 0, size);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + keys[i];
+            hash = 31 * hash + Long.hashCode(lastModified[i]);
+        }
+        return hash;
+    }
+}
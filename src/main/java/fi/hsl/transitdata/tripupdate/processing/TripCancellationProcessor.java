@@ -3,7 +3,6 @@ package fi.hsl.transitdata.tripupdate.processing;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.proto.InternalMessages;
-import org.apache.pulsar.client.api.Message;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,12 +49,12 @@ public class TripCancellationProcessor extends AbstractMessageProcessor {
     }
 
     @Override
-    public Optional<TripUpdateWithId> processMessage(Message msg) {
+    public Optional<TripUpdateWithId> processMessage(String key, long eventTimeMs, byte[] payload) {
         try {
-            InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(msg.getData());
+            InternalMessages.TripCancellation tripCancellation = InternalMessages.TripCancellation.parseFrom(payload);
             final String tripId = tripCancellation.getTripId();
 
-            GtfsRealtime.TripUpdate tripUpdate = tripUpdateProcessor.processTripCancellation(msg.getKey(), msg.getEventTime(), tripCancellation);
+            GtfsRealtime.TripUpdate tripUpdate = tripUpdateProcessor.processTripCancellation(key, eventTimeMs, tripCancellation);
             return TripUpdateWithId.newInstance(tripId, tripUpdate);
         } catch (Exception e) {
             log.error("Could not parse TripCancellation: " + e.getMessage(), e);
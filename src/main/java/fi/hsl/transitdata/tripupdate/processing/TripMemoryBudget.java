@@ -0,0 +1,161 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps the estimated memory usage of trip state in {@link TripUpdateProcessor} within a budget. Each trip has a
+ * weight that is estimated from the amount of its stop time updates and a reference time, which is the latest stop
+ * time of the trip. When the budget is exceeded, trips with the oldest reference time, i.e. trips that are furthest
+ * in the past, are evicted first.
+ *
+ * When the usage exceeds the shedding threshold, stop estimates far in the future are dropped before they are
+ * processed, because they are the least useful and will be re-estimated later anyway.
+ */
+class TripMemoryBudget {
+    //Approximate size of cache entries, trip descriptor, cancellations and other per trip overhead
+    static final long TRIP_OVERHEAD_BYTES = 1024;
+    //Approximate size of a stop time update with arrival and departure
+    static final long STOP_TIME_UPDATE_BYTES = 256;
+
+    private static class Entry {
+        final String tripKey;
+        long weight;
+        long referenceTimeSecs;
+
+        Entry(String tripKey) {
+            this.tripKey = tripKey;
+        }
+    }
+
+    private final long budgetBytes;
+    private final long sheddingBytes;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> byReferenceTime = new TreeSet<>(Comparator.<Entry>comparingLong(entry -> entry.referenceTimeSecs).thenComparing(entry -> entry.tripKey));
+    private long totalWeight = 0;
+
+    private long evictedTrips = 0;
+    private long shedEstimates = 0;
+
+    /**
+     * @param budgetBytes Maximum estimated size of trip state
+     * @param sheddingThreshold Share of the budget after which far-future estimates are shed
+     */
+    TripMemoryBudget(long budgetBytes, double sheddingThreshold) {
+        this.budgetBytes = budgetBytes;
+        this.sheddingBytes = (long) (budgetBytes * sheddingThreshold);
+    }
+
+    static long estimateWeight(GtfsRealtime.TripUpdate tripUpdate, int cachedStopTimeUpdates) {
+        return TRIP_OVERHEAD_BYTES + (tripUpdate.getStopTimeUpdateCount() + cachedStopTimeUpdates) * STOP_TIME_UPDATE_BYTES;
+    }
+
+    /**
+     * @return Latest arrival or departure time of the trip, or timestamp of the trip update if it has no stop times
+     */
+    static long getReferenceTime(GtfsRealtime.TripUpdate tripUpdate) {
+        long referenceTime = -1;
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : tripUpdate.getStopTimeUpdateList()) {
+            if (stopTimeUpdate.hasArrival()) {
+                referenceTime = Math.max(referenceTime, stopTimeUpdate.getArrival().getTime());
+            }
+            if (stopTimeUpdate.hasDeparture()) {
+                referenceTime = Math.max(referenceTime, stopTimeUpdate.getDeparture().getTime());
+            }
+        }
+        return referenceTime >= 0 ? referenceTime : tripUpdate.getTimestamp();
+    }
+
+    /**
+     * Updates weight of a trip
+     *
+     * @return Trips that need to be evicted to stay within the budget. The updated trip is never evicted
+     */
+    synchronized List<String> update(String tripKey, long weight, long referenceTimeSecs) {
+        Entry entry = entries.get(tripKey);
+        if (entry == null) {
+            entry = new Entry(tripKey);
+            entries.put(tripKey, entry);
+        } else {
+            byReferenceTime.remove(entry);
+            totalWeight -= entry.weight;
+        }
+        entry.weight = weight;
+        entry.referenceTimeSecs = referenceTimeSecs;
+        byReferenceTime.add(entry);
+        totalWeight += weight;
+
+        if (totalWeight <= budgetBytes) {
+            return List.of();
+        }
+
+        final List<String> evicted = new ArrayList<>();
+        final Iterator<Entry> iterator = byReferenceTime.iterator();
+        while (totalWeight > budgetBytes && iterator.hasNext()) {
+            final Entry oldest = iterator.next();
+            if (oldest == entry) {
+                continue;
+            }
+            iterator.remove();
+            entries.remove(oldest.tripKey);
+            totalWeight -= oldest.weight;
+            evicted.add(oldest.tripKey);
+        }
+        evictedTrips += evicted.size();
+        return evicted;
+    }
+
+    /**
+     * Removes a trip that has been removed from the caches, e.g. because it has expired
+     */
+    synchronized void remove(String tripKey) {
+        final Entry entry = entries.remove(tripKey);
+        if (entry != null) {
+            byReferenceTime.remove(entry);
+            totalWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * @return true if far-future estimates should be shed
+     */
+    synchronized boolean isUnderPressure() {
+        return totalWeight >= sheddingBytes;
+    }
+
+    synchronized void incrementShedEstimates() {
+        shedEstimates++;
+    }
+
+    synchronized long getTotalWeight() {
+        return totalWeight;
+    }
+
+    synchronized int getTrips() {
+        return entries.size();
+    }
+
+    synchronized long getEvictedTrips() {
+        return evictedTrips;
+    }
+
+    synchronized long getShedEstimates() {
+        return shedEstimates;
+    }
+
+    synchronized void logAndReset(Logger logger) {
+        logger.info("Trip state memory: {} trips, estimated {} MB of {} MB budget, evicted {} trips, shed {} far-future estimates",
+                entries.size(), totalWeight / (1024 * 1024), budgetBytes / (1024 * 1024), evictedTrips, shedEstimates);
+        evictedTrips = 0;
+        shedEstimates = 0;
+    }
+}
@@ -0,0 +1,87 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Mutable state of a single trip in {@link TripUpdateProcessor}. State is modified only while holding the lock of
+ * the trip.
+ *
+ * State is opaque to {@link fi.hsl.transitdata.tripupdate.state.TripStateStore}s, which can either keep the object
+ * itself or store its encoded form.
+ */
+public final class TripState {
+    //Latest trip update containing all stop time updates, null if the trip has no trip update yet
+    GtfsRealtime.TripUpdate tripUpdate;
+    //One estimate/event for each stop (identified by stopSequence). TreeMap keeps the stops sorted by stop sequence
+    final TreeMap<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates;
+    //Whether the trip is included in static schedule, so that correct schedule relationship can be restored in case of cancellation-of-cancellation
+    GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship;
+    //There can be multiple cancellations for each trip. Null if the trip has not been cancelled
+    CancellationLedger cancellations;
+    //Latest lastModifiedUtcMs of stop estimates of each stop. Null if stale estimates are not dropped or no estimate has been processed
+    StopWatermarks watermarks;
+    //Incremented each time the state is changed, so that state restored from a newer snapshot can be detected
+    long revision;
+    //Stop sequence of the stop estimate that the latest published trip update was built and cleaned for, -1 if not
+    //known. Not included in snapshots or encoded state, so unchanged estimates are skipped only by heap stores
+    int publishedStopSequence = -1;
+
+    TripState() {
+        this(null, new TreeMap<>(), null, null, null, 0);
+    }
+
+    private TripState(GtfsRealtime.TripUpdate tripUpdate,
+                      TreeMap<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates,
+                      GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship,
+                      CancellationLedger cancellations,
+                      StopWatermarks watermarks,
+                      long revision) {
+        this.tripUpdate = tripUpdate;
+        this.stopTimeUpdates = stopTimeUpdates;
+        this.scheduleRelationship = scheduleRelationship;
+        this.cancellations = cancellations;
+        this.watermarks = watermarks;
+        this.revision = revision;
+    }
+
+    static TripState of(TripStateSnapshot snapshot) {
+        final TreeMap<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates;
+        if (snapshot.stopTimeUpdates instanceof TreeMap) {
+            stopTimeUpdates = (TreeMap<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate>) snapshot.stopTimeUpdates;
+        } else if (snapshot.stopTimeUpdates != null) {
+            stopTimeUpdates = new TreeMap<>(snapshot.stopTimeUpdates);
+        } else {
+            stopTimeUpdates = new TreeMap<>();
+        }
+        return new TripState(snapshot.tripUpdate, stopTimeUpdates, snapshot.scheduleRelationship, snapshot.cancellations, snapshot.watermarks, snapshot.revision);
+    }
+
+    /**
+     * @return Latest trip update of the trip or null if the trip has no trip update yet
+     */
+    public GtfsRealtime.TripUpdate getTripUpdate() {
+        return tripUpdate;
+    }
+
+    TripStateSnapshot toSnapshot() {
+        return new TripStateSnapshot(tripUpdate, stopTimeUpdates, scheduleRelationship, cancellations, watermarks, revision);
+    }
+
+    /**
+     * Encodes the state without compression, which is faster to encode and decode when the state is updated often
+     */
+    public byte[] encode() throws IOException {
+        return toSnapshot().encode(false);
+    }
+
+    /**
+     * @param data State encoded with {@link #encode()} or a snapshot encoded with {@link TripStateSnapshot#encode()}
+     */
+    public static TripState decode(byte[] data) throws IOException {
+        return of(TripStateSnapshot.decode(data));
+    }
+}
@@ -0,0 +1,107 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * State of a single trip in {@link TripUpdateProcessor}. Snapshots are used for handing trip state over to another
+ * instance when trips are moved between consumers of a Key_Shared subscription.
+ *
+ * Snapshots are encoded with {@link CompactTripStateFormat}.
+ */
+class TripStateSnapshot {
+    private static final int COMPACT_VERSION = 3;
+
+    //Version and revision, see readRevision
+    static final int HEADER_BYTES = 1 + Long.BYTES;
+
+    final GtfsRealtime.TripUpdate tripUpdate;
+    final Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates;
+    final GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship;
+    final CancellationLedger cancellations;
+    final StopWatermarks watermarks;
+    //Incremented each time the state of the trip is changed, by whichever instance changed it
+    final long revision;
+
+    /**
+     * @param tripUpdate Latest trip update or null
+     * @param stopTimeUpdates Stop time updates by stop sequence or null
+     * @param scheduleRelationship Schedule relationship of the trip before cancellations or null
+     * @param cancellations Cancellations of the trip or null
+     */
+    TripStateSnapshot(GtfsRealtime.TripUpdate tripUpdate,
+                      Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates,
+                      GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship,
+                      CancellationLedger cancellations) {
+        this(tripUpdate, stopTimeUpdates, scheduleRelationship, cancellations, null);
+    }
+
+    /**
+     * @param watermarks Watermarks of processed stop estimates or null if they are not tracked
+     */
+    TripStateSnapshot(GtfsRealtime.TripUpdate tripUpdate,
+                      Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates,
+                      GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship,
+                      CancellationLedger cancellations,
+                      StopWatermarks watermarks) {
+        this(tripUpdate, stopTimeUpdates, scheduleRelationship, cancellations, watermarks, 0);
+    }
+
+    /**
+     * @param revision Revision of the state of the trip
+     */
+    TripStateSnapshot(GtfsRealtime.TripUpdate tripUpdate,
+                      Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates,
+                      GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship,
+                      CancellationLedger cancellations,
+                      StopWatermarks watermarks,
+                      long revision) {
+        this.tripUpdate = tripUpdate;
+        this.stopTimeUpdates = stopTimeUpdates;
+        this.scheduleRelationship = scheduleRelationship;
+        this.cancellations = cancellations;
+        this.watermarks = watermarks;
+        this.revision = revision;
+    }
+
+    byte[] encode() throws IOException {
+        return encode(true);
+    }
+
+    /**
+     * @param compress Whether larger snapshots are compressed
+     */
+    byte[] encode(boolean compress) throws IOException {
+        final byte[] encoded = CompactTripStateFormat.encode(this, compress);
+        final byte[] data = new byte[encoded.length + HEADER_BYTES];
+        data[0] = COMPACT_VERSION;
+        //Revision has a fixed position and size, so that it can be read without loading the whole snapshot
+        ByteBuffer.wrap(data, 1, Long.BYTES).putLong(revision);
+        System.arraycopy(encoded, 0, data, HEADER_BYTES, encoded.length);
+        return data;
+    }
+
+    /**
+     * @param header At least {@link #HEADER_BYTES} first bytes of an encoded snapshot
+     * @return Revision of the snapshot or -1 if it is not known
+     */
+    static long readRevision(byte[] header) {
+        if (header == null || header.length < HEADER_BYTES || header[0] != COMPACT_VERSION) {
+            return -1;
+        }
+        return ByteBuffer.wrap(header, 1, Long.BYTES).getLong();
+    }
+
+    static TripStateSnapshot decode(byte[] data) throws IOException {
+        if (data.length == 0) {
+            throw new IOException("Trip state snapshot is empty");
+        }
+        if (data[0] != COMPACT_VERSION) {
+            throw new IOException("Unsupported trip state snapshot version " + data[0]);
+        }
+        return CompactTripStateFormat.decode(data, HEADER_BYTES, readRevision(data));
+    }
+}
@@ -1,93 +1,637 @@
 package fi.hsl.transitdata.tripupdate.processing;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.proto.InternalMessages;
 import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtFactory;
 import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtValidator;
+import fi.hsl.transitdata.tripupdate.profiling.ProcessStopEstimateEvent;
+import fi.hsl.transitdata.tripupdate.profiling.ProcessTripCancellationEvent;
+import fi.hsl.transitdata.tripupdate.profiling.StageEvents;
+import fi.hsl.transitdata.tripupdate.state.HeapTripStateStore;
+import fi.hsl.transitdata.tripupdate.state.TripSnapshotStore;
+import fi.hsl.transitdata.tripupdate.state.TripStateStore;
 import org.apache.pulsar.client.api.*;
 import org.apache.pulsar.shade.org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.*;
 import static com.google.transit.realtime.GtfsRealtime.*;
 
+/**
+ * Keeps the state of trips and creates trip updates from stop estimates and cancellations.
+ *
+ * Processing is thread-safe. State of a trip is read from a {@link TripStateStore}, modified and stored again, so
+ * messages of the same trip are processed while holding a lock of that trip. Locks are striped by trip id, which means that messages
+ * of different trips are processed in parallel unless their trip ids happen to share a stripe.
+ */
 public class TripUpdateProcessor {
     private static final Logger log = LoggerFactory.getLogger(TripUpdateProcessor.class);
 
-    private static final Duration CACHE_DURATION = Duration.of(4, ChronoUnit.HOURS);
+    public static final Duration CACHE_DURATION = Duration.of(4, ChronoUnit.HOURS);
 
-    //for each trip (identified by tripId-String) store one estimate/event (StopTimeUpdate) for each stop (identified by stopSequence-Integer)
-    private final LoadingCache<String, Map<Integer, StopTimeUpdate>> stopTimeUpdateCache;
-    //for each trip (identified by tripId-String) store the full TripUpdate containing all StopTimeUpdates
-    private final Cache<String, TripUpdate> tripUpdateCache;
-    //for each trip (identified by tripId-String), keep track of whether the trip is included in static schedule (so that correct schedule relationship can be restored in case of cancellation-of-cancellation)
-    private final Cache<String, TripDescriptor.ScheduleRelationship> scheduleRelationshipCache;
+    //Must be a power of two
+    static final int LOCK_STRIPES = 1024;
 
-    //There can be multiple cancellations for each trip. We need to keep track of them to find out whether there is an active cancellation
-    private final Cache<String, Map<Long, Map<InternalMessages.TripCancellation.Status, InternalMessages.TripCancellation>>> cancellationsCache;
+    //State of each trip, identified by tripId-String
+    private final TripStateStore stateStore;
+
+    //Null if trip state snapshots are not enabled
+    private TripSnapshotStore snapshotStore;
+    //Revision of the snapshot is checked only for trips that have not been accessed for this long, 0 to check always
+    private long revisionCheckIdleMs = 0;
+    //Time when each trip was last accessed, when the revision check depends on it
+    private final Map<String, Long> lastAccessMs = new ConcurrentHashMap<>();
+    //Trips that have been changed since snapshots were last created
+    private final Set<String> changedTrips = ConcurrentHashMap.newKeySet();
+
+    private final Object[] tripLocks = new Object[LOCK_STRIPES];
+
+    //Latest stop estimate of each trip whose trip update has not been built after the estimate, see markStopEstimate
+    private final Map<String, InternalMessages.StopEstimate> dirtyTrips = new ConcurrentHashMap<>();
+
+    //Null if memory budget is not enabled
+    private TripMemoryBudget memoryBudget;
+    private long sheddingHorizonMs;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    private boolean dropStaleEstimates = false;
+    private final AtomicLong staleEstimates = new AtomicLong();
+    private final AtomicLong outOfOrderEstimates = new AtomicLong();
+
+    private boolean skipUnchangedEstimates = false;
+    private final AtomicLong stopEstimates = new AtomicLong();
+    private final AtomicLong unchangedEstimates = new AtomicLong();
 
     public TripUpdateProcessor(Producer<byte[]> producer) {
-        this.tripUpdateCache = Caffeine.newBuilder()
-                .expireAfterAccess(CACHE_DURATION)
-                .build();
+        this(producer, new HeapTripStateStore(CACHE_DURATION));
+    }
 
-        this.stopTimeUpdateCache = Caffeine.newBuilder()
-                .expireAfterAccess(CACHE_DURATION)
-                .build(key -> {
-                    //TreeMap keeps its entries sorted according to the natural ordering of its keys.
-                    return new TreeMap<>();
-                });
+    /**
+     * @param stateStore Store for state of trips. Trips should expire after {@link #CACHE_DURATION}
+     */
+    public TripUpdateProcessor(Producer<byte[]> producer, TripStateStore stateStore) {
+        for (int i = 0; i < tripLocks.length; i++) {
+            tripLocks[i] = new Object();
+        }
 
-        this.scheduleRelationshipCache = Caffeine.newBuilder()
-                .expireAfterWrite(CACHE_DURATION)
-                .build();
+        this.stateStore = stateStore;
+        stateStore.setRemovalListener(tripKey -> {
+            dirtyTrips.remove(tripKey);
+            lastAccessMs.remove(tripKey);
+            if (memoryBudget != null) {
+                memoryBudget.remove(tripKey);
+            }
+        });
+    }
+
+    /**
+     * Enables trip state snapshots. State of a trip is restored from the store when the trip is not found from the caches.
+     */
+    public void enableSnapshots(TripSnapshotStore snapshotStore) {
+        enableSnapshots(snapshotStore, Duration.ZERO);
+    }
+
+    /**
+     * @param revisionCheckIdleTime Revision of the snapshot is checked only when the trip has not been accessed for
+     *                              this long, because the trip can have been moved to another instance and back only
+     *                              if this instance has not received its messages. Zero to check before each message
+     */
+    public void enableSnapshots(TripSnapshotStore snapshotStore, Duration revisionCheckIdleTime) {
+        enableSnapshots(snapshotStore, revisionCheckIdleTime, System::currentTimeMillis);
+    }
+
+    void enableSnapshots(TripSnapshotStore snapshotStore, Duration revisionCheckIdleTime, LongSupplier clock) {
+        this.snapshotStore = snapshotStore;
+        this.revisionCheckIdleMs = revisionCheckIdleTime.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * Limits the estimated memory usage of trip state. Trips that are furthest in the past are evicted when the budget
+     * is exceeded and far-future stop estimates are shed when the usage exceeds the shedding threshold.
+     *
+     * @param budgetBytes Maximum estimated size of trip state
+     * @param sheddingThreshold Share of the budget after which far-future estimates are shed
+     * @param sheddingHorizon Estimates whose time is further than this in the future are shed
+     */
+    public void enableMemoryBudget(long budgetBytes, double sheddingThreshold, Duration sheddingHorizon) {
+        enableMemoryBudget(budgetBytes, sheddingThreshold, sheddingHorizon, System::currentTimeMillis);
+    }
+
+    void enableMemoryBudget(long budgetBytes, double sheddingThreshold, Duration sheddingHorizon, LongSupplier clock) {
+        this.memoryBudget = new TripMemoryBudget(budgetBytes, sheddingThreshold);
+        this.sheddingHorizonMs = sheddingHorizon.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if memory budget is enabled and trip state is close to it, so that far-future stop estimates are shed
+     */
+    public boolean isUnderMemoryPressure() {
+        return memoryBudget != null && memoryBudget.isUnderPressure();
+    }
+
+    /**
+     * @return true if the stop estimate should be dropped without processing because trip state is close to its memory budget
+     */
+    public boolean shedStopEstimate(InternalMessages.StopEstimate stopEstimate) {
+        if (!isUnderMemoryPressure()) {
+            return false;
+        }
+        final long estimateTimeMs = stopEstimate.hasEstimatedTimeUtcMs() ? stopEstimate.getEstimatedTimeUtcMs() : stopEstimate.getScheduledTimeUtcMs();
+        if (estimateTimeMs - clock.getAsLong() > sheddingHorizonMs) {
+            memoryBudget.incrementShedEstimates();
+            return true;
+        }
+        return false;
+    }
+
+    private void updateMemoryUsage(final String tripKey, final TripState state) {
+        if (memoryBudget == null) {
+            return;
+        }
+        final long weight = TripMemoryBudget.estimateWeight(state.tripUpdate, state.stopTimeUpdates.size());
+        for (String evicted : memoryBudget.update(tripKey, weight, TripMemoryBudget.getReferenceTime(state.tripUpdate))) {
+            stateStore.remove(evicted);
+            dirtyTrips.remove(evicted);
+            lastAccessMs.remove(evicted);
+            //Snapshot of an evicted trip would be empty, keep the previous snapshot instead
+            changedTrips.remove(evicted);
+        }
+    }
+
+    /**
+     * Drops stop estimates whose lastModifiedUtcMs is older than that of an already processed estimate of the same stop
+     * and type, before trip update of the estimate is built. Otherwise a delayed estimate would replace a newer one.
+     */
+    public void enableStaleEstimateDropping() {
+        this.dropStaleEstimates = true;
+    }
 
-        this.cancellationsCache = Caffeine.newBuilder()
-                .expireAfterAccess(CACHE_DURATION)
-                .build(key -> new HashMap<>());
+    //Must be called while holding the lock of the trip
+    private boolean dropIfStale(final TripState state, final InternalMessages.StopEstimate stopEstimate) {
+        if (!dropStaleEstimates) {
+            return false;
+        }
+        if (state.watermarks == null) {
+            state.watermarks = new StopWatermarks();
+        }
+        final int key = StopWatermarks.key(stopEstimate);
+        final long lastModifiedUtcMs = stopEstimate.getLastModifiedUtcMs();
+        if (state.watermarks.isStale(key, lastModifiedUtcMs)) {
+            staleEstimates.incrementAndGet();
+            return true;
+        }
+        if (state.watermarks.isOutOfOrder(lastModifiedUtcMs)) {
+            //Estimate is older than an estimate of another stop, but still the latest one of its own stop
+            outOfOrderEstimates.incrementAndGet();
+        }
+        state.watermarks.advance(key, lastModifiedUtcMs);
+        return false;
     }
 
+    /**
+     * Skips stop estimates that do not change the stop time update of their stop, e.g. when the same prediction is
+     * sent again. Trip update is not rebuilt, cleaned or validated for such estimates and nothing is published, so the
+     * published trip update keeps the timestamp of the estimate that last changed the trip.
+     *
+     * Cleaning of the stop times depends on the stop of the latest estimate, so an estimate is skipped only if the
+     * previous trip update was built for the same stop and it passed validation, see {@link #invalidateTripUpdate(String)}.
+     */
+    public void enableUnchangedEstimateSkipping() {
+        this.skipUnchangedEstimates = true;
+    }
+
+    /**
+     * Marks that the latest trip update of the trip was not published, so that the next stop estimate of the trip is
+     * not skipped even if it does not change the trip
+     */
+    public void invalidateTripUpdate(final String tripKey) {
+        if (!skipUnchangedEstimates) {
+            return;
+        }
+        synchronized (lockFor(tripKey)) {
+            final TripState state = stateStore.get(tripKey);
+            if (state != null) {
+                //Field is not encoded, so there is no need to put the state back to the store
+                state.publishedStopSequence = -1;
+            }
+        }
+    }
+
+    /**
+     * @param previous Stop time update of the stop before the estimate was applied
+     * @param latest Stop time update of the stop after the estimate was applied
+     */
+    //Must be called while holding the lock of the trip
+    private boolean isUnchanged(final String tripKey, final TripState state, final InternalMessages.StopEstimate stopEstimate,
+                                final StopTimeUpdate previous, final StopTimeUpdate latest) {
+        if (!skipUnchangedEstimates || previous == null || state.tripUpdate == null) {
+            return false;
+        }
+        //Targeted stop is added to the trip update and not to the stop time update, so the trip update must be rebuilt
+        if (StringUtils.isNotBlank(stopEstimate.getTargetedStopId()) && !stopEstimate.getTargetedStopId().equals(stopEstimate.getStopId())) {
+            return false;
+        }
+        //Trip update of a dirty trip is built and cleaned for the pending estimate
+        final InternalMessages.StopEstimate pending = dirtyTrips.get(tripKey);
+        final int cleanedStopSequence = pending != null ? pending.getStopSequence() : state.publishedStopSequence;
+        if (stopEstimate.getStopSequence() != cleanedStopSequence) {
+            return false;
+        }
+        return latest.equals(previous);
+    }
+
+    //Must be called while holding the lock of the trip
+    private void storeUnchangedState(final String tripKey, final TripState state) {
+        if (dropStaleEstimates) {
+            //Watermark of the stop may have advanced even though the stop time did not change. Trip is not
+            //snapshotted only because of that, the watermark is included in the next snapshot of the trip
+            stateStore.put(tripKey, state);
+        }
+    }
+
+    long getStaleEstimateCount() {
+        return staleEstimates.get();
+    }
+
+    long getOutOfOrderEstimateCount() {
+        return outOfOrderEstimates.get();
+    }
+
+    long getUnchangedEstimateCount() {
+        return unchangedEstimates.get();
+    }
+
+    public void logStopEstimateStats(Logger logger) {
+        final long estimates = stopEstimates.getAndSet(0);
+        final long unchanged = unchangedEstimates.getAndSet(0);
+        if (skipUnchangedEstimates) {
+            logger.info("Unchanged stop estimates: {} of {} stop estimates ({}%) did not change their trip and were skipped",
+                    unchanged, estimates, estimates > 0 ? 100 * unchanged / estimates : 0);
+        }
+        if (dropStaleEstimates) {
+            logger.info("Stop estimate ordering: {} stale estimates dropped, {} estimates out of order within their trip",
+                    staleEstimates.getAndSet(0), outOfOrderEstimates.getAndSet(0));
+        }
+    }
+
+    /**
+     * Removes state of trips that have not been processed for {@link #CACHE_DURATION}
+     */
+    public void expireTrips() {
+        stateStore.expire();
+    }
+
+    public void logMemoryStats(Logger logger) {
+        stateStore.logAndReset(logger);
+        if (memoryBudget != null) {
+            memoryBudget.logAndReset(logger);
+        }
+    }
+
+    /**
+     * @return Lock that must be held while reading or modifying state of the trip
+     */
+    Object lockFor(final String tripKey) {
+        int hash = tripKey.hashCode();
+        //Spread higher bits to the lower ones, like HashMap does
+        hash ^= hash >>> 16;
+        return tripLocks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * @return Trip update or empty if the stop estimate could not be processed, did not change the trip or the trip is not scheduled
+     */
     public Optional<TripUpdate> processStopEstimate(InternalMessages.StopEstimate stopEstimate) {
-        try {
-            final StopTimeUpdate latest = updateStopTimeUpdateCache(stopEstimate);
-            final String tripKey = cacheKey(stopEstimate);
-            List<StopTimeUpdate> stopTimeUpdates = getStopTimeUpdates(tripKey);
+        return processStopEstimateWithId(stopEstimate)
+                .filter(pair -> !pair.isUnchanged())
+                .map(AbstractMessageProcessor.TripUpdateWithId::getTripUpdate);
+    }
 
-            // We need to clean up the "raw data" StopTimeUpdates for any inconsistencies
-            List<StopTimeUpdate> validated = GtfsRtValidator.cleanStopTimeUpdates(stopTimeUpdates, latest);
+    /**
+     * @return Trip update, unchanged pair if the stop estimate was stale or did not change the trip, or empty if the
+     * stop estimate could not be processed or the trip is not scheduled
+     */
+    Optional<AbstractMessageProcessor.TripUpdateWithId> processStopEstimateWithId(InternalMessages.StopEstimate stopEstimate) {
+        if (!StageEvents.isEnabled()) {
+            return updateTripWithStopEstimate(stopEstimate);
+        }
+        final ProcessStopEstimateEvent event = new ProcessStopEstimateEvent();
+        event.begin();
+        final Optional<AbstractMessageProcessor.TripUpdateWithId> tripUpdate = updateTripWithStopEstimate(stopEstimate);
+        event.stopSequence = stopEstimate.getStopSequence();
+        event.end(cacheKey(stopEstimate), stopEstimate.getTripInfo().getRouteId(),
+                tripUpdate.isPresent() && !tripUpdate.get().isUnchanged() ? tripUpdate.get().getTripUpdate().getStopTimeUpdateCount() : 0);
+        return tripUpdate;
+    }
+
+    private Optional<AbstractMessageProcessor.TripUpdateWithId> updateTripWithStopEstimate(InternalMessages.StopEstimate stopEstimate) {
+        final String tripKey = cacheKey(stopEstimate);
+        stopEstimates.incrementAndGet();
+        synchronized (lockFor(tripKey)) {
+            try {
+                final TripState state = getOrRestoreState(tripKey);
+                if (dropIfStale(state, stopEstimate)) {
+                    return AbstractMessageProcessor.TripUpdateWithId.unchanged(tripKey);
+                }
+                final StopTimeUpdate previous = state.stopTimeUpdates.get(stopEstimate.getStopSequence());
+                final StopTimeUpdate latest = updateStopTimeUpdates(state, stopEstimate);
+                if (isUnchanged(tripKey, state, stopEstimate, previous, latest)) {
+                    unchangedEstimates.incrementAndGet();
+                    storeUnchangedState(tripKey, state);
+                    return AbstractMessageProcessor.TripUpdateWithId.unchanged(tripKey);
+                }
+                return buildTripUpdate(tripKey, state, stopEstimate, latest)
+                        .flatMap(tripUpdate -> AbstractMessageProcessor.TripUpdateWithId.newInstance(tripKey, tripUpdate));
+            } catch (Exception e) {
+                log.error("Exception while translating StopEstimate into TripUpdate", e);
+                return Optional.empty();
+            }
+        }
+    }
 
-            TripUpdate tripUpdate = updateTripUpdateCacheWithStopTimes(stopEstimate, validated);
-            if (tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.SCHEDULED
-                    || tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.ADDED) {
-                //Save schedule relationship to cache to restore it in case of cancellation-of-cancellation
-                scheduleRelationshipCache.put(tripKey, tripUpdate.getTrip().getScheduleRelationship());
+    /**
+     * Updates stop time of the stop estimate to the state of the trip and marks the trip dirty without building a
+     * trip update. Trip update for the latest stop estimate is built with {@link #buildDirtyTrip(String)}, which produces
+     * the same trip update as {@link #processStopEstimate(InternalMessages.StopEstimate)} would have returned for that estimate.
+     *
+     * @return Id of the trip that was marked dirty or empty if the stop estimate could not be processed, was stale, did
+     * not change the trip or the trip is not scheduled
+     */
+    public Optional<String> markStopEstimate(InternalMessages.StopEstimate stopEstimate) {
+        return markStopEstimateWithId(stopEstimate)
+                .filter(pair -> !pair.isUnchanged())
+                .map(AbstractMessageProcessor.TripUpdateWithId::getTripId);
+    }
 
-                //We want to act only if the status is still scheduled, let's not send estimates on cancelled trips.
-                return Optional.of(tripUpdate);
+    /**
+     * @return Pair without a trip update for the trip that was marked dirty, unchanged pair if the stop estimate was
+     * stale or did not change the trip, or empty if the stop estimate could not be processed or the trip is not scheduled
+     */
+    Optional<AbstractMessageProcessor.TripUpdateWithId> markStopEstimateWithId(InternalMessages.StopEstimate stopEstimate) {
+        final String tripKey = cacheKey(stopEstimate);
+        stopEstimates.incrementAndGet();
+        synchronized (lockFor(tripKey)) {
+            try {
+                final TripState state = getOrRestoreState(tripKey);
+                if (dropIfStale(state, stopEstimate)) {
+                    return AbstractMessageProcessor.TripUpdateWithId.unchanged(tripKey);
+                }
+                final StopTimeUpdate previous = state.stopTimeUpdates.get(stopEstimate.getStopSequence());
+                final StopTimeUpdate latest = updateStopTimeUpdates(state, stopEstimate);
+                if (isUnchanged(tripKey, state, stopEstimate, previous, latest)) {
+                    //Trip is left dirty if it already was, its trip update is built for the estimate that changed it
+                    unchangedEstimates.incrementAndGet();
+                    storeUnchangedState(tripKey, state);
+                    return AbstractMessageProcessor.TripUpdateWithId.unchanged(tripKey);
+                }
+                if (state.tripUpdate == null) {
+                    //Trip descriptor is created from the first stop estimate, like when the trip update is built immediately
+                    state.tripUpdate = GtfsRtFactory.newTripUpdate(stopEstimate);
+                }
+                if (!isScheduled(state.tripUpdate)) {
+                    //Trip update of a cancelled trip is not published, so there is nothing to debounce
+                    dirtyTrips.remove(tripKey);
+                    buildTripUpdate(tripKey, state, stopEstimate, latest);
+                    return Optional.empty();
+                }
+                storeState(tripKey, state);
+                dirtyTrips.put(tripKey, stopEstimate);
+                return AbstractMessageProcessor.TripUpdateWithId.newInstance(tripKey, null);
+            } catch (Exception e) {
+                log.error("Exception while updating StopEstimate to trip state", e);
+                return Optional.empty();
             }
-            else {
-                log.debug("Discarding cancelled stop estimate");
+        }
+    }
+
+    /**
+     * Builds trip update of a trip that was marked dirty by {@link #markStopEstimate(InternalMessages.StopEstimate)}
+     *
+     * @return Trip update or empty if the trip is not dirty anymore or the trip is not scheduled
+     */
+    public Optional<TripUpdate> buildDirtyTrip(final String tripKey) {
+        synchronized (lockFor(tripKey)) {
+            try {
+                return buildDirtyTripUpdate(tripKey);
+            } catch (Exception e) {
+                log.error("Exception while translating StopEstimate into TripUpdate", e);
                 return Optional.empty();
             }
+        }
+    }
 
-        } catch (Exception e) {
-            log.error("Exception while translating StopEstimate into TripUpdate", e);
+    /**
+     * @return Amount of trips that have been marked dirty and whose trip update has not been built yet
+     */
+    public int getDirtyTripCount() {
+        return dirtyTrips.size();
+    }
+
+    //Must be called while holding the lock of the trip
+    private Optional<TripUpdate> buildDirtyTripUpdate(final String tripKey) {
+        final InternalMessages.StopEstimate stopEstimate = dirtyTrips.remove(tripKey);
+        if (stopEstimate == null) {
+            return Optional.empty();
+        }
+        final TripState state = getOrRestoreState(tripKey);
+        //Stop time that was updated last is cleaned like the latest stop time of processStopEstimate
+        final StopTimeUpdate latest = state.stopTimeUpdates.get(stopEstimate.getStopSequence());
+        if (latest == null) {
+            //Trip state was evicted after the estimate was received
+            return Optional.empty();
+        }
+        return buildTripUpdate(tripKey, state, stopEstimate, latest);
+    }
+
+    //Must be called while holding the lock of the trip
+    private Optional<TripUpdate> buildTripUpdate(final String tripKey, final TripState state,
+                                                 final InternalMessages.StopEstimate stopEstimate, final StopTimeUpdate latest) {
+        List<StopTimeUpdate> stopTimeUpdates = new ArrayList<>(state.stopTimeUpdates.values());
+
+        // We need to clean up the "raw data" StopTimeUpdates for any inconsistencies
+        List<StopTimeUpdate> validated = GtfsRtValidator.cleanStopTimeUpdates(stopTimeUpdates, latest);
+
+        TripUpdate tripUpdate = updateTripUpdateWithStopTimes(state, stopEstimate, validated);
+        final boolean scheduled = isScheduled(tripUpdate);
+        if (scheduled) {
+            //Save schedule relationship to restore it in case of cancellation-of-cancellation
+            state.scheduleRelationship = tripUpdate.getTrip().getScheduleRelationship();
+            state.publishedStopSequence = stopEstimate.getStopSequence();
+        } else {
+            state.publishedStopSequence = -1;
+        }
+        storeState(tripKey, state);
+
+        if (scheduled) {
+            //We want to act only if the status is still scheduled, let's not send estimates on cancelled trips.
+            return Optional.of(tripUpdate);
+        }
+        else {
+            log.debug("Discarding cancelled stop estimate");
             return Optional.empty();
         }
+    }
 
+    private static boolean isScheduled(final TripUpdate tripUpdate) {
+        return tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.SCHEDULED
+                || tripUpdate.getTrip().getScheduleRelationship() == TripDescriptor.ScheduleRelationship.ADDED;
     }
 
     public TripUpdate processTripCancellation(final String messageKey, long messageTimestamp, InternalMessages.TripCancellation tripCancellation) {
-        return updateTripUpdateCacheWithCancellation(messageKey, messageTimestamp, tripCancellation);
+        if (!StageEvents.isEnabled()) {
+            return updateTripWithCancellation(messageKey, messageTimestamp, tripCancellation);
+        }
+        final ProcessTripCancellationEvent event = new ProcessTripCancellationEvent();
+        event.begin();
+        final TripUpdate tripUpdate = updateTripWithCancellation(messageKey, messageTimestamp, tripCancellation);
+        event.status = tripCancellation.getStatus().toString();
+        event.end(messageKey, tripCancellation.getRouteId(), tripUpdate.getStopTimeUpdateCount());
+        return tripUpdate;
+    }
+
+    private TripUpdate updateTripWithCancellation(final String messageKey, long messageTimestamp, InternalMessages.TripCancellation tripCancellation) {
+        synchronized (lockFor(messageKey)) {
+            if (dirtyTrips.containsKey(messageKey)) {
+                //Cancellation is applied on top of the trip update of the latest stop estimate, like when it is not built lazily
+                try {
+                    buildDirtyTripUpdate(messageKey);
+                } catch (Exception e) {
+                    log.error("Exception while translating StopEstimate into TripUpdate", e);
+                }
+            }
+            final TripState state = getOrRestoreState(messageKey);
+            final TripUpdate tripUpdate = updateTripUpdateWithCancellation(state, messageTimestamp, tripCancellation);
+            //Next stop estimate is applied on top of the cancellation, so it must not be skipped
+            state.publishedStopSequence = -1;
+            storeState(messageKey, state);
+            return tripUpdate;
+        }
+    }
+
+    /**
+     * Returns state of the trip from the state store. When snapshots are enabled, state is restored from the snapshot
+     * if the trip is not in the store or if the snapshot has a newer revision. Snapshot is newer when the trip was
+     * moved to another instance and back, and the other instance changed the trip in the meantime.
+     *
+     * @return State of the trip from the state store, from a snapshot or new state
+     */
+    //Must be called while holding the lock of the trip
+    private TripState getOrRestoreState(final String tripKey) {
+        final TripState state = stateStore.get(tripKey);
+        if (snapshotStore == null) {
+            return state != null ? state : new TripState();
+        }
+        final boolean revisionCheckDue = isRevisionCheckDue(tripKey);
+        if (state != null && (!revisionCheckDue || !hasNewerSnapshot(tripKey, state))) {
+            return state;
+        }
+
+        try {
+            final byte[] data = snapshotStore.load(tripKey);
+            if (data != null) {
+                final TripStateSnapshot snapshot = TripStateSnapshot.decode(data);
+                if (state == null || snapshot.revision > state.revision) {
+                    log.debug("Restored state of trip {} from snapshot revision {}", tripKey, snapshot.revision);
+                    final TripState restored = TripState.of(snapshot);
+                    //Keep the restored state even if the message does not change it, so that it is not loaded again
+                    stateStore.put(tripKey, restored);
+                    return restored;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to restore state of trip {} from snapshot", tripKey, e);
+        }
+        return state != null ? state : new TripState();
+    }
+
+    /**
+     * Records the access of the trip
+     *
+     * @return true if the trip has not been accessed within the idle time of the revision check
+     */
+    private boolean isRevisionCheckDue(final String tripKey) {
+        if (revisionCheckIdleMs <= 0) {
+            return true;
+        }
+        final long nowMs = clock.getAsLong();
+        final Long previousMs = lastAccessMs.put(tripKey, nowMs);
+        return previousMs == null || nowMs - previousMs >= revisionCheckIdleMs;
+    }
+
+    private boolean hasNewerSnapshot(final String tripKey, final TripState state) {
+        try {
+            //Snapshots written by this instance have at most the revision of the local state
+            return TripStateSnapshot.readRevision(snapshotStore.loadHeader(tripKey, TripStateSnapshot.HEADER_BYTES)) > state.revision;
+        } catch (Exception e) {
+            log.warn("Failed to check snapshot revision of trip {}, using local state", tripKey, e);
+            return false;
+        }
+    }
+
+    /**
+     * Stores state of the trip after it was changed. Trip is snapshotted only when it is changed.
+     */
+    //Must be called while holding the lock of the trip
+    private void storeState(final String tripKey, final TripState state) {
+        state.revision++;
+        if (snapshotStore != null) {
+            changedTrips.add(tripKey);
+        }
+        stateStore.put(tripKey, state);
+        if (state.tripUpdate != null) {
+            updateMemoryUsage(tripKey, state);
+        }
+    }
+
+    //Must be called while holding the lock of the trip
+    void restoreSnapshot(final String tripKey, final TripStateSnapshot snapshot) {
+        stateStore.put(tripKey, TripState.of(snapshot));
+    }
+
+    TripStateSnapshot createSnapshot(final String tripKey) {
+        final TripState state = stateStore.get(tripKey);
+        return state != null ? state.toSnapshot() : new TripStateSnapshot(null, null, null, null);
+    }
+
+    byte[] encodeSnapshot(final String tripKey) throws IOException {
+        //Stop time updates and cancellations are modified in place, so they must not change while they are encoded
+        synchronized (lockFor(tripKey)) {
+            return createSnapshot(tripKey).encode();
+        }
+    }
+
+    /**
+     * @return Snapshots of trips that have been changed since the previous call. Empty if snapshots are not enabled
+     */
+    public Map<String, byte[]> drainSnapshots() {
+        if (changedTrips.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, byte[]> snapshots = new HashMap<>();
+        final Iterator<String> iterator = changedTrips.iterator();
+        while (iterator.hasNext()) {
+            final String tripKey = iterator.next();
+            //Remove before creating the snapshot so that a concurrent change of the trip is not lost
+            iterator.remove();
+            try {
+                snapshots.put(tripKey, encodeSnapshot(tripKey));
+            } catch (IOException e) {
+                log.error("Failed to create snapshot of trip {}", tripKey, e);
+            }
+        }
+        return snapshots;
     }
 
     private String cacheKey(final InternalMessages.StopEstimate stopEstimate) {
@@ -95,12 +639,21 @@ public class TripUpdateProcessor {
     }
 
     StopTimeUpdate updateStopTimeUpdateCache(final InternalMessages.StopEstimate stopEstimate) {
-        // TODO refactor, now this method has dual responsibility: create new StopTimeUpdate and update cache.
-        // reason for duplicate role is that we're using the cached entry to create the new one.
+        final String tripKey = cacheKey(stopEstimate);
+        synchronized (lockFor(tripKey)) {
+            final TripState state = getOrRestoreState(tripKey);
+            final StopTimeUpdate latest = updateStopTimeUpdates(state, stopEstimate);
+            stateStore.put(tripKey, state);
+            return latest;
+        }
+    }
+
+    private StopTimeUpdate updateStopTimeUpdates(final TripState state, final InternalMessages.StopEstimate stopEstimate) {
+        // TODO refactor, now this method has dual responsibility: create new StopTimeUpdate and update state.
+        // reason for duplicate role is that we're using the stored entry to create the new one.
         // TODO think if we can separate these into two methods.
 
-        final String tripKey = cacheKey(stopEstimate);
-        Map<Integer, StopTimeUpdate> stopTimeUpdatesForThisTripUpdate = getStopTimeUpdatesWithStopSequences(tripKey);
+        Map<Integer, StopTimeUpdate> stopTimeUpdatesForThisTripUpdate = state.stopTimeUpdates;
 
         //StopSeq is the key since it's unique within one journey (running number).
         //There can be duplicate StopIds within journey, in case the same stop is used twice in one route (rare but possible)
@@ -112,20 +665,14 @@ public class TripUpdateProcessor {
         return latest;
     }
 
-    Map<Integer, StopTimeUpdate> getStopTimeUpdatesWithStopSequences(String key) {
-        return stopTimeUpdateCache.get(key);
-    }
-
-    LinkedList<StopTimeUpdate> getStopTimeUpdates(String key) {
+    List<StopTimeUpdate> getStopTimeUpdates(String key) {
         // Gtfs-rt standard requires the updates be sorted by stop seq but we already have this because we use TreeMap.
-        Collection<StopTimeUpdate> updates = getStopTimeUpdatesWithStopSequences(key).values();
-        return new LinkedList<>(updates);
+        final TripState state = stateStore.get(key);
+        return state != null ? new ArrayList<>(state.stopTimeUpdates.values()) : new ArrayList<>();
     }
 
-    private TripUpdate updateTripUpdateCacheWithStopTimes(final InternalMessages.StopEstimate latest, Collection<StopTimeUpdate> stopTimeUpdates) {
-        final String tuCacheKey = cacheKey(latest);
-
-        TripUpdate previousTripUpdate = tripUpdateCache.getIfPresent(tuCacheKey);
+    private TripUpdate updateTripUpdateWithStopTimes(final TripState state, final InternalMessages.StopEstimate latest, Collection<StopTimeUpdate> stopTimeUpdates) {
+        TripUpdate previousTripUpdate = state.tripUpdate;
         if (previousTripUpdate == null) {
             previousTripUpdate = GtfsRtFactory.newTripUpdate(latest);
         }
@@ -142,8 +689,7 @@ public class TripUpdateProcessor {
             tripUpdate = processTargetedStopIds(tripUpdate, latest);
         }
         
-        tripUpdateCache.put(tuCacheKey, tripUpdate);
-
+        state.tripUpdate = tripUpdate;
         return tripUpdate;
     }
     
@@ -187,36 +733,32 @@ public class TripUpdateProcessor {
                 .build();
     }
     
-    private TripUpdate updateTripUpdateCacheWithCancellation(final String cacheKey,
-                                                             final long messageTimestampMs,
-                                                             InternalMessages.TripCancellation cancellation) {
-        cancellationsCache.get(cacheKey, k -> new HashMap<>()).compute(cancellation.getDeviationCaseId(), (deviationCaseId, tripCancellations) -> {
-            if (tripCancellations == null) {
-                tripCancellations = new HashMap<>();
-            }
+    private TripUpdate updateTripUpdateWithCancellation(final TripState state,
+                                                        final long messageTimestampMs,
+                                                        InternalMessages.TripCancellation cancellation) {
+        if (state.cancellations == null) {
+            state.cancellations = new CancellationLedger();
+        }
+        final CancellationLedger cancellations = state.cancellations;
+        cancellations.add(cancellation.getDeviationCaseId(), cancellation.getStatus());
 
-            tripCancellations.put(cancellation.getStatus(), cancellation);
+        boolean isCancelled = cancellation.getStatus() == InternalMessages.TripCancellation.Status.CANCELED;
 
-            return tripCancellations;
-        });
-        final Map<Long, Map<InternalMessages.TripCancellation.Status, InternalMessages.TripCancellation>> cancellations = cancellationsCache.getIfPresent(cacheKey);
-        
-        boolean isCancelled = cancellation.getStatus() == InternalMessages.TripCancellation.Status.CANCELED ? true : false;
-        
         if (cancellation.getDeviationCaseId() > 0) {
-            isCancelled = cancellations.values().stream().anyMatch(cancellationsForDeviationCase -> {
-                final Set<InternalMessages.TripCancellation.Status> statuses = cancellationsForDeviationCase.keySet();
-                return statuses.stream().filter(status -> status == InternalMessages.TripCancellation.Status.CANCELED).count() > statuses.stream().filter(status -> status != InternalMessages.TripCancellation.Status.CANCELED).count();
-            });
+            isCancelled = cancellations.hasActiveCancellations();
         }
 
-        TripUpdate previousTripUpdate = tripUpdateCache.getIfPresent(cacheKey);
+        TripUpdate previousTripUpdate = state.tripUpdate;
         if (previousTripUpdate == null) {
             previousTripUpdate = GtfsRtFactory.newTripUpdate(cancellation, messageTimestampMs);
         }
 
         //Assume that trip is scheduled if its schedule relationship is not found from the cache
-        final GtfsRealtime.TripDescriptor.ScheduleRelationship status = isCancelled ? GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED : Optional.ofNullable(scheduleRelationshipCache.getIfPresent(cacheKey)).orElse(TripDescriptor.ScheduleRelationship.SCHEDULED);
+        GtfsRealtime.TripDescriptor.ScheduleRelationship status = GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED;
+        if (!isCancelled) {
+            final TripDescriptor.ScheduleRelationship cached = state.scheduleRelationship;
+            status = cached != null ? cached : TripDescriptor.ScheduleRelationship.SCHEDULED;
+        }
 
         TripDescriptor tripDescriptor = previousTripUpdate.getTrip().toBuilder()
                 .setScheduleRelationship(status)
@@ -231,7 +773,7 @@ public class TripUpdateProcessor {
         if (status == TripDescriptor.ScheduleRelationship.SCHEDULED || status == TripDescriptor.ScheduleRelationship.ADDED) {
             // We need to re-attach all the StopTimeUpdates to the payload
 
-            List<StopTimeUpdate> stopTimeUpdates = getStopTimeUpdates(cacheKey);
+            List<StopTimeUpdate> stopTimeUpdates = new ArrayList<>(state.stopTimeUpdates.values());
             // We need to clean up the "raw data" StopTimeUpdates for any inconsistencies
             List<StopTimeUpdate> validated = GtfsRtValidator.cleanStopTimeUpdates(stopTimeUpdates, null);
             if (validated.isEmpty()) {
@@ -247,7 +789,7 @@ public class TripUpdateProcessor {
         }
 
         TripUpdate newTripUpdate = builder.build();
-        tripUpdateCache.put(cacheKey, newTripUpdate);
+        state.tripUpdate = newTripUpdate;
         return newTripUpdate;
     }
 }
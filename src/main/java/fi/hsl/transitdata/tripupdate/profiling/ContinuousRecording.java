@@ -0,0 +1,120 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Continuously running JFR recording with the low-overhead default settings of the JDK and the events of this service.
+ * Only the latest data is kept, so that a period of e.g. lagging can be dumped to a file and analyzed after the fact.
+ */
+public class ContinuousRecording implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ContinuousRecording.class);
+
+    private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final String FILE_PREFIX = "tripupdate-";
+    private static final String FILE_SUFFIX = ".jfr";
+
+    private final Recording recording;
+    private final Path directory;
+    private final int maxDumps;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * @param maxAge Data older than this is discarded
+     * @param maxSizeBytes Maximum size of the data kept on disk
+     * @param directory Directory where dumps are written
+     * @param maxDumps Maximum amount of dump files to keep, oldest are deleted. 0 to keep all
+     */
+    public ContinuousRecording(Duration maxAge, long maxSizeBytes, Path directory, int maxDumps) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxDumps = maxDumps;
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException e) {
+            throw new IOException("Failed to read JFR configuration", e);
+        }
+        recording.setName("tripupdate-continuous");
+        recording.setToDisk(true);
+        recording.setMaxAge(maxAge);
+        recording.setMaxSize(maxSizeBytes);
+        recording.enable(MessageProcessedEvent.class);
+        recording.enable(ValidatorRejectedEvent.class);
+        recording.enable(DebounceFlushEvent.class);
+        recording.enable(PublishAckEvent.class);
+        //Stage events are recorded only if they have been enabled with StageEvents
+        recording.enable(HandleMessageEvent.class);
+        recording.enable(ProcessStopEstimateEvent.class);
+        recording.enable(ProcessTripCancellationEvent.class);
+        recording.enable(ValidateTripUpdateEvent.class);
+        recording.enable(SendTripUpdateEvent.class);
+    }
+
+    public void start() {
+        recording.start();
+        log.info("Continuous JFR recording started, keeping {} of data", recording.getMaxAge());
+    }
+
+    /**
+     * Writes data of the latest period to a new file. Data is stored in chunks, so the file can contain a bit more
+     * than the requested period
+     *
+     * @return Path of the file
+     */
+    public Path dump(Duration period) throws IOException {
+        //Sequence number keeps the names of dumps taken within the same second unique
+        final Path path = directory.resolve(String.format("%s%s-%03d%s", FILE_PREFIX,
+                LocalDateTime.now().format(FILE_NAME_FORMAT), sequence.incrementAndGet() % 1000, FILE_SUFFIX));
+        final Instant end = Instant.now();
+        //Data of a running recording cannot be read, so read it from a stopped copy
+        try (Recording copy = recording.copy(true);
+             InputStream input = copy.getStream(end.minus(period), end)) {
+            if (input == null) {
+                throw new IOException("Recording contains no data");
+            }
+            Files.copy(input, path);
+        }
+        log.info("Dumped {} of JFR recording to {}", period, path);
+
+        deleteOldDumps();
+        return path;
+    }
+
+    private void deleteOldDumps() throws IOException {
+        if (maxDumps <= 0) {
+            return;
+        }
+        final List<Path> dumps;
+        try (Stream<Path> files = Files.list(directory)) {
+            //Names start with the time of the dump, so they are sorted from oldest to newest
+            dumps = files.filter(file -> {
+                final String name = file.getFileName().toString();
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+        for (int i = 0; i < dumps.size() - maxDumps; i++) {
+            Files.deleteIfExists(dumps.get(i));
+            log.info("Deleted old JFR dump {}", dumps.get(i));
+        }
+    }
+
+    @Override
+    public void close() {
+        recording.close();
+    }
+}
@@ -0,0 +1,22 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Debounced action that was run after its debounce delay. Duration of the event is the time spent running the action
+ * or handing it over to the publish executor
+ */
+@Name("fi.hsl.transitdata.tripupdate.DebounceFlush")
+@Label("Debounce Flush")
+@Category({ "Transitdata", "Trip Update Processor" })
+public class DebounceFlushEvent extends jdk.jfr.Event {
+    @Label("Key")
+    public String key;
+
+    @Label("Waited")
+    @Timespan(Timespan.MILLISECONDS)
+    public long waitedMs;
+}
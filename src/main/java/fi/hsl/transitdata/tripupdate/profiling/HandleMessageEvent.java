@@ -0,0 +1,14 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Handling of a received Pulsar message, including capture, processing and acknowledgement
+ */
+@Name("fi.hsl.transitdata.tripupdate.stage.HandleMessage")
+@Label("Handle Message")
+public class HandleMessageEvent extends StageEvent {
+    @Label("Schema")
+    public String schema;
+}
@@ -0,0 +1,24 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Processing of a single received message, from decoding to handing the trip update over for publishing
+ */
+@Name("fi.hsl.transitdata.tripupdate.MessageProcessed")
+@Label("Message Processed")
+@Category({ "Transitdata", "Trip Update Processor" })
+public class MessageProcessedEvent extends jdk.jfr.Event {
+    @Label("Schema")
+    public String schema;
+
+    @Label("Message Key")
+    public String key;
+
+    @Label("Outcome")
+    @Description("Whether the message produced a trip update or why it was discarded")
+    public String outcome;
+}
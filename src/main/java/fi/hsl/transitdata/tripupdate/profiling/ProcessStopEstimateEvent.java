@@ -0,0 +1,14 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Update of trip state with a stop estimate and creation of the trip update
+ */
+@Name("fi.hsl.transitdata.tripupdate.stage.ProcessStopEstimate")
+@Label("Process Stop Estimate")
+public class ProcessStopEstimateEvent extends StageEvent {
+    @Label("Stop Sequence")
+    public int stopSequence;
+}
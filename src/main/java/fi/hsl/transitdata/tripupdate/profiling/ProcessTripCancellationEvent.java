@@ -0,0 +1,14 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Update of trip state with a trip cancellation and creation of the trip update
+ */
+@Name("fi.hsl.transitdata.tripupdate.stage.ProcessTripCancellation")
+@Label("Process Trip Cancellation")
+public class ProcessTripCancellationEvent extends StageEvent {
+    @Label("Status")
+    public String status;
+}
@@ -0,0 +1,121 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+/**
+ * Admin endpoint for dumping the continuous recording:
+ * {@code POST /profiling/dump?minutes=<minutes>} writes the latest minutes of the recording to a file and responds with
+ * the path of the file.
+ */
+public class ProfilingServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ProfilingServer.class);
+
+    static final String DUMP_PATH = "/profiling/dump";
+
+    private final HttpServer server;
+    private final ContinuousRecording recording;
+    private final Duration defaultPeriod;
+
+    /**
+     * @param host Address to listen, e.g. 127.0.0.1 to accept only local connections
+     * @param port Port to listen, 0 for any free port
+     * @param defaultPeriod Period that is dumped if minutes are not specified
+     */
+    public ProfilingServer(String host, int port, ContinuousRecording recording, Duration defaultPeriod) throws IOException {
+        this.recording = recording;
+        this.defaultPeriod = defaultPeriod;
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext(DUMP_PATH, this::handleDump);
+        //Dumps are rare and can take a while, so there is no need to handle them in parallel
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "profiling-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void start() {
+        server.start();
+        log.info("Profiling endpoint listening on {}", server.getAddress());
+    }
+
+    public String getHost() {
+        return server.getAddress().getHostString();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleDump(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST");
+                return;
+            }
+
+            final Duration period;
+            try {
+                period = parsePeriod(exchange.getRequestURI().getQuery(), defaultPeriod);
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage());
+                return;
+            }
+
+            final Path path = recording.dump(period);
+            respond(exchange, 200, path.toAbsolutePath().toString());
+        } catch (Exception e) {
+            log.error("Failed to dump JFR recording", e);
+            respond(exchange, 500, "Failed to dump recording: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static Duration parsePeriod(String query, Duration defaultPeriod) {
+        if (query == null) {
+            return defaultPeriod;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("minutes=")) {
+                final long minutes;
+                try {
+                    minutes = Long.parseLong(parameter.substring("minutes=".length()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid minutes: " + parameter);
+                }
+                if (minutes <= 0) {
+                    throw new IllegalArgumentException("Minutes must be positive");
+                }
+                return Duration.ofMinutes(minutes);
+            }
+        }
+        return defaultPeriod;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,20 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Trip update that was sent and acknowledged by the sink. Duration of the event is the time from sending to the
+ * acknowledgement
+ */
+@Name("fi.hsl.transitdata.tripupdate.PublishAck")
+@Label("Publish Ack")
+@Category({ "Transitdata", "Trip Update Processor" })
+public class PublishAckEvent extends jdk.jfr.Event {
+    @Label("Trip Id")
+    public String tripId;
+
+    @Label("Success")
+    public boolean success;
+}
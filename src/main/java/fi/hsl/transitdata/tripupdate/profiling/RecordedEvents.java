@@ -0,0 +1,28 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.EventType;
+
+/**
+ * Checks whether events emitted for every message or trip update are recorded by any running JFR recording, so that
+ * they are not even created when profiling is disabled. Unlike {@link StageEvents}, these events are enabled by the
+ * recordings themselves, e.g. the {@link ContinuousRecording} or {@code -XX:StartFlightRecording}.
+ */
+public final class RecordedEvents {
+    private static final EventType MESSAGE_PROCESSED = EventType.getEventType(MessageProcessedEvent.class);
+    private static final EventType DEBOUNCE_FLUSH = EventType.getEventType(DebounceFlushEvent.class);
+    private static final EventType PUBLISH_ACK = EventType.getEventType(PublishAckEvent.class);
+
+    private RecordedEvents() {}
+
+    public static boolean isMessageProcessedRecorded() {
+        return MESSAGE_PROCESSED.isEnabled();
+    }
+
+    public static boolean isDebounceFlushRecorded() {
+        return DEBOUNCE_FLUSH.isEnabled();
+    }
+
+    public static boolean isPublishAckRecorded() {
+        return PUBLISH_ACK.isEnabled();
+    }
+}
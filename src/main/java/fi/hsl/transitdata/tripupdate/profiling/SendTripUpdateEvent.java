@@ -0,0 +1,14 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Hand-over of a valid trip update for debouncing or publishing
+ */
+@Name("fi.hsl.transitdata.tripupdate.stage.SendTripUpdate")
+@Label("Send Trip Update")
+public class SendTripUpdateEvent extends StageEvent {
+    @Label("Debounced")
+    public boolean debounced;
+}
@@ -0,0 +1,36 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import fi.hsl.transitdata.tripupdate.processing.ProcessorUtils;
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+
+/**
+ * Base class of events that are emitted for each stage of the processing pipeline. Duration of the event is the
+ * duration of the stage. Created only when {@link StageEvents#isEnabled()}.
+ */
+@Category({ "Transitdata", "Trip Update Processor", "Stages" })
+public abstract class StageEvent extends jdk.jfr.Event {
+    @Label("Trip Id")
+    public String tripId;
+
+    @Label("Route Class")
+    public String routeClass;
+
+    @Label("Stop Count")
+    public int stopCount;
+
+    /**
+     * Ends the stage and commits the event if it is recorded
+     *
+     * @param routeId Route of the trip or null if unknown
+     * @param stopCount Amount of stop time updates in the trip update
+     */
+    public void end(String tripId, String routeId, int stopCount) {
+        if (shouldCommit()) {
+            this.tripId = tripId;
+            this.routeClass = routeId != null ? ProcessorUtils.getRouteClass(routeId).name() : null;
+            this.stopCount = stopCount;
+            commit();
+        }
+    }
+}
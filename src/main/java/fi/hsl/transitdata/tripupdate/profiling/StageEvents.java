@@ -0,0 +1,19 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+/**
+ * Switch for {@link StageEvent}s. Stage events are emitted for every message, so they are not even created unless
+ * they have been enabled in the configuration. When disabled, the only cost is reading this flag.
+ */
+public final class StageEvents {
+    private static volatile boolean enabled = false;
+
+    private StageEvents() {}
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        StageEvents.enabled = enabled;
+    }
+}
@@ -0,0 +1,17 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Validation of a trip update with a single validator
+ */
+@Name("fi.hsl.transitdata.tripupdate.stage.ValidateTripUpdate")
+@Label("Validate Trip Update")
+public class ValidateTripUpdateEvent extends StageEvent {
+    @Label("Validator")
+    public String validator;
+
+    @Label("Valid")
+    public boolean valid;
+}
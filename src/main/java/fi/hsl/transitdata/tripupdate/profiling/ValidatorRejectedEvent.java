@@ -0,0 +1,22 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Trip update that was rejected by a trip update validator
+ */
+@Name("fi.hsl.transitdata.tripupdate.ValidatorRejected")
+@Label("Validator Rejected")
+@Category({ "Transitdata", "Trip Update Processor" })
+public class ValidatorRejectedEvent extends jdk.jfr.Event {
+    @Label("Validator")
+    public String validator;
+
+    @Label("Trip Id")
+    public String tripId;
+
+    @Label("Route Id")
+    public String routeId;
+}
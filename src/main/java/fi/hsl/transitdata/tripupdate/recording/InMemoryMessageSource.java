@@ -0,0 +1,52 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads messages from memory, so that the processing chain can be driven as fast as possible without I/O or decoding
+ * the source while measuring
+ */
+public class InMemoryMessageSource implements MessageSource {
+    private final List<RecordedMessage> messages;
+    private final boolean repeat;
+    private int index = 0;
+
+    /**
+     * @param repeat If true, reading starts again from the first message after the last one and never ends
+     */
+    public InMemoryMessageSource(List<RecordedMessage> messages, boolean repeat) {
+        this.messages = messages;
+        this.repeat = repeat;
+    }
+
+    /**
+     * Reads messages from another source to memory
+     *
+     * @param maxMessages Maximum amount of messages to read
+     */
+    public static InMemoryMessageSource load(MessageSource source, int maxMessages, boolean repeat) throws IOException {
+        final List<RecordedMessage> messages = new ArrayList<>();
+        RecordedMessage message;
+        while (messages.size() < maxMessages && (message = source.read()) != null) {
+            messages.add(message);
+        }
+        return new InMemoryMessageSource(messages, repeat);
+    }
+
+    @Override
+    public RecordedMessage read() {
+        if (index == messages.size()) {
+            if (!repeat || messages.isEmpty()) {
+                return null;
+            }
+            index = 0;
+        }
+        return messages.get(index++);
+    }
+
+    public int size() {
+        return messages.size();
+    }
+}
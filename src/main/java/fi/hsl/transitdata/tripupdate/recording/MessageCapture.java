@@ -0,0 +1,190 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records received messages to rolling segment files. Messages are written by a background thread so that the caller
+ * never blocks on I/O. If the queue is full, messages are dropped and counted instead.
+ *
+ * Segment that is being written has suffix {@value #PARTIAL_SUFFIX} and it is renamed when the segment is complete.
+ */
+public class MessageCapture implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(MessageCapture.class);
+
+    static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final DateTimeFormatter FILE_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+
+    private final Path directory;
+    private final BlockingQueue<RecordedMessage> queue;
+    private final long maxSegmentBytes;
+    private final long maxSegmentAgeMs;
+    private final int maxSegments;
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private SegmentWriter segment;
+    private long segmentStartMs;
+    private int segmentSequence = 0;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong segmentsCompleted = new AtomicLong();
+
+    /**
+     * @param directory Directory for segment files
+     * @param queueSize Maximum amount of messages waiting to be written
+     * @param maxSegmentBytes Segment is completed when it contains this many uncompressed bytes
+     * @param maxSegmentAge Segment is completed when it has been written for this long
+     * @param maxSegments Maximum amount of completed segments to keep, oldest are deleted. 0 to keep all
+     */
+    public MessageCapture(Path directory, int queueSize, long maxSegmentBytes, Duration maxSegmentAge, int maxSegments) throws IOException {
+        this(directory, queueSize, maxSegmentBytes, maxSegmentAge, maxSegments, true);
+    }
+
+    MessageCapture(Path directory, int queueSize, long maxSegmentBytes, Duration maxSegmentAge, int maxSegments, boolean startWriter) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeMs = maxSegmentAge.toMillis();
+        this.maxSegments = maxSegments;
+
+        writerThread = new Thread(this::writeLoop, "message-capture");
+        writerThread.setDaemon(true);
+        if (startWriter) {
+            writerThread.start();
+        }
+    }
+
+    /**
+     * @return false if the message was dropped because the queue was full
+     */
+    public boolean record(RecordedMessage message) {
+        if (queue.offer(message)) {
+            return true;
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void writeLoop() {
+        while (running || !queue.isEmpty()) {
+            try {
+                final RecordedMessage message = queue.poll(1, TimeUnit.SECONDS);
+                if (message != null) {
+                    write(message);
+                } else {
+                    rollIfNeeded();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                log.error("Failed to write captured message", e);
+                closeSegment();
+            }
+        }
+        closeSegment();
+    }
+
+    /**
+     * Writes messages that are currently in the queue on the calling thread
+     */
+    void writePending() throws IOException {
+        RecordedMessage message;
+        while ((message = queue.poll()) != null) {
+            write(message);
+        }
+    }
+
+    private void write(RecordedMessage message) throws IOException {
+        if (segment == null) {
+            openSegment();
+        }
+        segment.write(message);
+        recorded.incrementAndGet();
+        rollIfNeeded();
+    }
+
+    private void rollIfNeeded() {
+        if (segment != null && (segment.getUncompressedSize() >= maxSegmentBytes || System.currentTimeMillis() - segmentStartMs >= maxSegmentAgeMs)) {
+            closeSegment();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        final String name = "capture-" + LocalDateTime.now().format(FILE_NAME_FORMAT) + "-" + String.format("%06d", segmentSequence++) + SegmentFormat.FILE_SUFFIX;
+        segment = new SegmentWriter(directory.resolve(name + PARTIAL_SUFFIX));
+        segmentStartMs = System.currentTimeMillis();
+    }
+
+    void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        final SegmentWriter completed = segment;
+        segment = null;
+        try {
+            completed.close();
+
+            final String partialName = completed.getPath().getFileName().toString();
+            final Path path = completed.getPath().resolveSibling(partialName.substring(0, partialName.length() - PARTIAL_SUFFIX.length()));
+            Files.move(completed.getPath(), path, StandardCopyOption.ATOMIC_MOVE);
+            segmentsCompleted.incrementAndGet();
+            log.info("Captured {} messages to {}", completed.getMessages(), path);
+
+            deleteOldSegments();
+        } catch (IOException e) {
+            log.error("Failed to complete segment {}", completed.getPath(), e);
+        }
+    }
+
+    private void deleteOldSegments() throws IOException {
+        if (maxSegments <= 0) {
+            return;
+        }
+        final List<Path> segments = new ArrayList<>(SegmentReader.listSegments(directory));
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void logAndReset(Logger logger) {
+        logger.info("Message capture: recorded {}, dropped {}, completed segments {}, queue size {}",
+                recorded.getAndSet(0), dropped.getAndSet(0), segmentsCompleted.getAndSet(0), queue.size());
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        if (writerThread.isAlive()) {
+            writerThread.join();
+        } else {
+            closeSegment();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import java.io.IOException;
+
+/**
+ * Source of messages for the processing chain, e.g. segment files, a synthetic workload, messages in memory or a Pulsar topic
+ */
+public interface MessageSource extends AutoCloseable {
+    /**
+     * @return Next message or null if there are no more messages
+     */
+    RecordedMessage read() throws IOException;
+
+    @Override
+    default void close() throws IOException {}
+}
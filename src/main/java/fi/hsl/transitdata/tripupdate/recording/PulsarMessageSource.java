@@ -0,0 +1,53 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads messages from a Pulsar consumer, e.g. for replaying the contents of a topic. Messages are acknowledged when
+ * they are read. Reading ends when no message has been received within the timeout.
+ */
+public class PulsarMessageSource implements MessageSource {
+    private static final Logger log = LoggerFactory.getLogger(PulsarMessageSource.class);
+
+    private final Consumer<byte[]> consumer;
+    private final long timeoutMs;
+
+    public PulsarMessageSource(Consumer<byte[]> consumer, long timeoutMs) {
+        this.consumer = consumer;
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public RecordedMessage read() throws IOException {
+        final Message<byte[]> message;
+        try {
+            message = consumer.receive((int) timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (PulsarClientException e) {
+            throw new IOException("Failed to receive message", e);
+        }
+        if (message == null) {
+            return null;
+        }
+
+        consumer.acknowledgeAsync(message)
+                .exceptionally(throwable -> {
+                    log.error("Failed to ack Pulsar message", throwable);
+                    return null;
+                });
+        return toRecordedMessage(message);
+    }
+
+    /**
+     * @return Key, event time, properties and payload of the Pulsar message
+     */
+    public static RecordedMessage toRecordedMessage(Message<?> message) {
+        return new RecordedMessage(message.getKey(), message.getEventTime(), message.getProperties(), message.getData());
+    }
+}
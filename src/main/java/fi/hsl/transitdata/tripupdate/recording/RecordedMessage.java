@@ -0,0 +1,55 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Received message independent of its source: key, event time, properties (including the protobuf schema) and payload.
+ * Messages recorded to segment files use the same format.
+ */
+public class RecordedMessage {
+    private final String key;
+    private final long eventTimeMs;
+    private final Map<String, String> properties;
+    private final byte[] payload;
+
+    /**
+     * @param key Key of the message or null
+     */
+    public RecordedMessage(String key, long eventTimeMs, Map<String, String> properties, byte[] payload) {
+        this.key = key;
+        this.eventTimeMs = eventTimeMs;
+        this.properties = Collections.unmodifiableMap(properties);
+        this.payload = payload;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getEventTimeMs() {
+        return eventTimeMs;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    /**
+     * @return Protobuf schema of the payload or null if the message does not have a known schema
+     */
+    public ProtobufSchema getSchema() {
+        return ProtobufSchema.fromString(properties.get(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
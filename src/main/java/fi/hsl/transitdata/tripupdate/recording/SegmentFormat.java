@@ -0,0 +1,66 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Segment files are gzip-compressed files that contain a header and length-prefixed records:
+ *
+ * <pre>
+ * header:  magic (4 bytes, "TUSG"), version (1 byte)
+ * record:  length (int), key flag (boolean), key (UTF, if flag is set), event time (long),
+ *          property count (short), properties (UTF name, UTF value), payload length (int), payload
+ * </pre>
+ *
+ * Length prefix allows reading a segment that was truncated e.g. because the application was killed while writing it.
+ */
+final class SegmentFormat {
+    static final byte[] MAGIC = { 'T', 'U', 'S', 'G' };
+    static final int VERSION = 1;
+
+    static final String FILE_SUFFIX = ".seg.gz";
+
+    private SegmentFormat() {}
+
+    static byte[] encode(RecordedMessage message) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.getPayload().length + 128);
+        final DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeBoolean(message.getKey() != null);
+        if (message.getKey() != null) {
+            output.writeUTF(message.getKey());
+        }
+        output.writeLong(message.getEventTimeMs());
+        output.writeShort(message.getProperties().size());
+        for (Map.Entry<String, String> property : message.getProperties().entrySet()) {
+            output.writeUTF(property.getKey());
+            output.writeUTF(property.getValue());
+        }
+        output.writeInt(message.getPayload().length);
+        output.write(message.getPayload());
+
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    static RecordedMessage decode(byte[] record) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+
+        final String key = input.readBoolean() ? input.readUTF() : null;
+        final long eventTimeMs = input.readLong();
+        final int propertyCount = input.readShort();
+        final Map<String, String> properties = new HashMap<>(propertyCount * 2);
+        for (int i = 0; i < propertyCount; i++) {
+            properties.put(input.readUTF(), input.readUTF());
+        }
+        final byte[] payload = new byte[input.readInt()];
+        input.readFully(payload);
+
+        return new RecordedMessage(key, eventTimeMs, properties, payload);
+    }
+}
@@ -0,0 +1,79 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads recorded messages from a segment file
+ */
+public class SegmentReader implements MessageSource {
+    private static final Logger log = LoggerFactory.getLogger(SegmentReader.class);
+
+    private final Path path;
+    private final DataInputStream input;
+
+    public SegmentReader(Path path) throws IOException {
+        this.path = path;
+        this.input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path), 65536), 65536));
+
+        final byte[] magic = new byte[SegmentFormat.MAGIC.length];
+        input.readFully(magic);
+        if (!Arrays.equals(magic, SegmentFormat.MAGIC)) {
+            throw new IOException(path + " is not a segment file");
+        }
+        final int version = input.readByte();
+        if (version != SegmentFormat.VERSION) {
+            throw new IOException("Unsupported segment version " + version + " in " + path);
+        }
+    }
+
+    @Override
+    public RecordedMessage read() throws IOException {
+        try {
+            final int firstByte = input.read();
+            if (firstByte < 0) {
+                return null;
+            }
+            final int length = (firstByte << 24) | (input.readUnsignedByte() << 16) | (input.readUnsignedByte() << 8) | input.readUnsignedByte();
+            final byte[] record = new byte[length];
+            input.readFully(record);
+            return SegmentFormat.decode(record);
+        } catch (EOFException e) {
+            //Last record is incomplete if the application was stopped while writing the segment
+            log.warn("Segment {} was truncated", path);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * @param path Segment file or directory containing segment files
+     * @return Segment files sorted by name, i.e. in the order they were written
+     */
+    public static List<Path> listSegments(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SegmentFormat.FILE_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
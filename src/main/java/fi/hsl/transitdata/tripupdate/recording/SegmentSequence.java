@@ -0,0 +1,51 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads messages from multiple segment files in order
+ */
+public class SegmentSequence implements MessageSource {
+    private static final Logger log = LoggerFactory.getLogger(SegmentSequence.class);
+
+    private final Iterator<Path> segments;
+    private SegmentReader reader;
+
+    public SegmentSequence(List<Path> segments) {
+        this.segments = segments.iterator();
+    }
+
+    @Override
+    public RecordedMessage read() throws IOException {
+        while (true) {
+            if (reader == null) {
+                if (!segments.hasNext()) {
+                    return null;
+                }
+                final Path segment = segments.next();
+                log.info("Reading {}", segment);
+                reader = new SegmentReader(segment);
+            }
+
+            final RecordedMessage message = reader.read();
+            if (message != null) {
+                return message;
+            }
+            reader.close();
+            reader = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes recorded messages to a single segment file
+ */
+public class SegmentWriter implements AutoCloseable {
+    private final Path path;
+    private final DataOutputStream output;
+
+    private int messages = 0;
+    //DataOutputStream.size() saturates at Integer.MAX_VALUE
+    private long uncompressedSize;
+
+    public SegmentWriter(Path path) throws IOException {
+        this.path = path;
+        this.output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path), 65536), 65536));
+        output.write(SegmentFormat.MAGIC);
+        output.writeByte(SegmentFormat.VERSION);
+        uncompressedSize = SegmentFormat.MAGIC.length + 1;
+    }
+
+    public void write(RecordedMessage message) throws IOException {
+        final byte[] record = SegmentFormat.encode(message);
+        output.writeInt(record.length);
+        output.write(record);
+        uncompressedSize += Integer.BYTES + record.length;
+        messages++;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return Amount of uncompressed bytes written
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
@@ -0,0 +1,75 @@
+package fi.hsl.transitdata.tripupdate.replay;
+
+import com.google.protobuf.TextFormat;
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.application.TripUpdateSink;
+import fi.hsl.transitdata.tripupdate.utils.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects trip updates produced by replay. Each trip update is written on its own line so that outputs of different
+ * versions can be compared with diff.
+ */
+public class ReplaySink implements TripUpdateSink {
+    private final Writer output;
+
+    //Time when the latest message of each trip was passed to processing
+    private final Map<String, Long> latestInputNanos = new ConcurrentHashMap<>();
+    private final Histogram latency = new Histogram("ms", 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000);
+
+    private long tripUpdates = 0;
+
+    /**
+     * @param output Writer for trip updates, or null if trip updates are not written
+     */
+    public ReplaySink(Writer output) {
+        this.output = output;
+    }
+
+    void onInput(String tripId) {
+        if (tripId != null) {
+            latestInputNanos.put(tripId, System.nanoTime());
+        }
+    }
+
+    @Override
+    public synchronized CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+        final Long inputNanos = latestInputNanos.get(tripId);
+        if (inputNanos != null) {
+            latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inputNanos));
+        }
+        tripUpdates++;
+
+        if (output != null) {
+            try {
+                output.write(tripId);
+                output.write('\t');
+                output.write(Long.toString(eventTimeMs));
+                output.write('\t');
+                output.write(TextFormat.shortDebugString(tripUpdate));
+                output.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public synchronized long getTripUpdates() {
+        return tripUpdates;
+    }
+
+    /**
+     * @return Time from passing the latest message of a trip to processing until the trip update was published
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+}
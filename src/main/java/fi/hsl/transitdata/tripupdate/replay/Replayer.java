@@ -0,0 +1,131 @@
+package fi.hsl.transitdata.tripupdate.replay;
+
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import fi.hsl.transitdata.tripupdate.recording.MessageSource;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.recording.SegmentSequence;
+import fi.hsl.transitdata.tripupdate.utils.Histogram;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded messages through {@link MessageRouter}, either as fast as possible or at a multiple of real time
+ */
+public class Replayer {
+    private final MessageRouter router;
+    private final ReplaySink sink;
+    private final double speed;
+
+    private final Histogram processingTime = new Histogram("us", 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 100000);
+
+    private long messages = 0;
+    private long skippedMessages = 0;
+    private long durationNanos = 0;
+    private long allocatedBytes = -1;
+
+    /**
+     * @param speed Multiple of real time, or 0 to replay as fast as possible
+     */
+    public Replayer(MessageRouter router, ReplaySink sink, double speed) {
+        this.router = router;
+        this.sink = sink;
+        this.speed = speed;
+    }
+
+    public void replay(List<Path> segments) throws IOException, InterruptedException {
+        try (SegmentSequence source = new SegmentSequence(segments)) {
+            replay(source);
+        }
+    }
+
+    public void replay(MessageSource source) throws IOException, InterruptedException {
+        final long allocatedBefore = getAllocatedBytes();
+        final long startNanos = System.nanoTime();
+        long firstEventTimeMs = -1;
+
+        RecordedMessage message;
+        while ((message = source.read()) != null) {
+            if (message.getSchema() == null) {
+                skippedMessages++;
+                continue;
+            }
+
+            if (speed > 0) {
+                if (firstEventTimeMs < 0) {
+                    firstEventTimeMs = message.getEventTimeMs();
+                }
+                final long targetNanos = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(message.getEventTimeMs() - firstEventTimeMs) / speed);
+                final long waitNanos = targetNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+
+            process(message);
+        }
+
+        //Wait for debounced trip updates
+        while (router.getPendingTripUpdates() > 0) {
+            Thread.sleep(10);
+        }
+
+        durationNanos = System.nanoTime() - startNanos;
+        if (allocatedBefore >= 0) {
+            allocatedBytes = getAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    private void process(RecordedMessage message) {
+        //Messages are keyed by DVJ ID, which is also the trip ID
+        sink.onInput(message.getKey());
+
+        final long processingStart = System.nanoTime();
+        router.handleMessage(message, null);
+        processingTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - processingStart));
+        messages++;
+    }
+
+    /**
+     * @return Bytes allocated by all live threads or -1 if not supported by the JVM
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long allocated = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+            if (bytes > 0) {
+                allocated += bytes;
+            }
+        }
+        return allocated;
+    }
+
+    public String getReport() {
+        final double durationSecs = durationNanos / 1_000_000_000.0;
+        final StringBuilder report = new StringBuilder();
+        report.append("Replay report:\n");
+        report.append(String.format("\tMessages: %d (%d skipped because of unknown schema)\n", messages, skippedMessages));
+        report.append(String.format("\tTrip updates: %d\n", sink.getTripUpdates()));
+        report.append(String.format("\tDuration: %.2f s\n", durationSecs));
+        report.append(String.format("\tThroughput: %.0f messages/s\n", durationSecs > 0 ? messages / durationSecs : 0));
+        report.append(String.format("\tProcessing time per message (us): p50 %d, p90 %d, p99 %d, p99.9 %d\n",
+                processingTime.getPercentile(50), processingTime.getPercentile(90), processingTime.getPercentile(99), processingTime.getPercentile(99.9)));
+        report.append(String.format("\tLatency until trip update is published (ms): p50 %d, p90 %d, p99 %d\n",
+                sink.getLatency().getPercentile(50), sink.getLatency().getPercentile(90), sink.getLatency().getPercentile(99)));
+        if (allocatedBytes >= 0) {
+            report.append(String.format("\tAllocated: %d MB (%d bytes/message)\n", allocatedBytes / (1024 * 1024), messages > 0 ? allocatedBytes / messages : 0));
+        }
+        return report.toString();
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+}
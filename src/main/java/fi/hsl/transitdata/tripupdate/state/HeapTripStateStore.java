@@ -0,0 +1,72 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import fi.hsl.transitdata.tripupdate.processing.TripState;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Keeps trip state on heap in a Caffeine cache. State objects are modified in place, so storing a trip that is
+ * already in the store is cheap.
+ */
+public class HeapTripStateStore implements TripStateStore {
+    private final Cache<String, TripState> cache;
+
+    private volatile Consumer<String> removalListener = tripKey -> {};
+
+    /**
+     * @param expireAfterAccess Trips that have not been accessed for this long are removed
+     */
+    public HeapTripStateStore(Duration expireAfterAccess) {
+        this.cache = Caffeine.newBuilder()
+                .expireAfterAccess(expireAfterAccess)
+                .evictionListener((String tripKey, TripState state, RemovalCause cause) -> removalListener.accept(tripKey))
+                .build();
+    }
+
+    /**
+     * Creates a store that uses the given ticker and runs maintenance in the calling thread, for tests
+     */
+    HeapTripStateStore(Duration expireAfterAccess, Ticker ticker) {
+        this.cache = Caffeine.newBuilder()
+                .expireAfterAccess(expireAfterAccess)
+                .ticker(ticker)
+                .executor(Runnable::run)
+                .evictionListener((String tripKey, TripState state, RemovalCause cause) -> removalListener.accept(tripKey))
+                .build();
+    }
+
+    @Override
+    public TripState get(String tripKey) {
+        return cache.getIfPresent(tripKey);
+    }
+
+    @Override
+    public void put(String tripKey, TripState state) {
+        cache.put(tripKey, state);
+    }
+
+    @Override
+    public void remove(String tripKey) {
+        cache.invalidate(tripKey);
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public void expire() {
+        cache.cleanUp();
+    }
+
+    @Override
+    public void setRemovalListener(Consumer<String> listener) {
+        this.removalListener = listener;
+    }
+}
@@ -0,0 +1,504 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import fi.hsl.transitdata.tripupdate.processing.TripState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps trip state outside of Java heap, so that the garbage collector does not need to trace it. State of each trip
+ * is encoded with {@link TripState#encode()} to a slab of memory, which is either a direct buffer or a memory-mapped
+ * file. Trips are found with an open-addressing hash table of trip keys, which is also kept outside of heap.
+ *
+ * The slab contains a header followed by records. A record contains the trip key, time of last access and the encoded
+ * state with a checksum. A record is overwritten in place when the new state fits in it, otherwise the record is
+ * marked dead and a new record is appended. Records have some room for growth, because trip state grows as more
+ * stops are estimated. When the slab is full, expired trips are removed and live records are compacted to the
+ * beginning of the slab. If that is not enough, trips that have been accessed least recently are evicted.
+ *
+ * When the slab is a file, state survives restarts. Records are scanned when the store is opened and records whose
+ * checksum does not match, e.g. because the process was killed while writing them, are ignored.
+ */
+public class OffHeapTripStateStore implements TripStateStore {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapTripStateStore.class);
+
+    private static final int MAGIC = 0x54535354;
+    private static final int VERSION = 1;
+
+    //Slab header: magic, version and end of the last record
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int END_OFFSET = 8;
+    static final int HEADER_BYTES = 16;
+
+    //Record header, followed by key and value
+    private static final int RECORD_CAPACITY = 0;
+    private static final int RECORD_STATUS = 4;
+    private static final int RECORD_LAST_ACCESS = 8;
+    private static final int RECORD_HASH = 16;
+    private static final int RECORD_KEY_LENGTH = 20;
+    private static final int RECORD_VALUE_LENGTH = 24;
+    private static final int RECORD_CHECKSUM = 28;
+    static final int RECORD_HEADER_BYTES = 32;
+
+    private static final int STATUS_LIVE = 1;
+    private static final int STATUS_DEAD = 2;
+
+    //Index slot: hash of the trip key and offset of the record plus one, so that zero means an empty slot
+    private static final int SLOT_BYTES = 8;
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final int MIN_SLOTS = 1024;
+
+    private final ByteBuffer data;
+    //Used for bulk reads and writes, which take the position from the buffer in Java 11
+    private final ByteBuffer dataView;
+    private final long expireAfterAccessMs;
+    private final LongSupplier clock;
+
+    private ByteBuffer index;
+    private int slots;
+    //Slots that are not empty, including tombstones
+    private int usedSlots;
+    private int liveRecords;
+    private int end;
+
+    private long evictedTrips = 0;
+    private long compactions = 0;
+
+    private volatile Consumer<String> removalListener = tripKey -> {};
+
+    /**
+     * Creates a store in a direct buffer. State is lost when the process exits
+     *
+     * @param sizeBytes Size of the slab, at most 2 GiB
+     * @param expireAfterAccess Trips that have not been accessed for this long are removed
+     */
+    public OffHeapTripStateStore(long sizeBytes, Duration expireAfterAccess) {
+        this(ByteBuffer.allocateDirect(checkSize(sizeBytes)), expireAfterAccess, System::currentTimeMillis);
+    }
+
+    /**
+     * Creates a store in a memory-mapped file. If the file contains state from a previous run, it is restored
+     *
+     * @param file File of the slab, created if it does not exist
+     * @param sizeBytes Size of the slab, at most 2 GiB
+     * @param expireAfterAccess Trips that have not been accessed for this long are removed
+     */
+    public static OffHeapTripStateStore open(Path file, long sizeBytes, Duration expireAfterAccess) throws IOException {
+        return new OffHeapTripStateStore(map(file, sizeBytes), expireAfterAccess, System::currentTimeMillis);
+    }
+
+    static MappedByteBuffer map(Path file, long sizeBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //Mapping stays valid after the channel has been closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, checkSize(sizeBytes));
+        }
+    }
+
+    OffHeapTripStateStore(ByteBuffer data, Duration expireAfterAccess, LongSupplier clock) {
+        this.data = data;
+        this.dataView = data.duplicate();
+        this.expireAfterAccessMs = expireAfterAccess.toMillis();
+        this.clock = clock;
+
+        this.slots = MIN_SLOTS;
+        this.index = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+
+        if (data.getInt(MAGIC_OFFSET) == MAGIC && data.getInt(VERSION_OFFSET) == VERSION) {
+            restore();
+        } else {
+            data.putInt(MAGIC_OFFSET, MAGIC);
+            data.putInt(VERSION_OFFSET, VERSION);
+            setEnd(HEADER_BYTES);
+        }
+    }
+
+    private static int checkSize(long sizeBytes) {
+        if (sizeBytes <= HEADER_BYTES || sizeBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Size of off-heap trip state store must be between " + HEADER_BYTES + " bytes and 2 GiB, was " + sizeBytes);
+        }
+        return (int) sizeBytes;
+    }
+
+    private void restore() {
+        final int storedEnd = Math.min(data.getInt(END_OFFSET), data.capacity());
+        int ignored = 0;
+        int position = HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= storedEnd) {
+            final int capacity = data.getInt(position + RECORD_CAPACITY);
+            if (capacity < RECORD_HEADER_BYTES || position + capacity > storedEnd) {
+                //Rest of the slab can not be read if the size of a record is corrupted
+                log.warn("Off-heap trip state store has a corrupted record at {}, ignoring rest of the store", position);
+                break;
+            }
+            if (data.getInt(position + RECORD_STATUS) == STATUS_LIVE) {
+                if (isValid(position, capacity)) {
+                    final int hash = data.getInt(position + RECORD_HASH);
+                    final int slot = find(readKey(position), hash);
+                    if (slot >= 0) {
+                        //Compaction that was interrupted can leave a copy of a record behind
+                        kill(slot);
+                    }
+                    insert(hash, position);
+                    liveRecords++;
+                } else {
+                    data.putInt(position + RECORD_STATUS, STATUS_DEAD);
+                    ignored++;
+                }
+            }
+            position += capacity;
+        }
+        setEnd(position);
+        log.info("Restored state of {} trips from off-heap trip state store, ignored {} records with invalid checksum", liveRecords, ignored);
+    }
+
+    private boolean isValid(int record, int capacity) {
+        final int keyLength = data.getInt(record + RECORD_KEY_LENGTH);
+        final int valueLength = data.getInt(record + RECORD_VALUE_LENGTH);
+        if (keyLength < 0 || valueLength < 0 || (long) RECORD_HEADER_BYTES + keyLength + valueLength > capacity) {
+            return false;
+        }
+        return data.getInt(record + RECORD_CHECKSUM) == checksum(readKey(record), readValue(record));
+    }
+
+    private static int checksum(byte[] key, byte[] value) {
+        final CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static int hash(String tripKey) {
+        final int hash = tripKey.hashCode();
+        //Spread higher bits to the lower ones, like HashMap does
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public TripState get(String tripKey) {
+        final byte[] value = read(tripKey);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return TripState.decode(value);
+        } catch (IOException e) {
+            log.warn("Failed to decode state of trip {} from off-heap trip state store", tripKey, e);
+            remove(tripKey);
+            return null;
+        }
+    }
+
+    private synchronized byte[] read(String tripKey) {
+        final int slot = find(tripKey.getBytes(StandardCharsets.UTF_8), hash(tripKey));
+        if (slot < 0) {
+            return null;
+        }
+        final int record = recordAt(slot);
+        final long now = clock.getAsLong();
+        if (now - data.getLong(record + RECORD_LAST_ACCESS) > expireAfterAccessMs) {
+            kill(slot);
+            removalListener.accept(tripKey);
+            return null;
+        }
+        data.putLong(record + RECORD_LAST_ACCESS, now);
+        return readValue(record);
+    }
+
+    @Override
+    public void put(String tripKey, TripState state) {
+        final byte[] value;
+        try {
+            value = state.encode();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode state of trip " + tripKey, e);
+        }
+        final byte[] key = tripKey.getBytes(StandardCharsets.UTF_8);
+        write(key, hash(tripKey), value, checksum(key, value));
+    }
+
+    private synchronized void write(byte[] key, int hash, byte[] value, int checksum) {
+        final int required = RECORD_HEADER_BYTES + key.length + value.length;
+
+        final int slot = find(key, hash);
+        if (slot >= 0) {
+            final int record = recordAt(slot);
+            if (data.getInt(record + RECORD_CAPACITY) >= required) {
+                writeRecord(record, key, hash, value, checksum);
+                return;
+            }
+            kill(slot);
+        }
+
+        //Leave room for growth and keep records aligned
+        final int capacity = (required + required / 4 + 7) & ~7;
+        if (capacity > data.capacity() - HEADER_BYTES) {
+            throw new IllegalStateException("State of a trip (" + required + " bytes) does not fit in the off-heap trip state store");
+        }
+        if (end + capacity > data.capacity()) {
+            reclaim(capacity);
+        }
+        final int record = end;
+        data.putInt(record + RECORD_CAPACITY, capacity);
+        writeRecord(record, key, hash, value, checksum);
+        insert(hash, record);
+        liveRecords++;
+        setEnd(record + capacity);
+    }
+
+    private void writeRecord(int record, byte[] key, int hash, byte[] value, int checksum) {
+        data.putLong(record + RECORD_LAST_ACCESS, clock.getAsLong());
+        data.putInt(record + RECORD_HASH, hash);
+        data.putInt(record + RECORD_KEY_LENGTH, key.length);
+        data.putInt(record + RECORD_VALUE_LENGTH, value.length);
+        data.putInt(record + RECORD_CHECKSUM, checksum);
+        dataView.position(record + RECORD_HEADER_BYTES);
+        dataView.put(key);
+        dataView.put(value);
+        data.putInt(record + RECORD_STATUS, STATUS_LIVE);
+    }
+
+    private byte[] readKey(int record) {
+        final byte[] key = new byte[data.getInt(record + RECORD_KEY_LENGTH)];
+        dataView.position(record + RECORD_HEADER_BYTES);
+        dataView.get(key);
+        return key;
+    }
+
+    private byte[] readValue(int record) {
+        final byte[] value = new byte[data.getInt(record + RECORD_VALUE_LENGTH)];
+        dataView.position(record + RECORD_HEADER_BYTES + data.getInt(record + RECORD_KEY_LENGTH));
+        dataView.get(value);
+        return value;
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+        if (data.getInt(record + RECORD_KEY_LENGTH) != key.length) {
+            return false;
+        }
+        final int keyOffset = record + RECORD_HEADER_BYTES;
+        for (int i = 0; i < key.length; i++) {
+            if (data.get(keyOffset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setEnd(int end) {
+        this.end = end;
+        data.putInt(END_OFFSET, end);
+    }
+
+    /**
+     * @return Slot of the key or -(slot where the key can be inserted) - 1 if the key is not in the index
+     */
+    private int find(byte[] key, int hash) {
+        final int mask = slots - 1;
+        int firstTombstone = -1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final int offset = index.getInt(slot * SLOT_BYTES + 4);
+            if (offset == EMPTY) {
+                return -(firstTombstone >= 0 ? firstTombstone : slot) - 1;
+            }
+            if (offset == TOMBSTONE) {
+                if (firstTombstone < 0) {
+                    firstTombstone = slot;
+                }
+            } else if (index.getInt(slot * SLOT_BYTES) == hash && keyEquals(offset - 1, key)) {
+                return slot;
+            }
+        }
+    }
+
+    private int recordAt(int slot) {
+        return index.getInt(slot * SLOT_BYTES + 4) - 1;
+    }
+
+    //Key must not be in the index
+    private void insert(int hash, int record) {
+        if (usedSlots + 1 > slots / 4 * 3) {
+            //Grow only if there are many live records, otherwise just clean up tombstones
+            rehash(liveRecords + 1 > slots / 2 ? slots * 2 : slots);
+        }
+        final int mask = slots - 1;
+        int slot = hash & mask;
+        int offset;
+        while ((offset = index.getInt(slot * SLOT_BYTES + 4)) != EMPTY && offset != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        if (offset == EMPTY) {
+            usedSlots++;
+        }
+        index.putInt(slot * SLOT_BYTES, hash);
+        index.putInt(slot * SLOT_BYTES + 4, record + 1);
+    }
+
+    private void rehash(int newSlots) {
+        final ByteBuffer previous = index;
+        final int previousSlots = slots;
+        slots = newSlots;
+        index = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+        usedSlots = 0;
+        for (int slot = 0; slot < previousSlots; slot++) {
+            final int offset = previous.getInt(slot * SLOT_BYTES + 4);
+            if (offset != EMPTY && offset != TOMBSTONE) {
+                insert(previous.getInt(slot * SLOT_BYTES), offset - 1);
+            }
+        }
+    }
+
+    private void kill(int slot) {
+        data.putInt(recordAt(slot) + RECORD_STATUS, STATUS_DEAD);
+        index.putInt(slot * SLOT_BYTES + 4, TOMBSTONE);
+        liveRecords--;
+    }
+
+    @Override
+    public synchronized void expire() {
+        final long now = clock.getAsLong();
+        final List<Integer> expired = new ArrayList<>();
+        for (int record = HEADER_BYTES; record < end; record += data.getInt(record + RECORD_CAPACITY)) {
+            if (data.getInt(record + RECORD_STATUS) == STATUS_LIVE && now - data.getLong(record + RECORD_LAST_ACCESS) > expireAfterAccessMs) {
+                expired.add(record);
+            }
+        }
+        removeRecords(expired);
+    }
+
+    private void reclaim(int required) {
+        expire();
+        compact();
+
+        if (end + required > data.capacity()) {
+            evictLeastRecentlyAccessed(required);
+            compact();
+        }
+    }
+
+    private void evictLeastRecentlyAccessed(int required) {
+        final List<Integer> records = new ArrayList<>(liveRecords);
+        for (int record = HEADER_BYTES; record < end; record += data.getInt(record + RECORD_CAPACITY)) {
+            if (data.getInt(record + RECORD_STATUS) == STATUS_LIVE) {
+                records.add(record);
+            }
+        }
+        records.sort((a, b) -> Long.compare(data.getLong(a + RECORD_LAST_ACCESS), data.getLong(b + RECORD_LAST_ACCESS)));
+
+        //Free some extra space so that trips are not evicted on every write when the store is full
+        final long target = required + data.capacity() / 10;
+        final List<Integer> evicted = new ArrayList<>();
+        long free = data.capacity() - end;
+        for (int i = 0; i < records.size() && free < target; i++) {
+            evicted.add(records.get(i));
+            free += data.getInt(records.get(i) + RECORD_CAPACITY);
+        }
+        removeRecords(evicted);
+        evictedTrips += evicted.size();
+        log.warn("Off-heap trip state store is full, evicted {} least recently accessed trips", evicted.size());
+    }
+
+    private void removeRecords(List<Integer> records) {
+        for (int record : records) {
+            final byte[] key = readKey(record);
+            kill(find(key, data.getInt(record + RECORD_HASH)));
+            removalListener.accept(new String(key, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Moves live records to the beginning of the slab and rebuilds the index
+     */
+    private void compact() {
+        for (int slot = 0; slot < slots; slot++) {
+            index.putLong(slot * SLOT_BYTES, 0);
+        }
+        usedSlots = 0;
+
+        byte[] buffer = new byte[1024];
+        int target = HEADER_BYTES;
+        int record = HEADER_BYTES;
+        while (record < end) {
+            final int capacity = data.getInt(record + RECORD_CAPACITY);
+            if (data.getInt(record + RECORD_STATUS) == STATUS_LIVE) {
+                if (target != record) {
+                    if (buffer.length < capacity) {
+                        buffer = new byte[capacity];
+                    }
+                    dataView.position(record);
+                    dataView.get(buffer, 0, capacity);
+                    dataView.position(target);
+                    dataView.put(buffer, 0, capacity);
+                }
+                insert(data.getInt(target + RECORD_HASH), target);
+                target += capacity;
+            }
+            record += capacity;
+        }
+        setEnd(target);
+        compactions++;
+        log.debug("Compacted off-heap trip state store, {} trips use {} of {} bytes", liveRecords, end, data.capacity());
+    }
+
+    @Override
+    public synchronized void remove(String tripKey) {
+        final int slot = find(tripKey.getBytes(StandardCharsets.UTF_8), hash(tripKey));
+        if (slot >= 0) {
+            kill(slot);
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return liveRecords;
+    }
+
+    /**
+     * @return Bytes used by records, including dead records that have not been compacted yet
+     */
+    synchronized long usedBytes() {
+        return end;
+    }
+
+    synchronized long getEvictedTrips() {
+        return evictedTrips;
+    }
+
+    @Override
+    public synchronized void logAndReset(Logger logger) {
+        logger.info("Off-heap trip state: {} trips, {} of {} MB used, {} compactions, evicted {} trips",
+                liveRecords, end / (1024 * 1024), data.capacity() / (1024 * 1024), compactions, evictedTrips);
+        compactions = 0;
+        evictedTrips = 0;
+    }
+
+    @Override
+    public void setRemovalListener(Consumer<String> listener) {
+        this.removalListener = listener;
+    }
+
+    /**
+     * Writes changes of a memory-mapped file to disk
+     */
+    @Override
+    public synchronized void close() {
+        if (data instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) data).force();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Stores trip state snapshots in Redis. Snapshots expire after TTL so that state of finished trips is not kept forever.
+ *
+ * Snapshots are loaded with a separate connection, so that processing of messages does not wait for a batch of
+ * snapshots to be saved.
+ */
+public class RedisTripSnapshotStore implements TripSnapshotStore {
+    private final Jedis jedis;
+    private final Jedis readJedis;
+    private final String keyPrefix;
+    private final int ttlSecs;
+
+    /**
+     * @param jedis Connection for saving snapshots
+     * @param readJedis Connection for loading snapshots
+     */
+    public RedisTripSnapshotStore(Jedis jedis, Jedis readJedis, String keyPrefix, Duration ttl) {
+        this.jedis = jedis;
+        this.readJedis = readJedis;
+        this.keyPrefix = keyPrefix;
+        this.ttlSecs = (int) ttl.getSeconds();
+    }
+
+    private byte[] key(String tripId) {
+        return (keyPrefix + tripId).getBytes(StandardCharsets.UTF_8);
+    }
+
+    //Jedis is not thread-safe, so each connection is used by one thread at a time
+    @Override
+    public byte[] load(String tripId) {
+        synchronized (readJedis) {
+            return readJedis.get(key(tripId));
+        }
+    }
+
+    @Override
+    public byte[] loadHeader(String tripId, int length) {
+        final byte[] header;
+        synchronized (readJedis) {
+            header = readJedis.getrange(key(tripId), 0, length - 1);
+        }
+        //Range of a missing key is empty
+        return header != null && header.length > 0 ? header : null;
+    }
+
+    @Override
+    public void saveAll(Map<String, byte[]> snapshots) {
+        synchronized (jedis) {
+            final Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, byte[]> snapshot : snapshots.entrySet()) {
+                pipeline.setex(key(snapshot.getKey()), ttlSecs, snapshot.getValue());
+            }
+            pipeline.sync();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes trip state snapshots to {@link TripSnapshotStore} in batches and acknowledges the messages that produced
+ * them only after the snapshots have been saved. With a Key_Shared subscription, Pulsar does not deliver messages of
+ * a trip to a new consumer before the previous consumer has acknowledged its messages, so the new consumer always
+ * finds up-to-date state from the store.
+ *
+ * If saving fails, snapshots and acknowledgements are retried on the next flush.
+ */
+public class SnapshotWriter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotWriter.class);
+
+    private final TripSnapshotStore store;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Map<String, byte[]> pendingSnapshots = new HashMap<>();
+    private List<Runnable> pendingAcks = new ArrayList<>();
+
+    private long snapshotsSaved = 0;
+    private long failedFlushes = 0;
+
+    public SnapshotWriter(TripSnapshotStore store, Duration flushInterval) {
+        this.store = store;
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param snapshots Snapshots of trips that were changed by the message
+     * @param ack Acknowledges the message, run after snapshots have been saved
+     */
+    public synchronized void add(Map<String, byte[]> snapshots, Runnable ack) {
+        pendingSnapshots.putAll(snapshots);
+        pendingAcks.add(ack);
+    }
+
+    public void flush() {
+        final Map<String, byte[]> snapshots;
+        final List<Runnable> acks;
+        synchronized (this) {
+            if (pendingAcks.isEmpty()) {
+                return;
+            }
+            snapshots = pendingSnapshots;
+            acks = pendingAcks;
+            pendingSnapshots = new HashMap<>();
+            pendingAcks = new ArrayList<>();
+        }
+
+        try {
+            if (!snapshots.isEmpty()) {
+                store.saveAll(snapshots);
+            }
+        } catch (Exception e) {
+            log.error("Failed to save {} trip state snapshots, retrying on next flush", snapshots.size(), e);
+            synchronized (this) {
+                failedFlushes++;
+                //Newer snapshots replace the ones that failed
+                snapshots.putAll(pendingSnapshots);
+                acks.addAll(pendingAcks);
+                pendingSnapshots = snapshots;
+                pendingAcks = acks;
+            }
+            return;
+        }
+
+        synchronized (this) {
+            snapshotsSaved += snapshots.size();
+        }
+        acks.forEach(Runnable::run);
+    }
+
+    public synchronized int getPendingAcks() {
+        return pendingAcks.size();
+    }
+
+    public synchronized void logAndReset(Logger logger) {
+        logger.info("Trip state snapshots saved: {}, failed flushes: {}, pending acks: {}", snapshotsSaved, failedFlushes, pendingAcks.size());
+        snapshotsSaved = 0;
+        failedFlushes = 0;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,28 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Storage for trip state snapshots that is shared between instances. Used for handing trip state over when trips are
+ * moved from one consumer to another.
+ */
+public interface TripSnapshotStore {
+    /**
+     * @return Latest snapshot of the trip or null if there is no snapshot
+     */
+    byte[] load(String tripId) throws Exception;
+
+    /**
+     * Loads only the beginning of the snapshot, which is enough for checking whether it is newer than the state of the
+     * trip that this instance has
+     *
+     * @return At most length first bytes of the latest snapshot of the trip or null if there is no snapshot
+     */
+    default byte[] loadHeader(String tripId, int length) throws Exception {
+        final byte[] snapshot = load(tripId);
+        return snapshot != null ? Arrays.copyOf(snapshot, Math.min(length, snapshot.length)) : null;
+    }
+
+    void saveAll(Map<String, byte[]> snapshots) throws Exception;
+}
@@ -0,0 +1,58 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import fi.hsl.transitdata.tripupdate.processing.TripState;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Storage for state of trips that are being processed by this instance. Unlike {@link TripSnapshotStore}, which is
+ * used for handing trips over to another instance, the store is accessed for every message.
+ *
+ * Backend is selected with {@code state.store.backend}:
+ * <ul>
+ *     <li>{@code heap}: {@link HeapTripStateStore}, default</li>
+ *     <li>{@code offHeap}: {@link OffHeapTripStateStore} in a direct buffer</li>
+ *     <li>{@code persistent}: {@link OffHeapTripStateStore} in a memory-mapped file, which survives restarts</li>
+ * </ul>
+ *
+ * Stores must be thread-safe, but they are never accessed concurrently for the same trip. Processing logic does not
+ * depend on the backend, so stores only keep {@link TripState}s and do not need to know their contents. All backends
+ * must pass the tests in {@code TripStateStoreConformance}.
+ */
+public interface TripStateStore extends Closeable {
+    /**
+     * @return State of the trip or null if the trip is not in the store. Changes to the returned state are not
+     * necessarily stored before calling {@link #put(String, TripState)}
+     */
+    TripState get(String tripKey);
+
+    void put(String tripKey, TripState state);
+
+    void remove(String tripKey);
+
+    /**
+     * @return Amount of trips in the store
+     */
+    long size();
+
+    /**
+     * Sets listener that is called when the store removes a trip by itself, e.g. because it has not been accessed for
+     * a long time. Not called for {@link #remove(String)}
+     */
+    void setRemovalListener(Consumer<String> listener);
+
+    /**
+     * Removes trips that have not been accessed for longer than the expiry of the store. Stores can also remove
+     * expired trips at any other time. Called periodically
+     */
+    void expire();
+
+    default void logAndReset(Logger logger) {
+        logger.info("Trip state: {} trips", size());
+    }
+
+    @Override
+    default void close() {}
+}
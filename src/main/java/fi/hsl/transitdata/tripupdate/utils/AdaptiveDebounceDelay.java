@@ -0,0 +1,66 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+
+/**
+ * Chooses debounce delay for each key based on how often updates for the key arrive in bursts.
+ *
+ * Inter-arrival times within a burst are tracked with a moving average. Gaps longer than the maximum delay separate
+ * bursts and are not included in the average. For keys whose updates arrive in bursts, we wait long enough to be
+ * fairly sure that the burst has ended. Keys with sparse updates use the minimum delay, because waiting would not
+ * reduce the amount of published messages.
+ */
+public class AdaptiveDebounceDelay implements DebounceDelay {
+    //Weight of the latest inter-arrival time in the moving average
+    static final double SMOOTHING_FACTOR = 0.3;
+    //How many average inter-arrival times to wait before assuming that the burst has ended
+    static final double QUIET_PERIOD_MULTIPLIER = 2;
+
+    private final long minDelayMs;
+    private final long maxDelayMs;
+
+    private final Cache<Object, ArrivalRate> arrivalRates = Caffeine.newBuilder()
+            .expireAfterAccess(Duration.ofHours(1))
+            .build();
+
+    private static class ArrivalRate {
+        long lastArrivalMs;
+        double averageInterArrivalMs = -1;
+    }
+
+    public AdaptiveDebounceDelay(Duration minDelay, Duration maxDelay) {
+        if (minDelay.compareTo(maxDelay) > 0) {
+            throw new IllegalArgumentException("Minimum delay must not be larger than maximum delay");
+        }
+        this.minDelayMs = minDelay.toMillis();
+        this.maxDelayMs = maxDelay.toMillis();
+    }
+
+    @Override
+    public long getDelayMs(Object key, long nowMs) {
+        final ArrivalRate arrivalRate = arrivalRates.get(key, k -> new ArrivalRate());
+        synchronized (arrivalRate) {
+            final long interArrivalMs = Math.max(0, nowMs - arrivalRate.lastArrivalMs);
+            if (arrivalRate.lastArrivalMs > 0 && interArrivalMs <= maxDelayMs) {
+                arrivalRate.averageInterArrivalMs = arrivalRate.averageInterArrivalMs < 0 ?
+                        interArrivalMs :
+                        SMOOTHING_FACTOR * interArrivalMs + (1 - SMOOTHING_FACTOR) * arrivalRate.averageInterArrivalMs;
+            }
+            arrivalRate.lastArrivalMs = nowMs;
+
+            return getDelayMs(arrivalRate.averageInterArrivalMs);
+        }
+    }
+
+    long getDelayMs(double averageInterArrivalMs) {
+        if (averageInterArrivalMs < 0) {
+            //No bursts seen yet
+            return minDelayMs;
+        }
+        final long quietPeriodMs = (long) (QUIET_PERIOD_MULTIPLIER * averageInterArrivalMs);
+        return Math.min(maxDelayMs, Math.max(minDelayMs, quietPeriodMs));
+    }
+}
@@ -0,0 +1,89 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Queue that hands items added from any thread to a handler in batches on a single thread. All items that are added
+ * while the previous batch is being handled form the next batch, so batches grow when items are added faster than
+ * they are handled.
+ */
+public class BatchingQueue<T> {
+    private static final Logger log = LoggerFactory.getLogger(BatchingQueue.class);
+
+    private final BlockingQueue<T> queue = new LinkedBlockingQueue<>();
+    private final Consumer<List<T>> handler;
+    private final Thread thread;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+    private final Histogram batchSizes = new Histogram("", 1, 10, 100, 1000, 10000);
+
+    //Amount of items that have been added but not handled yet
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * @param name Name of the thread that handles the batches
+     * @param handler Handler for the batches. The list must not be used after the handler returns
+     */
+    public BatchingQueue(String name, Consumer<List<T>> handler) {
+        this.handler = handler;
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void add(T item) {
+        pending.incrementAndGet();
+        queue.add(item);
+    }
+
+    private void run() {
+        final List<T> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            batches.incrementAndGet();
+            items.addAndGet(batch.size());
+            batchSizes.record(batch.size());
+            try {
+                handler.accept(batch);
+            } catch (Exception e) {
+                log.error("Exception while handling a batch of {} items", batch.size(), e);
+            }
+            pending.addAndGet(-batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return Amount of items that have been added but whose batch has not been handled yet
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    public void shutdown() {
+        thread.interrupt();
+    }
+
+    public void logAndReset(Logger logger) {
+        final long batchCount = batches.getAndSet(0);
+        final long itemCount = items.getAndSet(0);
+        logger.info("{}: {} items in {} batches, average batch size {}, batch size {}", thread.getName(), itemCount, batchCount,
+                batchCount > 0 ? itemCount / batchCount : 0, batchSizes);
+        batchSizes.reset();
+    }
+}
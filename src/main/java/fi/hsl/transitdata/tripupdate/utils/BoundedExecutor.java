@@ -0,0 +1,46 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Executor that limits the amount of concurrently running tasks with a semaphore. If the limit has been reached,
+ * the calling thread is blocked until a permit is available.
+ */
+public class BoundedExecutor implements Executor {
+    private final Executor executor;
+    private final Semaphore permits;
+
+    public BoundedExecutor(Executor executor, int maxConcurrentTasks) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrentTasks);
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a permit", e);
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+}
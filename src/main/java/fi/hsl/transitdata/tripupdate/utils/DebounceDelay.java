@@ -0,0 +1,19 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+/**
+ * Chooses how long to wait for more updates before running a debounced action
+ */
+public interface DebounceDelay {
+    /**
+     * Invoked each time an action is debounced
+     *
+     * @param key Key of the debounced action
+     * @param nowMs Current time in milliseconds
+     * @return Delay in milliseconds
+     */
+    long getDelayMs(Object key, long nowMs);
+
+    static DebounceDelay fixed(long delayMs) {
+        return (key, nowMs) -> delayMs;
+    }
+}
@@ -1,45 +1,225 @@
 package fi.hsl.transitdata.tripupdate.utils;
 
+import fi.hsl.transitdata.tripupdate.profiling.DebounceFlushEvent;
+import fi.hsl.transitdata.tripupdate.profiling.RecordedEvents;
+
 import java.time.Duration;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /**
  * Helper class that allows debouncing actions
+ *
+ * Actions of the same key are run in the order they were flushed, also when they are run on an executor. An action
+ * is handed to the executor by the scheduler thread only after the previous action of its key has completed.
  */
 public class Debouncer {
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
-        final Thread t = new Thread(runnable);
-        t.setDaemon(true);
-        return t;
-    });
-    private final Map<Object, Future<?>> delayedMap = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier clock;
+    private final Map<Object, Pending> delayedMap = new ConcurrentHashMap<>();
+
+    private final DebounceDelay delay;
+    private final long maxLatencyMs;
+    private final int maxPending;
+    private final Executor executor;
+    //Completion of the latest action of each key that has been handed to the executor
+    private final Map<Object, CompletableFuture<Void>> running = new ConcurrentHashMap<>();
+
+    private final DebouncerStats stats = new DebouncerStats();
+
+    private static class Pending {
+        //Time when the first action that has not been run yet was debounced
+        final long firstPendingMs;
+        volatile Future<?> future;
 
-    private final Duration delay;
+        Pending(long firstPendingMs) {
+            this.firstPendingMs = firstPendingMs;
+        }
+    }
 
     /**
      *
      * @param delay Delay for debounce
      */
     public Debouncer(Duration delay) {
+        this(delay, null);
+    }
+
+    /**
+     *
+     * @param delay Delay for debounce
+     * @param executor Executor for running the debounced actions. If null, actions are run on the scheduler thread
+     */
+    public Debouncer(Duration delay, Executor executor) {
+        this(DebounceDelay.fixed(delay.toMillis()), Duration.ZERO, executor);
+    }
+
+    /**
+     *
+     * @param delay Delay for debounce
+     * @param maxLatency Maximum time to wait since the first pending action, regardless of newer actions. Zero to wait indefinitely
+     * @param executor Executor for running the debounced actions. If null, actions are run on the scheduler thread
+     */
+    public Debouncer(DebounceDelay delay, Duration maxLatency, Executor executor) {
+        this(delay, maxLatency, 0, executor);
+    }
+
+    /**
+     *
+     * @param delay Delay for debounce
+     * @param maxLatency Maximum time to wait since the first pending action, regardless of newer actions. Zero to wait indefinitely
+     * @param maxPending Maximum amount of keys with a pending action. When reached, actions for other keys are run without delay. Zero for no limit
+     * @param executor Executor for running the debounced actions. If null, actions are run on the scheduler thread
+     */
+    public Debouncer(DebounceDelay delay, Duration maxLatency, int maxPending, Executor executor) {
+        this(delay, maxLatency, maxPending, executor, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread t = new Thread(runnable);
+            t.setDaemon(true);
+            return t;
+        }), System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor for tests that need to control time
+     *
+     * @param scheduler Scheduler for the delayed actions
+     * @param clock Current time in milliseconds, must be consistent with the scheduler
+     */
+    Debouncer(DebounceDelay delay, Duration maxLatency, Executor executor, ScheduledExecutorService scheduler, LongSupplier clock) {
+        this(delay, maxLatency, 0, executor, scheduler, clock);
+    }
+
+    Debouncer(DebounceDelay delay, Duration maxLatency, int maxPending, Executor executor, ScheduledExecutorService scheduler, LongSupplier clock) {
+        this.scheduler = scheduler;
+        this.clock = clock;
         this.delay = delay;
+        this.maxLatencyMs = maxLatency.toMillis();
+        this.maxPending = maxPending;
+        this.executor = executor;
     }
 
     public void debounce(final Object key, final Runnable runnable) {
-        final Future<?> prev = delayedMap.put(key, scheduler.schedule(() -> {
+        debounce(key, runnable, 0);
+    }
+
+    /**
+     * @param minDelayMs Minimum delay for this action, used for coalescing some actions more than others. Maximum
+     *                   latency of the action is extended by the same amount, so that it is coalesced more also when
+     *                   it receives updates continuously
+     */
+    public void debounce(final Object key, final Runnable runnable, final long minDelayMs) {
+        final long nowMs = clock.getAsLong();
+        stats.incrementDebounced();
+
+        final Pending previous = delayedMap.get(key);
+        if (previous == null && maxPending > 0 && delayedMap.size() >= maxPending) {
+            //Too many pending actions, run this one immediately instead of keeping it in memory
+            stats.incrementOverflowed();
+            run(key, runnable);
+            return;
+        }
+        final Pending pending = new Pending(previous != null ? previous.firstPendingMs : nowMs);
+
+        long delayMs = Math.max(minDelayMs, delay.getDelayMs(key, nowMs));
+        if (maxLatencyMs > 0) {
+            delayMs = Math.max(0, Math.min(delayMs, pending.firstPendingMs + maxLatencyMs + minDelayMs - nowMs));
+        }
+        stats.recordEffectiveDelay(delayMs);
+
+        final Pending prev = delayedMap.put(key, pending);
+        if (prev != null && prev.future != null) {
+            prev.future.cancel(false);
+        }
+
+        pending.future = scheduler.schedule(() -> {
+            //Action has been replaced by a newer one
+            if (!delayedMap.remove(key, pending)) {
+                return;
+            }
+            final long waitedMs = clock.getAsLong() - pending.firstPendingMs;
+            stats.incrementFlushed();
+            stats.recordActualWait(waitedMs);
+
+            if (!RecordedEvents.isDebounceFlushRecorded()) {
+                run(key, runnable);
+                return;
+            }
+            final DebounceFlushEvent event = new DebounceFlushEvent();
+            event.begin();
+            run(key, runnable);
+            if (event.shouldCommit()) {
+                event.key = key.toString();
+                event.waitedMs = waitedMs;
+                event.commit();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(final Object key, final Runnable runnable) {
+        if (executor == null) {
+            runnable.run();
+            return;
+        }
+        final CompletableFuture<Void> completed = new CompletableFuture<>();
+        final CompletableFuture<Void> previous = running.put(key, completed);
+        final Runnable action = () -> {
             try {
                 runnable.run();
             } finally {
-                delayedMap.remove(key);
+                running.remove(key, completed);
+                completed.complete(null);
             }
-        }, delay.toMillis(), TimeUnit.MILLISECONDS));
-        if (prev != null) {
-            prev.cancel(true);
+        };
+        if (previous == null) {
+            execute(action, key, completed);
+        } else {
+            //Previous action completes on a thread of the executor. Handing the next action to a bounded executor on
+            //that thread could block it while it still holds its permit, so the scheduler thread hands it over instead
+            previous.whenCompleteAsync((result, throwable) -> execute(action, key, completed), scheduler);
+        }
+    }
+
+    private void execute(final Runnable action, final Object key, final CompletableFuture<Void> completed) {
+        try {
+            executor.execute(action);
+        } catch (RejectedExecutionException e) {
+            //Do not block later actions of the key
+            running.remove(key, completed);
+            completed.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels pending action for the key, e.g. when it will be replaced by an action that is run immediately
+     *
+     * @return true if there was a pending action
+     */
+    public boolean cancel(final Object key) {
+        final Pending pending = delayedMap.remove(key);
+        if (pending != null && pending.future != null) {
+            pending.future.cancel(false);
         }
+        return pending != null;
+    }
+
+    /**
+     * @return Amount of keys that have a pending action
+     */
+    public int getPendingCount() {
+        return delayedMap.size();
+    }
+
+    public DebouncerStats getStats() {
+        return stats;
     }
 
     public void shutdown() {
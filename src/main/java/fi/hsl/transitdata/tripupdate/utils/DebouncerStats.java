@@ -0,0 +1,89 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DebouncerStats {
+    private final AtomicLong debounced = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    //Actions that were run without delay because there were too many pending actions
+    private final AtomicLong overflowed = new AtomicLong();
+
+    private final Histogram effectiveDelay = new Histogram("ms", 0, 100, 250, 500, 1000, 2000, 5000, 10000);
+    //Time from the first pending action to running the action
+    private final Histogram actualWait = new Histogram("ms", 100, 250, 500, 1000, 2000, 5000, 10000, 30000);
+
+    public void incrementDebounced() {
+        debounced.incrementAndGet();
+    }
+
+    public void incrementFlushed() {
+        flushed.incrementAndGet();
+    }
+
+    public void incrementOverflowed() {
+        overflowed.incrementAndGet();
+    }
+
+    public void recordEffectiveDelay(long delayMs) {
+        effectiveDelay.record(delayMs);
+    }
+
+    public void recordActualWait(long waitMs) {
+        actualWait.record(waitMs);
+    }
+
+    public long getDebounced() {
+        return debounced.get();
+    }
+
+    public long getFlushed() {
+        return flushed.get();
+    }
+
+    public long getOverflowed() {
+        return overflowed.get();
+    }
+
+    public Histogram getEffectiveDelay() {
+        return effectiveDelay;
+    }
+
+    public Histogram getActualWait() {
+        return actualWait;
+    }
+
+    /**
+     * @return Share of debounced actions that were not run because they were replaced by a newer one. Overflowed
+     * actions were run, so they are not counted as reduced
+     */
+    public double getReductionRatio() {
+        final long debouncedCount = debounced.get();
+        return debouncedCount == 0 ? 0 : 1 - (double) (flushed.get() + overflowed.get()) / debouncedCount;
+    }
+
+    public void reset() {
+        debounced.set(0);
+        flushed.set(0);
+        overflowed.set(0);
+        effectiveDelay.reset();
+        actualWait.reset();
+    }
+
+    public void logAndReset(Logger logger) {
+        logger.info(toString());
+        reset();
+    }
+
+    @Override
+    public String toString() {
+        return "Debouncer stats:\n" +
+                "\tDebounced: " + debounced.get() + "\n" +
+                "\tFlushed: " + flushed.get() + "\n" +
+                "\tOverflowed: " + overflowed.get() + "\n" +
+                "\tReduction ratio: " + String.format("%.3f", getReductionRatio()) + "\n" +
+                "\tEffective delay: " + effectiveDelay + "\n" +
+                "\tActual wait: " + actualWait;
+    }
+}
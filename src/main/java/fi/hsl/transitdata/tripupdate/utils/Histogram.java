@@ -0,0 +1,74 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram with fixed bucket boundaries
+ */
+public class Histogram {
+    private final String unit;
+    private final long[] upperBounds;
+    //Last bucket is for values larger than the last upper bound
+    private final AtomicLongArray counts;
+
+    /**
+     * @param unit Unit of the values, used in text output
+     * @param upperBounds Inclusive upper bounds of the buckets in ascending order
+     */
+    public Histogram(String unit, long... upperBounds) {
+        this.unit = unit;
+        this.upperBounds = upperBounds.clone();
+        this.counts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Upper bound of the bucket containing the percentile or Long.MAX_VALUE if it's in the overflow bucket
+     */
+    public long getPercentile(double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(percentile / 100 * count);
+        long cumulative = 0;
+        for (int i = 0; i < upperBounds.length; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= rank) {
+                return upperBounds[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < upperBounds.length; i++) {
+            sb.append("<=").append(upperBounds[i]).append(unit).append(": ").append(counts.get(i)).append(", ");
+        }
+        sb.append(">").append(upperBounds[upperBounds.length - 1]).append(unit).append(": ").append(counts.get(upperBounds.length));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,214 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Limits the amount of pending sends and queues the rest by priority. When a send completes, the oldest message of
+ * the highest priority is sent next.
+ *
+ * Only the latest message is queued for each key, so a newer message replaces the queued one and takes the higher
+ * priority of the two. This way messages with the same key are never sent out of order.
+ *
+ * Messages can be published with a sequence number, e.g. when high priority messages bypass debouncing and can
+ * overtake older messages of the same key. A message older than the latest published message of its key is dropped.
+ */
+public class PrioritizedPublisher {
+    private static final Logger log = LoggerFactory.getLogger(PrioritizedPublisher.class);
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private static class Queued {
+        final Supplier<CompletableFuture<?>> send;
+        final long queuedAtMs;
+
+        Queued(Supplier<CompletableFuture<?>> send, long queuedAtMs) {
+            this.send = send;
+            this.queuedAtMs = queuedAtMs;
+        }
+    }
+
+    private final int maxPendingSends;
+    private final LongSupplier clock;
+
+    //Sequences are kept long enough for any older message of the key to have been published
+    private static final long SEQUENCE_RETENTION_MS = 10 * 60 * 1000;
+
+    private static class Sequence {
+        final long sequence;
+        final long publishedAtMs;
+
+        Sequence(long sequence, long publishedAtMs) {
+            this.sequence = sequence;
+            this.publishedAtMs = publishedAtMs;
+        }
+    }
+
+    private final Map<Priority, LinkedHashMap<Object, Queued>> queues = new EnumMap<>(Priority.class);
+    private int pendingSends = 0;
+    //Latest sequence of each key, oldest first
+    private final LinkedHashMap<Object, Sequence> sequences = new LinkedHashMap<>();
+
+    private final PublishQueueStats stats = new PublishQueueStats();
+
+    public PrioritizedPublisher(int maxPendingSends) {
+        this(maxPendingSends, System::currentTimeMillis);
+    }
+
+    PrioritizedPublisher(int maxPendingSends, LongSupplier clock) {
+        this.maxPendingSends = maxPendingSends;
+        this.clock = clock;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * @param key Key of the message, only the latest message is queued for each key
+     * @param priority Priority of the message
+     * @param send Function that sends the message asynchronously
+     */
+    public void publish(Object key, Priority priority, Supplier<CompletableFuture<?>> send) {
+        publish(key, -1, priority, send);
+    }
+
+    /**
+     * @param sequence Increasing sequence number of the message. If a message with a higher sequence has already been
+     *                 published for the key, this message is dropped. Negative if the message has no sequence
+     */
+    public void publish(Object key, long sequence, Priority priority, Supplier<CompletableFuture<?>> send) {
+        synchronized (this) {
+            final long nowMs = clock.getAsLong();
+            if (sequence >= 0 && isOutdated(key, sequence, nowMs)) {
+                stats.incrementOutdated();
+                return;
+            }
+
+            long queuedAtMs = nowMs;
+            for (Map.Entry<Priority, LinkedHashMap<Object, Queued>> entry : queues.entrySet()) {
+                final Queued previous = entry.getValue().remove(key);
+                if (previous != null) {
+                    queuedAtMs = previous.queuedAtMs;
+                    if (entry.getKey().compareTo(priority) < 0) {
+                        priority = entry.getKey();
+                    }
+                }
+            }
+
+            if (pendingSends >= maxPendingSends || hasQueued()) {
+                final LinkedHashMap<Object, Queued> queue = queues.get(priority);
+                queue.put(key, new Queued(send, queuedAtMs));
+                stats.recordQueueDepth(priority, queue.size());
+                return;
+            }
+
+            pendingSends++;
+            stats.recordWait(priority, nowMs - queuedAtMs);
+        }
+        send(send);
+    }
+
+    /**
+     * Records the sequence as the latest one of the key unless a newer one has already been published
+     *
+     * @return true if a message with a newer sequence has already been published for the key
+     */
+    private boolean isOutdated(Object key, long sequence, long nowMs) {
+        final Iterator<Sequence> oldest = sequences.values().iterator();
+        while (oldest.hasNext() && nowMs - oldest.next().publishedAtMs > SEQUENCE_RETENTION_MS) {
+            oldest.remove();
+        }
+
+        final Sequence latest = sequences.get(key);
+        if (latest != null && latest.sequence > sequence) {
+            return true;
+        }
+        //Remove first so that the key moves to the end of the insertion order
+        sequences.remove(key);
+        sequences.put(key, new Sequence(sequence, nowMs));
+        return false;
+    }
+
+    private boolean hasQueued() {
+        for (LinkedHashMap<Object, Queued> queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the message and the queued messages that can be sent after it. Sends that complete synchronously, e.g. with
+     * a sink that writes to memory or a file, are drained in a loop instead of recursing once per queued message.
+     */
+    private void send(Supplier<CompletableFuture<?>> send) {
+        Supplier<CompletableFuture<?>> next = send;
+        while (next != null) {
+            final CompletableFuture<?> future = start(next);
+            if (!future.isDone()) {
+                future.whenComplete((result, throwable) -> send(onSendCompleted()));
+                return;
+            }
+            next = onSendCompleted();
+        }
+    }
+
+    private static CompletableFuture<?> start(Supplier<CompletableFuture<?>> send) {
+        try {
+            return send.get();
+        } catch (Exception e) {
+            log.error("Failed to send message", e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * @return Next queued message that should be sent or null if there is none
+     */
+    private synchronized Supplier<CompletableFuture<?>> onSendCompleted() {
+        pendingSends--;
+        final Supplier<CompletableFuture<?>> next = pollNext();
+        if (next != null) {
+            pendingSends++;
+        }
+        return next;
+    }
+
+    private Supplier<CompletableFuture<?>> pollNext() {
+        for (Map.Entry<Priority, LinkedHashMap<Object, Queued>> entry : queues.entrySet()) {
+            final Iterator<Queued> iterator = entry.getValue().values().iterator();
+            if (iterator.hasNext()) {
+                final Queued queued = iterator.next();
+                iterator.remove();
+                stats.recordWait(entry.getKey(), clock.getAsLong() - queued.queuedAtMs);
+                return queued.send;
+            }
+        }
+        return null;
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        return queues.get(priority).size();
+    }
+
+    public synchronized int getPendingSends() {
+        return pendingSends;
+    }
+
+    public PublishQueueStats getStats() {
+        return stats;
+    }
+}
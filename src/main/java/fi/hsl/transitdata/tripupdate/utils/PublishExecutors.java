@@ -0,0 +1,55 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors for running publish tasks.
+ *
+ * Virtual threads are available only when running on Java 21 or newer. They are looked up with reflection so that
+ * the application can still be built and run with Java 11.
+ */
+public class PublishExecutors {
+    private static final Logger log = LoggerFactory.getLogger(PublishExecutors.class);
+
+    public static final String TYPE_PLATFORM = "platform";
+    public static final String TYPE_VIRTUAL = "virtual";
+
+    private PublishExecutors() {}
+
+    /**
+     * @param type Either "platform" or "virtual"
+     * @return Executor service or null if tasks should be run on the calling thread
+     */
+    public static ExecutorService create(String type) {
+        if (TYPE_VIRTUAL.equals(type)) {
+            final ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualThreadExecutor != null) {
+                return virtualThreadExecutor;
+            }
+            log.warn("Virtual threads are not supported by Java {}, running publish tasks on platform threads", Runtime.version().feature());
+        } else if (!TYPE_PLATFORM.equals(type)) {
+            throw new IllegalArgumentException("Unknown publish executor type: " + type);
+        }
+        return null;
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadSupported()) {
+            return null;
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.error("Failed to create virtual thread executor", e);
+            return null;
+        }
+    }
+}
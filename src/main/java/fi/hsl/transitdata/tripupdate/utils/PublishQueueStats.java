@@ -0,0 +1,69 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class PublishQueueStats {
+    private final Map<PrioritizedPublisher.Priority, Histogram> waitTimes = new EnumMap<>(PrioritizedPublisher.Priority.class);
+    private final Map<PrioritizedPublisher.Priority, Integer> maxQueueDepths = new EnumMap<>(PrioritizedPublisher.Priority.class);
+    //Messages dropped because a newer message of the same key had already been published
+    private long outdated = 0;
+
+    public PublishQueueStats() {
+        for (PrioritizedPublisher.Priority priority : PrioritizedPublisher.Priority.values()) {
+            waitTimes.put(priority, new Histogram("ms", 0, 10, 50, 100, 500, 1000, 5000));
+        }
+        reset();
+    }
+
+    synchronized void recordQueueDepth(PrioritizedPublisher.Priority priority, int depth) {
+        maxQueueDepths.compute(priority, (key, prev) -> Math.max(prev, depth));
+    }
+
+    synchronized void incrementOutdated() {
+        outdated++;
+    }
+
+    void recordWait(PrioritizedPublisher.Priority priority, long waitMs) {
+        waitTimes.get(priority).record(waitMs);
+    }
+
+    public synchronized int getMaxQueueDepth(PrioritizedPublisher.Priority priority) {
+        return maxQueueDepths.get(priority);
+    }
+
+    public synchronized long getOutdated() {
+        return outdated;
+    }
+
+    public Histogram getWaitTime(PrioritizedPublisher.Priority priority) {
+        return waitTimes.get(priority);
+    }
+
+    public synchronized void reset() {
+        for (PrioritizedPublisher.Priority priority : PrioritizedPublisher.Priority.values()) {
+            maxQueueDepths.put(priority, 0);
+            waitTimes.get(priority).reset();
+        }
+        outdated = 0;
+    }
+
+    public void logAndReset(Logger logger) {
+        logger.info(toString());
+        reset();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final String depthsText = maxQueueDepths.entrySet().stream().map(entry -> entry.getKey() + ": " + entry.getValue()).collect(Collectors.joining(", "));
+        final String waitsText = waitTimes.entrySet().stream().map(entry -> "\t\t" + entry.getKey() + ": " + entry.getValue()).collect(Collectors.joining("\n"));
+
+        return "Publish queue stats:\n" +
+                "\tMax queue depth: " + depthsText + "\n" +
+                "\tOutdated messages dropped: " + outdated + "\n" +
+                "\tWait time:\n" + waitsText;
+    }
+}
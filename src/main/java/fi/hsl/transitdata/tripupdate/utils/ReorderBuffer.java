@@ -0,0 +1,146 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.slf4j.Logger;
+
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds items for a bounded window and hands them to a handler in order of their timestamps, so that items that were
+ * delayed less than the window are handled in order.
+ *
+ * Window is measured from the latest timestamp seen so far, which is assumed to advance with the wall clock when no
+ * new items arrive. Therefore every item is handled at most one window after it was added, even if no later items
+ * arrive. Items whose timestamp is older than an already handled item are late and handled immediately.
+ *
+ * Handler is called while holding the lock of the buffer, so items are handled one at a time in order.
+ */
+public class ReorderBuffer<T> {
+    private static class Entry<T> implements Comparable<Entry<T>> {
+        final T item;
+        final long timeMs;
+        //Items with the same timestamp are handled in the order they were added
+        final long sequence;
+
+        Entry(T item, long timeMs, long sequence) {
+            this.item = item;
+            this.timeMs = timeMs;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry<T> other) {
+            final int result = Long.compare(timeMs, other.timeMs);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final long windowMs;
+    private final int maxItems;
+    private final Consumer<T> handler;
+    private final LongSupplier clock;
+
+    private final PriorityQueue<Entry<T>> entries = new PriorityQueue<>();
+    private long sequence = 0;
+    //Latest timestamp of added items and the wall clock time when it was added
+    private long maxTimeMs = Long.MIN_VALUE;
+    private long maxTimeAddedMs;
+    //Timestamp of the latest handled item
+    private long handledTimeMs = Long.MIN_VALUE;
+
+    private long added = 0;
+    private long reordered = 0;
+    private long late = 0;
+    private long overflowed = 0;
+
+    /**
+     * @param windowMs How long items are held waiting for items with earlier timestamps
+     * @param maxItems Maximum amount of items held. When exceeded, items with the earliest timestamps are handled before their window has passed
+     */
+    public ReorderBuffer(long windowMs, int maxItems, Consumer<T> handler) {
+        this(windowMs, maxItems, handler, System::currentTimeMillis);
+    }
+
+    ReorderBuffer(long windowMs, int maxItems, Consumer<T> handler, LongSupplier clock) {
+        this.windowMs = windowMs;
+        this.maxItems = maxItems;
+        this.handler = handler;
+        this.clock = clock;
+    }
+
+    public synchronized void add(T item, long timeMs) {
+        added++;
+        if (timeMs < handledTimeMs) {
+            late++;
+            handler.accept(item);
+            return;
+        }
+
+        if (timeMs < maxTimeMs) {
+            //Item would have been handled out of order without the buffer
+            reordered++;
+        } else {
+            maxTimeMs = timeMs;
+            maxTimeAddedMs = clock.getAsLong();
+        }
+        entries.add(new Entry<>(item, timeMs, sequence++));
+
+        while (entries.size() > maxItems) {
+            overflowed++;
+            handle(entries.poll());
+        }
+        releaseExpired();
+    }
+
+    /**
+     * Handles items whose window has passed. Should be called periodically so that items are handled also when no new items are added.
+     */
+    public synchronized void releaseExpired() {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final long watermarkMs = maxTimeMs - windowMs + (clock.getAsLong() - maxTimeAddedMs);
+        while (!entries.isEmpty() && entries.peek().timeMs <= watermarkMs) {
+            handle(entries.poll());
+        }
+    }
+
+    /**
+     * Handles all items in the buffer
+     */
+    public synchronized void flush() {
+        while (!entries.isEmpty()) {
+            handle(entries.poll());
+        }
+    }
+
+    private void handle(Entry<T> entry) {
+        handledTimeMs = Math.max(handledTimeMs, entry.timeMs);
+        handler.accept(entry.item);
+    }
+
+    /**
+     * @return Amount of items waiting in the buffer
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getReorderedCount() {
+        return reordered;
+    }
+
+    synchronized long getLateCount() {
+        return late;
+    }
+
+    public synchronized void logAndReset(Logger logger) {
+        logger.info("Reorder buffer: {} items added, {} reordered, {} late, {} handled early because buffer was full, {} waiting",
+                added, reordered, late, overflowed, entries.size());
+        added = 0;
+        reordered = 0;
+        late = 0;
+        overflowed = 0;
+    }
+}
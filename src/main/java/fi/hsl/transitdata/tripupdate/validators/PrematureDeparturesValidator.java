@@ -6,7 +6,6 @@ import org.slf4j.LoggerFactory;
 
 import java.time.*;
 import java.time.format.DateTimeFormatter;
-import java.util.Optional;
 
 public class PrematureDeparturesValidator implements ITripUpdateValidator {
 
@@ -31,23 +30,25 @@ public class PrematureDeparturesValidator implements ITripUpdateValidator {
             return true;
         }
 
-        String[] tripStartTimeArray = tripUpdate.getTrip().getStartTime().split(":");
-
-        if (tripStartTimeArray.length != 3) {
+        if (!hasThreeTimeFields(tripUpdate.getTrip().getStartTime())) {
             log.error("Invalid start time for trip update");
             return false;
         }
 
-        Optional<GtfsRealtime.TripUpdate.StopTimeUpdate> firstStopTimeUpdate = tripUpdate.getStopTimeUpdateList().stream()
-                .filter(stu -> stu.getScheduleRelationship() != GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA)
-                .findFirst();
+        GtfsRealtime.TripUpdate.StopTimeUpdate firstStopTimeUpdate = null;
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stu : tripUpdate.getStopTimeUpdateList()) {
+            if (stu.getScheduleRelationship() != GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA) {
+                firstStopTimeUpdate = stu;
+                break;
+            }
+        }
 
         //If stop time update is not present, all stop updates are NO_DATA -> trip update is valid
-        if (!firstStopTimeUpdate.isPresent()) {
+        if (firstStopTimeUpdate == null) {
             return true;
         }
 
-        long firstStopTime = firstStopTimeUpdate.get().hasDeparture() ? firstStopTimeUpdate.get().getDeparture().getTime() : firstStopTimeUpdate.get().getArrival().getTime();
+        long firstStopTime = firstStopTimeUpdate.hasDeparture() ? firstStopTimeUpdate.getDeparture().getTime() : firstStopTimeUpdate.getArrival().getTime();
 
         long tripStartTimePosix = tripStartTimeToPosixTime(tripUpdate);
         //Filter out premature departures, where the departure time for the first StopTimeUpdate is more than the
@@ -55,6 +56,16 @@ public class PrematureDeparturesValidator implements ITripUpdateValidator {
         return tripStartTimePosix - firstStopTime <= tripUpdateMinTimeBeforeDeparture;
     }
 
+    private static boolean hasThreeTimeFields(String startTime) {
+        int separators = 0;
+        for (int i = 0; i < startTime.length(); i++) {
+            if (startTime.charAt(i) == ':') {
+                separators++;
+            }
+        }
+        return separators == 2 && !startTime.endsWith(":");
+    }
+
     long tripStartTimeToPosixTime(GtfsRealtime.TripUpdate tripUpdate) {
 
         String[] tripStartTimeArray = tripUpdate.getTrip().getStartTime().split(":");
@@ -2,9 +2,6 @@ package fi.hsl.transitdata.tripupdate.validators;
 
 import com.google.transit.realtime.GtfsRealtime;
 
-import java.util.OptionalLong;
-import java.util.stream.Stream;
-
 public class TripUpdateMaxAgeValidator implements ITripUpdateValidator {
 
     private long tripUpdateMaxAgeInSeconds;
@@ -29,18 +26,20 @@ public class TripUpdateMaxAgeValidator implements ITripUpdateValidator {
             return true;
         }
 
-        OptionalLong maxStopTimeEventTime = tripUpdate.getStopTimeUpdateList().stream()
-                .flatMap(stu -> stu.getScheduleRelationship() == GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA ?
-                        Stream.empty() :
-                        Stream.of(stu.getArrival(), stu.getDeparture()))
-                .mapToLong(GtfsRealtime.TripUpdate.StopTimeEvent::getTime)
-                .max();
+        boolean hasStopTimeEvents = false;
+        long maxStopTimeEventTime = Long.MIN_VALUE;
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stu : tripUpdate.getStopTimeUpdateList()) {
+            if (stu.getScheduleRelationship() != GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA) {
+                hasStopTimeEvents = true;
+                maxStopTimeEventTime = Math.max(maxStopTimeEventTime, Math.max(stu.getArrival().getTime(), stu.getDeparture().getTime()));
+            }
+        }
 
         //If maximum stop event time is not present, all stop updates are NO_DATA -> trip update is valid
-        if (!maxStopTimeEventTime.isPresent()) {
+        if (!hasStopTimeEvents) {
             return true;
         }
 
-        return currentPosixTime - maxStopTimeEventTime.getAsLong() <= tripUpdateMaxAgeInSeconds;
+        return currentPosixTime - maxStopTimeEventTime <= tripUpdateMaxAgeInSeconds;
     }
 }
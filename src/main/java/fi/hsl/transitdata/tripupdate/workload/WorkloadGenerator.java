@@ -0,0 +1,408 @@
+package fi.hsl.transitdata.tripupdate.workload;
+
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.recording.MessageSource;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Generates a synthetic workload that resembles Pubtrans data of a service day in HSL area. Trips of buses, trams,
+ * metros and trains are started throughout the day and each trip produces bursts of stop estimates for its remaining
+ * stops, observed times for passed stops, targeted stop changes and cancellations that are possibly restored later.
+ *
+ * Messages are returned in order of their event time and the output is fully determined by the seed, so the same
+ * workload can be used for comparing different versions.
+ */
+public class WorkloadGenerator implements MessageSource {
+    private static final ZoneId TIMEZONE = ZoneId.of("Europe/Helsinki");
+    private static final DateTimeFormatter OPERATING_DAY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private static final long FIRST_DVJ_ID = 9020000000000000L;
+    private static final long FIRST_DEVIATION_CASE_ID = 1000000L;
+
+    //Pubtrans starts sending estimates some time before the trip starts
+    private static final long LEAD_TIME_MS = Duration.ofMinutes(30).toMillis();
+    private static final long DWELL_TIME_MS = 20000;
+    private static final long MAX_DELAY_MS = Duration.ofMinutes(30).toMillis();
+    private static final long MIN_DELAY_MS = -Duration.ofMinutes(2).toMillis();
+    //Probability that a re-estimate changes the delay so much that another burst follows within seconds
+    private static final double DELAY_JUMP_PROBABILITY = 0.05;
+
+    enum Mode {
+        BUS(new String[] { "1014", "1018", "1039", "2550", "2551B", "4560", "1506", "6173K", "9785AK", "4250D" }, 0.70, 15, 40, 50, 120),
+        TRAM(new String[] { "1001", "1002", "1003", "1004", "1006T", "1007", "1009", "1010" }, 0.12, 15, 30, 60, 90),
+        METRO(new String[] { "31M1", "31M2", "31M1B", "31M2M" }, 0.06, 8, 17, 100, 150),
+        TRAIN(new String[] { "3001K", "3001Z", "3001T", "3002U", "3002A", "3002P" }, 0.12, 8, 25, 120, 300);
+
+        final String[] routes;
+        final double share;
+        final int minStops;
+        final int maxStops;
+        final int minStopIntervalSecs;
+        final int maxStopIntervalSecs;
+
+        Mode(String[] routes, double share, int minStops, int maxStops, int minStopIntervalSecs, int maxStopIntervalSecs) {
+            this.routes = routes;
+            this.share = share;
+            this.minStops = minStops;
+            this.maxStops = maxStops;
+            this.minStopIntervalSecs = minStopIntervalSecs;
+            this.maxStopIntervalSecs = maxStopIntervalSecs;
+        }
+    }
+
+    /**
+     * Settings of the workload. Message rate depends mostly on the amount of trips and the re-estimate interval, e.g.
+     * 20000 trips per day with the default interval produce roughly 1700 messages per second on average.
+     */
+    public static class Settings {
+        long startTimeMs = Instant.now().toEpochMilli();
+        Duration duration = Duration.ofHours(24);
+        int trips = 20000;
+        Duration reestimateInterval = Duration.ofSeconds(30);
+        int maxStopsPerBurst = 0;
+        double cancellationRatio = 0.02;
+        double restoredCancellationRatio = 0.3;
+        double targetedStopChangeRatio = 0.05;
+
+        /**
+         * @param startTimeMs Start time of the simulated period
+         */
+        public Settings startTime(long startTimeMs) {
+            this.startTimeMs = startTimeMs;
+            return this;
+        }
+
+        /**
+         * @param duration Length of the simulated period. Trips are started evenly during the period
+         */
+        public Settings duration(Duration duration) {
+            this.duration = duration;
+            return this;
+        }
+
+        /**
+         * @param trips Amount of trips during the simulated period
+         */
+        public Settings trips(int trips) {
+            this.trips = trips;
+            return this;
+        }
+
+        /**
+         * @param reestimateInterval Average interval between bursts of estimates of a trip
+         */
+        public Settings reestimateInterval(Duration reestimateInterval) {
+            this.reestimateInterval = reestimateInterval;
+            return this;
+        }
+
+        /**
+         * @param maxStopsPerBurst Maximum amount of upcoming stops included in a burst, 0 to include all remaining stops
+         */
+        public Settings maxStopsPerBurst(int maxStopsPerBurst) {
+            this.maxStopsPerBurst = maxStopsPerBurst;
+            return this;
+        }
+
+        /**
+         * @param cancellationRatio Share of trips that are cancelled
+         */
+        public Settings cancellationRatio(double cancellationRatio) {
+            this.cancellationRatio = cancellationRatio;
+            return this;
+        }
+
+        /**
+         * @param restoredCancellationRatio Share of cancelled trips whose cancellation is restored later
+         */
+        public Settings restoredCancellationRatio(double restoredCancellationRatio) {
+            this.restoredCancellationRatio = restoredCancellationRatio;
+            return this;
+        }
+
+        /**
+         * @param targetedStopChangeRatio Share of trips where one of the stops is changed, e.g. to another platform
+         */
+        public Settings targetedStopChangeRatio(double targetedStopChangeRatio) {
+            this.targetedStopChangeRatio = targetedStopChangeRatio;
+            return this;
+        }
+    }
+
+    private final Settings settings;
+    private final Random random;
+
+    private final PriorityQueue<Trip> trips = new PriorityQueue<>(Comparator.comparingLong((Trip trip) -> trip.nextEventMs).thenComparingLong(trip -> trip.dvjId));
+    private final Queue<RecordedMessage> burst = new ArrayDeque<>();
+
+    private long nextDeviationCaseId = FIRST_DEVIATION_CASE_ID;
+
+    private long generatedMessages = 0;
+    private final Map<Mode, Long> generatedTrips = new HashMap<>();
+
+    public WorkloadGenerator(Settings settings, long seed) {
+        this.settings = settings;
+        this.random = new Random(seed);
+
+        final long intervalMs = settings.duration.toMillis() / Math.max(1, settings.trips);
+        for (int i = 0; i < settings.trips; i++) {
+            final long startTimeMs = settings.startTimeMs + LEAD_TIME_MS + i * intervalMs + (long) (random.nextDouble() * intervalMs);
+            final Trip trip = new Trip(FIRST_DVJ_ID + i, randomMode(), startTimeMs);
+            trips.add(trip);
+            generatedTrips.merge(trip.mode, 1L, Long::sum);
+        }
+    }
+
+    private Mode randomMode() {
+        double value = random.nextDouble();
+        for (Mode mode : Mode.values()) {
+            value -= mode.share;
+            if (value < 0) {
+                return mode;
+            }
+        }
+        return Mode.BUS;
+    }
+
+    private int randomBetween(int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    private long jitter(long valueMs) {
+        return (long) (valueMs * (0.5 + random.nextDouble()));
+    }
+
+    @Override
+    public RecordedMessage read() {
+        while (burst.isEmpty()) {
+            final Trip trip = trips.poll();
+            if (trip == null) {
+                return null;
+            }
+            if (trip.advance()) {
+                trips.add(trip);
+            }
+        }
+        generatedMessages++;
+        return burst.poll();
+    }
+
+    public long getGeneratedMessages() {
+        return generatedMessages;
+    }
+
+    /**
+     * @return Amount of trips of each mode
+     */
+    Map<Mode, Long> getGeneratedTrips() {
+        return generatedTrips;
+    }
+
+    private class Trip {
+        final long dvjId;
+        final Mode mode;
+        final String routeId;
+        final int directionId;
+        final String operatingDay;
+        final String startTime;
+        final int firstStopId;
+        final long[] scheduledArrivalMs;
+
+        //Time of the next event of the trip
+        long nextEventMs;
+        long nextEstimateMs;
+
+        long delayMs;
+        //Index of the next stop that the vehicle has not departed from
+        int nextStop = 0;
+
+        //Stop that is changed, e.g. to another platform, or -1 if there is no change
+        int targetedStop = -1;
+        long targetedStopChangeMs;
+
+        long deviationCaseId = 0;
+        long cancellationMs = Long.MAX_VALUE;
+        long restoreMs = Long.MAX_VALUE;
+        boolean cancelled = false;
+
+        Trip(long dvjId, Mode mode, long startTimeMs) {
+            this.dvjId = dvjId;
+            this.mode = mode;
+            this.routeId = mode.routes[random.nextInt(mode.routes.length)];
+            this.directionId = random.nextBoolean() ? PubtransFactory.JORE_DIRECTION_ID_OUTBOUND : PubtransFactory.JORE_DIRECTION_ID_INBOUND;
+
+            //Trips that start after midnight belong to the previous operating day and have start time over 24 hours
+            final LocalDate date = Instant.ofEpochMilli(startTimeMs).atZone(TIMEZONE).minusHours(4).toLocalDate();
+            final long secondsOfOperatingDay = (startTimeMs - date.atStartOfDay(TIMEZONE).toInstant().toEpochMilli()) / 1000;
+            this.operatingDay = date.format(OPERATING_DAY_FORMAT);
+            this.startTime = String.format("%02d:%02d:%02d", secondsOfOperatingDay / 3600, secondsOfOperatingDay / 60 % 60, secondsOfOperatingDay % 60);
+
+            final long tripStartMs = startTimeMs - startTimeMs % 1000;
+            final int stops = randomBetween(mode.minStops, mode.maxStops);
+            final int stopIntervalSecs = randomBetween(mode.minStopIntervalSecs, mode.maxStopIntervalSecs);
+            this.scheduledArrivalMs = new long[stops];
+            for (int i = 0; i < stops; i++) {
+                scheduledArrivalMs[i] = tripStartMs + i * (stopIntervalSecs * 1000L + DWELL_TIME_MS);
+            }
+            this.firstStopId = 1000000 + random.nextInt(9000000);
+
+            this.nextEstimateMs = tripStartMs - LEAD_TIME_MS + (long) (random.nextDouble() * settings.reestimateInterval.toMillis());
+
+            if (random.nextDouble() < settings.targetedStopChangeRatio) {
+                targetedStop = random.nextInt(stops);
+                targetedStopChangeMs = nextEstimateMs + (long) (random.nextDouble() * (scheduledArrivalMs[targetedStop] - nextEstimateMs));
+            }
+
+            if (random.nextDouble() < settings.cancellationRatio) {
+                deviationCaseId = nextDeviationCaseId++;
+                cancellationMs = nextEstimateMs + (long) (random.nextDouble() * (scheduledArrivalMs[stops - 1] - nextEstimateMs));
+                if (random.nextDouble() < settings.restoredCancellationRatio) {
+                    restoreMs = cancellationMs + Duration.ofMinutes(randomBetween(1, 30)).toMillis();
+                }
+            }
+
+            updateNextEventTime();
+        }
+
+        private void updateNextEventTime() {
+            if (cancelled) {
+                nextEventMs = restoreMs;
+            } else {
+                nextEventMs = Math.min(nextEstimateMs, cancellationMs);
+            }
+        }
+
+        private long scheduledDepartureMs(int stop) {
+            return scheduledArrivalMs[stop] + (stop == 0 ? 0 : DWELL_TIME_MS);
+        }
+
+        /**
+         * Generates messages of the next event of this trip
+         *
+         * @return true if the trip has more events
+         */
+        boolean advance() {
+            final long nowMs = nextEventMs;
+
+            if (!cancelled && nowMs == cancellationMs) {
+                cancelled = true;
+                cancellationMs = Long.MAX_VALUE;
+                addCancellation(nowMs, InternalMessages.TripCancellation.Status.CANCELED);
+            } else if (cancelled) {
+                cancelled = false;
+                restoreMs = Long.MAX_VALUE;
+                nextEstimateMs = nowMs;
+                addCancellation(nowMs, InternalMessages.TripCancellation.Status.RUNNING);
+            } else {
+                reestimate(nowMs);
+            }
+
+            if (nextStop >= scheduledArrivalMs.length) {
+                return false;
+            }
+            updateNextEventTime();
+            return nextEventMs != Long.MAX_VALUE;
+        }
+
+        private void reestimate(long nowMs) {
+            delayMs = Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, delayMs + (long) (random.nextGaussian() * 15000)));
+            final boolean delayJump = random.nextDouble() < DELAY_JUMP_PROBABILITY;
+            if (delayJump) {
+                delayMs = Math.min(MAX_DELAY_MS, delayMs + randomBetween(60, 300) * 1000L);
+            }
+
+            //Observed times for stops that the vehicle has passed since the previous burst
+            while (nextStop < scheduledArrivalMs.length && scheduledDepartureMs(nextStop) + delayMs <= nowMs) {
+                if (nextStop > 0) {
+                    addStopEstimate(nowMs, nextStop, InternalMessages.StopEstimate.Type.ARRIVAL, true);
+                }
+                if (nextStop < scheduledArrivalMs.length - 1) {
+                    addStopEstimate(nowMs, nextStop, InternalMessages.StopEstimate.Type.DEPARTURE, true);
+                }
+                nextStop++;
+            }
+
+            final int lastStop = settings.maxStopsPerBurst > 0 ? Math.min(scheduledArrivalMs.length, nextStop + settings.maxStopsPerBurst) : scheduledArrivalMs.length;
+            for (int stop = nextStop; stop < lastStop; stop++) {
+                if (stop > 0) {
+                    addStopEstimate(nowMs, stop, InternalMessages.StopEstimate.Type.ARRIVAL, false);
+                }
+                if (stop < scheduledArrivalMs.length - 1) {
+                    addStopEstimate(nowMs, stop, InternalMessages.StopEstimate.Type.DEPARTURE, false);
+                }
+            }
+
+            nextEstimateMs = nowMs + (delayJump ? randomBetween(1, 5) * 1000L : jitter(settings.reestimateInterval.toMillis()));
+        }
+
+        private void addStopEstimate(long nowMs, int stop, InternalMessages.StopEstimate.Type type, boolean observed) {
+            final long scheduledTimeMs = type == InternalMessages.StopEstimate.Type.ARRIVAL ? scheduledArrivalMs[stop] : scheduledDepartureMs(stop);
+            final String stopId = Integer.toString(firstStopId + stop);
+
+            final InternalMessages.StopEstimate.Builder estimate = InternalMessages.StopEstimate.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTripInfo(tripInfo())
+                    .setStopId(stopId)
+                    .setStopSequence(stop + 1)
+                    .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                    .setType(type)
+                    .setScheduledTimeUtcMs(scheduledTimeMs)
+                    .setEstimatedTimeUtcMs(observed ? Math.min(nowMs, scheduledTimeMs + delayMs) : scheduledTimeMs + delayMs)
+                    .setLastModifiedUtcMs(nowMs)
+                    .setObservedTime(observed);
+            if (stop == targetedStop && nowMs >= targetedStopChangeMs) {
+                estimate.setTargetedStopId(Integer.toString(firstStopId + stop + 5000000));
+            }
+
+            add(nowMs, TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate, estimate.build().toByteArray());
+        }
+
+        private InternalMessages.TripInfo tripInfo() {
+            return InternalMessages.TripInfo.newBuilder()
+                    .setTripId(Long.toString(dvjId))
+                    .setOperatingDay(operatingDay)
+                    .setRouteId(routeId)
+                    .setDirectionId(directionId)
+                    .setStartTime(startTime)
+                    .build();
+        }
+
+        private void addCancellation(long nowMs, InternalMessages.TripCancellation.Status status) {
+            final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.newBuilder()
+                    .setSchemaVersion(1)
+                    .setTripId(Long.toString(dvjId))
+                    .setRouteId(routeId)
+                    .setDirectionId(directionId)
+                    .setStartDate(operatingDay)
+                    .setStartTime(startTime)
+                    .setStatus(status)
+                    .setDeviationCaseId(deviationCaseId)
+                    .build();
+
+            add(nowMs, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation, cancellation.toByteArray());
+        }
+
+        private void add(long eventTimeMs, TransitdataProperties.ProtobufSchema schema, byte[] payload) {
+            final Map<String, String> properties = new HashMap<>();
+            properties.put(TransitdataProperties.KEY_PROTOBUF_SCHEMA, schema.toString());
+            properties.put(TransitdataProperties.KEY_SCHEMA_VERSION, "1");
+            properties.put(TransitdataProperties.KEY_DVJ_ID, Long.toString(dvjId));
+            burst.add(new RecordedMessage(Long.toString(dvjId), eventTimeMs, properties, payload));
+        }
+    }
+}
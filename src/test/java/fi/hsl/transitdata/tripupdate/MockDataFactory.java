@@ -7,6 +7,34 @@ import fi.hsl.transitdata.tripupdate.gtfsrt.GtfsRtFactory;
 
 public class MockDataFactory {
 
+    public static InternalMessages.StopEstimate mockStopEstimate(String tripId, int stopSequence, long timeMs, long lastModifiedMs) {
+        return mockStopEstimate(tripId, stopSequence, InternalMessages.StopEstimate.Type.ARRIVAL, timeMs, lastModifiedMs);
+    }
+
+    public static InternalMessages.StopEstimate mockStopEstimate(String tripId, int stopSequence, InternalMessages.StopEstimate.Type type,
+                                                                 long timeMs, long lastModifiedMs) {
+        InternalMessages.TripInfo tripInfo = InternalMessages.TripInfo.newBuilder()
+                .setTripId(tripId)
+                .setDirectionId(1)
+                .setOperatingDay("20200101")
+                .setStartTime("00:00:00")
+                .setRouteId("2550")
+                .setScheduleType(InternalMessages.TripInfo.ScheduleType.ADDED)
+                .build();
+
+        return InternalMessages.StopEstimate.newBuilder()
+                .setSchemaVersion(1)
+                .setStopId(String.valueOf(stopSequence))
+                .setStopSequence(stopSequence)
+                .setEstimatedTimeUtcMs(timeMs)
+                .setScheduledTimeUtcMs(timeMs)
+                .setLastModifiedUtcMs(lastModifiedMs)
+                .setType(type)
+                .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                .setTripInfo(tripInfo)
+                .build();
+    }
+
     public static GtfsRealtime.TripUpdate.StopTimeEvent mockStopTimeEvent(InternalMessages.StopEstimate.Type eventType, long startTimeEpoch) throws Exception {
         GtfsRealtime.TripUpdate.StopTimeUpdate update = mockStopTimeUpdate(eventType, startTimeEpoch);
         if (eventType == InternalMessages.StopEstimate.Type.ARRIVAL)
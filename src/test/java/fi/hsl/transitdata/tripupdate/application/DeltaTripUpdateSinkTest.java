@@ -0,0 +1,200 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class DeltaTripUpdateSinkTest {
+    //Like the published trip updates, stops have no stop sequence
+    private static GtfsRealtime.TripUpdate.StopTimeUpdate stop(int stopSequence, long arrivalTime) {
+        return stop(Integer.toString(1000 + stopSequence), arrivalTime);
+    }
+
+    private static GtfsRealtime.TripUpdate.StopTimeUpdate stop(String stopId, long arrivalTime) {
+        return GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setStopId(stopId)
+                .setScheduleRelationship(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED)
+                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(arrivalTime))
+                .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(arrivalTime))
+                .build();
+    }
+
+    private static GtfsRealtime.TripUpdate tripUpdate(GtfsRealtime.TripDescriptor.ScheduleRelationship scheduleRelationship,
+                                                      GtfsRealtime.TripUpdate.StopTimeUpdate... stops) {
+        final GtfsRealtime.TripUpdate.Builder builder = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                        .setRouteId("2550")
+                        .setDirectionId(0)
+                        .setStartDate("20240315")
+                        .setStartTime("13:00:00")
+                        .setScheduleRelationship(scheduleRelationship))
+                .setTimestamp(1710503000);
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stop : stops) {
+            builder.addStopTimeUpdate(stop);
+        }
+        return builder.build();
+    }
+
+    private static GtfsRealtime.TripUpdate tripUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate... stops) {
+        return tripUpdate(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, stops);
+    }
+
+    @Test
+    public void firstTripUpdateIsSentInFull() {
+        final GtfsRealtime.TripUpdate tripUpdate = tripUpdate(stop(1, 100), stop(2, 200));
+
+        assertSame(tripUpdate, DeltaTripUpdateSink.createDelta(null, tripUpdate));
+    }
+
+    @Test
+    public void onlyChangedStopsAreIncluded() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop(1, 100), stop(2, 200), stop(3, 300));
+        final GtfsRealtime.TripUpdate current = tripUpdate(stop(1, 100), stop(2, 260), stop(3, 300), stop(4, 400));
+
+        final GtfsRealtime.TripUpdate delta = DeltaTripUpdateSink.createDelta(previous, current);
+
+        assertEquals(current.getTrip(), delta.getTrip());
+        assertEquals(current.getTimestamp(), delta.getTimestamp());
+        assertEquals(List.of(stop(2, 260), stop(4, 400)), delta.getStopTimeUpdateList());
+    }
+
+    @Test
+    public void removedStopsHaveNoData() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop(1, 100), stop(2, 200), stop(3, 300));
+        final GtfsRealtime.TripUpdate current = tripUpdate(stop(2, 200));
+
+        final GtfsRealtime.TripUpdate delta = DeltaTripUpdateSink.createDelta(previous, current);
+
+        assertEquals(2, delta.getStopTimeUpdateCount());
+        assertEquals("1001", delta.getStopTimeUpdate(0).getStopId());
+        assertEquals("1003", delta.getStopTimeUpdate(1).getStopId());
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stop : delta.getStopTimeUpdateList()) {
+            assertEquals(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA, stop.getScheduleRelationship());
+            assertFalse(stop.hasArrival());
+            assertFalse(stop.hasStopSequence());
+        }
+    }
+
+    @Test
+    public void removedStopsKeepTheirPosition() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop(1, 100), stop(2, 200), stop(3, 300));
+        final GtfsRealtime.TripUpdate current = tripUpdate(stop(1, 160), stop(3, 360));
+
+        final GtfsRealtime.TripUpdate delta = DeltaTripUpdateSink.createDelta(previous, current);
+
+        assertEquals(3, delta.getStopTimeUpdateCount());
+        assertEquals(stop(1, 160), delta.getStopTimeUpdate(0));
+        assertEquals("1002", delta.getStopTimeUpdate(1).getStopId());
+        assertEquals(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.NO_DATA, delta.getStopTimeUpdate(1).getScheduleRelationship());
+        assertEquals(stop(3, 360), delta.getStopTimeUpdate(2));
+    }
+
+    @Test
+    public void repeatedVisitsToSameStopAreMatchedInOrder() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop("1001", 100), stop("1002", 200), stop("1001", 300));
+        final GtfsRealtime.TripUpdate current = tripUpdate(stop("1001", 100), stop("1002", 200), stop("1001", 360));
+
+        final GtfsRealtime.TripUpdate delta = DeltaTripUpdateSink.createDelta(previous, current);
+
+        assertEquals(List.of(stop("1001", 360)), delta.getStopTimeUpdateList());
+    }
+
+    @Test
+    public void unchangedStopsProduceNoDelta() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop(1, 100), stop(2, 200));
+        final GtfsRealtime.TripUpdate current = previous.toBuilder().setTimestamp(1710503060).build();
+
+        assertNull(DeltaTripUpdateSink.createDelta(previous, current));
+    }
+
+    @Test
+    public void changedTripDescriptorIsSentInFull() {
+        final GtfsRealtime.TripUpdate previous = tripUpdate(stop(1, 100), stop(2, 200));
+        final GtfsRealtime.TripUpdate cancelled = tripUpdate(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED);
+
+        assertSame(cancelled, DeltaTripUpdateSink.createDelta(previous, cancelled));
+    }
+
+    @Test
+    public void deltasAreSentToDeltaSink() {
+        final List<GtfsRealtime.TripUpdate> full = new ArrayList<>();
+        final List<GtfsRealtime.TripUpdate> deltas = new ArrayList<>();
+        final DeltaTripUpdateSink sink = new DeltaTripUpdateSink((tripId, tripUpdate, eventTimeMs) -> {
+            full.add(tripUpdate);
+            return CompletableFuture.completedFuture(null);
+        }, (tripId, tripUpdate, eventTimeMs) -> {
+            deltas.add(tripUpdate);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        final GtfsRealtime.TripUpdate first = tripUpdate(stop(1, 100), stop(2, 200), stop(3, 300));
+        final GtfsRealtime.TripUpdate second = tripUpdate(stop(1, 100), stop(2, 200), stop(3, 360));
+        sink.send("trip_1", first, 0);
+        sink.send(sink.prepare("trip_1", second, 0));
+        sink.send("trip_1", second, 0);
+
+        assertEquals(List.of(first, second, second), full);
+        assertEquals(2, deltas.size());
+        assertEquals(first, deltas.get(0));
+        assertEquals(List.of(stop(3, 360)), deltas.get(1).getStopTimeUpdateList());
+        assertTrue(deltas.get(1).getSerializedSize() < second.getSerializedSize());
+    }
+
+    @Test
+    public void tripUpdateIsSentInFullAfterFullSendFails() {
+        final List<GtfsRealtime.TripUpdate> deltas = new ArrayList<>();
+        final CompletableFuture<Object> firstSent = new CompletableFuture<>();
+        final DeltaTripUpdateSink sink = new DeltaTripUpdateSink(
+                (tripId, tripUpdate, eventTimeMs) -> deltas.isEmpty() ? firstSent : CompletableFuture.completedFuture(null),
+                (tripId, tripUpdate, eventTimeMs) -> {
+                    deltas.add(tripUpdate);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        final GtfsRealtime.TripUpdate first = tripUpdate(stop(1, 100), stop(2, 200));
+        final GtfsRealtime.TripUpdate second = tripUpdate(stop(1, 100), stop(2, 260));
+        sink.send("trip_1", first, 0);
+        firstSent.completeExceptionally(new RuntimeException());
+        sink.send("trip_1", second, 0);
+
+        assertEquals(List.of(first, second), deltas);
+    }
+
+    @Test
+    public void onlyChangedStopIsSentForProcessorOutput() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final List<GtfsRealtime.TripUpdate> deltas = new ArrayList<>();
+        final DeltaTripUpdateSink sink = new DeltaTripUpdateSink(
+                (tripId, tripUpdate, eventTimeMs) -> CompletableFuture.completedFuture(null),
+                (tripId, tripUpdate, eventTimeMs) -> {
+                    deltas.add(tripUpdate);
+                    return CompletableFuture.completedFuture(null);
+                });
+
+        for (int stopSequence = 1; stopSequence <= 5; stopSequence++) {
+            processor.processStopEstimate(stopEstimate(stopSequence, stopSequence * 60000L))
+                    .ifPresent(tripUpdate -> sink.send("trip_1", tripUpdate, 0));
+        }
+        deltas.clear();
+
+        final GtfsRealtime.TripUpdate tripUpdate = processor.processStopEstimate(stopEstimate(5, 330000L)).get();
+        sink.send("trip_1", tripUpdate, 0);
+
+        assertEquals(1, deltas.size());
+        assertEquals(1, deltas.get(0).getStopTimeUpdateCount());
+        assertEquals("5", deltas.get(0).getStopTimeUpdate(0).getStopId());
+        assertEquals(330, deltas.get(0).getStopTimeUpdate(0).getArrival().getTime());
+    }
+
+    private static InternalMessages.StopEstimate stopEstimate(int stopSequence, long estimatedTimeUtcMs) {
+        return MockDataFactory.mockStopEstimate("trip_1", stopSequence, estimatedTimeUtcMs, 0);
+    }
+}
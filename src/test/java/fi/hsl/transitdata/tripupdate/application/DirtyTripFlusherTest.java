@@ -0,0 +1,80 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class DirtyTripFlusherTest {
+    private static InternalMessages.StopEstimate stopEstimate(String tripId, int stopSequence) {
+        return MockDataFactory.mockStopEstimate(tripId, stopSequence, 1710503000000L + stopSequence * 60000L, 1710503000000L);
+    }
+
+    private static List<PreparedTripUpdate> flush(int threads, int trips) {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final List<DirtyTripFlusher.DirtyTrip> batch = new ArrayList<>();
+        for (int trip = 0; trip < trips; trip++) {
+            for (int stopSequence = 1; stopSequence <= 5; stopSequence++) {
+                processor.markStopEstimate(stopEstimate("trip_" + trip, stopSequence));
+            }
+            batch.add(new DirtyTripFlusher.DirtyTrip("trip_" + trip, trip));
+        }
+
+        final List<PreparedTripUpdate> sent = new ArrayList<>();
+        final TripUpdateSink sink = new TripUpdateSink() {
+            @Override
+            public CompletableFuture<?> send(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+                throw new AssertionError("Trip updates should be sent after preparing them");
+            }
+
+            @Override
+            public PreparedTripUpdate prepare(String tripId, GtfsRealtime.TripUpdate tripUpdate, long eventTimeMs) {
+                return new PreparedTripUpdate(tripId, tripUpdate, eventTimeMs, tripUpdate.toByteArray());
+            }
+        };
+        //Every third trip is rejected by the validator
+        final DirtyTripFlusher flusher = new DirtyTripFlusher(processor, pair -> Integer.parseInt(pair.getTripId().substring(5)) % 3 != 0,
+                sink, sent::add, threads);
+        try {
+            assertEquals(trips - (trips + 2) / 3, flusher.flush(batch));
+        } finally {
+            flusher.shutdown();
+        }
+        assertEquals(0, processor.getDirtyTripCount());
+        return sent;
+    }
+
+    @Test
+    public void validTripUpdatesAreSentInOrderOfBatch() {
+        final List<PreparedTripUpdate> sent = flush(4, 500);
+
+        final List<String> expectedTripIds = new ArrayList<>();
+        for (int trip = 0; trip < 500; trip++) {
+            if (trip % 3 != 0) {
+                expectedTripIds.add("trip_" + trip);
+            }
+        }
+        assertEquals(expectedTripIds, sent.stream().map(PreparedTripUpdate::getTripId).collect(Collectors.toList()));
+        for (PreparedTripUpdate tripUpdate : sent) {
+            assertEquals(5, tripUpdate.getTripUpdate().getStopTimeUpdateCount());
+            assertArrayEquals(tripUpdate.getTripUpdate().toByteArray(), tripUpdate.getPayload());
+            assertEquals(Integer.parseInt(tripUpdate.getTripId().substring(5)), tripUpdate.getEventTimeMs());
+        }
+    }
+
+    @Test
+    public void sameTripUpdatesAreSentWithAnyAmountOfThreads() {
+        final List<GtfsRealtime.TripUpdate> expected = flush(1, 200).stream().map(PreparedTripUpdate::getTripUpdate).collect(Collectors.toList());
+        for (int threads : new int[]{ 2, 4, 8 }) {
+            assertEquals(expected, flush(threads, 200).stream().map(PreparedTripUpdate::getTripUpdate).collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class FileTripUpdateSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static GtfsRealtime.TripUpdate tripUpdate(int stops) {
+        final GtfsRealtime.TripUpdate.Builder builder = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder()
+                        .setRouteId("2550")
+                        .setDirectionId(0)
+                        .setStartDate("20240315")
+                        .setStartTime("13:00:00")
+                        .setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED))
+                .setTimestamp(1710503000);
+        for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+            builder.addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                    .setStopSequence(stopSequence)
+                    .setStopId(Integer.toString(1000 + stopSequence))
+                    .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1710503000 + stopSequence * 60)));
+        }
+        return builder.build();
+    }
+
+    private static List<GtfsRealtime.TripUpdate> readAll(Path directory) throws Exception {
+        final List<GtfsRealtime.TripUpdate> tripUpdates = new ArrayList<>();
+        for (Path file : FileTripUpdateSink.listFiles(directory)) {
+            for (GtfsRealtime.FeedMessage feedMessage : FileTripUpdateSink.read(file)) {
+                assertEquals(GtfsRealtime.FeedHeader.Incrementality.DIFFERENTIAL, feedMessage.getHeader().getIncrementality());
+                tripUpdates.add(feedMessage.getEntity(0).getTripUpdate());
+            }
+        }
+        return tripUpdates;
+    }
+
+    @Test
+    public void tripUpdatesAreReadBackInOrder() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final List<GtfsRealtime.TripUpdate> expected = new ArrayList<>();
+        final FileTripUpdateSink sink = new FileTripUpdateSink(directory, 1024 * 1024, 0);
+        for (int i = 1; i <= 50; i++) {
+            final GtfsRealtime.TripUpdate tripUpdate = tripUpdate(i);
+            expected.add(tripUpdate);
+            assertTrue(sink.send("trip_" + i, tripUpdate, i).isDone());
+        }
+        sink.close();
+
+        assertEquals(1, FileTripUpdateSink.listFiles(directory).size());
+        assertEquals(expected, readAll(directory));
+    }
+
+    @Test
+    public void filesAreRolledAndOldFilesDeleted() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final List<GtfsRealtime.TripUpdate> sent = new ArrayList<>();
+        final FileTripUpdateSink sink = new FileTripUpdateSink(directory, 2000, 3);
+        for (int i = 0; i < 100; i++) {
+            final GtfsRealtime.TripUpdate tripUpdate = tripUpdate(10);
+            sent.add(tripUpdate);
+            sink.send(sink.prepare("trip_" + i, tripUpdate, i));
+        }
+        sink.close();
+
+        //3 completed files and the current one
+        final List<Path> files = FileTripUpdateSink.listFiles(directory);
+        assertEquals(4, files.size());
+        for (Path file : files) {
+            assertTrue(file.toFile().length() <= 2000);
+        }
+        //Latest trip updates are kept
+        final List<GtfsRealtime.TripUpdate> kept = readAll(directory);
+        assertEquals(sent.subList(sent.size() - kept.size(), sent.size()), kept);
+    }
+
+    @Test
+    public void tripUpdateLargerThanBufferIsWritten() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final GtfsRealtime.TripUpdate small = tripUpdate(1);
+        final GtfsRealtime.TripUpdate large = tripUpdate(5000);
+        assertTrue(large.getSerializedSize() > 64 * 1024);
+
+        final FileTripUpdateSink sink = new FileTripUpdateSink(directory, 1024 * 1024, 0);
+        sink.send("trip_1", small, 0);
+        sink.send("trip_2", large, 0);
+        sink.send("trip_3", small, 0);
+        sink.close();
+
+        assertEquals(List.of(small, large, small), readAll(directory));
+    }
+
+    @Test
+    public void sinkIsSelectedWithConfig() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("output");
+        final Config config = ConfigFactory.parseMap(Map.of("publisher.debounceDelay", "0 ms", "publisher.executor", "platform",
+                        "publisher.sink.type", "file", "publisher.sink.file.directory", directory.toString()))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+        final TripUpdateSink sink = MessageRouter.createSink(config, null);
+        assertTrue(sink instanceof FileTripUpdateSink);
+
+        final MessageRouter router = new MessageRouter(config, null, sink, null);
+        final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.newBuilder()
+                .setSchemaVersion(1)
+                .setTripId("trip_1")
+                .setDirectionId(1)
+                .setRouteId("2550")
+                .setStartDate("20240315")
+                .setStartTime("13:00:00")
+                .setStatus(InternalMessages.TripCancellation.Status.CANCELED)
+                .build();
+        router.process(TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation, "trip_1", 1000, cancellation.toByteArray());
+        while (router.getPendingTripUpdates() > 0) {
+            Thread.sleep(10);
+        }
+        ((FileTripUpdateSink) sink).close();
+
+        final List<GtfsRealtime.TripUpdate> tripUpdates = readAll(directory);
+        assertEquals(1, tripUpdates.size());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, tripUpdates.get(0).getTrip().getScheduleRelationship());
+
+        final Config memoryConfig = ConfigFactory.parseMap(Map.of("publisher.sink.type", "memory", "publisher.sink.memory.capacity", "10"))
+                .withFallback(config);
+        assertTrue(MessageRouter.createSink(memoryConfig, null) instanceof InMemoryTripUpdateSink);
+    }
+}
@@ -0,0 +1,56 @@
+package fi.hsl.transitdata.tripupdate.application;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.utils.PrioritizedPublisher.Priority;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class PublishPriorityClassifierTest {
+    private static final long NOW = 1541603400;
+
+    private final PublishPriorityClassifier classifier = new PublishPriorityClassifier(Duration.ofMinutes(10), Duration.ofMinutes(60));
+
+    private static GtfsRealtime.TripUpdate tripUpdateWithStopTimes(long... times) {
+        GtfsRealtime.TripUpdate.StopTimeUpdate[] stopTimeUpdates = new GtfsRealtime.TripUpdate.StopTimeUpdate[times.length];
+        for (int i = 0; i < times.length; i++) {
+            stopTimeUpdates[i] = MockDataFactory.mockStopTimeUpdate(String.valueOf(i), times[i], times[i]);
+        }
+        return MockDataFactory.mockTripUpdate("1010", 0, "20181107", "17:14:00", Arrays.asList(stopTimeUpdates));
+    }
+
+    @Test
+    public void cancellationIsHighPriority() {
+        GtfsRealtime.TripUpdate tripUpdate = tripUpdateWithStopTimes(NOW + 7200);
+        assertEquals(Priority.HIGH, classifier.classify(tripUpdate, true, NOW));
+
+        GtfsRealtime.TripUpdate canceled = tripUpdate.toBuilder()
+                .setTrip(tripUpdate.getTrip().toBuilder().setScheduleRelationship(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED))
+                .build();
+        assertEquals(Priority.HIGH, classifier.classify(canceled, false, NOW));
+    }
+
+    @Test
+    public void priorityIsBasedOnNextStopTime() {
+        assertEquals(Priority.HIGH, classifier.classify(tripUpdateWithStopTimes(NOW + 600), false, NOW));
+        assertEquals(Priority.NORMAL, classifier.classify(tripUpdateWithStopTimes(NOW + 601), false, NOW));
+        assertEquals(Priority.NORMAL, classifier.classify(tripUpdateWithStopTimes(NOW + 3600), false, NOW));
+        assertEquals(Priority.LOW, classifier.classify(tripUpdateWithStopTimes(NOW + 3601), false, NOW));
+    }
+
+    @Test
+    public void pastStopTimesAreIgnored() {
+        assertEquals(Priority.HIGH, classifier.classify(tripUpdateWithStopTimes(NOW - 7200, NOW - 60, NOW + 60, NOW + 7200), false, NOW));
+        assertEquals(NOW + 60, PublishPriorityClassifier.getNextStopTime(tripUpdateWithStopTimes(NOW - 60, NOW + 60), NOW));
+    }
+
+    @Test
+    public void tripUpdateWithoutFutureStopTimesIsNormalPriority() {
+        assertEquals(Priority.NORMAL, classifier.classify(tripUpdateWithStopTimes(), false, NOW));
+        assertEquals(Priority.NORMAL, classifier.classify(tripUpdateWithStopTimes(NOW - 60), false, NOW));
+    }
+}
@@ -7,10 +7,12 @@ import fi.hsl.transitdata.tripupdate.MockDataFactory;
 import org.junit.Test;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.function.Consumer;
 
 import static com.google.transit.realtime.GtfsRealtime.TripUpdate.*;
@@ -317,4 +319,40 @@ public class GtfsRtValidatorTest {
         assertTrue(scheduled.get().hasArrival());
         assertTrue(scheduled.get().hasDeparture());
     }
+
+    @Test
+    public void testCleanStopTimeUpdatesEqualsStepByStepCleaning() {
+        final Random random = new Random(1234);
+        for (int round = 0; round < 1000; round++) {
+            final List<StopTimeUpdate> raw = new ArrayList<>();
+            long time = 1545674400L;
+            final int stops = 1 + random.nextInt(10);
+            for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+                final StopTimeUpdate.Builder builder = StopTimeUpdate.newBuilder()
+                        .setStopSequence(stopSequence)
+                        .setStopId(Integer.toString(1000 + stopSequence));
+                if (random.nextInt(5) == 0) {
+                    builder.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.NO_DATA);
+                }
+                //Times are allowed to go backwards so that the timestamps need fixing
+                time += random.nextInt(240) - 60;
+                final int events = random.nextInt(3);
+                if (events != 1) {
+                    builder.setArrival(StopTimeEvent.newBuilder().setTime(time).setUncertainty(random.nextInt(2)));
+                }
+                if (events != 2) {
+                    builder.setDeparture(StopTimeEvent.newBuilder().setTime(time + random.nextInt(120) - 60));
+                }
+                raw.add(builder.build());
+            }
+            final StopTimeUpdate latest = random.nextBoolean() ? raw.get(random.nextInt(raw.size())) : null;
+
+            final List<StopTimeUpdate> expected = GtfsRtValidator.removeEstimatesFromNoDataUpdates(
+                    GtfsRtValidator.fillMissingArrivalsAndDepartures(
+                            GtfsRtValidator.removeStopSequences(
+                                    GtfsRtValidator.validateArrivalsAndDepartures(raw, latest))));
+
+            assertEquals(expected, GtfsRtValidator.cleanStopTimeUpdates(raw, latest));
+        }
+    }
 }
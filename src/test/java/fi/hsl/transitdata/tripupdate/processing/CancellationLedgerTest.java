@@ -0,0 +1,65 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.proto.InternalMessages.TripCancellation.Status;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CancellationLedgerTest {
+    @Test
+    public void emptyLedgerHasNoActiveCancellations() {
+        assertFalse(new CancellationLedger().hasActiveCancellations());
+    }
+
+    @Test
+    public void cancellationIsActiveUntilRestored() {
+        CancellationLedger ledger = new CancellationLedger();
+
+        ledger.add(1, Status.CANCELED);
+        assertTrue(ledger.hasActiveCancellations());
+
+        ledger.add(1, Status.RUNNING);
+        assertFalse(ledger.hasActiveCancellations());
+
+        //Restored deviation case stays restored even if it is cancelled again
+        ledger.add(1, Status.CANCELED);
+        assertFalse(ledger.hasActiveCancellations());
+    }
+
+    @Test
+    public void restoredBeforeCancelledIsNotActive() {
+        CancellationLedger ledger = new CancellationLedger();
+
+        ledger.add(1, Status.RUNNING);
+        ledger.add(1, Status.CANCELED);
+        assertFalse(ledger.hasActiveCancellations());
+    }
+
+    @Test
+    public void deviationCasesAreTrackedSeparately() {
+        CancellationLedger ledger = new CancellationLedger();
+
+        ledger.add(1, Status.CANCELED);
+        ledger.add(2, Status.CANCELED);
+        ledger.add(3, Status.RUNNING);
+        assertEquals(2, ledger.getActiveCancellations());
+
+        ledger.add(1, Status.RUNNING);
+        assertEquals(1, ledger.getActiveCancellations());
+        assertTrue(ledger.hasActiveCancellations());
+
+        ledger.add(2, Status.RUNNING);
+        assertFalse(ledger.hasActiveCancellations());
+    }
+
+    @Test
+    public void duplicateStatusesAreCountedOnce() {
+        CancellationLedger ledger = new CancellationLedger();
+
+        ledger.add(1, Status.CANCELED);
+        ledger.add(1, Status.CANCELED);
+        assertEquals(1, ledger.getActiveCancellations());
+    }
+}
@@ -81,4 +81,13 @@ public class ProcessorUtilsTest {
         assertFalse(ProcessorUtils.isTrainRoute("30002"));
     }
 
+    @Test
+    public void routeClassIsResolved() {
+        assertEquals(RouteClass.TRAIN, ProcessorUtils.getRouteClass("3001K"));
+        assertEquals(RouteClass.METRO, ProcessorUtils.getRouteClass("31M2B"));
+        assertEquals(RouteClass.OTHER, ProcessorUtils.getRouteClass("1014"));
+        assertEquals(RouteClass.OTHER, ProcessorUtils.getRouteClass("6173K"));
+        assertEquals(RouteClass.INVALID, ProcessorUtils.getRouteClass("M100"));
+    }
+
 }
@@ -0,0 +1,73 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import fi.hsl.common.transitdata.MockDataUtils;
+import fi.hsl.common.transitdata.PubtransFactory;
+import fi.hsl.common.transitdata.TransitdataProperties.ProtobufSchema;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.common.transitdata.proto.PubtransTableProtos;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class RoutePreFilterTest {
+
+    private static byte[] mockStopEstimate(String routeName) {
+        long dvjId = MockDataUtils.generateValidJoreId();
+        PubtransTableProtos.Common common = MockDataUtils.mockCommon(dvjId).build();
+        PubtransTableProtos.DOITripInfo mockTripInfo = MockDataUtils.mockDOITripInfo(dvjId, routeName, PubtransFactory.JORE_DIRECTION_ID_INBOUND);
+        return PubtransFactory.createStopEstimate(common, mockTripInfo, InternalMessages.StopEstimate.Type.ARRIVAL).toByteArray();
+    }
+
+    private static byte[] mockTripCancellation(String routeName) throws Exception {
+        return MockDataUtils.mockTripCancellation(MockDataUtils.generateValidJoreId(), routeName, PubtransFactory.JORE_DIRECTION_ID_INBOUND, LocalDateTime.now()).toByteArray();
+    }
+
+    @Test
+    public void routeIdIsPeekedFromPayload() throws Exception {
+        assertEquals("1014", RoutePreFilter.peekRouteId(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("1014")));
+        assertEquals("3001K", RoutePreFilter.peekRouteId(ProtobufSchema.InternalMessagesTripCancellation, mockTripCancellation("3001K")));
+    }
+
+    @Test
+    public void trainRoutesAreRejectedWhenFiltered() throws Exception {
+        RoutePreFilter filter = new RoutePreFilter(true);
+
+        assertEquals(Optional.of(RoutePreFilter.REASON_TRAIN_ROUTE), filter.check(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("3001K")));
+        assertEquals(Optional.of(RoutePreFilter.REASON_TRAIN_ROUTE), filter.check(ProtobufSchema.InternalMessagesTripCancellation, mockTripCancellation("3002U")));
+    }
+
+    @Test
+    public void trainRoutesAreAcceptedWhenNotFiltered() throws Exception {
+        RoutePreFilter filter = new RoutePreFilter(false);
+
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("3001K")).isPresent());
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesTripCancellation, mockTripCancellation("3002U")).isPresent());
+    }
+
+    @Test
+    public void otherRoutesAreAccepted() throws Exception {
+        RoutePreFilter filter = new RoutePreFilter(true);
+
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("1014")).isPresent());
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("31M1")).isPresent());
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesTripCancellation, mockTripCancellation("4250D8")).isPresent());
+    }
+
+    @Test
+    public void invalidRoutesAreRejected() throws Exception {
+        RoutePreFilter filter = new RoutePreFilter(true);
+
+        assertEquals(Optional.of(RoutePreFilter.REASON_INVALID_ROUTE), filter.check(ProtobufSchema.InternalMessagesStopEstimate, mockStopEstimate("M100")));
+    }
+
+    @Test
+    public void garbagePayloadIsPassedToProcessor() {
+        RoutePreFilter filter = new RoutePreFilter(true);
+
+        assertFalse(filter.check(ProtobufSchema.InternalMessagesStopEstimate, new byte[] { (byte) 0xFF, (byte) 0xFF }).isPresent());
+    }
+}
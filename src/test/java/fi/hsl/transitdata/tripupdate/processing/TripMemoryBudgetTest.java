@@ -0,0 +1,94 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TripMemoryBudgetTest {
+    private static final long NOW_MS = 1710503000000L;
+
+    @Test
+    public void tripsFurthestInThePastAreEvictedFirst() {
+        TripMemoryBudget budget = new TripMemoryBudget(300, 0.9);
+
+        assertEquals(List.of(), budget.update("trip_1", 100, 2000));
+        assertEquals(List.of(), budget.update("trip_2", 100, 1000));
+        assertEquals(List.of(), budget.update("trip_3", 100, 3000));
+
+        assertEquals(List.of("trip_2"), budget.update("trip_4", 100, 4000));
+        assertEquals(300, budget.getTotalWeight());
+
+        //Updated trip is never evicted even if it is the oldest
+        assertEquals(List.of("trip_3", "trip_4"), budget.update("trip_1", 300, 0));
+        assertEquals(1, budget.getTrips());
+        assertEquals(3, budget.getEvictedTrips());
+    }
+
+    @Test
+    public void removedTripDoesNotCountTowardsBudget() {
+        TripMemoryBudget budget = new TripMemoryBudget(300, 0.5);
+
+        budget.update("trip_1", 200, 1000);
+        assertTrue(budget.isUnderPressure());
+
+        budget.remove("trip_1");
+        assertFalse(budget.isUnderPressure());
+        assertEquals(0, budget.getTotalWeight());
+    }
+
+    @Test
+    public void referenceTimeIsLatestStopTime() {
+        GtfsRealtime.TripUpdate tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setTripId("trip_1"))
+                .setTimestamp(100)
+                .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                        .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(2000)))
+                .addStopTimeUpdate(GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                        .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(3000)))
+                .build();
+
+        assertEquals(3000, TripMemoryBudget.getReferenceTime(tripUpdate));
+        assertEquals(100, TripMemoryBudget.getReferenceTime(tripUpdate.toBuilder().clearStopTimeUpdate().build()));
+    }
+
+    private static InternalMessages.StopEstimate stopEstimate(String tripId, int stopSequence, long estimatedTimeMs) {
+        return MockDataFactory.mockStopEstimate(tripId, stopSequence, estimatedTimeMs, NOW_MS);
+    }
+
+    @Test
+    public void processorEvictsPastTripsAndShedsFarFutureEstimates() {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        //Room for three trips with one stop
+        final long tripWeight = TripMemoryBudget.TRIP_OVERHEAD_BYTES + 2 * TripMemoryBudget.STOP_TIME_UPDATE_BYTES;
+        processor.enableMemoryBudget(3 * tripWeight, 0.9, Duration.ofHours(1), () -> NOW_MS);
+
+        processor.processStopEstimate(stopEstimate("past", 1, NOW_MS - 3600000));
+        processor.processStopEstimate(stopEstimate("current", 1, NOW_MS));
+        assertFalse(processor.shedStopEstimate(stopEstimate("far_future", 1, NOW_MS + 7200000)));
+
+        processor.processStopEstimate(stopEstimate("soon", 1, NOW_MS + 600000));
+        assertEquals(1, processor.getStopTimeUpdates("past").size());
+
+        //Budget is under pressure, so far-future estimates are shed but near ones are processed
+        assertTrue(processor.shedStopEstimate(stopEstimate("far_future", 1, NOW_MS + 7200000)));
+        assertFalse(processor.shedStopEstimate(stopEstimate("later", 1, NOW_MS + 1800000)));
+
+        //Shedding is a separate step from validation
+        StopEstimateProcessor stopEstimateProcessor = new StopEstimateProcessor(processor, false);
+        byte[] farFuture = stopEstimate("far_future", 1, NOW_MS + 7200000).toByteArray();
+        assertTrue(stopEstimateProcessor.validateMessage(farFuture));
+        assertTrue(stopEstimateProcessor.shedMessage(farFuture));
+        assertFalse(stopEstimateProcessor.shedMessage(stopEstimate("later", 1, NOW_MS + 1800000).toByteArray()));
+
+        processor.processStopEstimate(stopEstimate("later", 1, NOW_MS + 1800000));
+        assertEquals(0, processor.getStopTimeUpdates("past").size());
+        assertEquals(1, processor.getStopTimeUpdates("current").size());
+        assertEquals(1, processor.getStopTimeUpdates("later").size());
+    }
+}
@@ -0,0 +1,280 @@
+package fi.hsl.transitdata.tripupdate.processing;
+
+import com.google.transit.realtime.GtfsRealtime;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.state.InMemoryTripSnapshotStore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TripStateSnapshotTest {
+    private static InternalMessages.StopEstimate stopEstimate(int stopSequence) {
+        return MockDataFactory.mockStopEstimate("trip_1", stopSequence, stopSequence * 60000L, 0);
+    }
+
+    private static InternalMessages.TripCancellation cancellation(long deviationCaseId, InternalMessages.TripCancellation.Status status) {
+        return InternalMessages.TripCancellation.newBuilder()
+                .setSchemaVersion(1)
+                .setTripId("trip_1")
+                .setDirectionId(1)
+                .setRouteId("2550")
+                .setStartDate("20200101")
+                .setStartTime("00:00:00")
+                .setDeviationCaseId(deviationCaseId)
+                .setStatus(status)
+                .build();
+    }
+
+    @Test
+    public void snapshotCanBeEncodedAndDecoded() throws Exception {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.processStopEstimate(stopEstimate(1));
+        processor.processStopEstimate(stopEstimate(2));
+        processor.processTripCancellation("trip_1", 0, cancellation(1, InternalMessages.TripCancellation.Status.CANCELED));
+
+        TripStateSnapshot snapshot = TripStateSnapshot.decode(processor.createSnapshot("trip_1").encode());
+
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, snapshot.tripUpdate.getTrip().getScheduleRelationship());
+        assertEquals(2, snapshot.stopTimeUpdates.size());
+        assertEquals("2", snapshot.stopTimeUpdates.get(2).getStopId());
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, snapshot.scheduleRelationship);
+        assertTrue(snapshot.cancellations.hasActiveCancellations());
+    }
+
+    @Test
+    public void emptySnapshotCanBeEncodedAndDecoded() throws Exception {
+        TripStateSnapshot snapshot = TripStateSnapshot.decode(new TripUpdateProcessor(null).createSnapshot("trip_1").encode());
+
+        assertNull(snapshot.tripUpdate);
+        assertTrue(snapshot.stopTimeUpdates.isEmpty());
+        assertNull(snapshot.scheduleRelationship);
+        assertNull(snapshot.cancellations);
+    }
+
+    @Test
+    public void tripStateIsHandedOverToAnotherProcessor() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+
+        TripUpdateProcessor first = new TripUpdateProcessor(null);
+        first.enableSnapshots(store);
+        first.processStopEstimate(stopEstimate(1));
+        first.processTripCancellation("trip_1", 0, cancellation(1, InternalMessages.TripCancellation.Status.CANCELED));
+        store.saveAll(first.drainSnapshots());
+
+        assertEquals(1, store.size());
+        assertTrue(first.drainSnapshots().isEmpty());
+
+        TripUpdateProcessor second = new TripUpdateProcessor(null);
+        second.enableSnapshots(store);
+
+        //Deviation case 1 is still active, so the trip stays cancelled
+        GtfsRealtime.TripUpdate tripUpdate = second.processTripCancellation("trip_1", 0, cancellation(2, InternalMessages.TripCancellation.Status.RUNNING));
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.CANCELED, tripUpdate.getTrip().getScheduleRelationship());
+
+        //Stop time updates and schedule relationship are restored when the cancellation is cancelled
+        tripUpdate = second.processTripCancellation("trip_1", 0, cancellation(1, InternalMessages.TripCancellation.Status.RUNNING));
+        assertEquals(GtfsRealtime.TripDescriptor.ScheduleRelationship.ADDED, tripUpdate.getTrip().getScheduleRelationship());
+        assertEquals(1, tripUpdate.getStopTimeUpdateCount());
+        assertEquals("1", tripUpdate.getStopTimeUpdate(0).getStopId());
+
+        assertEquals(1, store.getRestoredSnapshots());
+    }
+
+    @Test
+    public void stateIsNotRestoredWhenTripIsInCache() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableSnapshots(store);
+        processor.processStopEstimate(stopEstimate(1));
+        store.saveAll(processor.drainSnapshots());
+
+        Optional<GtfsRealtime.TripUpdate> tripUpdate = processor.processStopEstimate(stopEstimate(2));
+        assertTrue(tripUpdate.isPresent());
+        assertEquals(2, tripUpdate.get().getStopTimeUpdateCount());
+        assertEquals(0, store.getRestoredSnapshots());
+    }
+
+    @Test
+    public void stateChangedByAnotherInstanceIsRestoredWhenTripMovesBack() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+
+        TripUpdateProcessor first = new TripUpdateProcessor(null);
+        first.enableSnapshots(store);
+        first.processStopEstimate(stopEstimate(1));
+        store.saveAll(first.drainSnapshots());
+
+        //Trip is moved to another instance, which changes it
+        TripUpdateProcessor second = new TripUpdateProcessor(null);
+        second.enableSnapshots(store);
+        second.processStopEstimate(stopEstimate(2));
+        store.saveAll(second.drainSnapshots());
+
+        //Trip is moved back, local state of the first instance is older than the snapshot
+        Optional<GtfsRealtime.TripUpdate> tripUpdate = first.processStopEstimate(stopEstimate(3));
+        assertTrue(tripUpdate.isPresent());
+        assertEquals(3, tripUpdate.get().getStopTimeUpdateCount());
+        assertEquals(2, store.getRestoredSnapshots());
+    }
+
+    @Test
+    public void revisionIsCheckedOnlyWhenTripHasBeenIdle() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+        AtomicLong nowMs = new AtomicLong(0);
+
+        TripUpdateProcessor first = new TripUpdateProcessor(null);
+        first.enableSnapshots(store, Duration.ofSeconds(10), nowMs::get);
+        first.processStopEstimate(stopEstimate(1));
+        nowMs.addAndGet(5000);
+        first.processStopEstimate(stopEstimate(2));
+        store.saveAll(first.drainSnapshots());
+        assertEquals(0, store.getLoadedHeaders());
+
+        //Trip is moved to another instance, which changes it
+        TripUpdateProcessor second = new TripUpdateProcessor(null);
+        second.enableSnapshots(store);
+        second.processStopEstimate(stopEstimate(3));
+        store.saveAll(second.drainSnapshots());
+
+        //Trip is moved back after the first instance has not received its messages for a while
+        nowMs.addAndGet(10000);
+        Optional<GtfsRealtime.TripUpdate> tripUpdate = first.processStopEstimate(stopEstimate(4));
+        assertEquals(1, store.getLoadedHeaders());
+        assertTrue(tripUpdate.isPresent());
+        assertEquals(4, tripUpdate.get().getStopTimeUpdateCount());
+    }
+
+    @Test
+    public void tripIsSnapshottedOnlyWhenItIsChanged() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableSnapshots(store);
+        processor.enableUnchangedEstimateSkipping();
+        processor.processStopEstimate(stopEstimate(1));
+        assertEquals(1, processor.drainSnapshots().size());
+
+        //Estimate that does not change the trip is not snapshotted again
+        processor.processStopEstimate(stopEstimate(1));
+        assertTrue(processor.drainSnapshots().isEmpty());
+
+        processor.processStopEstimate(stopEstimate(2));
+        assertEquals(1, processor.drainSnapshots().size());
+    }
+
+    @Test
+    public void revisionIsReadFromHeader() throws Exception {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.processStopEstimate(stopEstimate(1));
+        processor.processStopEstimate(stopEstimate(2));
+
+        byte[] encoded = processor.createSnapshot("trip_1").encode();
+        assertEquals(2, TripStateSnapshot.readRevision(Arrays.copyOf(encoded, TripStateSnapshot.HEADER_BYTES)));
+        assertEquals(2, TripStateSnapshot.decode(encoded).revision);
+        assertEquals(-1, TripStateSnapshot.readRevision(null));
+    }
+
+    private static TripStateSnapshot snapshotOfLongTrip(TripUpdateProcessor processor, int stops) {
+        for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+            processor.processStopEstimate(stopEstimate(stopSequence));
+        }
+        processor.processTripCancellation("trip_1", 0, cancellation(1, InternalMessages.TripCancellation.Status.CANCELED));
+        return processor.createSnapshot("trip_1");
+    }
+
+    private static void assertSnapshotsEqual(TripStateSnapshot expected, TripStateSnapshot actual) {
+        assertEquals(expected.tripUpdate, actual.tripUpdate);
+        assertEquals(expected.stopTimeUpdates, actual.stopTimeUpdates);
+        assertEquals(expected.scheduleRelationship, actual.scheduleRelationship);
+        assertEquals(expected.cancellations.getActiveCancellations(), actual.cancellations.getActiveCancellations());
+    }
+
+    @Test
+    public void compactSnapshotIsSmallerThanProtobuf() throws Exception {
+        TripStateSnapshot snapshot = snapshotOfLongTrip(new TripUpdateProcessor(null), 40);
+
+        byte[] compact = snapshot.encode();
+        int protobufLength = snapshot.tripUpdate.getSerializedSize();
+        for (GtfsRealtime.TripUpdate.StopTimeUpdate stopTimeUpdate : snapshot.stopTimeUpdates.values()) {
+            protobufLength += stopTimeUpdate.getSerializedSize();
+        }
+
+        assertTrue(compact.length * 2 < protobufLength);
+        assertSnapshotsEqual(snapshot, TripStateSnapshot.decode(compact));
+    }
+
+    @Test
+    public void stopWatermarksAreRestoredFromSnapshot() throws Exception {
+        TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableStaleEstimateDropping();
+        TripStateSnapshot snapshot = snapshotOfLongTrip(processor, 20);
+        assertEquals(20, snapshot.watermarks.size());
+
+        for (boolean compress : new boolean[]{ false, true }) {
+            assertEquals(snapshot.watermarks, TripStateSnapshot.decode(snapshot.encode(compress)).watermarks);
+        }
+
+        //Restored watermarks drop a stale estimate in another instance
+        TripUpdateProcessor restored = new TripUpdateProcessor(null);
+        restored.enableStaleEstimateDropping();
+        restored.restoreSnapshot("trip_1", TripStateSnapshot.decode(snapshot.encode()));
+        InternalMessages.StopEstimate stale = stopEstimate(5).toBuilder()
+                .setLastModifiedUtcMs(stopEstimate(5).getLastModifiedUtcMs() - 1000)
+                .build();
+        restored.processStopEstimate(stale);
+        assertEquals(1, restored.getStaleEstimateCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void snapshotOfUnsupportedVersionIsRejected() throws Exception {
+        TripStateSnapshot.decode(new byte[]{ 1, 0, 0, 0, 0 });
+    }
+
+    @Test
+    public void fieldsUnknownToCompactFormatArePreserved() throws Exception {
+        GtfsRealtime.TripUpdate.StopTimeUpdate assignedStop = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setStopSequence(3)
+                .setStopId("1020")
+                .setScheduleRelationship(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SCHEDULED)
+                .setStopTimeProperties(GtfsRealtime.TripUpdate.StopTimeProperties.newBuilder().setAssignedStopId("1021"))
+                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1600000120L).setDelay(30))
+                .build();
+        GtfsRealtime.TripUpdate.StopTimeUpdate skipped = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setStopSequence(2)
+                .setStopId("1010")
+                .setScheduleRelationship(GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship.SKIPPED)
+                .build();
+        GtfsRealtime.TripUpdate.StopTimeUpdate earlier = GtfsRealtime.TripUpdate.StopTimeUpdate.newBuilder()
+                .setStopId("1020")
+                .setArrival(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1599990000L).setUncertainty(-1))
+                .setDeparture(GtfsRealtime.TripUpdate.StopTimeEvent.newBuilder().setTime(1599990060L))
+                .build();
+
+        GtfsRealtime.TripUpdate tripUpdate = GtfsRealtime.TripUpdate.newBuilder()
+                .setTrip(GtfsRealtime.TripDescriptor.newBuilder().setRouteId("2550").setStartDate("20200101"))
+                .setVehicle(GtfsRealtime.VehicleDescriptor.newBuilder().setId("vehicle_1"))
+                .setTimestamp(1600000000L)
+                .addStopTimeUpdate(assignedStop)
+                .addStopTimeUpdate(earlier)
+                .addStopTimeUpdate(skipped)
+                .build();
+
+        java.util.Map<Integer, GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates = new java.util.TreeMap<>();
+        stopTimeUpdates.put(2, skipped);
+        stopTimeUpdates.put(3, assignedStop);
+        stopTimeUpdates.put(7, earlier);
+
+        TripStateSnapshot snapshot = new TripStateSnapshot(tripUpdate, stopTimeUpdates, GtfsRealtime.TripDescriptor.ScheduleRelationship.SCHEDULED, new CancellationLedger());
+
+        assertSnapshotsEqual(snapshot, TripStateSnapshot.decode(snapshot.encode()));
+    }
+}
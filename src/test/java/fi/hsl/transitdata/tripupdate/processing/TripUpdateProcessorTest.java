@@ -3,12 +3,29 @@ package fi.hsl.transitdata.tripupdate.processing;
 import com.google.transit.realtime.GtfsRealtime;
 import fi.hsl.common.transitdata.MockDataUtils;
 import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.transitdata.tripupdate.MockDataFactory;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TripUpdateProcessorTest {
@@ -260,4 +277,320 @@ public class TripUpdateProcessorTest {
         assertEquals(true, tu.getStopTimeUpdate(0).hasDeparture());
         assertEquals("1", tu.getStopTimeUpdate(0).getStopId());
     }
+
+    @Test
+    public void testConcurrentStopEstimatesOfSameTripAreNotLost() throws Exception {
+        final int threads = 8;
+        final int trips = 4;
+        final int stopsPerThread = 50;
+
+        for (int round = 0; round < 10; round++) {
+            final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+
+            runConcurrently(threads, thread -> {
+                //Each thread updates different stops of the same trips
+                for (int i = 0; i < stopsPerThread; i++) {
+                    final int stopSequence = thread + i * threads;
+                    for (int trip = 0; trip < trips; trip++) {
+                        processor.processStopEstimate(InternalMessages.StopEstimate.newBuilder()
+                                .setSchemaVersion(1)
+                                .setStopId(Integer.toString(stopSequence))
+                                .setStopSequence(stopSequence)
+                                .setEstimatedTimeUtcMs(1545692705000L + stopSequence * 60000L)
+                                .setScheduledTimeUtcMs(1545692705000L + stopSequence * 60000L)
+                                .setLastModifiedUtcMs(1545692705000L)
+                                .setType(InternalMessages.StopEstimate.Type.ARRIVAL)
+                                .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                                .setTripInfo(mockTripInfo("trip_" + trip))
+                                .build());
+                    }
+                }
+            });
+
+            for (int trip = 0; trip < trips; trip++) {
+                final TripStateSnapshot state = processor.createSnapshot("trip_" + trip);
+                assertEquals(threads * stopsPerThread, state.stopTimeUpdates.size());
+                //Trip update that was created last must contain stop time updates of all threads
+                assertEquals(threads * stopsPerThread, state.tripUpdate.getStopTimeUpdateCount());
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCancellationsOfSameTripAreNotLost() throws Exception {
+        final int threads = 8;
+        final int cancellationsPerThread = 50;
+
+        for (int round = 0; round < 10; round++) {
+            final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+
+            runConcurrently(threads, thread -> {
+                for (int i = 0; i < cancellationsPerThread; i++) {
+                    processor.processTripCancellation("trip_1", 0, InternalMessages.TripCancellation.newBuilder()
+                            .setSchemaVersion(1)
+                            .setTripId("trip_1")
+                            .setDirectionId(1)
+                            .setRouteId("2550")
+                            .setStartDate("20200101")
+                            .setStartTime("00:00:00")
+                            .setDeviationCaseId(1 + thread + i * threads)
+                            .setStatus(InternalMessages.TripCancellation.Status.CANCELED)
+                            .build());
+                }
+            });
+
+            assertEquals(threads * cancellationsPerThread, processor.createSnapshot("trip_1").cancellations.getActiveCancellations());
+        }
+    }
+
+    @Test
+    public void testLazyEvaluationProducesSameTripUpdates() throws Exception {
+        assertLazyEvaluationProducesSameTripUpdates(false);
+    }
+
+    @Test
+    public void testLazyEvaluationProducesSameTripUpdatesWhenSkippingUnchangedEstimates() throws Exception {
+        assertLazyEvaluationProducesSameTripUpdates(true);
+    }
+
+    private static void assertLazyEvaluationProducesSameTripUpdates(boolean skipUnchangedEstimates) throws Exception {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .duration(Duration.ofMinutes(20))
+                .trips(20)
+                .cancellationRatio(0.2), 11);
+        final TripUpdateProcessor eager = new TripUpdateProcessor(null);
+        final TripUpdateProcessor lazy = new TripUpdateProcessor(null);
+        if (skipUnchangedEstimates) {
+            eager.enableUnchangedEstimateSkipping();
+            lazy.enableUnchangedEstimateSkipping();
+        }
+
+        //Latest trip update of each trip that would be published
+        final Map<String, GtfsRealtime.TripUpdate> expected = new HashMap<>();
+        final Map<String, GtfsRealtime.TripUpdate> actual = new HashMap<>();
+        final Set<String> dirtyTrips = new HashSet<>();
+
+        RecordedMessage message;
+        int messages = 0;
+        while (messages < 5000 && (message = generator.read()) != null) {
+            messages++;
+            final String tripId = message.getKey();
+            final TransitdataProperties.ProtobufSchema schema = TransitdataProperties.ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+            if (schema == TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate) {
+                final InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+                eager.processStopEstimate(estimate).ifPresent(tripUpdate -> expected.put(tripId, tripUpdate));
+                lazy.markStopEstimate(estimate).ifPresent(dirtyTrips::add);
+            } else {
+                final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.parseFrom(message.getPayload());
+                expected.put(tripId, eager.processTripCancellation(tripId, message.getEventTimeMs(), cancellation));
+                actual.put(tripId, lazy.processTripCancellation(tripId, message.getEventTimeMs(), cancellation));
+            }
+
+            if (messages % 50 == 0) {
+                for (String dirtyTrip : dirtyTrips) {
+                    lazy.buildDirtyTrip(dirtyTrip).ifPresent(tripUpdate -> actual.put(dirtyTrip, tripUpdate));
+                }
+                dirtyTrips.clear();
+                assertEquals(0, lazy.getDirtyTripCount());
+                assertEquals(expected, actual);
+            }
+        }
+        assertTrue(messages > 1000);
+        assertFalse(expected.isEmpty());
+    }
+
+    private static InternalMessages.StopEstimate stopEstimate(int stopSequence, InternalMessages.StopEstimate.Type type,
+                                                           long estimatedTimeUtcMs, long lastModifiedUtcMs) {
+        return MockDataFactory.mockStopEstimate("trip_1", stopSequence, type, estimatedTimeUtcMs, lastModifiedUtcMs);
+    }
+
+    @Test
+    public void testStaleStopEstimateIsDropped() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableStaleEstimateDropping();
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L)).isPresent());
+        //Estimate modified earlier arrives later, e.g. from another topic
+        assertFalse(processor.processStopEstimate(stopEstimate(1, arrival, 1545692700000L, 1545691000000L)).isPresent());
+        assertEquals(1, processor.getStaleEstimateCount());
+        assertFalse(processor.markStopEstimate(stopEstimate(1, arrival, 1545692700000L, 1545691000000L)).isPresent());
+        assertEquals(2, processor.getStaleEstimateCount());
+
+        final List<GtfsRealtime.TripUpdate.StopTimeUpdate> stopTimeUpdates = processor.getStopTimeUpdates("trip_1");
+        assertEquals(1, stopTimeUpdates.size());
+        assertEquals(1545692760L, stopTimeUpdates.get(0).getArrival().getTime());
+
+        //Estimate with the same modification time is not stale
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692820000L, 1545692000000L)).isPresent());
+        assertEquals(2, processor.getStaleEstimateCount());
+    }
+
+    @Test
+    public void testWatermarksAreKeptSeparatelyForStopsAndTypes() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableStaleEstimateDropping();
+
+        assertTrue(processor.processStopEstimate(stopEstimate(1, InternalMessages.StopEstimate.Type.ARRIVAL, 1545692760000L, 1545692000000L)).isPresent());
+        //Older estimates of another type and another stop are still the latest ones of their own stop
+        assertTrue(processor.processStopEstimate(stopEstimate(1, InternalMessages.StopEstimate.Type.DEPARTURE, 1545692770000L, 1545691000000L)).isPresent());
+        assertTrue(processor.processStopEstimate(stopEstimate(2, InternalMessages.StopEstimate.Type.ARRIVAL, 1545692860000L, 1545691500000L)).isPresent());
+
+        assertEquals(0, processor.getStaleEstimateCount());
+        assertEquals(2, processor.getOutOfOrderEstimateCount());
+        assertEquals(2, processor.getStopTimeUpdates("trip_1").size());
+    }
+
+    @Test
+    public void testStaleStopEstimateIsProcessedWhenDroppingIsNotEnabled() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L));
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692700000L, 1545691000000L)).isPresent());
+        assertEquals(1545692700L, processor.getStopTimeUpdates("trip_1").get(0).getArrival().getTime());
+        assertEquals(0, processor.getStaleEstimateCount());
+    }
+
+    @Test
+    public void testUnchangedStopEstimateIsSkipped() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableUnchangedEstimateSkipping();
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        final Optional<GtfsRealtime.TripUpdate> first = processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L));
+        assertTrue(first.isPresent());
+        //Same prediction sent again
+        final InternalMessages.StopEstimate repeated = stopEstimate(1, arrival, 1545692760000L, 1545692030000L);
+        assertFalse(processor.processStopEstimate(repeated).isPresent());
+        assertTrue(processor.processStopEstimateWithId(repeated).get().isUnchanged());
+        assertFalse(processor.markStopEstimate(repeated).isPresent());
+        assertEquals(0, processor.getDirtyTripCount());
+        assertEquals(3, processor.getUnchangedEstimateCount());
+
+        //Trip update is not rebuilt, so it keeps the timestamp of the estimate that changed the trip
+        assertEquals(first.get(), processor.createSnapshot("trip_1").tripUpdate);
+    }
+
+    @Test
+    public void testChangedStopEstimateIsNotSkipped() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableUnchangedEstimateSkipping();
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L)).isPresent());
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692820000L, 1545692030000L)).isPresent());
+        assertTrue(processor.processStopEstimate(stopEstimate(1, InternalMessages.StopEstimate.Type.DEPARTURE, 1545692820000L, 1545692030000L)).isPresent());
+        assertTrue(processor.processStopEstimate(stopEstimate(2, arrival, 1545692880000L, 1545692030000L)).isPresent());
+        assertEquals(0, processor.getUnchangedEstimateCount());
+    }
+
+    @Test
+    public void testUnchangedStopEstimateIsNotSkippedWhenTripUpdateWasBuiltForAnotherStop() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableUnchangedEstimateSkipping();
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L)).isPresent());
+        assertTrue(processor.processStopEstimate(stopEstimate(2, arrival, 1545692880000L, 1545692010000L)).isPresent());
+        //Stop times are cleaned differently when stop 1 is the latest stop
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692030000L)).isPresent());
+        assertEquals(0, processor.getUnchangedEstimateCount());
+    }
+
+    @Test
+    public void testUnchangedStopEstimateIsNotSkippedWhenTripUpdateWasInvalidated() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        processor.enableUnchangedEstimateSkipping();
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        final String tripKey = processor.processStopEstimateWithId(stopEstimate(1, arrival, 1545692760000L, 1545692000000L)).get().getTripId();
+        //E.g. trip update was rejected by a validator
+        processor.invalidateTripUpdate(tripKey);
+        assertTrue(processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692030000L)).isPresent());
+        assertEquals(0, processor.getUnchangedEstimateCount());
+    }
+
+    @Test
+    public void testSkippedStopEstimatesWouldNotChangeStopTimes() throws Exception {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .duration(Duration.ofMinutes(20))
+                .trips(20)
+                .cancellationRatio(0.2), 11);
+        final TripUpdateProcessor skipping = new TripUpdateProcessor(null);
+        skipping.enableUnchangedEstimateSkipping();
+        final TripUpdateProcessor processing = new TripUpdateProcessor(null);
+
+        //Latest published trip update of each trip
+        final Map<String, GtfsRealtime.TripUpdate> published = new HashMap<>();
+
+        RecordedMessage message;
+        int messages = 0;
+        while (messages < 5000 && (message = generator.read()) != null) {
+            messages++;
+            final String tripId = message.getKey();
+            final TransitdataProperties.ProtobufSchema schema = TransitdataProperties.ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+            if (schema == TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate) {
+                final InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+                final Optional<AbstractMessageProcessor.TripUpdateWithId> skipped = skipping.processStopEstimateWithId(estimate);
+                final Optional<GtfsRealtime.TripUpdate> processed = processing.processStopEstimate(estimate);
+                if (skipped.isPresent() && skipped.get().isUnchanged()) {
+                    assertEquals(published.get(tripId).getStopTimeUpdateList(), processed.get().getStopTimeUpdateList());
+                } else {
+                    skipped.ifPresent(pair -> published.put(tripId, pair.getTripUpdate()));
+                }
+            } else {
+                final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.parseFrom(message.getPayload());
+                published.put(tripId, skipping.processTripCancellation(tripId, message.getEventTimeMs(), cancellation));
+                processing.processTripCancellation(tripId, message.getEventTimeMs(), cancellation);
+            }
+        }
+        assertTrue(messages > 1000);
+        assertTrue(skipping.getUnchangedEstimateCount() > 0);
+    }
+
+    @Test
+    public void testUnchangedStopEstimateIsProcessedWhenSkippingIsNotEnabled() {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final InternalMessages.StopEstimate.Type arrival = InternalMessages.StopEstimate.Type.ARRIVAL;
+
+        processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692000000L));
+        final Optional<GtfsRealtime.TripUpdate> repeated = processor.processStopEstimate(stopEstimate(1, arrival, 1545692760000L, 1545692030000L));
+        assertTrue(repeated.isPresent());
+        assertEquals(1545692030L, repeated.get().getTimestamp());
+        assertEquals(0, processor.getUnchangedEstimateCount());
+    }
+
+    private static InternalMessages.TripInfo mockTripInfo(String tripId) {
+        return InternalMessages.TripInfo.newBuilder()
+                .setTripId(tripId)
+                .setDirectionId(1)
+                .setOperatingDay("20181225")
+                .setStartTime("01:05:00")
+                .setRouteId("2550")
+                .setScheduleType(InternalMessages.TripInfo.ScheduleType.SCHEDULED)
+                .build();
+    }
+
+    private static void runConcurrently(int threads, IntConsumer task) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final int threadIndex = thread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.accept(threadIndex);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProfilingServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void periodIsParsedFromQuery() {
+        assertEquals(Duration.ofMinutes(10), ProfilingServer.parsePeriod(null, Duration.ofMinutes(10)));
+        assertEquals(Duration.ofMinutes(15), ProfilingServer.parsePeriod("minutes=15", Duration.ofMinutes(10)));
+        assertEquals(Duration.ofMinutes(5), ProfilingServer.parsePeriod("format=jfr&minutes=5", Duration.ofMinutes(10)));
+        assertEquals(Duration.ofMinutes(10), ProfilingServer.parsePeriod("format=jfr", Duration.ofMinutes(10)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPeriodIsRejected() {
+        ProfilingServer.parsePeriod("minutes=abc", Duration.ofMinutes(10));
+    }
+
+    @Test
+    public void latestEventsAreDumpedToFile() throws Exception {
+        try (ContinuousRecording recording = new ContinuousRecording(Duration.ofMinutes(5), 64 * 1024 * 1024, folder.getRoot().toPath(), 0);
+             ProfilingServer server = new ProfilingServer("127.0.0.1", 0, recording, Duration.ofMinutes(1))) {
+            recording.start();
+            server.start();
+            assertTrue(RecordedEvents.isMessageProcessedRecorded());
+
+            final MessageProcessedEvent event = new MessageProcessedEvent();
+            event.begin();
+            event.schema = "InternalMessagesStopEstimate";
+            event.key = "trip_1";
+            event.outcome = "trip_update";
+            event.commit();
+
+            assertEquals(405, request(server, "GET", "").status);
+            assertEquals(400, request(server, "POST", "?minutes=0").status);
+
+            final Response response = request(server, "POST", "?minutes=1");
+            assertEquals(200, response.status);
+
+            final Path dump = Paths.get(response.body.trim());
+            assertTrue(Files.exists(dump));
+            assertTrue(dump.startsWith(folder.getRoot().toPath()));
+
+            boolean found = false;
+            for (RecordedEvent recorded : RecordingFile.readAllEvents(dump)) {
+                if (recorded.getEventType().getName().equals("fi.hsl.transitdata.tripupdate.MessageProcessed")) {
+                    assertEquals("trip_1", recorded.getString("key"));
+                    found = true;
+                }
+            }
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void serverListensOnGivenHost() throws Exception {
+        try (ContinuousRecording recording = new ContinuousRecording(Duration.ofMinutes(5), 64 * 1024 * 1024, folder.getRoot().toPath(), 0);
+             ProfilingServer server = new ProfilingServer("127.0.0.1", 0, recording, Duration.ofMinutes(1))) {
+            assertEquals("127.0.0.1", server.getHost());
+        }
+    }
+
+    @Test
+    public void eventsAreNotRecordedWithoutRecording() {
+        assertFalse(RecordedEvents.isMessageProcessedRecorded());
+        assertFalse(RecordedEvents.isDebounceFlushRecorded());
+        assertFalse(RecordedEvents.isPublishAckRecorded());
+    }
+
+    @Test
+    public void dumpsWithinSameSecondHaveUniqueNamesAndOldestAreDeleted() throws Exception {
+        try (ContinuousRecording recording = new ContinuousRecording(Duration.ofMinutes(5), 64 * 1024 * 1024, folder.getRoot().toPath(), 2)) {
+            recording.start();
+
+            final List<Path> dumps = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                final MessageProcessedEvent event = new MessageProcessedEvent();
+                event.key = "trip_" + i;
+                event.commit();
+                dumps.add(recording.dump(Duration.ofMinutes(1)));
+            }
+
+            assertEquals(3, new HashSet<>(dumps).size());
+            assertFalse(Files.exists(dumps.get(0)));
+            assertTrue(Files.exists(dumps.get(1)));
+            assertTrue(Files.exists(dumps.get(2)));
+        }
+    }
+
+    private static class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response request(ProfilingServer server, String method, String query) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://" + server.getHost() + ":" + server.getPort() + ProfilingServer.DUMP_PATH + query).openConnection();
+        connection.setRequestMethod(method);
+        try {
+            final int status = connection.getResponseCode();
+            try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                return new Response(status, new String(input.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fi.hsl.transitdata.tripupdate.profiling;
+
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StageEventsTest {
+    private static final String PROCESS_STOP_ESTIMATE = "fi.hsl.transitdata.tripupdate.stage.ProcessStopEstimate";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        StageEvents.setEnabled(false);
+    }
+
+    @Test
+    public void stageEventsAreRecordedWhenEnabled() throws Exception {
+        StageEvents.setEnabled(true);
+
+        final List<RecordedEvent> events = recordStopEstimates(3);
+
+        assertEquals(3, events.size());
+        final RecordedEvent last = events.get(events.size() - 1);
+        assertEquals("trip_1", last.getString("tripId"));
+        assertEquals("METRO", last.getString("routeClass"));
+        assertEquals(3, last.getInt("stopCount"));
+        assertEquals(3, last.getInt("stopSequence"));
+    }
+
+    @Test
+    public void stageEventsAreNotRecordedWhenDisabled() throws Exception {
+        assertTrue(recordStopEstimates(3).isEmpty());
+    }
+
+    private List<RecordedEvent> recordStopEstimates(int stops) throws Exception {
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null);
+        final Path file = folder.newFile("stages.jfr").toPath();
+
+        try (Recording recording = new Recording()) {
+            recording.enable(ProcessStopEstimateEvent.class);
+            recording.start();
+            for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+                processor.processStopEstimate(InternalMessages.StopEstimate.newBuilder()
+                        .setSchemaVersion(1)
+                        .setStopId(Integer.toString(stopSequence))
+                        .setStopSequence(stopSequence)
+                        .setEstimatedTimeUtcMs(1545692705000L + stopSequence * 60000L)
+                        .setScheduledTimeUtcMs(1545692705000L + stopSequence * 60000L)
+                        .setLastModifiedUtcMs(1545692705000L)
+                        .setType(InternalMessages.StopEstimate.Type.ARRIVAL)
+                        .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                        .setTripInfo(InternalMessages.TripInfo.newBuilder()
+                                .setTripId("trip_1")
+                                .setDirectionId(1)
+                                .setOperatingDay("20181225")
+                                .setStartTime("01:05:00")
+                                .setRouteId("31M1")
+                                .setScheduleType(InternalMessages.TripInfo.ScheduleType.SCHEDULED))
+                        .build());
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+
+        final List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals(PROCESS_STOP_ESTIMATE)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
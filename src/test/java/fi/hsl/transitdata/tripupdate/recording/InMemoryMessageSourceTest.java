@@ -0,0 +1,60 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InMemoryMessageSourceTest {
+    private static RecordedMessage message(String key) {
+        return new RecordedMessage(key, 1000,
+                Map.of(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate.toString()),
+                new byte[0]);
+    }
+
+    @Test
+    public void messagesAreReadInOrder() {
+        final InMemoryMessageSource source = new InMemoryMessageSource(List.of(message("1"), message("2")), false);
+
+        assertEquals("1", source.read().getKey());
+        assertEquals("2", source.read().getKey());
+        assertNull(source.read());
+    }
+
+    @Test
+    public void repeatingSourceStartsAgainFromFirstMessage() {
+        final InMemoryMessageSource source = new InMemoryMessageSource(List.of(message("1"), message("2")), true);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals("1", source.read().getKey());
+            assertEquals("2", source.read().getKey());
+        }
+        assertNull(new InMemoryMessageSource(List.of(), true).read());
+    }
+
+    @Test
+    public void messagesAreLoadedFromAnotherSource() throws Exception {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips(10)
+                .duration(Duration.ofHours(1)), 1);
+        final InMemoryMessageSource source = InMemoryMessageSource.load(generator, 100, false);
+
+        assertEquals(100, source.size());
+        final WorkloadGenerator expected = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .trips(10)
+                .duration(Duration.ofHours(1)), 1);
+        RecordedMessage message;
+        while ((message = source.read()) != null) {
+            final RecordedMessage expectedMessage = expected.read();
+            assertEquals(expectedMessage.getKey(), message.getKey());
+            assertEquals(expectedMessage.getEventTimeMs(), message.getEventTimeMs());
+            assertEquals(TransitdataProperties.ProtobufSchema.fromString(expectedMessage.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA)),
+                    message.getSchema());
+        }
+    }
+}
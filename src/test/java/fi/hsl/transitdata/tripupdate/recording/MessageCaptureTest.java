@@ -0,0 +1,111 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class MessageCaptureTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RecordedMessage message(int i) {
+        return new RecordedMessage("key-" + i, i, Map.of("protobuf-schema", "test"), new byte[100]);
+    }
+
+    private static int countMessages(List<Path> segments) throws IOException {
+        int messages = 0;
+        for (Path segment : segments) {
+            try (SegmentReader reader = new SegmentReader(segment)) {
+                while (reader.read() != null) {
+                    messages++;
+                }
+            }
+        }
+        return messages;
+    }
+
+    @Test
+    public void messagesAreWrittenByBackgroundThread() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final MessageCapture capture = new MessageCapture(directory, 1000, 1024 * 1024, Duration.ofHours(1), 0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(capture.record(message(i)));
+        }
+        capture.close();
+
+        final List<Path> segments = SegmentReader.listSegments(directory);
+        assertEquals(1, segments.size());
+        assertEquals(100, countMessages(segments));
+        assertEquals(100, capture.getRecorded());
+    }
+
+    @Test
+    public void messagesAreDroppedWhenQueueIsFull() throws Exception {
+        final MessageCapture capture = new MessageCapture(folder.getRoot().toPath(), 10, 1024 * 1024, Duration.ofHours(1), 0, false);
+        for (int i = 0; i < 15; i++) {
+            assertEquals(i < 10, capture.record(message(i)));
+        }
+        assertEquals(5, capture.getDropped());
+
+        capture.writePending();
+        assertTrue(capture.record(message(15)));
+        capture.close();
+    }
+
+    @Test
+    public void segmentsAreRolledBySize() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final MessageCapture capture = new MessageCapture(directory, 1000, 1000, Duration.ofHours(1), 0, false);
+        for (int i = 0; i < 50; i++) {
+            capture.record(message(i));
+        }
+        capture.writePending();
+
+        //Segment that is still being written is not listed
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(file -> file.toString().endsWith(MessageCapture.PARTIAL_SUFFIX)).count());
+        }
+        capture.close();
+
+        final List<Path> segments = SegmentReader.listSegments(directory);
+        assertTrue(segments.size() > 1);
+        assertEquals(50, countMessages(segments));
+    }
+
+    @Test
+    public void oldestSegmentsAreDeleted() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final MessageCapture capture = new MessageCapture(directory, 1000, 1000, Duration.ofHours(1), 2, false);
+        for (int i = 0; i < 50; i++) {
+            capture.record(message(i));
+        }
+        capture.writePending();
+        capture.close();
+
+        final List<String> segments = SegmentReader.listSegments(directory).stream()
+                .map(path -> path.getFileName().toString())
+                .collect(Collectors.toList());
+        assertEquals(2, segments.size());
+        //Newest segment contains the last message
+        try (SegmentReader reader = new SegmentReader(directory.resolve(segments.get(1)))) {
+            RecordedMessage last = null;
+            RecordedMessage message;
+            while ((message = reader.read()) != null) {
+                last = message;
+            }
+            assertNotNull(last);
+            assertEquals("key-49", last.getKey());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package fi.hsl.transitdata.tripupdate.recording;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SegmentReaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RecordedMessage message(int i) {
+        return new RecordedMessage(i % 2 == 0 ? "key-" + i : null, 1000L * i, Map.of("protobuf-schema", "schema-" + i), new byte[] { (byte) i, 1, 2, 3 });
+    }
+
+    private Path writeSegment(String name, int messages) throws IOException {
+        final Path path = folder.getRoot().toPath().resolve(name);
+        try (SegmentWriter writer = new SegmentWriter(path)) {
+            for (int i = 0; i < messages; i++) {
+                writer.write(message(i));
+            }
+        }
+        return path;
+    }
+
+    @Test
+    public void messagesCanBeReadBack() throws IOException {
+        final Path path = writeSegment("test" + SegmentFormat.FILE_SUFFIX, 10);
+
+        try (SegmentReader reader = new SegmentReader(path)) {
+            for (int i = 0; i < 10; i++) {
+                final RecordedMessage expected = message(i);
+                final RecordedMessage actual = reader.read();
+
+                assertNotNull(actual);
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getEventTimeMs(), actual.getEventTimeMs());
+                assertEquals(expected.getProperties(), actual.getProperties());
+                assertArrayEquals(expected.getPayload(), actual.getPayload());
+            }
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void truncatedSegmentIsReadUntilLastCompleteMessage() throws IOException {
+        final Path path = writeSegment("test" + SegmentFormat.FILE_SUFFIX, 10);
+
+        //Remove last bytes of the uncompressed data
+        final byte[] data;
+        try (GZIPInputStream input = new GZIPInputStream(Files.newInputStream(path))) {
+            data = input.readAllBytes();
+        }
+        try (GZIPOutputStream output = new GZIPOutputStream(Files.newOutputStream(path))) {
+            output.write(Arrays.copyOf(data, data.length - 3));
+        }
+
+        int messages = 0;
+        try (SegmentReader reader = new SegmentReader(path)) {
+            while (reader.read() != null) {
+                messages++;
+            }
+        }
+        assertEquals(9, messages);
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidFileIsRejected() throws IOException {
+        final Path path = folder.getRoot().toPath().resolve("invalid" + SegmentFormat.FILE_SUFFIX);
+        try (GZIPOutputStream output = new GZIPOutputStream(Files.newOutputStream(path))) {
+            output.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        }
+        new SegmentReader(path).close();
+    }
+
+    @Test
+    public void segmentsAreListedInOrder() throws IOException {
+        writeSegment("segment-2" + SegmentFormat.FILE_SUFFIX, 1);
+        writeSegment("segment-1" + SegmentFormat.FILE_SUFFIX, 1);
+        Files.createFile(folder.getRoot().toPath().resolve("other.txt"));
+
+        final List<Path> segments = SegmentReader.listSegments(folder.getRoot().toPath());
+        assertEquals(2, segments.size());
+        assertEquals("segment-1" + SegmentFormat.FILE_SUFFIX, segments.get(0).getFileName().toString());
+        assertEquals("segment-2" + SegmentFormat.FILE_SUFFIX, segments.get(1).getFileName().toString());
+    }
+}
@@ -0,0 +1,80 @@
+package fi.hsl.transitdata.tripupdate.replay;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.recording.SegmentWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReplayerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RecordedMessage cancellation(String tripId, long eventTimeMs, InternalMessages.TripCancellation.Status status) {
+        final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.newBuilder()
+                .setSchemaVersion(1)
+                .setTripId(tripId)
+                .setDirectionId(1)
+                .setRouteId("2550")
+                .setStartDate("20200101")
+                .setStartTime("12:00:00")
+                .setStatus(status)
+                .build();
+        return new RecordedMessage(tripId, eventTimeMs,
+                Map.of(TransitdataProperties.KEY_PROTOBUF_SCHEMA, TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation.toString()),
+                cancellation.toByteArray());
+    }
+
+    private static String replay(Path segment) throws Exception {
+        final Config config = ConfigFactory.parseMap(Map.of("publisher.debounceDelay", "0 ms", "publisher.executor", "platform"))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+
+        final StringWriter output = new StringWriter();
+        final ReplaySink sink = new ReplaySink(output);
+        final Replayer replayer = new Replayer(new MessageRouter(config, null, sink, null), sink, 0);
+        replayer.replay(List.of(segment));
+
+        assertEquals(3, replayer.getMessages());
+        assertTrue(replayer.getReport().contains("Trip updates: 3"));
+        return output.toString();
+    }
+
+    @Test
+    public void recordedMessagesAreReplayed() throws Exception {
+        final Path segment = folder.getRoot().toPath().resolve("test.seg.gz");
+        try (SegmentWriter writer = new SegmentWriter(segment)) {
+            writer.write(cancellation("trip_1", 1000, InternalMessages.TripCancellation.Status.CANCELED));
+            writer.write(cancellation("trip_2", 2000, InternalMessages.TripCancellation.Status.CANCELED));
+            writer.write(cancellation("trip_1", 3000, InternalMessages.TripCancellation.Status.RUNNING));
+            //Message without schema is skipped
+            writer.write(new RecordedMessage("trip_3", 4000, Map.of(), new byte[0]));
+        }
+
+        final String output = replay(segment);
+        final String[] lines = output.split("\n");
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].startsWith("trip_1\t1000\t"));
+        assertTrue(lines[0].contains("schedule_relationship: CANCELED"));
+        assertTrue(lines[1].startsWith("trip_2\t2000\t"));
+        assertTrue(lines[2].startsWith("trip_1\t3000\t"));
+        assertTrue(lines[2].contains("schedule_relationship: SCHEDULED"));
+
+        //Output is deterministic
+        assertEquals(output, replay(segment));
+    }
+}
@@ -0,0 +1,17 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+public class HeapTripStateStoreTest extends TripStateStoreConformance {
+    @Override
+    protected TripStateStore createStore(Duration expireAfterAccess, LongSupplier clock) {
+        return new HeapTripStateStore(expireAfterAccess, () -> TimeUnit.MILLISECONDS.toNanos(clock.getAsLong()));
+    }
+
+    @Override
+    protected String backend() {
+        return "heap";
+    }
+}
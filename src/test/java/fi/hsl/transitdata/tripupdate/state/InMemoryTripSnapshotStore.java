@@ -0,0 +1,54 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshot store for tests, can be shared between multiple instances running in the same JVM
+ */
+public class InMemoryTripSnapshotStore implements TripSnapshotStore {
+    private final Map<String, byte[]> snapshots = new ConcurrentHashMap<>();
+    private final AtomicInteger restoredSnapshots = new AtomicInteger();
+    private final AtomicInteger loadedHeaders = new AtomicInteger();
+
+    @Override
+    public byte[] load(String tripId) {
+        final byte[] snapshot = snapshots.get(tripId);
+        if (snapshot != null) {
+            restoredSnapshots.incrementAndGet();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public byte[] loadHeader(String tripId, int length) {
+        loadedHeaders.incrementAndGet();
+        final byte[] snapshot = snapshots.get(tripId);
+        return snapshot != null ? Arrays.copyOf(snapshot, Math.min(length, snapshot.length)) : null;
+    }
+
+    @Override
+    public void saveAll(Map<String, byte[]> snapshots) {
+        this.snapshots.putAll(snapshots);
+    }
+
+    public int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return Number of snapshots that have been loaded, i.e. trips that have been handed over to another instance
+     */
+    public int getRestoredSnapshots() {
+        return restoredSnapshots.get();
+    }
+
+    /**
+     * @return Number of snapshot headers that have been loaded for checking the revision
+     */
+    public int getLoadedHeaders() {
+        return loadedHeaders.get();
+    }
+}
@@ -0,0 +1,64 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import fi.hsl.transitdata.tripupdate.processing.TripState;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class OffHeapTripStateStoreTest extends TripStateStoreConformance {
+    @Override
+    protected TripStateStore createStore(Duration expireAfterAccess, LongSupplier clock) {
+        return new OffHeapTripStateStore(ByteBuffer.allocateDirect(8 * 1024 * 1024), expireAfterAccess, clock);
+    }
+
+    @Override
+    protected String backend() {
+        return "offHeap";
+    }
+
+    @Test
+    public void stateIsWrittenInPlaceIfItFits() {
+        final OffHeapTripStateStore store = new OffHeapTripStateStore(ByteBuffer.allocateDirect(64 * 1024), EXPIRY, () -> NOW_MS);
+
+        store.put("trip_1", tripState("trip_1", 2));
+        store.put("trip_2", tripState("trip_2", 2));
+        final long usedBytes = store.usedBytes();
+
+        //Small change fits in the record
+        store.put("trip_1", tripState("trip_1", 2));
+        assertEquals(usedBytes, store.usedBytes());
+
+        store.put("trip_1", tripState("trip_1", 30));
+        assertTrue(store.usedBytes() > usedBytes);
+    }
+
+    @Test
+    public void leastRecentlyAccessedTripsAreEvictedWhenStoreIsFull() {
+        final long[] now = { NOW_MS };
+        final List<String> removed = new ArrayList<>();
+        final OffHeapTripStateStore store = new OffHeapTripStateStore(ByteBuffer.allocateDirect(16 * 1024), EXPIRY, () -> now[0]);
+        store.setRemovalListener(removed::add);
+
+        final TripState state = tripState("trip", 5);
+        for (int trip = 0; trip < 100; trip++) {
+            store.put("trip_" + trip, state);
+            //First trip is accessed all the time, so it is never evicted
+            assertNotNull(store.get("trip_0"));
+            now[0] += 1000;
+        }
+
+        assertTrue(store.getEvictedTrips() > 0);
+        assertEquals(store.getEvictedTrips(), removed.size());
+        assertEquals(100 - removed.size(), store.size());
+        assertFalse(removed.contains("trip_0"));
+        assertTrue(removed.contains("trip_1"));
+        assertNull(store.get("trip_1"));
+        assertEquals(state.getTripUpdate(), store.get("trip_99").getTripUpdate());
+    }
+}
@@ -0,0 +1,64 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests {@link OffHeapTripStateStore} in a memory-mapped file
+ */
+public class PersistentTripStateStoreTest extends TripStateStoreConformance {
+    private static final int SIZE = 8 * 1024 * 1024;
+
+    @Override
+    protected TripStateStore createStore(Duration expireAfterAccess, LongSupplier clock) throws Exception {
+        return new OffHeapTripStateStore(OffHeapTripStateStore.map(folder.newFile().toPath(), SIZE), expireAfterAccess, clock);
+    }
+
+    @Override
+    protected String backend() {
+        return "persistent";
+    }
+
+    private static OffHeapTripStateStore open(Path file) throws Exception {
+        return new OffHeapTripStateStore(OffHeapTripStateStore.map(file, SIZE), EXPIRY, () -> NOW_MS);
+    }
+
+    @Test
+    public void stateIsRestoredFromFile() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve("state.bin");
+
+        final OffHeapTripStateStore store = open(file);
+        store.put("trip_1", tripState("trip_1", 3));
+        store.put("trip_2", tripState("trip_2", 4));
+        store.put("trip_3", tripState("trip_3", 5));
+        store.remove("trip_3");
+        //Move trip_2 to a new record
+        store.put("trip_2", tripState("trip_2", 20));
+        store.close();
+
+        final OffHeapTripStateStore restored = open(file);
+        assertEquals(2, restored.size());
+        assertEquals(3, restored.get("trip_1").getTripUpdate().getStopTimeUpdateCount());
+        assertEquals(20, restored.get("trip_2").getTripUpdate().getStopTimeUpdateCount());
+        assertNull(restored.get("trip_3"));
+        restored.close();
+
+        //Corrupt state of trip_1, which is the first record
+        final MappedByteBuffer data = OffHeapTripStateStore.map(file, SIZE);
+        final int valueOffset = OffHeapTripStateStore.HEADER_BYTES + OffHeapTripStateStore.RECORD_HEADER_BYTES + "trip_1".getBytes(StandardCharsets.UTF_8).length;
+        data.put(valueOffset + 5, (byte) (data.get(valueOffset + 5) + 1));
+        data.force();
+
+        final OffHeapTripStateStore corrupted = open(file);
+        assertEquals(1, corrupted.size());
+        assertNull(corrupted.get("trip_1"));
+        assertEquals(20, corrupted.get("trip_2").getTripUpdate().getStopTimeUpdateCount());
+    }
+}
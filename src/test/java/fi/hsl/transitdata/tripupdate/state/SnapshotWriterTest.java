@@ -0,0 +1,74 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SnapshotWriterTest {
+    @Test
+    public void messagesAreAcknowledgedAfterSnapshotsAreSaved() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+        List<Integer> acked = new ArrayList<>();
+
+        try (SnapshotWriter writer = new SnapshotWriter(store, Duration.ofHours(1))) {
+            writer.add(Map.of("trip_1", new byte[] { 1 }), () -> acked.add(1));
+            writer.add(Map.of("trip_1", new byte[] { 2 }, "trip_2", new byte[] { 3 }), () -> acked.add(2));
+            writer.add(Collections.emptyMap(), () -> acked.add(3));
+
+            assertEquals(0, store.size());
+            assertEquals(3, writer.getPendingAcks());
+
+            writer.flush();
+
+            assertEquals(List.of(1, 2, 3), acked);
+            assertArrayEquals(new byte[] { 2 }, store.load("trip_1"));
+            assertArrayEquals(new byte[] { 3 }, store.load("trip_2"));
+            assertEquals(0, writer.getPendingAcks());
+        }
+    }
+
+    @Test
+    public void failedSnapshotsAreRetried() {
+        InMemoryTripSnapshotStore store = new InMemoryTripSnapshotStore();
+        List<Integer> acked = new ArrayList<>();
+        boolean[] fail = { true };
+
+        TripSnapshotStore failingStore = new TripSnapshotStore() {
+            @Override
+            public byte[] load(String tripId) {
+                return store.load(tripId);
+            }
+
+            @Override
+            public void saveAll(Map<String, byte[]> snapshots) throws Exception {
+                if (fail[0]) {
+                    throw new Exception("test");
+                }
+                store.saveAll(snapshots);
+            }
+        };
+
+        try (SnapshotWriter writer = new SnapshotWriter(failingStore, Duration.ofHours(1))) {
+            writer.add(Map.of("trip_1", new byte[] { 1 }, "trip_2", new byte[] { 2 }), () -> acked.add(1));
+            writer.flush();
+
+            assertEquals(0, acked.size());
+            assertEquals(1, writer.getPendingAcks());
+
+            writer.add(Map.of("trip_1", new byte[] { 3 }), () -> acked.add(2));
+            fail[0] = false;
+            writer.flush();
+
+            assertEquals(List.of(1, 2), acked);
+            assertArrayEquals(new byte[] { 3 }, store.load("trip_1"));
+            assertArrayEquals(new byte[] { 2 }, store.load("trip_2"));
+        }
+    }
+}
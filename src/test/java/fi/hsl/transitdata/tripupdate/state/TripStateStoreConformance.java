@@ -0,0 +1,231 @@
+package fi.hsl.transitdata.tripupdate.state;
+
+import com.google.transit.realtime.GtfsRealtime;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.application.MessageRouter;
+import fi.hsl.transitdata.tripupdate.processing.TripState;
+import fi.hsl.transitdata.tripupdate.processing.TripUpdateProcessor;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import fi.hsl.transitdata.tripupdate.workload.WorkloadGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that every {@link TripStateStore} backend must pass. Each backend has a subclass, which can also contain tests
+ * specific to the backend.
+ */
+public abstract class TripStateStoreConformance {
+    static final long NOW_MS = 1710503000000L;
+    static final Duration EXPIRY = Duration.ofHours(4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @param clock Current time in milliseconds
+     */
+    protected abstract TripStateStore createStore(Duration expireAfterAccess, LongSupplier clock) throws Exception;
+
+    /**
+     * @return Value of {@code state.store.backend}
+     */
+    protected abstract String backend();
+
+    static InternalMessages.StopEstimate stopEstimate(String tripId, int stopSequence) {
+        return InternalMessages.StopEstimate.newBuilder()
+                .setSchemaVersion(1)
+                .setTripInfo(InternalMessages.TripInfo.newBuilder()
+                        .setTripId(tripId)
+                        .setDirectionId(1)
+                        .setOperatingDay("20240315")
+                        .setStartTime("13:00:00")
+                        .setRouteId("2550"))
+                .setStopId(Integer.toString(1000 + stopSequence))
+                .setStopSequence(stopSequence)
+                .setEstimatedTimeUtcMs(NOW_MS + stopSequence * 60000L)
+                .setScheduledTimeUtcMs(NOW_MS + stopSequence * 60000L)
+                .setLastModifiedUtcMs(NOW_MS)
+                .setType(InternalMessages.StopEstimate.Type.ARRIVAL)
+                .setStatus(InternalMessages.StopEstimate.Status.SCHEDULED)
+                .build();
+    }
+
+    /**
+     * @return State of a trip with the given amount of stops
+     */
+    static TripState tripState(String tripId, int stops) {
+        final HeapTripStateStore heap = new HeapTripStateStore(EXPIRY);
+        final TripUpdateProcessor processor = new TripUpdateProcessor(null, heap);
+        for (int stopSequence = 1; stopSequence <= stops; stopSequence++) {
+            processor.processStopEstimate(stopEstimate(tripId, stopSequence));
+        }
+        return heap.get(tripId);
+    }
+
+    @Test
+    public void storedStateCanBeRead() throws Exception {
+        final TripStateStore store = createStore(EXPIRY, () -> NOW_MS);
+        final TripState state = tripState("trip_1", 5);
+
+        store.put("trip_1", state);
+
+        assertEquals(state.getTripUpdate(), store.get("trip_1").getTripUpdate());
+        assertNull(store.get("trip_2"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void stateCanBeReplaced() throws Exception {
+        final TripStateStore store = createStore(EXPIRY, () -> NOW_MS);
+
+        store.put("trip_1", tripState("trip_1", 2));
+        store.put("trip_2", tripState("trip_2", 2));
+
+        final TripState grown = tripState("trip_1", 30);
+        store.put("trip_1", grown);
+
+        assertEquals(grown.getTripUpdate(), store.get("trip_1").getTripUpdate());
+        assertEquals(2, store.get("trip_2").getTripUpdate().getStopTimeUpdateCount());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void removedTripIsNotReportedToListener() throws Exception {
+        final List<String> removed = new ArrayList<>();
+        final TripStateStore store = createStore(EXPIRY, () -> NOW_MS);
+        store.setRemovalListener(removed::add);
+
+        store.put("trip_1", tripState("trip_1", 1));
+        store.remove("trip_1");
+        store.remove("trip_2");
+
+        assertNull(store.get("trip_1"));
+        assertEquals(0, store.size());
+        assertEquals(List.of(), removed);
+    }
+
+    @Test
+    public void tripsExpireAfterAccess() throws Exception {
+        final long[] now = { NOW_MS };
+        final List<String> removed = new ArrayList<>();
+        final TripStateStore store = createStore(Duration.ofMinutes(10), () -> now[0]);
+        store.setRemovalListener(removed::add);
+
+        store.put("trip_1", tripState("trip_1", 1));
+        store.put("trip_2", tripState("trip_2", 1));
+
+        now[0] += Duration.ofMinutes(8).toMillis();
+        assertNotNull(store.get("trip_1"));
+
+        now[0] += Duration.ofMinutes(8).toMillis();
+        store.expire();
+
+        assertEquals(List.of("trip_2"), removed);
+        assertNull(store.get("trip_2"));
+        assertNotNull(store.get("trip_1"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void manyTripsCanBeStored() throws Exception {
+        final TripStateStore store = createStore(EXPIRY, () -> NOW_MS);
+        final TripState state = tripState("trip", 3);
+
+        for (int trip = 0; trip < 5000; trip++) {
+            store.put("trip_" + trip, state);
+        }
+        for (int trip = 0; trip < 5000; trip += 2) {
+            store.remove("trip_" + trip);
+        }
+
+        assertEquals(2500, store.size());
+        for (int trip = 0; trip < 5000; trip++) {
+            if (trip % 2 == 0) {
+                assertNull(store.get("trip_" + trip));
+            } else {
+                assertEquals(state.getTripUpdate(), store.get("trip_" + trip).getTripUpdate());
+            }
+        }
+    }
+
+    @Test
+    public void differentTripsCanBeAccessedConcurrently() throws Exception {
+        final TripStateStore store = createStore(EXPIRY, () -> NOW_MS);
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                final String tripId = "trip_" + thread;
+                futures.add(executor.submit(() -> {
+                    for (int stops = 1; stops <= 20; stops++) {
+                        final TripState state = tripState(tripId, stops);
+                        store.put(tripId, state);
+                        assertEquals(state.getTripUpdate(), store.get(tripId).getTripUpdate());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(threads, store.size());
+        for (int thread = 0; thread < threads; thread++) {
+            assertEquals(20, store.get("trip_" + thread).getTripUpdate().getStopTimeUpdateCount());
+        }
+    }
+
+    private List<GtfsRealtime.TripUpdate> process(List<RecordedMessage> messages, String backend) {
+        final Config config = ConfigFactory.parseMap(Map.of("publisher.debounceDelay", "0 ms", "publisher.executor", "platform",
+                        "state.store.backend", backend, "state.store.size", "4 MiB",
+                        "state.store.file", folder.getRoot().toPath().resolve("trip-state-" + backend + ".bin").toString()))
+                .withFallback(ConfigFactory.parseResources("environment.conf"))
+                .resolve();
+        final List<GtfsRealtime.TripUpdate> output = new ArrayList<>();
+        final MessageRouter router = new MessageRouter(config, null, (tripId, tripUpdate, eventTimeMs) -> {
+            output.add(tripUpdate);
+            return CompletableFuture.completedFuture(null);
+        }, null);
+        for (RecordedMessage message : messages) {
+            router.process(TransitdataProperties.ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA)),
+                    message.getKey(), message.getEventTimeMs(), message.getPayload());
+        }
+        return output;
+    }
+
+    @Test
+    public void producesSameTripUpdatesAsHeapStore() {
+        final WorkloadGenerator generator = new WorkloadGenerator(new WorkloadGenerator.Settings()
+                .duration(Duration.ofMinutes(20))
+                .trips(20), 7);
+        final List<RecordedMessage> messages = new ArrayList<>();
+        RecordedMessage message;
+        while (messages.size() < 5000 && (message = generator.read()) != null) {
+            messages.add(message);
+        }
+
+        final List<GtfsRealtime.TripUpdate> expected = process(messages, "heap");
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, process(messages, backend()));
+    }
+}
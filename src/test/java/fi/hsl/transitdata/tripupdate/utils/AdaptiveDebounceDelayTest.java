@@ -0,0 +1,65 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveDebounceDelayTest {
+    private final AdaptiveDebounceDelay delay = new AdaptiveDebounceDelay(Duration.ofMillis(100), Duration.ofMillis(2000));
+
+    @Test
+    public void testFirstUpdateUsesMinDelay() {
+        assertEquals(100, delay.getDelayMs("x", 1_000_000));
+    }
+
+    @Test
+    public void testBurstyUpdatesWaitForQuietPeriod() {
+        long time = 1_000_000;
+        for (int i = 0; i < 10; i++) {
+            delay.getDelayMs("x", time);
+            time += 300;
+        }
+        //Two times the inter-arrival time of the burst
+        assertEquals(600, delay.getDelayMs("x", time));
+    }
+
+    @Test
+    public void testSparseUpdatesUseMinDelay() {
+        long time = 1_000_000;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(100, delay.getDelayMs("x", time));
+            time += 30_000;
+        }
+    }
+
+    @Test
+    public void testGapBetweenBurstsDoesNotAffectBurstRate() {
+        long time = 1_000_000;
+        for (int i = 0; i < 10; i++) {
+            delay.getDelayMs("x", time);
+            time += 50;
+        }
+        time += 60_000;
+        assertEquals(100, delay.getDelayMs("x", time));
+        assertEquals(100, delay.getDelayMs("x", time + 50));
+    }
+
+    @Test
+    public void testDelayIsLimitedToMaxDelay() {
+        assertEquals(2000, delay.getDelayMs(1900));
+        assertEquals(100, delay.getDelayMs(10));
+    }
+
+    @Test
+    public void testKeysAreTrackedSeparately() {
+        long time = 1_000_000;
+        for (int i = 0; i < 10; i++) {
+            delay.getDelayMs("x", time);
+            time += 500;
+        }
+        assertEquals(1000, delay.getDelayMs("x", time));
+        assertEquals(100, delay.getDelayMs("y", time));
+    }
+}
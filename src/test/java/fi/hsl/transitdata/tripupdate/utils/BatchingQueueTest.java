@@ -0,0 +1,74 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BatchingQueueTest {
+    @Test
+    public void itemsAddedWhileBatchIsHandledFormNextBatch() throws Exception {
+        final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        final List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+
+        final BatchingQueue<Integer> queue = new BatchingQueue<>("test-batches", batch -> {
+            batches.add(new ArrayList<>(batch));
+            firstBatchStarted.countDown();
+            try {
+                releaseFirstBatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            queue.add(1);
+            assertTrue(firstBatchStarted.await(5, TimeUnit.SECONDS));
+
+            for (int i = 2; i <= 10; i++) {
+                queue.add(i);
+            }
+            assertEquals(10, queue.getPendingCount());
+            releaseFirstBatch.countDown();
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, queue.getPendingCount());
+            assertEquals(List.of(List.of(1), List.of(2, 3, 4, 5, 6, 7, 8, 9, 10)), batches);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void exceptionInHandlerDoesNotStopQueue() throws Exception {
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        final BatchingQueue<Integer> queue = new BatchingQueue<>("test-batches", batch -> {
+            if (batch.contains(1)) {
+                throw new IllegalStateException("Test exception");
+            }
+            handled.countDown();
+        });
+        try {
+            queue.add(1);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (queue.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            queue.add(2);
+
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+        } finally {
+            queue.shutdown();
+        }
+    }
+}
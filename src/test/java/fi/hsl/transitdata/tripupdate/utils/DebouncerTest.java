@@ -3,9 +3,16 @@ package fi.hsl.transitdata.tripupdate.utils;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class DebouncerTest {
     @Test
@@ -28,4 +35,250 @@ public class DebouncerTest {
 
         assertEquals(2, count.get());
     }
+
+    private final ManualScheduledExecutorService scheduler = new ManualScheduledExecutorService(1_000_000);
+
+    private Debouncer newDebouncer(long delayMs, long maxLatencyMs) {
+        return new Debouncer(DebounceDelay.fixed(delayMs), Duration.ofMillis(maxLatencyMs), null, scheduler, scheduler::now);
+    }
+
+    @Test
+    public void testActionIsRunAfterDelay() {
+        Debouncer debouncer = newDebouncer(500, 0);
+
+        AtomicInteger count = new AtomicInteger();
+
+        debouncer.debounce("x", count::getAndIncrement);
+        scheduler.advance(499);
+        assertEquals(0, count.get());
+        scheduler.advance(1);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testNewActionReplacesPending() {
+        Debouncer debouncer = newDebouncer(500, 0);
+
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+
+        debouncer.debounce("x", first::getAndIncrement);
+        scheduler.advance(400);
+        debouncer.debounce("x", second::getAndIncrement);
+        scheduler.advance(400);
+        assertEquals(0, second.get());
+        scheduler.advance(100);
+
+        assertEquals(0, first.get());
+        assertEquals(1, second.get());
+        assertEquals(0, scheduler.getPendingTaskCount());
+    }
+
+    @Test
+    public void testKeysAreDebouncedSeparately() {
+        Debouncer debouncer = newDebouncer(500, 0);
+
+        AtomicInteger count = new AtomicInteger();
+
+        debouncer.debounce("x", count::getAndIncrement);
+        debouncer.debounce("y", count::getAndIncrement);
+        scheduler.advance(500);
+
+        assertEquals(2, count.get());
+    }
+
+    @Test
+    public void testContinuousUpdatesAreNeverPublishedWithoutMaxLatency() {
+        Debouncer debouncer = newDebouncer(200, 0);
+
+        AtomicInteger count = new AtomicInteger();
+
+        for (int i = 0; i < 100; i++) {
+            debouncer.debounce("x", count::getAndIncrement);
+            scheduler.advance(100);
+        }
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    public void testMaxLatency() {
+        Debouncer debouncer = newDebouncer(200, 500);
+
+        AtomicInteger count = new AtomicInteger();
+
+        //Updates arrive more often than the debounce delay for 1.2 seconds
+        for (int i = 0; i < 12; i++) {
+            debouncer.debounce("x", count::getAndIncrement);
+            scheduler.advance(100);
+        }
+        scheduler.advance(300);
+
+        //Published every 500ms and once more after updates stopped
+        assertEquals(3, count.get());
+        assertEquals(12, debouncer.getStats().getDebounced());
+        assertEquals(3, debouncer.getStats().getFlushed());
+        assertEquals(0.75, debouncer.getStats().getReductionRatio(), 0.001);
+    }
+
+    @Test
+    public void testActualWaitIsRecorded() {
+        Debouncer debouncer = newDebouncer(200, 1000);
+
+        AtomicInteger count = new AtomicInteger();
+
+        for (int i = 0; i < 25; i++) {
+            debouncer.debounce("x", count::getAndIncrement);
+            scheduler.advance(100);
+        }
+        scheduler.advance(1000);
+
+        //Two forced flushes after max latency (1000ms wait) and one after updates stopped (600ms wait)
+        assertEquals(3, count.get());
+        assertEquals(3, debouncer.getStats().getActualWait().getCount());
+        assertEquals(1000, debouncer.getStats().getActualWait().getPercentile(50));
+        assertEquals(1000, debouncer.getStats().getActualWait().getPercentile(100));
+    }
+
+    @Test
+    public void testMinDelayExtendsDelay() {
+        Debouncer debouncer = newDebouncer(500, 5000);
+
+        AtomicInteger count = new AtomicInteger();
+
+        debouncer.debounce("x", count::getAndIncrement, 2000);
+        scheduler.advance(1999);
+        assertEquals(0, count.get());
+        scheduler.advance(1);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testMinDelayExtendsMaxLatency() {
+        Debouncer debouncer = newDebouncer(500, 1000);
+
+        AtomicInteger normal = new AtomicInteger();
+        AtomicInteger coalesced = new AtomicInteger();
+
+        //Both keys receive updates continuously for 6 seconds
+        for (int i = 0; i < 60; i++) {
+            debouncer.debounce("x", normal::getAndIncrement);
+            debouncer.debounce("y", coalesced::getAndIncrement, 2000);
+            scheduler.advance(100);
+        }
+
+        //Published after max latency of 1 second and max latency extended by min delay to 3 seconds
+        assertEquals(6, normal.get());
+        assertEquals(2, coalesced.get());
+    }
+
+    @Test
+    public void testCancel() {
+        Debouncer debouncer = newDebouncer(500, 0);
+
+        AtomicInteger count = new AtomicInteger();
+
+        debouncer.debounce("x", count::getAndIncrement);
+        assertEquals(true, debouncer.cancel("x"));
+        assertEquals(false, debouncer.cancel("x"));
+        scheduler.advance(1000);
+
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    public void testActionIsRunImmediatelyWhenTooManyArePending() {
+        Debouncer debouncer = new Debouncer(DebounceDelay.fixed(500), Duration.ZERO, 2, null, scheduler, scheduler::now);
+
+        AtomicInteger count = new AtomicInteger();
+
+        debouncer.debounce("x", count::getAndIncrement);
+        debouncer.debounce("y", count::getAndIncrement);
+        //Key that is already pending is still debounced
+        debouncer.debounce("y", count::getAndIncrement);
+        assertEquals(0, count.get());
+
+        debouncer.debounce("z", count::getAndIncrement);
+        assertEquals(1, count.get());
+        assertEquals(2, debouncer.getPendingCount());
+        assertEquals(1, debouncer.getStats().getOverflowed());
+
+        scheduler.advance(500);
+        assertEquals(3, count.get());
+    }
+
+    @Test
+    public void testOverflowedActionsAreNotCountedAsReduced() {
+        Debouncer debouncer = new Debouncer(DebounceDelay.fixed(500), Duration.ZERO, 1, null, scheduler, scheduler::now);
+
+        debouncer.debounce("x", () -> {});
+        debouncer.debounce("x", () -> {});
+        //Too many pending actions, these are run immediately
+        debouncer.debounce("y", () -> {});
+        debouncer.debounce("z", () -> {});
+        scheduler.advance(500);
+
+        assertEquals(4, debouncer.getStats().getDebounced());
+        assertEquals(1, debouncer.getStats().getFlushed());
+        assertEquals(2, debouncer.getStats().getOverflowed());
+        //Only the replaced action of x was not run
+        assertEquals(0.25, debouncer.getStats().getReductionRatio(), 0.001);
+    }
+
+    @Test
+    public void testActionsOfSameKeyRunInOrderOnExecutor() {
+        //Executor whose tasks are run by the test
+        final List<Runnable> tasks = new ArrayList<>();
+        Debouncer debouncer = new Debouncer(DebounceDelay.fixed(500), Duration.ZERO, tasks::add, scheduler, scheduler::now);
+
+        final List<String> ran = new ArrayList<>();
+
+        debouncer.debounce("x", () -> ran.add("x1"));
+        scheduler.advance(500);
+        debouncer.debounce("x", () -> ran.add("x2"));
+        debouncer.debounce("y", () -> ran.add("y1"));
+        scheduler.advance(500);
+
+        //Second action of x waits until the first one has completed, other keys are not blocked
+        assertEquals(2, tasks.size());
+        tasks.remove(1).run();
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        //Next action is handed over by the scheduler thread
+        assertEquals(0, tasks.size());
+        scheduler.advance(0);
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+
+        assertEquals(List.of("y1", "x1", "x2"), ran);
+    }
+
+    @Test
+    public void testActionsOfSameKeyDoNotDeadlockOnBoundedExecutor() throws InterruptedException {
+        final ExecutorService executorService = Executors.newCachedThreadPool();
+        final BoundedExecutor executor = new BoundedExecutor(executorService, 1);
+        Debouncer debouncer = new Debouncer(DebounceDelay.fixed(500), Duration.ZERO, 1, executor);
+
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+
+        //Pending action of another key makes actions of x overflow, so they are run immediately
+        debouncer.debounce("y", () -> {});
+        debouncer.debounce("x", () -> {
+            firstStarted.countDown();
+            try {
+                releaseFirst.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        });
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        debouncer.debounce("x", done::countDown);
+        releaseFirst.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        debouncer.shutdown();
+        executorService.shutdown();
+    }
 }
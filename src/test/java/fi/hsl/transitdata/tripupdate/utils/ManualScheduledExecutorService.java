@@ -0,0 +1,153 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+/**
+ * Scheduled executor for tests. Scheduled tasks are run on the calling thread when time is advanced.
+ */
+public class ManualScheduledExecutorService extends AbstractExecutorService implements ScheduledExecutorService {
+    private final PriorityQueue<ManualFuture<?>> tasks = new PriorityQueue<>();
+    private long nowMs;
+    private long sequence = 0;
+    private boolean shutdown = false;
+
+    public ManualScheduledExecutorService(long startTimeMs) {
+        this.nowMs = startTimeMs;
+    }
+
+    public long now() {
+        return nowMs;
+    }
+
+    /**
+     * Advances time and runs all tasks that are due, in order of their scheduled time. Periodic tasks are run once
+     * for each period that has passed.
+     */
+    public void advance(long ms) {
+        final long targetMs = nowMs + ms;
+        while (!tasks.isEmpty() && tasks.peek().timeMs <= targetMs) {
+            final ManualFuture<?> task = tasks.poll();
+            nowMs = Math.max(nowMs, task.timeMs);
+            if (!task.isCancelled()) {
+                task.runTask();
+            }
+        }
+        nowMs = targetMs;
+    }
+
+    public int getPendingTaskCount() {
+        return (int) tasks.stream().filter(task -> !task.isCancelled()).count();
+    }
+
+    private class ManualFuture<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+        long timeMs;
+        long order = sequence++;
+        //Positive for fixed rate, negative for fixed delay and zero for tasks that are run once
+        final long periodMs;
+
+        ManualFuture(Callable<V> callable, long timeMs, long periodMs) {
+            super(callable);
+            this.timeMs = timeMs;
+            this.periodMs = periodMs;
+        }
+
+        void runTask() {
+            if (!isPeriodic()) {
+                run();
+            } else if (runAndReset()) {
+                timeMs = periodMs > 0 ? timeMs + periodMs : nowMs - periodMs;
+                order = sequence++;
+                tasks.add(this);
+            }
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return periodMs != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(timeMs - nowMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            final ManualFuture<?> otherFuture = (ManualFuture<?>) other;
+            final int result = Long.compare(timeMs, otherFuture.timeMs);
+            return result != 0 ? result : Long.compare(order, otherFuture.order);
+        }
+    }
+
+    private <V> ScheduledFuture<V> add(Callable<V> callable, long delay, long periodMs, TimeUnit unit) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        final ManualFuture<V> future = new ManualFuture<>(callable, nowMs + unit.toMillis(delay), periodMs);
+        tasks.add(future);
+        return future;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return add(Executors.callable(command), delay, 0, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return add(callable, delay, 0, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        return add(Executors.callable(command), initialDelay, unit.toMillis(period), unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive");
+        }
+        return add(Executors.callable(command), initialDelay, -unit.toMillis(delay), unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        final List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        return Collections.unmodifiableList(pending);
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+}
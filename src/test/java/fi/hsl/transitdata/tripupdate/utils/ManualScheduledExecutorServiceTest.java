@@ -0,0 +1,42 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ManualScheduledExecutorServiceTest {
+    private final ManualScheduledExecutorService scheduler = new ManualScheduledExecutorService(0);
+
+    @Test
+    public void testCallableIsCompletedWhenDue() throws Exception {
+        final ScheduledFuture<String> future = scheduler.schedule(() -> "done", 100, TimeUnit.MILLISECONDS);
+        scheduler.advance(99);
+        assertEquals(false, future.isDone());
+        scheduler.advance(1);
+        assertTrue(future.isDone());
+        assertEquals("done", future.get());
+    }
+
+    @Test
+    public void testPeriodicTasksAreRunForEachPeriod() {
+        final AtomicInteger fixedRate = new AtomicInteger();
+        final AtomicInteger fixedDelay = new AtomicInteger();
+        scheduler.scheduleAtFixedRate(fixedRate::incrementAndGet, 0, 100, TimeUnit.MILLISECONDS);
+        final ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(fixedDelay::incrementAndGet, 50, 100, TimeUnit.MILLISECONDS);
+
+        scheduler.advance(1000);
+        assertEquals(11, fixedRate.get());
+        assertEquals(10, fixedDelay.get());
+
+        future.cancel(false);
+        scheduler.advance(1000);
+        assertEquals(21, fixedRate.get());
+        assertEquals(10, fixedDelay.get());
+        assertEquals(1, scheduler.getPendingTaskCount());
+    }
+}
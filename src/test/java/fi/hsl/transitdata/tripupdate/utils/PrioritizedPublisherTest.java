@@ -0,0 +1,170 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import fi.hsl.transitdata.tripupdate.utils.PrioritizedPublisher.Priority;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PrioritizedPublisherTest {
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final List<String> sent = new ArrayList<>();
+    private final List<CompletableFuture<?>> pending = new ArrayList<>();
+
+    private Supplier<CompletableFuture<?>> send(String message) {
+        return () -> {
+            sent.add(message);
+            CompletableFuture<?> future = new CompletableFuture<>();
+            pending.add(future);
+            return future;
+        };
+    }
+
+    private void completeOldest() {
+        pending.remove(0).complete(null);
+    }
+
+    @Test
+    public void messagesAreSentImmediatelyWhenBelowLimit() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(2, clock::get);
+
+        publisher.publish("a", Priority.LOW, send("a1"));
+        publisher.publish("b", Priority.NORMAL, send("b1"));
+
+        assertEquals(List.of("a1", "b1"), sent);
+        assertEquals(2, publisher.getPendingSends());
+
+        completeOldest();
+        completeOldest();
+        assertEquals(0, publisher.getPendingSends());
+    }
+
+    @Test
+    public void queuedMessagesAreSentByPriority() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("a", Priority.NORMAL, send("a1"));
+        publisher.publish("b", Priority.LOW, send("b1"));
+        publisher.publish("c", Priority.NORMAL, send("c1"));
+        publisher.publish("d", Priority.HIGH, send("d1"));
+
+        assertEquals(List.of("a1"), sent);
+        assertEquals(1, publisher.getQueueDepth(Priority.HIGH));
+        assertEquals(1, publisher.getQueueDepth(Priority.NORMAL));
+        assertEquals(1, publisher.getQueueDepth(Priority.LOW));
+
+        completeOldest();
+        completeOldest();
+        completeOldest();
+        completeOldest();
+
+        assertEquals(List.of("a1", "d1", "c1", "b1"), sent);
+        assertEquals(0, publisher.getPendingSends());
+    }
+
+    @Test
+    public void newerMessageReplacesQueuedMessageWithSameKey() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("a", Priority.NORMAL, send("a1"));
+        publisher.publish("b", Priority.HIGH, send("b1"));
+        publisher.publish("c", Priority.NORMAL, send("c1"));
+        publisher.publish("b", Priority.LOW, send("b2"));
+
+        //Replaced message keeps the higher priority
+        assertEquals(1, publisher.getQueueDepth(Priority.HIGH));
+        assertEquals(0, publisher.getQueueDepth(Priority.LOW));
+
+        completeOldest();
+        completeOldest();
+        completeOldest();
+
+        assertEquals(List.of("a1", "b2", "c1"), sent);
+    }
+
+    @Test
+    public void waitTimeIsRecorded() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("a", Priority.NORMAL, send("a1"));
+        publisher.publish("b", Priority.HIGH, send("b1"));
+        clock.addAndGet(50);
+        completeOldest();
+
+        Histogram highWait = publisher.getStats().getWaitTime(Priority.HIGH);
+        assertEquals(1, highWait.getCount());
+        assertEquals(50, highWait.getPercentile(100));
+    }
+
+    @Test
+    public void failedSendDoesNotBlockQueue() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("a", Priority.NORMAL, send("a1"));
+        publisher.publish("b", Priority.NORMAL, send("b1"));
+        pending.remove(0).completeExceptionally(new RuntimeException("test"));
+
+        assertEquals(List.of("a1", "b1"), sent);
+    }
+
+    @Test
+    public void synchronouslyCompletedSendsAreDrainedWithoutRecursion() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("first", Priority.NORMAL, send("first"));
+        final int queued = 100_000;
+        for (int i = 0; i < queued; i++) {
+            final String message = Integer.toString(i);
+            //Like a sink that writes to memory or a file
+            publisher.publish(message, Priority.NORMAL, () -> {
+                sent.add(message);
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        completeOldest();
+
+        assertEquals(queued + 1, sent.size());
+        assertEquals(0, publisher.getPendingSends());
+        assertEquals(0, publisher.getQueueDepth(Priority.NORMAL));
+    }
+
+    @Test
+    public void olderMessageIsDroppedAfterNewerMessageOfSameKey() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(1, clock::get);
+
+        publisher.publish("a", 2, Priority.HIGH, send("a2"));
+        publisher.publish("a", 1, Priority.NORMAL, send("a1"));
+        completeOldest();
+        publisher.publish("a", 3, Priority.NORMAL, send("a3"));
+
+        assertEquals(List.of("a2", "a3"), sent);
+        assertEquals(1, publisher.getStats().getOutdated());
+    }
+
+    @Test
+    public void flushedMessageIsNotSentAfterHighPriorityMessage() {
+        PrioritizedPublisher publisher = new PrioritizedPublisher(10, clock::get);
+        ManualScheduledExecutorService scheduler = new ManualScheduledExecutorService(0);
+        //Executor whose tasks are run by the test, like flushed actions that wait for a permit
+        List<Runnable> tasks = new ArrayList<>();
+        Debouncer debouncer = new Debouncer(DebounceDelay.fixed(500), Duration.ZERO, tasks::add, scheduler, scheduler::now);
+
+        debouncer.debounce("a", () -> publisher.publish("a", 1, Priority.NORMAL, send("scheduled")));
+        scheduler.advance(500);
+        assertEquals(1, tasks.size());
+
+        //High priority message is published while the flushed action is waiting to run
+        assertFalse(debouncer.cancel("a"));
+        publisher.publish("a", 2, Priority.HIGH, send("canceled"));
+        tasks.remove(0).run();
+
+        assertEquals(List.of("canceled"), sent);
+    }
+}
@@ -0,0 +1,17 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+
+public class PublishExecutorsTest {
+    @Test
+    public void testPlatformExecutorRunsOnCallingThread() {
+        assertNull(PublishExecutors.create(PublishExecutors.TYPE_PLATFORM));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownExecutorTypeIsRejected() {
+        PublishExecutors.create("unknown");
+    }
+}
@@ -0,0 +1,81 @@
+package fi.hsl.transitdata.tripupdate.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReorderBufferTest {
+    @Test
+    public void itemsAreHandledInOrderAfterWindow() {
+        final long[] now = { 0 };
+        final List<Long> handled = new ArrayList<>();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(1000, 100, handled::add, () -> now[0]);
+
+        buffer.add(1000L, 1000);
+        buffer.add(1300L, 1300);
+        now[0] = 100;
+        buffer.add(1100L, 1100);
+        buffer.add(1200L, 1200);
+        assertEquals(List.of(), handled);
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.getReorderedCount());
+
+        //Item that is a window newer than the oldest ones releases them
+        buffer.add(2150L, 2150);
+        assertEquals(List.of(1000L, 1100L), handled);
+
+        buffer.flush();
+        assertEquals(List.of(1000L, 1100L, 1200L, 1300L, 2150L), handled);
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void itemsAreReleasedWhenWindowPassesWithoutNewItems() {
+        final long[] now = { 0 };
+        final List<Long> handled = new ArrayList<>();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(1000, 100, handled::add, () -> now[0]);
+
+        buffer.add(5000L, 5000);
+        buffer.add(4500L, 4500);
+        now[0] = 499;
+        buffer.releaseExpired();
+        assertEquals(List.of(), handled);
+
+        now[0] = 500;
+        buffer.releaseExpired();
+        assertEquals(List.of(4500L), handled);
+
+        now[0] = 1000;
+        buffer.releaseExpired();
+        assertEquals(List.of(4500L, 5000L), handled);
+    }
+
+    @Test
+    public void lateItemsAreHandledImmediately() {
+        final List<Long> handled = new ArrayList<>();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(1000, 100, handled::add, () -> 0);
+
+        buffer.add(1000L, 1000);
+        buffer.add(3000L, 3000);
+        assertEquals(List.of(1000L), handled);
+
+        buffer.add(500L, 500);
+        assertEquals(List.of(1000L, 500L), handled);
+        assertEquals(1, buffer.getLateCount());
+    }
+
+    @Test
+    public void oldestItemsAreHandledWhenBufferIsFull() {
+        final List<Long> handled = new ArrayList<>();
+        final ReorderBuffer<Long> buffer = new ReorderBuffer<>(60000, 3, handled::add, () -> 0);
+
+        for (long time : new long[]{ 400, 100, 300, 200, 500 }) {
+            buffer.add(time, time);
+        }
+        assertEquals(List.of(100L, 200L), handled);
+        assertEquals(3, buffer.size());
+    }
+}
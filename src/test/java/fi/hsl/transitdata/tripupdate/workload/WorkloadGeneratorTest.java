@@ -0,0 +1,137 @@
+package fi.hsl.transitdata.tripupdate.workload;
+
+import fi.hsl.common.transitdata.RouteIdUtils;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import fi.hsl.common.transitdata.proto.InternalMessages;
+import fi.hsl.transitdata.tripupdate.processing.ProcessorUtils;
+import fi.hsl.transitdata.tripupdate.processing.RouteClass;
+import fi.hsl.transitdata.tripupdate.recording.RecordedMessage;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class WorkloadGeneratorTest {
+    private static final long START_TIME_MS = Instant.parse("2024-03-15T04:00:00Z").toEpochMilli();
+
+    private static WorkloadGenerator.Settings settings() {
+        return new WorkloadGenerator.Settings()
+                .startTime(START_TIME_MS)
+                .duration(Duration.ofHours(1))
+                .trips(40)
+                .cancellationRatio(0.2)
+                .restoredCancellationRatio(0.5)
+                .targetedStopChangeRatio(0.2);
+    }
+
+    private static List<RecordedMessage> generate(WorkloadGenerator generator) {
+        final List<RecordedMessage> messages = new ArrayList<>();
+        RecordedMessage message;
+        while ((message = generator.read()) != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    @Test
+    public void workloadIsDeterministic() {
+        final WorkloadGenerator first = new WorkloadGenerator(settings(), 1);
+        final WorkloadGenerator second = new WorkloadGenerator(settings(), 1);
+
+        RecordedMessage message;
+        while ((message = first.read()) != null) {
+            final RecordedMessage other = second.read();
+            assertEquals(message.getKey(), other.getKey());
+            assertEquals(message.getEventTimeMs(), other.getEventTimeMs());
+            assertArrayEquals(message.getPayload(), other.getPayload());
+        }
+        assertNull(second.read());
+
+        final WorkloadGenerator otherSeed = new WorkloadGenerator(settings(), 2);
+        while (otherSeed.read() != null) {
+        }
+        assertNotEquals(first.getGeneratedMessages(), otherSeed.getGeneratedMessages());
+    }
+
+    @Test
+    public void messagesAreInOrderOfEventTime() {
+        final List<RecordedMessage> messages = generate(new WorkloadGenerator(settings(), 1));
+
+        assertFalse(messages.isEmpty());
+        assertTrue(messages.get(0).getEventTimeMs() >= START_TIME_MS);
+        for (int i = 1; i < messages.size(); i++) {
+            assertTrue(messages.get(i - 1).getEventTimeMs() <= messages.get(i).getEventTimeMs());
+        }
+    }
+
+    @Test
+    public void workloadContainsAllRouteClassesAndMessageTypes() throws Exception {
+        final WorkloadGenerator generator = new WorkloadGenerator(settings(), 1);
+        final List<RecordedMessage> messages = generate(generator);
+        assertEquals(messages.size(), generator.getGeneratedMessages());
+        assertEquals(4, generator.getGeneratedTrips().size());
+
+        final Set<RouteClass> routeClasses = EnumSet.noneOf(RouteClass.class);
+        final Set<String> stopEstimateTrips = new HashSet<>();
+        final Map<InternalMessages.TripCancellation.Status, Integer> cancellations = new HashMap<>();
+        int observed = 0;
+        int targetedStopChanges = 0;
+
+        for (RecordedMessage message : messages) {
+            assertEquals(message.getKey(), message.getProperty(TransitdataProperties.KEY_DVJ_ID));
+
+            final TransitdataProperties.ProtobufSchema schema = TransitdataProperties.ProtobufSchema.fromString(message.getProperty(TransitdataProperties.KEY_PROTOBUF_SCHEMA));
+            if (schema == TransitdataProperties.ProtobufSchema.InternalMessagesStopEstimate) {
+                final InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+                assertEquals(message.getKey(), estimate.getTripInfo().getTripId());
+                assertEquals(message.getEventTimeMs(), estimate.getLastModifiedUtcMs());
+                routeClasses.add(ProcessorUtils.getRouteClass(RouteIdUtils.normalizeRouteId(estimate.getTripInfo().getRouteId())));
+                stopEstimateTrips.add(message.getKey());
+                if (estimate.getObservedTime()) {
+                    observed++;
+                }
+                if (estimate.hasTargetedStopId()) {
+                    targetedStopChanges++;
+                }
+            } else {
+                assertEquals(TransitdataProperties.ProtobufSchema.InternalMessagesTripCancellation, schema);
+                final InternalMessages.TripCancellation cancellation = InternalMessages.TripCancellation.parseFrom(message.getPayload());
+                assertTrue(cancellation.getDeviationCaseId() > 0);
+                cancellations.merge(cancellation.getStatus(), 1, Integer::sum);
+            }
+        }
+
+        assertEquals(EnumSet.of(RouteClass.OTHER, RouteClass.METRO, RouteClass.TRAIN), routeClasses);
+        assertEquals(40, stopEstimateTrips.size());
+        assertTrue(observed > 0);
+        assertTrue(targetedStopChanges > 0);
+        assertTrue(cancellations.get(InternalMessages.TripCancellation.Status.CANCELED) > 0);
+        assertTrue(cancellations.get(InternalMessages.TripCancellation.Status.RUNNING) > 0);
+        assertTrue(cancellations.get(InternalMessages.TripCancellation.Status.RUNNING) < cancellations.get(InternalMessages.TripCancellation.Status.CANCELED));
+    }
+
+    @Test
+    public void burstSizeIsLimited() throws Exception {
+        final List<RecordedMessage> messages = generate(new WorkloadGenerator(settings().trips(1).cancellationRatio(0).maxStopsPerBurst(2), 1));
+
+        final Map<Long, Set<Integer>> stopsByEventTime = new HashMap<>();
+        for (RecordedMessage message : messages) {
+            final InternalMessages.StopEstimate estimate = InternalMessages.StopEstimate.parseFrom(message.getPayload());
+            if (!estimate.getObservedTime()) {
+                stopsByEventTime.computeIfAbsent(message.getEventTimeMs(), time -> new HashSet<>()).add(estimate.getStopSequence());
+            }
+        }
+        assertFalse(stopsByEventTime.isEmpty());
+        stopsByEventTime.values().forEach(stops -> assertTrue(Arrays.toString(stops.toArray()), stops.size() <= 2));
+    }
+}